@@ -18,18 +18,25 @@ package com.android.ims;
 
 import android.annotation.Nullable;
 import android.content.Context;
+import android.net.Uri;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.RemoteException;
 import android.telephony.TelephonyManager;
+import android.telephony.ims.ImsReasonInfo;
+import android.telephony.ims.ImsRegistrationAttributes;
 import android.telephony.ims.ImsService;
+import android.telephony.ims.RegistrationManager;
+import android.telephony.ims.SipDetails;
 import android.telephony.ims.aidl.IImsConfig;
 import android.telephony.ims.aidl.IImsRegistration;
+import android.telephony.ims.aidl.IImsRegistrationCallback;
 import android.telephony.ims.aidl.ISipTransport;
 import android.telephony.ims.feature.ImsFeature;
 import android.telephony.ims.stub.ImsRegistrationImplBase;
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.NoSuchElementException;
@@ -42,10 +49,15 @@ public abstract class FeatureConnection {
 
     protected static boolean sImsSupportedOnDevice = true;
 
+    // The keys of the registration states replayed to new callbacks when multiplexed.
+    private static final String REGISTRATION_STATE_KEY = "registration";
+    private static final String ASSOCIATED_URIS_STATE_KEY = "associatedUris";
+
     protected final int mSlotId;
     protected final int mSubId;
     protected Context mContext;
-    protected IBinder mBinder;
+    // Written under mLock, but may be read without it before an outbound binder call.
+    protected volatile IBinder mBinder;
 
     // We are assuming the feature is available when started.
     protected volatile boolean mIsAvailable = true;
@@ -57,6 +69,44 @@ public abstract class FeatureConnection {
     private final ISipTransport mSipTransportBinder;
     protected final Object mLock = new Object();
 
+    // The registration state mirrored from the ImsService, so that the registration tech does
+    // not need to be queried over binder every time.
+    private final Object mRegistrationLock = new Object();
+    @GuardedBy("mRegistrationLock")
+    private boolean mRegistrationCallbackAdded = false;
+    // Set once the first registration callback has been received.
+    @GuardedBy("mRegistrationLock")
+    private boolean mRegistrationStateKnown = false;
+    @GuardedBy("mRegistrationLock")
+    private @RegistrationManager.ImsRegistrationState int mRegistrationState =
+            RegistrationManager.REGISTRATION_STATE_NOT_REGISTERED;
+    @GuardedBy("mRegistrationLock")
+    private @ImsRegistrationImplBase.ImsRegistrationTech int mRegistrationTech =
+            ImsRegistrationImplBase.REGISTRATION_TECH_NONE;
+    @GuardedBy("mRegistrationLock")
+    private ImsRegistrationAttributes mRegistrationAttributes;
+
+    private final RegistrationManager.RegistrationCallback mRegistrationMirrorCallback =
+            new RegistrationManager.RegistrationCallback() {
+                @Override
+                public void onRegistered(ImsRegistrationAttributes attributes) {
+                    updateRegistrationState(RegistrationManager.REGISTRATION_STATE_REGISTERED,
+                            attributes);
+                }
+
+                @Override
+                public void onRegistering(ImsRegistrationAttributes attributes) {
+                    updateRegistrationState(RegistrationManager.REGISTRATION_STATE_REGISTERING,
+                            attributes);
+                }
+
+                @Override
+                public void onUnregistered(ImsReasonInfo info) {
+                    updateRegistrationState(
+                            RegistrationManager.REGISTRATION_STATE_NOT_REGISTERED, null);
+                }
+            };
+
     public FeatureConnection(Context context, int slotId, int subId, IImsConfig c,
             IImsRegistration r, ISipTransport s) {
         mSlotId = slotId;
@@ -65,6 +115,8 @@ public abstract class FeatureConnection {
         mRegistrationBinder = r;
         mConfigBinder = c;
         mSipTransportBinder = s;
+        // The callback is notified on the binder thread, it only updates the mirrored state.
+        mRegistrationMirrorCallback.setExecutor(Runnable::run);
     }
 
     protected TelephonyManager getTelephonyManager() {
@@ -117,17 +169,154 @@ public abstract class FeatureConnection {
                 }
             }
         }
+        resetRegistrationMirror();
     }
 
     public @ImsRegistrationImplBase.ImsRegistrationTech int getRegistrationTech()
             throws RemoteException {
         IImsRegistration registration = getRegistration();
-        if (registration != null) {
-            return registration.getRegistrationTechnology();
-        } else {
+        if (registration == null) {
             Log.w(TAG, "getRegistrationTech: ImsRegistration is null");
             return ImsRegistrationImplBase.REGISTRATION_TECH_NONE;
         }
+        synchronized (mRegistrationLock) {
+            if (mRegistrationStateKnown) {
+                return mRegistrationTech;
+            }
+        }
+        addRegistrationMirrorCallback(registration);
+        // Query the ImsService until the first registration callback has been received.
+        return registration.getRegistrationTechnology();
+    }
+
+    /**
+     * @return The registration state reported by the ImsService, or
+     * {@link RegistrationManager#REGISTRATION_STATE_NOT_REGISTERED} if it is not known yet.
+     */
+    public @RegistrationManager.ImsRegistrationState int getRegistrationState() {
+        IImsRegistration registration = getRegistration();
+        if (registration != null) {
+            addRegistrationMirrorCallback(registration);
+        }
+        synchronized (mRegistrationLock) {
+            return mRegistrationState;
+        }
+    }
+
+    /**
+     * @return The attributes of the current registration reported by the ImsService, or null if
+     * IMS is not registered or the state is not known yet.
+     */
+    public @Nullable ImsRegistrationAttributes getRegistrationAttributes() {
+        IImsRegistration registration = getRegistration();
+        if (registration != null) {
+            addRegistrationMirrorCallback(registration);
+        }
+        synchronized (mRegistrationLock) {
+            return mRegistrationAttributes;
+        }
+    }
+
+    /**
+     * Register the callback which mirrors the registration state, once per connection.
+     */
+    private void addRegistrationMirrorCallback(IImsRegistration registration) {
+        synchronized (mRegistrationLock) {
+            if (mRegistrationCallbackAdded || !mIsAvailable) {
+                return;
+            }
+            mRegistrationCallbackAdded = true;
+        }
+        try {
+            registration.addRegistrationCallback(mRegistrationMirrorCallback.getBinder());
+        } catch (RemoteException | IllegalStateException e) {
+            Log.w(TAG + " [" + mSlotId + "]", "addRegistrationMirrorCallback: couldn't add"
+                    + " callback, exception: " + e.getMessage());
+        }
+    }
+
+    private void updateRegistrationState(@RegistrationManager.ImsRegistrationState int state,
+            @Nullable ImsRegistrationAttributes attributes) {
+        synchronized (mRegistrationLock) {
+            // Ignore callbacks delivered after the connection was removed.
+            if (!mRegistrationCallbackAdded) {
+                return;
+            }
+            mRegistrationStateKnown = true;
+            mRegistrationState = state;
+            mRegistrationAttributes = attributes;
+            mRegistrationTech = (attributes != null) ? attributes.getRegistrationTechnology()
+                    : ImsRegistrationImplBase.REGISTRATION_TECH_NONE;
+        }
+    }
+
+    private void resetRegistrationMirror() {
+        boolean wasAdded;
+        synchronized (mRegistrationLock) {
+            wasAdded = mRegistrationCallbackAdded;
+            mRegistrationCallbackAdded = false;
+            mRegistrationStateKnown = false;
+            mRegistrationState = RegistrationManager.REGISTRATION_STATE_NOT_REGISTERED;
+            mRegistrationTech = ImsRegistrationImplBase.REGISTRATION_TECH_NONE;
+            mRegistrationAttributes = null;
+        }
+        IImsRegistration registration = getRegistration();
+        if (!wasAdded || registration == null) {
+            return;
+        }
+        try {
+            registration.removeRegistrationCallback(mRegistrationMirrorCallback.getBinder());
+        } catch (RemoteException | IllegalStateException e) {
+            // The ImsService may already be gone.
+        }
+    }
+
+    /**
+     * Create the single registration callback registered with the ImsService by a multiplexed
+     * {@link ImsCallbackAdapterManager}, which sends the events to all of its local callbacks.
+     */
+    protected static IImsRegistrationCallback createRegistrationUpstreamCallback(
+            ImsCallbackAdapterManager<IImsRegistrationCallback> manager) {
+        return new IImsRegistrationCallback.Stub() {
+            @Override
+            public void onRegistered(ImsRegistrationAttributes attributes) {
+                manager.notifyCallbacks(REGISTRATION_STATE_KEY,
+                        c -> c.onRegistered(attributes));
+            }
+
+            @Override
+            public void onRegistering(ImsRegistrationAttributes attributes) {
+                manager.notifyCallbacks(REGISTRATION_STATE_KEY,
+                        c -> c.onRegistering(attributes));
+            }
+
+            @Override
+            public void onDeregistered(ImsReasonInfo info, int suggestedAction,
+                    int imsRadioTech) {
+                manager.notifyCallbacks(REGISTRATION_STATE_KEY,
+                        c -> c.onDeregistered(info, suggestedAction, imsRadioTech));
+            }
+
+            @Override
+            public void onDeregisteredWithDetails(ImsReasonInfo info, int suggestedAction,
+                    int imsRadioTech, SipDetails details) {
+                manager.notifyCallbacks(REGISTRATION_STATE_KEY,
+                        c -> c.onDeregisteredWithDetails(info, suggestedAction, imsRadioTech,
+                                details));
+            }
+
+            @Override
+            public void onTechnologyChangeFailed(int imsRadioTech, ImsReasonInfo info) {
+                // Not a state, only sent to the current callbacks.
+                manager.notifyCallbacks(null, c -> c.onTechnologyChangeFailed(imsRadioTech, info));
+            }
+
+            @Override
+            public void onSubscriberAssociatedUriChanged(Uri[] uris) {
+                manager.notifyCallbacks(ASSOCIATED_URIS_STATE_KEY,
+                        c -> c.onSubscriberAssociatedUriChanged(uris));
+            }
+        };
     }
 
     public @Nullable IImsRegistration getRegistration() {
@@ -48,8 +48,10 @@ import com.android.telephony.Rlog;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -88,6 +90,9 @@ public class ImsCall implements ICall {
     private static final boolean CONF_DBG = true;
 
     private List<ConferenceParticipant> mConferenceParticipants;
+    // Participant state from the last conference event package, keyed by the CEP entry key.
+    private Map<String, ConferenceParticipantEntry> mConferenceParticipantEntries =
+            new HashMap<>();
     /**
      * Listener for events relating to an IMS call, such as when a call is being
      * received ("on ringing") or a call is outgoing ("on calling").
@@ -361,6 +366,23 @@ public class ImsCall implements ICall {
             // no-op
         }
 
+        /**
+         * Called after {@link #onConferenceParticipantsStateChanged} with only the participants
+         * which have changed since the previous conference event package. The
+         * {@link ConferenceParticipant} instances of unchanged participants are reused between
+         * updates, so listeners may compare them by reference.
+         *
+         * @param call the call object that carries out the IMS call.
+         * @param added the participants which have joined the conference.
+         * @param changed the participants whose state information has changed.
+         * @param removed the last known state of the participants which have left the conference.
+         */
+        public void onConferenceParticipantsDeltaChanged(ImsCall call,
+                List<ConferenceParticipant> added, List<ConferenceParticipant> changed,
+                List<ConferenceParticipant> removed) {
+            // no-op
+        }
+
         /**
          * Called when the USSD message is received from the network.
          *
@@ -579,7 +601,9 @@ public class ImsCall implements ICall {
     // It contains the exclusive call update request. Refer to UPDATE_*.
     private int mUpdateRequest = UPDATE_NONE;
 
-    private ImsCall.Listener mListener = null;
+    // Published without locking so that the session callbacks can read it without contending
+    // for the ImsCall monitor, which may be held during longer operations such as a merge.
+    private volatile ImsCall.Listener mListener = null;
 
     // When merging two calls together, the "peer" call that will merge into this call.
     private ImsCall mMergePeer = null;
@@ -2015,17 +2039,99 @@ public class ImsCall implements ICall {
             return;
         }
 
-        mConferenceParticipants = parseConferenceState(state);
+        List<ConferenceParticipant> added = new ArrayList<>();
+        List<ConferenceParticipant> changed = new ArrayList<>();
+        List<ConferenceParticipant> removed = new ArrayList<>();
+        mConferenceParticipants = updateConferenceParticipants(state, added, changed, removed);
 
-        if (mConferenceParticipants != null && mListener != null) {
+        ImsCall.Listener listener = mListener;
+        if (listener != null) {
             try {
-                mListener.onConferenceParticipantsStateChanged(this, mConferenceParticipants);
+                listener.onConferenceParticipantsStateChanged(this, mConferenceParticipants);
+                if (!added.isEmpty() || !changed.isEmpty() || !removed.isEmpty()) {
+                    listener.onConferenceParticipantsDeltaChanged(this, added, changed, removed);
+                }
             } catch (Throwable t) {
                 loge("notifyConferenceStateUpdated :: ", t);
             }
         }
     }
 
+    /**
+     * Applies a conference event package to the participant state of this call. Unlike
+     * {@link #parseConferenceState}, only the entries which differ from the previous conference
+     * event package are parsed; unchanged entries reuse their {@link ConferenceParticipant}.
+     *
+     * @param state The new {@link ImsConferenceState}.
+     * @param added Populated with the participants which have joined the conference.
+     * @param changed Populated with the participants whose state information has changed.
+     * @param removed Populated with the last known state of the participants which have left.
+     * @return The full list of participants which are not disconnected.
+     */
+    private List<ConferenceParticipant> updateConferenceParticipants(ImsConferenceState state,
+            List<ConferenceParticipant> added, List<ConferenceParticipant> changed,
+            List<ConferenceParticipant> removed) {
+        Map<String, ConferenceParticipantEntry> previousEntries = mConferenceParticipantEntries;
+        Map<String, ConferenceParticipantEntry> entries =
+                new HashMap<>(state.mParticipants.size());
+        List<ConferenceParticipant> conferenceParticipants =
+                new ArrayList<>(state.mParticipants.size());
+
+        for (Entry<String, Bundle> participant : state.mParticipants.entrySet()) {
+            String key = participant.getKey();
+            Bundle confInfo = participant.getValue();
+            String status = confInfo.getString(ImsConferenceState.STATUS);
+            String user = confInfo.getString(ImsConferenceState.USER);
+            String displayName = confInfo.getString(ImsConferenceState.DISPLAY_TEXT);
+            String endpoint = confInfo.getString(ImsConferenceState.ENDPOINT);
+
+            ConferenceParticipantEntry previous = previousEntries.remove(key);
+            ConferenceParticipantEntry entry;
+            if (previous != null && previous.matches(status, user, displayName, endpoint)) {
+                entry = previous;
+            } else {
+                if (CONF_DBG) {
+                    Log.i(TAG, "notifyConferenceStateUpdated :: key=" + Rlog.pii(TAG, key) +
+                            ", status=" + status +
+                            ", user=" + Rlog.pii(TAG, user) +
+                            ", displayName= " + Rlog.pii(TAG, displayName) +
+                            ", endpoint=" + Rlog.pii(TAG, endpoint));
+                }
+                entry = new ConferenceParticipantEntry(status, user, displayName, endpoint);
+                ConferenceParticipant previousParticipant =
+                        (previous != null) ? previous.mParticipant : null;
+                if (entry.mParticipant == null) {
+                    if (previousParticipant != null) {
+                        removed.add(previousParticipant);
+                    }
+                } else if (previousParticipant == null) {
+                    added.add(entry.mParticipant);
+                } else {
+                    changed.add(entry.mParticipant);
+                }
+            }
+            entries.put(key, entry);
+            if (entry.mParticipant != null) {
+                conferenceParticipants.add(entry.mParticipant);
+            }
+        }
+
+        // Any entries which are no longer reported have left the conference.
+        for (ConferenceParticipantEntry previous : previousEntries.values()) {
+            if (previous.mParticipant != null) {
+                removed.add(previous.mParticipant);
+            }
+        }
+        mConferenceParticipantEntries = entries;
+
+        if (CONF_DBG) {
+            logi("notifyConferenceStateUpdated :: added=" + added.size() + ", changed="
+                    + changed.size() + ", removed=" + removed.size() + ", total="
+                    + conferenceParticipants.size());
+        }
+        return conferenceParticipants;
+    }
+
     public static List<ConferenceParticipant> parseConferenceState(ImsConferenceState state) {
         Set<Entry<String, Bundle>> participants = state.mParticipants.entrySet();
 
@@ -2282,6 +2388,8 @@ public class ImsCall implements ICall {
                     this.mHold = true;
                     if (mConferenceParticipants != null && !mConferenceParticipants.isEmpty()) {
                         mMergePeer.mConferenceParticipants = mConferenceParticipants;
+                        mMergePeer.mConferenceParticipantEntries =
+                                new HashMap<>(mConferenceParticipantEntries);
                     }
                     // At this point both host & peer will have participant information.
                     // Peer will transition to host & the participant information
@@ -2489,6 +2597,42 @@ public class ImsCall implements ICall {
         return;
     }
 
+    /**
+     * The state of a conference participant as reported in a conference event package entry.
+     * The raw values are retained so that an unchanged entry can be detected without parsing the
+     * user and endpoint URIs again.
+     */
+    private static final class ConferenceParticipantEntry {
+        final String mStatus;
+        final String mUser;
+        final String mDisplayName;
+        final String mEndpoint;
+        // null if the participant is disconnected.
+        final ConferenceParticipant mParticipant;
+
+        ConferenceParticipantEntry(String status, String user, String displayName,
+                String endpoint) {
+            mStatus = status;
+            mUser = user;
+            mDisplayName = displayName;
+            mEndpoint = endpoint;
+            int connectionState = ImsConferenceState.getConnectionStateForStatus(status);
+            if (connectionState != Connection.STATE_DISCONNECTED) {
+                mParticipant = new ConferenceParticipant(Uri.parse(user), displayName,
+                        Uri.parse(endpoint == null ? "" : endpoint), connectionState,
+                        Call.Details.DIRECTION_UNKNOWN);
+            } else {
+                mParticipant = null;
+            }
+        }
+
+        boolean matches(String status, String user, String displayName, String endpoint) {
+            return TextUtils.equals(mStatus, status) && TextUtils.equals(mUser, user)
+                    && TextUtils.equals(mDisplayName, displayName)
+                    && TextUtils.equals(mEndpoint, endpoint);
+        }
+    }
+
     @VisibleForTesting
     public class ImsCallSessionListenerProxy extends ImsCallSession.Listener {
         @Override
@@ -3081,11 +3225,7 @@ public class ImsCall implements ICall {
                 return;
             }
 
-            ImsCall.Listener listener;
-
-            synchronized(ImsCall.this) {
-                listener = mListener;
-            }
+            ImsCall.Listener listener = mListener;
 
             if (listener != null) {
                 try {
@@ -3106,11 +3246,7 @@ public class ImsCall implements ICall {
                 return;
             }
 
-            ImsCall.Listener listener;
-
-            synchronized(ImsCall.this) {
-                listener = mListener;
-            }
+            ImsCall.Listener listener = mListener;
 
             mIsConferenceHost = true;
 
@@ -3134,11 +3270,7 @@ public class ImsCall implements ICall {
                 return;
             }
 
-            ImsCall.Listener listener;
-
-            synchronized(ImsCall.this) {
-                listener = mListener;
-            }
+            ImsCall.Listener listener = mListener;
 
             if (listener != null) {
                 try {
@@ -3159,11 +3291,7 @@ public class ImsCall implements ICall {
                 return;
             }
 
-            ImsCall.Listener listener;
-
-            synchronized(ImsCall.this) {
-                listener = mListener;
-            }
+            ImsCall.Listener listener = mListener;
 
             if (listener != null) {
                 try {
@@ -3185,11 +3313,7 @@ public class ImsCall implements ICall {
                 return;
             }
 
-            ImsCall.Listener listener;
-
-            synchronized(ImsCall.this) {
-                listener = mListener;
-            }
+            ImsCall.Listener listener = mListener;
 
             if (listener != null) {
                 try {
@@ -3219,11 +3343,7 @@ public class ImsCall implements ICall {
                 return;
             }
 
-            ImsCall.Listener listener;
-
-            synchronized(ImsCall.this) {
-                listener = mListener;
-            }
+            ImsCall.Listener listener = mListener;
 
             if (listener != null) {
                 try {
@@ -3238,11 +3358,7 @@ public class ImsCall implements ICall {
         public void callSessionTtyModeReceived(ImsCallSession session, int mode) {
             logi("callSessionTtyModeReceived :: mode=" + mode);
 
-            ImsCall.Listener listener;
-
-            synchronized(ImsCall.this) {
-                listener = mListener;
-            }
+            ImsCall.Listener listener = mListener;
 
             if (listener != null) {
                 try {
@@ -3268,11 +3384,7 @@ public class ImsCall implements ICall {
                         : "N"));
             }
 
-            ImsCall.Listener listener;
-
-            synchronized(ImsCall.this) {
-                listener = mListener;
-            }
+            ImsCall.Listener listener = mListener;
 
             if (listener != null) {
                 try {
@@ -3289,11 +3401,7 @@ public class ImsCall implements ICall {
                     srcNetworkType + ", targetAccessTech=" + targetNetworkType + ", reasonInfo=" +
                 reasonInfo);
 
-            ImsCall.Listener listener;
-
-            synchronized(ImsCall.this) {
-                listener = mListener;
-            }
+            ImsCall.Listener listener = mListener;
 
             if (listener != null) {
                 try {
@@ -3314,11 +3422,7 @@ public class ImsCall implements ICall {
                     srcNetworkType + ", targetAccessTech=" + targetNetworkType + ", reasonInfo=" +
                 reasonInfo);
 
-            ImsCall.Listener listener;
-
-            synchronized(ImsCall.this) {
-                listener = mListener;
-            }
+            ImsCall.Listener listener = mListener;
 
             if (listener != null) {
                 try {
@@ -3344,11 +3448,7 @@ public class ImsCall implements ICall {
             logi("callSessionSuppServiceReceived :: session=" + session +
                      ", suppServiceInfo" + suppServiceInfo);
 
-            ImsCall.Listener listener;
-
-            synchronized(ImsCall.this) {
-                listener = mListener;
-            }
+            ImsCall.Listener listener = mListener;
 
             if (listener != null) {
                 try {
@@ -3365,9 +3465,7 @@ public class ImsCall implements ICall {
             ImsCall.Listener listener;
             logi("callSessionRttModifyRequestReceived");
 
-            synchronized(ImsCall.this) {
-                listener = mListener;
-            }
+            listener = mListener;
 
             if (!callProfile.mMediaProfile.isRttCall()) {
                 logi("callSessionRttModifyRequestReceived:: ignoring request, requested profile " +
@@ -3389,9 +3487,7 @@ public class ImsCall implements ICall {
             ImsCall.Listener listener;
 
             logi("callSessionRttModifyResponseReceived: " + status);
-            synchronized(ImsCall.this) {
-                listener = mListener;
-            }
+            listener = mListener;
 
             if (listener != null) {
                 try {
@@ -3404,11 +3500,7 @@ public class ImsCall implements ICall {
 
         @Override
         public void callSessionRttMessageReceived(String rttMessage) {
-            ImsCall.Listener listener;
-
-            synchronized(ImsCall.this) {
-                listener = mListener;
-            }
+            ImsCall.Listener listener = mListener;
 
             if (listener != null) {
                 try {
@@ -3421,11 +3513,7 @@ public class ImsCall implements ICall {
 
         @Override
         public void callSessionRttAudioIndicatorChanged(ImsStreamMediaProfile profile) {
-            ImsCall.Listener listener;
-
-            synchronized(ImsCall.this) {
-                listener = mListener;
-            }
+            ImsCall.Listener listener = mListener;
 
             if (listener != null) {
                 try {
@@ -3438,11 +3526,7 @@ public class ImsCall implements ICall {
 
         @Override
         public void callSessionTransferred(ImsCallSession session) {
-            ImsCall.Listener listener;
-
-            synchronized(ImsCall.this) {
-                listener = mListener;
-            }
+            ImsCall.Listener listener = mListener;
 
             if (listener != null) {
                 try {
@@ -3455,11 +3539,7 @@ public class ImsCall implements ICall {
 
         @Override
         public void callSessionTransferFailed(ImsCallSession session, ImsReasonInfo reasonInfo) {
-            ImsCall.Listener listener;
-
-            synchronized(ImsCall.this) {
-                listener = mListener;
-            }
+            ImsCall.Listener listener = mListener;
 
             if (listener != null) {
                 try {
@@ -3472,11 +3552,7 @@ public class ImsCall implements ICall {
 
         @Override
         public void callSessionDtmfReceived(char digit) {
-            ImsCall.Listener listener;
-
-            synchronized(ImsCall.this) {
-                listener = mListener;
-            }
+            ImsCall.Listener listener = mListener;
 
             if (listener != null) {
                 try {
@@ -3489,11 +3565,7 @@ public class ImsCall implements ICall {
 
         @Override
         public void callQualityChanged(CallQuality callQuality) {
-            ImsCall.Listener listener;
-
-            synchronized (ImsCall.this) {
-                listener = mListener;
-            }
+            ImsCall.Listener listener = mListener;
 
             if (listener != null) {
                 try {
@@ -3507,11 +3579,7 @@ public class ImsCall implements ICall {
         @Override
         public void callSessionRtpHeaderExtensionsReceived(
                 @NonNull Set<RtpHeaderExtension> extensions) {
-            ImsCall.Listener listener;
-
-            synchronized (ImsCall.this) {
-                listener = mListener;
-            }
+            ImsCall.Listener listener = mListener;
 
             if (listener != null) {
                 try {
@@ -3527,9 +3595,7 @@ public class ImsCall implements ICall {
             ImsCall.Listener listener;
 
             logi("callSessionSendAnbrQuery in ImsCall");
-            synchronized (ImsCall.this) {
-                listener = mListener;
-            }
+            listener = mListener;
 
             if (listener != null) {
                 try {
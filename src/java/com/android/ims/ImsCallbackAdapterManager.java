@@ -19,9 +19,17 @@ package com.android.ims;
 import android.content.Context;
 import android.os.IInterface;
 import android.os.RemoteCallbackList;
+import android.os.RemoteException;
 import android.telephony.SubscriptionManager;
+import android.util.ArrayMap;
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
 
 public abstract class ImsCallbackAdapterManager<T extends IInterface> {
     private static final String TAG = "ImsCallbackAM";
@@ -34,16 +42,62 @@ public abstract class ImsCallbackAdapterManager<T extends IInterface> {
     // List of all active callbacks to ImsService
     private final RemoteCallbackList<T> mRemoteCallbacks = new RemoteCallbackList<>();
 
+    /**
+     * An event sent to the local callbacks in multiplexing mode.
+     */
+    protected interface CallbackEvent<T> {
+        void notify(T callback) throws RemoteException;
+    }
+
+    // In multiplexing mode, only one callback is registered with the ImsService and its events
+    // are sent to all the local callbacks, instead of registering every local callback.
+    private final boolean mMultiplexed;
+    private final Function<ImsCallbackAdapterManager<T>, T> mUpstreamCallbackFactory;
+    private T mUpstreamCallback;
+    // Guards the multiplexing state. The local callbacks are never notified while it is held.
+    private final Object mBroadcastLock = new Object();
+    @GuardedBy("mBroadcastLock")
+    private boolean mUpstreamRegistered = false;
+    // The last event of each kind which describes a state, replayed to new local callbacks.
+    @GuardedBy("mBroadcastLock")
+    private final ArrayMap<String, CallbackEvent<T>> mLastStateEvents = new ArrayMap<>();
+    // Incremented every time mLastStateEvents changes.
+    @GuardedBy("mBroadcastLock")
+    private int mStateVersion = 0;
+
     public ImsCallbackAdapterManager(Context context, Object lock, int slotId, int subId) {
         mContext = context;
         mLock = lock;
         mSlotId = slotId;
         mSubId = subId;
+        mMultiplexed = false;
+        mUpstreamCallbackFactory = null;
+    }
+
+    /**
+     * Create a manager in multiplexing mode.
+     * @param upstreamCallbackFactory Creates the single callback registered with the ImsService
+     *         for all the local callbacks, which calls {@link #notifyCallbacks} on the given
+     *         manager for each event.
+     */
+    public ImsCallbackAdapterManager(Context context, Object lock, int slotId, int subId,
+            Function<ImsCallbackAdapterManager<T>, T> upstreamCallbackFactory) {
+        mContext = context;
+        mLock = lock;
+        mSlotId = slotId;
+        mSubId = subId;
+        mMultiplexed = true;
+        mUpstreamCallbackFactory = Objects.requireNonNull(upstreamCallbackFactory);
     }
 
     // Add a callback to the ImsFeature associated with this manager (independent of the
     // current subscription).
     public final void addCallback(T localCallback) {
+        if (mMultiplexed) {
+            // Takes mLock itself, the current state must be replayed without holding it.
+            addMultiplexedCallback(localCallback);
+            return;
+        }
         synchronized (mLock) {
             // Skip registering to callback subscription map here, because we are registering
             // for the slot, independent of subscription (deprecated behavior).
@@ -73,15 +127,17 @@ public abstract class ImsCallbackAdapterManager<T extends IInterface> {
             throw new IllegalStateException("ImsService is not available for the subscription "
                     + "specified.");
         }
-        synchronized (mLock) {
-            addCallback(localCallback);
-        }
+        addCallback(localCallback);
     }
 
     // Removes a callback associated with the ImsFeature.
     public final void removeCallback(T localCallback) {
         Log.i(TAG + " [" + mSlotId + "]", "Local callback removed: " + localCallback);
         synchronized (mLock) {
+            if (mMultiplexed) {
+                removeMultiplexedCallback(localCallback);
+                return;
+            }
             if (mRemoteCallbacks.unregister(localCallback)) {
                 // Will only occur if we have record of this callback in mRemoteCallbacks.
                 unregisterCallback(localCallback);
@@ -94,6 +150,10 @@ public abstract class ImsCallbackAdapterManager<T extends IInterface> {
     // callbacks.
     public final void close() {
         synchronized (mLock) {
+            if (mMultiplexed) {
+                closeMultiplexed();
+                return;
+            }
             final int lastCallbackIndex = mRemoteCallbacks.getRegisteredCallbackCount() - 1;
             for(int ii = lastCallbackIndex; ii >= 0; ii --) {
                 T callbackItem = mRemoteCallbacks.getRegisteredCallbackItem(ii);
@@ -104,6 +164,141 @@ public abstract class ImsCallbackAdapterManager<T extends IInterface> {
         }
     }
 
+    /**
+     * In multiplexing mode, send an event received by the upstream callback to all the local
+     * callbacks. The local callbacks are notified in order on the calling thread, after the locks
+     * have been released, so they may call back into this manager.
+     * @param stateKey If not null, the event describes the current state for this key and is
+     *         replayed to the local callbacks added later.
+     */
+    protected final void notifyCallbacks(String stateKey, CallbackEvent<T> event) {
+        List<T> callbacks;
+        synchronized (mBroadcastLock) {
+            if (!mUpstreamRegistered) {
+                // An event from a callback which is not registered anymore.
+                return;
+            }
+            if (stateKey != null) {
+                mLastStateEvents.put(stateKey, event);
+                mStateVersion++;
+            }
+            final int count = mRemoteCallbacks.getRegisteredCallbackCount();
+            callbacks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                callbacks.add(mRemoteCallbacks.getRegisteredCallbackItem(i));
+            }
+        }
+        for (T callback : callbacks) {
+            notifyCallback(callback, event);
+        }
+    }
+
+    private void addMultiplexedCallback(T localCallback) {
+        while (!addFirstMultiplexedCallback(localCallback)) {
+            List<CallbackEvent<T>> stateEvents;
+            int stateVersion;
+            synchronized (mBroadcastLock) {
+                if (!mUpstreamRegistered) {
+                    // The upstream callback has been removed in the meantime.
+                    continue;
+                }
+                stateEvents = new ArrayList<>(mLastStateEvents.values());
+                stateVersion = mStateVersion;
+            }
+            // Replay the state without holding the locks. The callback only receives the new
+            // events once it is registered, so it is registered if the state has not changed
+            // during the replay, otherwise the new state is replayed.
+            for (CallbackEvent<T> event : stateEvents) {
+                notifyCallback(localCallback, event);
+            }
+            synchronized (mBroadcastLock) {
+                if (mUpstreamRegistered && stateVersion == mStateVersion) {
+                    mRemoteCallbacks.register(localCallback);
+                    break;
+                }
+            }
+        }
+        Log.i(TAG + " [" + mSlotId + "]", "Local callback added: " + localCallback
+                + ", multiplexed");
+    }
+
+    /**
+     * Register the upstream callback with the ImsService along with the given local callback if
+     * it is not registered yet, in which case there is no state to replay.
+     * @return true if the local callback has been registered.
+     */
+    private boolean addFirstMultiplexedCallback(T localCallback) {
+        synchronized (mLock) {
+            synchronized (mBroadcastLock) {
+                if (mUpstreamRegistered) {
+                    return false;
+                }
+                mRemoteCallbacks.register(localCallback);
+                // Set before registering, the ImsService may send the state right away.
+                mUpstreamRegistered = true;
+            }
+            if (mUpstreamCallback == null) {
+                mUpstreamCallback = mUpstreamCallbackFactory.apply(this);
+            }
+            try {
+                // Throws a IllegalStateException if this registration fails.
+                registerCallback(mUpstreamCallback);
+            } catch (IllegalStateException e) {
+                synchronized (mBroadcastLock) {
+                    mUpstreamRegistered = false;
+                    mRemoteCallbacks.unregister(localCallback);
+                }
+                throw e;
+            }
+            return true;
+        }
+    }
+
+    private void removeMultiplexedCallback(T localCallback) {
+        boolean unregisterUpstream;
+        synchronized (mBroadcastLock) {
+            unregisterUpstream = mRemoteCallbacks.unregister(localCallback)
+                    && mRemoteCallbacks.getRegisteredCallbackCount() == 0 && mUpstreamRegistered;
+            if (unregisterUpstream) {
+                mUpstreamRegistered = false;
+                mLastStateEvents.clear();
+                mStateVersion++;
+            }
+        }
+        if (unregisterUpstream) {
+            unregisterCallback(mUpstreamCallback);
+        }
+    }
+
+    private void closeMultiplexed() {
+        boolean unregisterUpstream;
+        synchronized (mBroadcastLock) {
+            unregisterUpstream = mUpstreamRegistered;
+            mUpstreamRegistered = false;
+            mLastStateEvents.clear();
+            mStateVersion++;
+            final int lastCallbackIndex = mRemoteCallbacks.getRegisteredCallbackCount() - 1;
+            for (int ii = lastCallbackIndex; ii >= 0; ii--) {
+                mRemoteCallbacks.unregister(mRemoteCallbacks.getRegisteredCallbackItem(ii));
+            }
+        }
+        if (unregisterUpstream) {
+            unregisterCallback(mUpstreamCallback);
+        }
+        Log.i(TAG + " [" + mSlotId + "]", "Closing multiplexed connection and clearing"
+                + " callbacks");
+    }
+
+    private void notifyCallback(T callback, CallbackEvent<T> event) {
+        try {
+            event.notify(callback);
+        } catch (RemoteException e) {
+            // The RemoteCallbackList removes the callback once its process is gone.
+            Log.w(TAG + " [" + mSlotId + "]", "notifyCallback: couldn't notify " + callback
+                    + ", exception: " + e.getMessage());
+        }
+    }
+
     // A callback has been registered. Register that callback with the ImsFeature.
     public abstract void registerCallback(T localCallback);
 
@@ -18,6 +18,7 @@ package com.android.ims;
 
 import android.annotation.NonNull;
 import android.annotation.Nullable;
+import android.os.IBinder;
 import android.os.RemoteException;
 import android.telephony.ims.ImsService;
 import android.telephony.ims.feature.ImsFeature;
@@ -28,12 +29,14 @@ import com.android.ims.internal.IImsServiceFeatureCallback;
 import com.android.internal.annotations.GuardedBy;
 
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.Executor;
-import java.util.stream.Collectors;
 
 /**
  * A repository of ImsFeature connections made available by an ImsService once it has been
@@ -49,10 +52,41 @@ public class ImsFeatureBinderRepository {
     /**
      * Internal class representing a listener that is listening for changes to specific
      * ImsFeature instances.
+     * <p>
+     * Notifications are delivered serially on the listener's executor. State and capability
+     * updates which have not been delivered yet are superseded by newer updates of the same kind,
+     * so a listener that falls behind only receives the latest value instead of every transition.
      */
     private static class ListenerContainer {
+        private static final int NOTIFY_FEATURE_CREATED = 0;
+        private static final int NOTIFY_FEATURE_REMOVED = 1;
+        private static final int NOTIFY_STATE_CHANGED = 2;
+        private static final int NOTIFY_CAPABILITIES_CHANGED = 3;
+
+        /**
+         * A pending notification for this listener.
+         */
+        private static final class Notification {
+            final int type;
+            ImsFeatureContainer connector;
+            int subId;
+            int state;
+            long caps;
+
+            Notification(int t) {
+                type = t;
+            }
+        }
+
         private final IImsServiceFeatureCallback mCallback;
         private final Executor mExecutor;
+        private final Object mLock = new Object();
+        @GuardedBy("mLock")
+        private final ArrayDeque<Notification> mPendingNotifications = new ArrayDeque<>();
+        @GuardedBy("mLock")
+        private boolean mIsDispatchScheduled = false;
+        @GuardedBy("mLock")
+        private IBinder.DeathRecipient mDeathRecipient;
 
         public ListenerContainer(@NonNull IImsServiceFeatureCallback c, @NonNull Executor e) {
             mCallback = c;
@@ -60,45 +94,151 @@ public class ImsFeatureBinderRepository {
         }
 
         public void notifyFeatureCreatedOrRemoved(ImsFeatureContainer connector, int subId) {
-            if (connector == null) {
-                mExecutor.execute(() -> {
-                    try {
-                        mCallback.imsFeatureRemoved(
-                                FeatureConnector.UNAVAILABLE_REASON_DISCONNECTED);
-                    } catch (RemoteException e) {
-                        // This listener will eventually be caught and removed during stale checks.
-                    }
-                });
-            }
-            else {
-                mExecutor.execute(() -> {
-                    try {
-                        mCallback.imsFeatureCreated(connector, subId);
-                    } catch (RemoteException e) {
-                        // This listener will eventually be caught and removed during stale checks.
-                    }
-                });
+            Notification n = new Notification(connector == null
+                    ? NOTIFY_FEATURE_REMOVED : NOTIFY_FEATURE_CREATED);
+            n.connector = connector;
+            n.subId = subId;
+            boolean dispatch;
+            synchronized (mLock) {
+                // The new connection carries its own state and capabilities, so any pending
+                // updates for the previous connection are no longer relevant.
+                mPendingNotifications.removeIf(p -> p.type == NOTIFY_STATE_CHANGED
+                        || p.type == NOTIFY_CAPABILITIES_CHANGED);
+                mPendingNotifications.add(n);
+                dispatch = scheduleDispatchLocked();
             }
+            if (dispatch) executeDispatch();
         }
 
         public void notifyStateChanged(int state, int subId) {
-            mExecutor.execute(() -> {
+            boolean dispatch;
+            synchronized (mLock) {
+                Notification n = getOrAddPendingUpdateLocked(NOTIFY_STATE_CHANGED);
+                n.state = state;
+                n.subId = subId;
+                dispatch = scheduleDispatchLocked();
+            }
+            if (dispatch) executeDispatch();
+        }
+
+        public void notifyUpdateCapabilties(long caps) {
+            boolean dispatch;
+            synchronized (mLock) {
+                Notification n = getOrAddPendingUpdateLocked(NOTIFY_CAPABILITIES_CHANGED);
+                n.caps = caps;
+                dispatch = scheduleDispatchLocked();
+            }
+            if (dispatch) executeDispatch();
+        }
+
+        /**
+         * @return The pending update of the given type queued after the last feature
+         * created/removed notification, which can be overwritten with the newest value, or a
+         * new one added to the end of the queue.
+         */
+        @GuardedBy("mLock")
+        private Notification getOrAddPendingUpdateLocked(int type) {
+            Iterator<Notification> it = mPendingNotifications.descendingIterator();
+            while (it.hasNext()) {
+                Notification n = it.next();
+                if (n.type == type) return n;
+                if (n.type == NOTIFY_FEATURE_CREATED || n.type == NOTIFY_FEATURE_REMOVED) break;
+            }
+            Notification n = new Notification(type);
+            mPendingNotifications.add(n);
+            return n;
+        }
+
+        /**
+         * Mark the dispatch of the pending notifications as scheduled.
+         * @return true if the caller must call {@link #executeDispatch()} once it has released
+         * mLock, false if a dispatch is already scheduled.
+         */
+        @GuardedBy("mLock")
+        private boolean scheduleDispatchLocked() {
+            if (mIsDispatchScheduled) return false;
+            mIsDispatchScheduled = true;
+            return true;
+        }
+
+        /**
+         * Dispatch the pending notifications on the executor. This must not be called with mLock
+         * held, the executor may run the callbacks directly on this thread.
+         */
+        private void executeDispatch() {
+            try {
+                mExecutor.execute(this::dispatchPendingNotifications);
+            } catch (RuntimeException e) {
+                // The executor rejected the dispatch or it failed on this thread, keep the
+                // pending notifications so that the next notification schedules them again.
+                synchronized (mLock) {
+                    mIsDispatchScheduled = false;
+                }
+                Log.w(TAG, "executeDispatch: failed to dispatch the notifications: " + e);
+            }
+        }
+
+        private void dispatchPendingNotifications() {
+            while (true) {
+                Notification n;
+                synchronized (mLock) {
+                    n = mPendingNotifications.poll();
+                    if (n == null) {
+                        mIsDispatchScheduled = false;
+                        return;
+                    }
+                }
+                // The death recipient may not have run yet, do not call into a dead binder.
+                if (isStale()) continue;
                 try {
-                    mCallback.imsStatusChanged(state, subId);
+                    switch (n.type) {
+                        case NOTIFY_FEATURE_CREATED:
+                            mCallback.imsFeatureCreated(n.connector, n.subId);
+                            break;
+                        case NOTIFY_FEATURE_REMOVED:
+                            mCallback.imsFeatureRemoved(
+                                    FeatureConnector.UNAVAILABLE_REASON_DISCONNECTED);
+                            break;
+                        case NOTIFY_STATE_CHANGED:
+                            mCallback.imsStatusChanged(n.state, n.subId);
+                            break;
+                        case NOTIFY_CAPABILITIES_CHANGED:
+                            mCallback.updateCapabilities(n.caps);
+                            break;
+                    }
                 } catch (RemoteException e) {
-                    // This listener will eventually be caught and removed during stale checks.
+                    // This listener will be removed when its death recipient is called.
                 }
-            });
+            }
         }
 
-        public void notifyUpdateCapabilties(long caps) {
-            mExecutor.execute(() -> {
+        /**
+         * Link to the death of the callback's binder.
+         * @return false if the binder has already died.
+         */
+        public boolean linkToDeath(IBinder.DeathRecipient recipient) {
+            synchronized (mLock) {
                 try {
-                    mCallback.updateCapabilities(caps);
+                    mCallback.asBinder().linkToDeath(recipient, 0);
+                    mDeathRecipient = recipient;
+                    return true;
                 } catch (RemoteException e) {
-                    // This listener will eventually be caught and removed during stale checks.
+                    return false;
+                }
+            }
+        }
+
+        public void unlinkToDeath() {
+            synchronized (mLock) {
+                if (mDeathRecipient == null) return;
+                try {
+                    mCallback.asBinder().unlinkToDeath(mDeathRecipient, 0);
+                } catch (NoSuchElementException e) {
+                    // The binder has already died.
                 }
-            });
+                mDeathRecipient = null;
+                mPendingNotifications.clear();
+            }
         }
 
         public boolean isStale() {
@@ -176,10 +316,14 @@ public class ImsFeatureBinderRepository {
         public void addListener(ListenerContainer c) {
             ImsFeatureContainer featureContainer;
             synchronized (mLock) {
-                removeStaleListeners();
                 if (mListeners.contains(c)) {
                     return;
                 }
+                // Prune the listener as soon as its process dies instead of checking every
+                // listener on each update.
+                if (!c.linkToDeath(() -> removeListener(c.mCallback))) {
+                    return;
+                }
                 featureContainer = mFeatureContainer;
                 mListeners.add(c);
             }
@@ -191,11 +335,14 @@ public class ImsFeatureBinderRepository {
 
         public void removeListener(IImsServiceFeatureCallback callback) {
             synchronized (mLock) {
-                removeStaleListeners();
-                List<ListenerContainer> oldListeners = mListeners.stream()
-                        .filter((c) -> Objects.equals(c.mCallback, callback))
-                        .collect(Collectors.toList());
-                mListeners.removeAll(oldListeners);
+                Iterator<ListenerContainer> it = mListeners.iterator();
+                while (it.hasNext()) {
+                    ListenerContainer c = it.next();
+                    if (Objects.equals(c.mCallback, callback)) {
+                        c.unlinkToDeath();
+                        it.remove();
+                    }
+                }
             }
         }
 
@@ -203,7 +350,6 @@ public class ImsFeatureBinderRepository {
             ImsFeatureContainer featureContainer;
             List<ListenerContainer> listeners;
             synchronized (mLock) {
-                removeStaleListeners();
                 featureContainer = mFeatureContainer;
                 listeners = copyListenerList(mListeners);
                 if (mFeatureContainer != null) {
@@ -222,7 +368,6 @@ public class ImsFeatureBinderRepository {
             ImsFeatureContainer featureContainer;
             List<ListenerContainer> listeners;
             synchronized (mLock) {
-                removeStaleListeners();
                 featureContainer = mFeatureContainer;
                 listeners = copyListenerList(mListeners);
                 if (mFeatureContainer != null) {
@@ -241,14 +386,6 @@ public class ImsFeatureBinderRepository {
             subId = newSubId;
         }
 
-        @GuardedBy("mLock")
-        private void removeStaleListeners() {
-            List<ListenerContainer> staleListeners = mListeners.stream().filter(
-                    ListenerContainer::isStale)
-                    .collect(Collectors.toList());
-            mListeners.removeAll(staleListeners);
-        }
-
         @Override
         public String toString() {
             synchronized (mLock) {
@@ -70,6 +70,7 @@ import android.telephony.ims.feature.MmTelFeature;
 import android.telephony.ims.stub.ImsCallSessionImplBase;
 import android.telephony.ims.stub.ImsConfigImplBase;
 import android.telephony.ims.stub.ImsRegistrationImplBase;
+import android.util.ArrayMap;
 import android.util.SparseArray;
 
 import com.android.ims.internal.IImsCallSession;
@@ -82,13 +83,15 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
@@ -265,6 +268,8 @@ public class ImsManager implements FeatureUpdates {
         int getDefaultVoicePhoneId();
         int getIntegerSubscriptionProperty(int subId, String propKey, int defValue);
         void setSubscriptionProperty(int subId, String propKey, String propValue);
+        /** Set several properties of the subscription in one pass. */
+        void setSubscriptionProperties(int subId, Map<String, String> properties);
         int[] getActiveSubscriptionIdList();
     }
 
@@ -316,6 +321,15 @@ public class ImsManager implements FeatureUpdates {
             SubscriptionManager.setSubscriptionProperty(subId, propKey, propValue);
         }
 
+        @Override
+        public void setSubscriptionProperties(int subId, Map<String, String> properties) {
+            // SubscriptionManager has no API to update several properties at once.
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                SubscriptionManager.setSubscriptionProperty(subId, property.getKey(),
+                        property.getValue());
+            }
+        }
+
         @Override
         public int[] getActiveSubscriptionIdList() {
             return getSubscriptionManager().getActiveSubscriptionIdList();
@@ -447,6 +461,20 @@ public class ImsManager implements FeatureUpdates {
     private boolean mConfigUpdated = false;
     private BinderCacheManager<ITelephony> mBinderCache;
     private ImsConfigListener mImsConfigListener;
+    // Caches the provisioning status queried from ITelephony, invalidated when the ImsService
+    // reports a config change or the carrier config is updated.
+    private final ProvisioningStatusCache mProvisioningCache = new ProvisioningStatusCache();
+    private final IImsConfigCallback mProvisioningCacheCallback = new IImsConfigCallback.Stub() {
+        @Override
+        public void onIntConfigChanged(int item, int value) {
+            mProvisioningCache.invalidate();
+        }
+
+        @Override
+        public void onStringConfigChanged(int item, String value) {
+            mProvisioningCache.invalidate();
+        }
+    };
 
     public static final String TRUE = "true";
     public static final String FALSE = "false";
@@ -1631,8 +1659,16 @@ public class ImsManager implements FeatureUpdates {
             return false;
         }
 
+        Boolean cached = mProvisioningCache.getProvisioned(subId, capability, tech);
+        if (cached != null) {
+            return cached;
+        }
+        long generation = mProvisioningCache.getGeneration();
         try {
-            return iTelephony.getImsProvisioningStatusForCapability(subId, capability, tech);
+            boolean provisioned = iTelephony.getImsProvisioningStatusForCapability(subId,
+                    capability, tech);
+            mProvisioningCache.putProvisioned(generation, subId, capability, tech, provisioned);
+            return provisioned;
         } catch (RemoteException | IllegalArgumentException e) {
             logw("getImsProvisionedBoolNoException: operation failed for capability=" + capability
                     + ". Exception:" + e.getMessage() + ". Returning false.");
@@ -1657,6 +1693,7 @@ public class ImsManager implements FeatureUpdates {
             return false;
         }
 
+        // Not cached, the RCS provisioning changes are not reported by mProvisioningCacheCallback.
         try {
             return iTelephony.getRcsProvisioningStatusForCapability(subId, capability, tech);
         } catch (RemoteException | IllegalArgumentException e) {
@@ -1687,6 +1724,8 @@ public class ImsManager implements FeatureUpdates {
             PersistableBundle imsCarrierConfigs =
                     mConfigManager.getConfigByComponentForSubId(
                             CarrierConfigManager.Ims.KEY_PREFIX, subId);
+            // Whether provisioning is required depends on the carrier config.
+            mProvisioningCache.invalidate();
             updateImsCarrierConfigs(imsCarrierConfigs);
             reevaluateCapabilities();
             mConfigUpdated = true;
@@ -2577,45 +2616,71 @@ public class ImsManager implements FeatureUpdates {
         });
     }
 
+    /**
+     * Query whether a single capability is enabled for the radio tech.
+     * @return true if the capability is enabled, false if it is disabled or the ImsService did
+     * not respond in time.
+     */
     public boolean queryMmTelCapability(
             @MmTelFeature.MmTelCapabilities.MmTelCapability int capability,
             @ImsRegistrationImplBase.ImsRegistrationTech int radioTech) throws ImsException {
-        MmTelFeatureConnection c = getOrThrowExceptionIfServiceUnavailable();
-
-        BlockingQueue<Boolean> result = new LinkedBlockingDeque<>(1);
+        return queryMmTelCapabilities(new int[] {capability}, new int[] {radioTech})
+                .isEnabled(capability, radioTech);
+    }
 
+    /**
+     * Query whether each of the capabilities is enabled for each of the radio techs. All the
+     * queries are sent at once and share a single deadline, instead of waiting for each response
+     * in turn.
+     * @return The result, which may be incomplete if the ImsService did not respond to all the
+     * queries in time. See {@link MmTelCapabilityMatrix#isComplete()}.
+     */
+    public MmTelCapabilityMatrix queryMmTelCapabilities(
+            @MmTelFeature.MmTelCapabilities.MmTelCapability int[] capabilities,
+            @ImsRegistrationImplBase.ImsRegistrationTech int[] radioTechs) throws ImsException {
+        MmTelCapabilityMatrix.Query query = sendMmTelCapabilityQuery(capabilities, radioTechs);
         try {
-            c.queryEnabledCapabilities(capability, radioTech, new IImsCapabilityCallback.Stub() {
-                        @Override
-                        public void onQueryCapabilityConfiguration(int resCap, int resTech,
-                                boolean enabled) {
-                            if (resCap == capability && resTech == radioTech) {
-                                result.offer(enabled);
-                            }
-                        }
-
-                        @Override
-                        public void onChangeCapabilityConfigurationError(int capability,
-                                int radioTech, int reason) {
-
-                        }
+            return query.getFuture().get(RESPONSE_WAIT_TIME_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logw("queryMmTelCapabilities: timed out, " + query.getPartialResult());
+        } catch (InterruptedException | ExecutionException e) {
+            logw("queryMmTelCapabilities: interrupted while waiting for response");
+        }
+        return query.getPartialResult();
+    }
 
-                        @Override
-                        public void onCapabilitiesStatusChanged(int config) {
+    /**
+     * Asynchronous version of {@link #queryMmTelCapabilities(int[], int[])}.
+     * @return A future which is completed once the ImsService responded to all the queries. The
+     * caller is responsible for applying a deadline, the future is never completed if the
+     * ImsService does not respond.
+     */
+    public CompletableFuture<MmTelCapabilityMatrix> queryMmTelCapabilitiesAsync(
+            @MmTelFeature.MmTelCapabilities.MmTelCapability int[] capabilities,
+            @ImsRegistrationImplBase.ImsRegistrationTech int[] radioTechs) throws ImsException {
+        return sendMmTelCapabilityQuery(capabilities, radioTechs).getFuture();
+    }
 
-                        }
-                    });
-        } catch (RemoteException e) {
-            throw new ImsException("queryMmTelCapability()", e,
-                    ImsReasonInfo.CODE_LOCAL_IMS_SERVICE_DOWN);
+    private MmTelCapabilityMatrix.Query sendMmTelCapabilityQuery(int[] capabilities,
+            int[] radioTechs) throws ImsException {
+        MmTelFeatureConnection c = getOrThrowExceptionIfServiceUnavailable();
+        MmTelCapabilityMatrix.Query query = new MmTelCapabilityMatrix.Query(capabilities,
+                radioTechs);
+        if (capabilities.length == 0 || radioTechs.length == 0) {
+            query.getFuture().complete(query.getPartialResult());
+            return query;
         }
-
         try {
-            return result.poll(RESPONSE_WAIT_TIME_MS, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-            logw("queryMmTelCapability: interrupted while waiting for response");
+            for (int capability : query.getCapabilities()) {
+                for (int radioTech : query.getRadioTechs()) {
+                    c.queryEnabledCapabilities(capability, radioTech, query);
+                }
+            }
+        } catch (RemoteException e) {
+            throw new ImsException("queryMmTelCapabilities()", e,
+                    ImsReasonInfo.CODE_LOCAL_IMS_SERVICE_DOWN);
         }
-        return false;
+        return query;
     }
 
     public boolean queryMmTelCapabilityStatus(
@@ -2990,6 +3055,9 @@ public class ImsManager implements FeatureUpdates {
 
     @Override
     public void associate(ImsFeatureContainer c, int subId) {
+        // The subscription or the ImsService may have changed, so the cached provisioning status
+        // is only used again once the new ImsService reports config changes.
+        mProvisioningCache.setEnabled(false);
         if (c == null) {
             mMmTelConnectionRef.set(mMmTelFeatureConnectionFactory.create(
                     mContext, mPhoneId, subId, null, null, null, null));
@@ -2997,14 +3065,34 @@ public class ImsManager implements FeatureUpdates {
             mMmTelConnectionRef.set(mMmTelFeatureConnectionFactory.create(
                     mContext, mPhoneId, subId, IImsMmTelFeature.Stub.asInterface(c.imsFeature),
                     c.imsConfig, c.imsRegistration, c.sipTransport));
+            enableProvisioningCache(subId);
         }
     }
 
     @Override
     public void invalidate() {
+        mProvisioningCache.setEnabled(false);
         mMmTelConnectionRef.get().onRemovedOrDied();
     }
 
+    private void enableProvisioningCache(int subId) {
+        if (!SubscriptionManager.isValidSubscriptionId(subId)) {
+            return;
+        }
+        try {
+            mMmTelConnectionRef.get().addProvisioningCallbackForSubscription(
+                    mProvisioningCacheCallback, subId);
+            mProvisioningCache.setEnabled(true);
+        } catch (IllegalStateException e) {
+            logw("enableProvisioningCache: couldn't register config callback, " + e.getMessage());
+        }
+    }
+
+    @VisibleForTesting
+    public ProvisioningStatusCache getProvisioningCache() {
+        return mProvisioningCache;
+    }
+
     private ITelephony getITelephony() {
         return mBinderCache.getBinder();
     }
@@ -3224,49 +3312,165 @@ public class ImsManager implements FeatureUpdates {
                     + subId);
             return;
         }
-        // Set VoLTE to default
-        mSubscriptionManagerProxy.setSubscriptionProperty(subId,
-                SubscriptionManager.ENHANCED_4G_MODE_ENABLED,
-                Integer.toString(SUB_PROPERTY_NOT_INITIALIZED));
+        edit()
+                // Set VoLTE to default
+                .putProperty(SubscriptionManager.ENHANCED_4G_MODE_ENABLED,
+                        Integer.toString(SUB_PROPERTY_NOT_INITIALIZED))
+                // Set VoWiFi to default
+                .putProperty(SubscriptionManager.WFC_IMS_ENABLED,
+                        Integer.toString(SUB_PROPERTY_NOT_INITIALIZED))
+                // Set VoWiFi mode to default
+                .putProperty(SubscriptionManager.WFC_IMS_MODE,
+                        Integer.toString(SUB_PROPERTY_NOT_INITIALIZED))
+                // Set VoWiFi roaming to default
+                .putProperty(SubscriptionManager.WFC_IMS_ROAMING_ENABLED,
+                        Integer.toString(SUB_PROPERTY_NOT_INITIALIZED))
+                // Set VoWiFi roaming mode to default
+                .putProperty(SubscriptionManager.WFC_IMS_ROAMING_MODE,
+                        Integer.toString(SUB_PROPERTY_NOT_INITIALIZED))
+                // Set VT to default
+                .putProperty(SubscriptionManager.VT_IMS_ENABLED,
+                        Integer.toString(SUB_PROPERTY_NOT_INITIALIZED))
+                // Set RCS UCE to default
+                .putProperty(SubscriptionManager.IMS_RCS_UCE_ENABLED,
+                        Integer.toString(SUBINFO_PROPERTY_FALSE))
+                // Push settings
+                .commit();
+    }
 
-        // Set VoWiFi to default
-        mSubscriptionManagerProxy.setSubscriptionProperty(subId,
-                SubscriptionManager.WFC_IMS_ENABLED,
-                Integer.toString(SUB_PROPERTY_NOT_INITIALIZED));
+    /**
+     * @return A {@link SettingsEditor} to change several IMS settings of the subscription at
+     * once.
+     */
+    public SettingsEditor edit() {
+        return new SettingsEditor();
+    }
 
-        // Set VoWiFi mode to default
-        mSubscriptionManagerProxy.setSubscriptionProperty(subId,
-                SubscriptionManager.WFC_IMS_MODE,
-                Integer.toString(SUB_PROPERTY_NOT_INITIALIZED));
+    /**
+     * Collects changes to the IMS settings stored in the subscription database, and writes them
+     * in one pass on {@link #commit()}, followed by a single re-evaluation of the capabilities.
+     * Prefer this over calling several setters, which each write their setting and re-evaluate
+     * the capabilities.
+     */
+    public class SettingsEditor {
+        private final ArrayMap<String, String> mProperties = new ArrayMap<>();
 
-        // Set VoWiFi roaming to default
-        mSubscriptionManagerProxy.setSubscriptionProperty(subId,
-                SubscriptionManager.WFC_IMS_ROAMING_ENABLED,
-                Integer.toString(SUB_PROPERTY_NOT_INITIALIZED));
+        private SettingsEditor() {}
 
-        // Set VoWiFi roaming mode to default
-        mSubscriptionManagerProxy.setSubscriptionProperty(subId,
-                SubscriptionManager.WFC_IMS_ROAMING_MODE,
-                Integer.toString(SUB_PROPERTY_NOT_INITIALIZED));
+        /**
+         * @see #setVtSetting(boolean)
+         */
+        public SettingsEditor setVtEnabled(boolean enabled) {
+            if (enabled && !isVtProvisionedOnDevice()) {
+                log("SettingsEditor: Not possible to enable Vt due to provisioning.");
+                return this;
+            }
+            return putProperty(SubscriptionManager.VT_IMS_ENABLED,
+                    booleanToPropertyString(enabled));
+        }
 
+        /**
+         * @see #setWfcSetting(boolean)
+         */
+        public SettingsEditor setWfcEnabled(boolean enabled) {
+            if (enabled && !isWfcProvisionedOnDevice()) {
+                log("SettingsEditor: Not possible to enable WFC due to provisioning.");
+                return this;
+            }
+            return putProperty(SubscriptionManager.WFC_IMS_ENABLED,
+                    booleanToPropertyString(enabled));
+        }
 
-        // Set VT to default
-        mSubscriptionManagerProxy.setSubscriptionProperty(subId,
-                SubscriptionManager.VT_IMS_ENABLED,
-                Integer.toString(SUB_PROPERTY_NOT_INITIALIZED));
+        /**
+         * @see #setWfcMode(int, boolean)
+         */
+        public SettingsEditor setWfcMode(int wfcMode, boolean roaming) {
+            return putProperty(roaming ? SubscriptionManager.WFC_IMS_ROAMING_MODE
+                    : SubscriptionManager.WFC_IMS_MODE, Integer.toString(wfcMode));
+        }
 
-        // Set RCS UCE to default
-        mSubscriptionManagerProxy.setSubscriptionProperty(subId,
-                SubscriptionManager.IMS_RCS_UCE_ENABLED, Integer.toString(
-                        SUBINFO_PROPERTY_FALSE));
-        // Push settings
-        try {
-            reevaluateCapabilities();
-        } catch (ImsException e) {
-            loge("factoryReset, exception: " + e);
+        /**
+         * @see #setWfcRoamingSetting(boolean)
+         */
+        public SettingsEditor setWfcRoamingEnabled(boolean enabled) {
+            return putProperty(SubscriptionManager.WFC_IMS_ROAMING_ENABLED,
+                    booleanToPropertyString(enabled));
+        }
+
+        /**
+         * @see #setCrossSimCallingEnabled(boolean)
+         */
+        public SettingsEditor setCrossSimCallingEnabled(boolean enabled) {
+            if (enabled && !isWfcProvisionedOnDevice()) {
+                log("SettingsEditor: Not possible to enable cross SIM calling due to "
+                        + "provisioning.");
+                return this;
+            }
+            return putProperty(SubscriptionManager.CROSS_SIM_CALLING_ENABLED,
+                    booleanToPropertyString(enabled));
+        }
+
+        private SettingsEditor putProperty(String key, String value) {
+            mProperties.put(key, value);
+            return this;
+        }
+
+        /**
+         * Write the changed settings and push them to the ImsService.
+         */
+        public void commit() {
+            if (mProperties.isEmpty()) {
+                return;
+            }
+            int subId = getSubId();
+            if (!isSubIdValid(subId)) {
+                loge("SettingsEditor: invalid sub id, can not set properties in siminfo db; subId="
+                        + subId);
+                return;
+            }
+            mSubscriptionManagerProxy.setSubscriptionProperties(subId, mProperties);
+
+            // Values reset to the default are sent to the ImsService by reevaluateCapabilities.
+            String wfcRoamingEnabled = mProperties.get(
+                    SubscriptionManager.WFC_IMS_ROAMING_ENABLED);
+            if (booleanToPropertyString(true).equals(wfcRoamingEnabled)
+                    || booleanToPropertyString(false).equals(wfcRoamingEnabled)) {
+                setWfcRoamingSettingInternal(booleanToPropertyString(true).equals(
+                        wfcRoamingEnabled));
+            }
+            updateWfcModeAfterEdit(mProperties.get(SubscriptionManager.WFC_IMS_MODE),
+                    mProperties.get(SubscriptionManager.WFC_IMS_ROAMING_MODE));
+            try {
+                reevaluateCapabilities();
+            } catch (ImsException e) {
+                // The ImsService is down, the settings will be sent in updateImsServiceConfig
+                // when it reconnects.
+                loge("SettingsEditor: commit, exception: " + e);
+            }
         }
     }
 
+    /**
+     * Send the WFC mode for the current roaming state if it was changed, as in
+     * {@link #setWfcMode(int, boolean)}.
+     */
+    private void updateWfcModeAfterEdit(String wfcMode, String wfcRoamingMode) {
+        if (wfcMode == null && wfcRoamingMode == null) {
+            return;
+        }
+        TelephonyManager tm = mContext.getSystemService(TelephonyManager.class);
+        if (tm == null) {
+            loge("updateWfcModeAfterEdit: TelephonyManager is null, can not set WFC.");
+            return;
+        }
+        tm = tm.createForSubscriptionId(getSubId());
+        String mode = tm.isNetworkRoaming() ? wfcRoamingMode : wfcMode;
+        if (mode == null || mode.equals(Integer.toString(SUB_PROPERTY_NOT_INITIALIZED))) {
+            return;
+        }
+        setWfcModeInternal(Integer.parseInt(mode));
+    }
+
     private boolean isDataEnabled() {
         TelephonyManager tm = mContext.getSystemService(TelephonyManager.class);
         if (tm == null) {
@@ -3307,10 +3511,17 @@ public class ImsManager implements FeatureUpdates {
             return false;
         }
 
+        Boolean cached = mProvisioningCache.getProvisioningRequired(subId, capability, tech);
+        if (cached != null) {
+            return cached;
+        }
+        long generation = mProvisioningCache.getGeneration();
         boolean required = false;
         try {
             required = iTelephony.isProvisioningRequiredForCapability(subId, capability,
                     tech);
+            mProvisioningCache.putProvisioningRequired(generation, subId, capability, tech,
+                    required);
         } catch (RemoteException | IllegalArgumentException e) {
             logw("isMmTelProvisioningRequired : operation failed" + " capability=" + capability
                     + " tech=" + tech + ". Exception:" + e.getMessage());
@@ -3537,6 +3748,7 @@ public class ImsManager implements FeatureUpdates {
         pw.println("  isCrossSimEnabledByPlatform = " + isCrossSimEnabledByPlatform());
         pw.println("  isCrossSimCallingEnabledByUser = " + isCrossSimCallingEnabledByUser());
         pw.println("  isImsOverNrEnabledByPlatform = " + isImsOverNrEnabledByPlatform());
+        mProvisioningCache.dump(pw, "  ");
         pw.flush();
     }
 
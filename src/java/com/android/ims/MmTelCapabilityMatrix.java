@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ims;
+
+import android.telephony.ims.aidl.IImsCapabilityCallback;
+import android.telephony.ims.feature.MmTelFeature;
+import android.telephony.ims.stub.ImsRegistrationImplBase;
+import android.util.SparseBooleanArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The enabled MMTEL capabilities for a set of capability and radio tech pairs, as returned by
+ * {@link ImsManager#queryMmTelCapabilities(int[], int[])}.
+ */
+public final class MmTelCapabilityMatrix {
+
+    /** All the MMTEL capabilities which can be queried. */
+    public static final int[] ALL_CAPABILITIES = {
+            MmTelFeature.MmTelCapabilities.CAPABILITY_TYPE_VOICE,
+            MmTelFeature.MmTelCapabilities.CAPABILITY_TYPE_VIDEO,
+            MmTelFeature.MmTelCapabilities.CAPABILITY_TYPE_UT,
+            MmTelFeature.MmTelCapabilities.CAPABILITY_TYPE_SMS,
+            MmTelFeature.MmTelCapabilities.CAPABILITY_TYPE_CALL_COMPOSER
+    };
+
+    /** All the radio techs which can be queried. */
+    public static final int[] ALL_RADIO_TECHS = {
+            ImsRegistrationImplBase.REGISTRATION_TECH_LTE,
+            ImsRegistrationImplBase.REGISTRATION_TECH_NR,
+            ImsRegistrationImplBase.REGISTRATION_TECH_IWLAN,
+            ImsRegistrationImplBase.REGISTRATION_TECH_CROSS_SIM
+    };
+
+    private final int[] mCapabilities;
+    private final int[] mRadioTechs;
+    // Only contains the pairs which the ImsService responded to.
+    private final SparseBooleanArray mResults;
+
+    private MmTelCapabilityMatrix(int[] capabilities, int[] radioTechs,
+            SparseBooleanArray results) {
+        mCapabilities = capabilities;
+        mRadioTechs = radioTechs;
+        mResults = results;
+    }
+
+    /**
+     * @return true if the capability is enabled for the radio tech. false if it is disabled, or
+     * if the ImsService did not respond for this pair before the deadline.
+     */
+    public boolean isEnabled(int capability, int radioTech) {
+        return mResults.get(getKey(capability, radioTech), false);
+    }
+
+    /**
+     * @return true if the ImsService responded for the capability and radio tech pair.
+     */
+    public boolean hasResult(int capability, int radioTech) {
+        return mResults.indexOfKey(getKey(capability, radioTech)) >= 0;
+    }
+
+    /**
+     * @return true if the ImsService responded for all the queried pairs.
+     */
+    public boolean isComplete() {
+        return mResults.size() == mCapabilities.length * mRadioTechs.length;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("MmTelCapabilityMatrix{");
+        for (int capability : mCapabilities) {
+            for (int radioTech : mRadioTechs) {
+                builder.append(" [").append(capability).append(",").append(radioTech)
+                        .append("]=");
+                builder.append(hasResult(capability, radioTech)
+                        ? isEnabled(capability, radioTech) : "?");
+            }
+        }
+        return builder.append("}").toString();
+    }
+
+    private static int getKey(int capability, int radioTech) {
+        return (capability << 8) | (radioTech & 0xFF);
+    }
+
+    /**
+     * Collects the responses of all the capability queries on a single callback and completes
+     * the future once every pair has been answered.
+     */
+    static final class Query extends IImsCapabilityCallback.Stub {
+        private final int[] mCapabilities;
+        private final int[] mRadioTechs;
+        private final CompletableFuture<MmTelCapabilityMatrix> mFuture =
+                new CompletableFuture<>();
+
+        private final Object mLock = new Object();
+        @GuardedBy("mLock")
+        private final SparseBooleanArray mResults = new SparseBooleanArray();
+
+        Query(int[] capabilities, int[] radioTechs) {
+            // Each pair is queried and answered once, so the duplicates are removed for the
+            // number of pairs to match the number of answers.
+            mCapabilities = Arrays.stream(capabilities).distinct().toArray();
+            mRadioTechs = Arrays.stream(radioTechs).distinct().toArray();
+        }
+
+        int[] getCapabilities() {
+            return mCapabilities;
+        }
+
+        int[] getRadioTechs() {
+            return mRadioTechs;
+        }
+
+        CompletableFuture<MmTelCapabilityMatrix> getFuture() {
+            return mFuture;
+        }
+
+        /**
+         * @return The results received so far.
+         */
+        MmTelCapabilityMatrix getPartialResult() {
+            synchronized (mLock) {
+                return new MmTelCapabilityMatrix(mCapabilities, mRadioTechs, mResults.clone());
+            }
+        }
+
+        @Override
+        public void onQueryCapabilityConfiguration(int capability, int radioTech,
+                boolean enabled) {
+            if (!isQueried(capability, radioTech)) {
+                return;
+            }
+            MmTelCapabilityMatrix result = null;
+            synchronized (mLock) {
+                mResults.put(getKey(capability, radioTech), enabled);
+                if (mResults.size() == mCapabilities.length * mRadioTechs.length) {
+                    result = new MmTelCapabilityMatrix(mCapabilities, mRadioTechs,
+                            mResults.clone());
+                }
+            }
+            if (result != null) {
+                mFuture.complete(result);
+            }
+        }
+
+        @Override
+        public void onChangeCapabilityConfigurationError(int capability, int radioTech,
+                int reason) {
+        }
+
+        @Override
+        public void onCapabilitiesStatusChanged(int config) {
+        }
+
+        private boolean isQueried(int capability, int radioTech) {
+            boolean found = false;
+            for (int c : mCapabilities) {
+                if (c == capability) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+            for (int t : mRadioTechs) {
+                if (t == radioTech) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -45,6 +45,8 @@ import android.telephony.ims.stub.ImsSmsImplBase;
 import android.util.Log;
 import android.util.SparseArray;
 
+import com.android.internal.annotations.GuardedBy;
+
 import com.android.ims.internal.IImsCallSession;
 import com.android.ims.internal.IImsEcbm;
 import com.android.ims.internal.IImsMultiEndpoint;
@@ -62,11 +64,15 @@ import java.util.Set;
 public class MmTelFeatureConnection extends FeatureConnection {
     protected static final String TAG = "MmTelFeatureConn";
 
+    // The key of the capabilities status replayed to new capability callbacks.
+    private static final String CAPABILITIES_STATUS_KEY = "capabilitiesStatus";
+
     private class ImsRegistrationCallbackAdapter extends
             ImsCallbackAdapterManager<IImsRegistrationCallback> {
 
         public ImsRegistrationCallbackAdapter(Context context, Object lock) {
-            super(context, lock, mSlotId, mSubId);
+            super(context, lock, mSlotId, mSubId,
+                    FeatureConnection::createRegistrationUpstreamCallback);
         }
 
         @Override
@@ -107,7 +113,8 @@ public class MmTelFeatureConnection extends FeatureConnection {
 
     private class CapabilityCallbackManager extends ImsCallbackAdapterManager<IImsCapabilityCallback> {
         public CapabilityCallbackManager(Context context, Object lock) {
-            super(context, lock, mSlotId, mSubId);
+            super(context, lock, mSlotId, mSubId,
+                    MmTelFeatureConnection::createCapabilityUpstreamCallback);
         }
 
         @Override
@@ -164,7 +171,8 @@ public class MmTelFeatureConnection extends FeatureConnection {
 
     private class ProvisioningCallbackManager extends ImsCallbackAdapterManager<IImsConfigCallback> {
         public ProvisioningCallbackManager (Context context, Object lock) {
-            super(context, lock, mSlotId, mSubId);
+            super(context, lock, mSlotId, mSubId,
+                    MmTelFeatureConnection::createConfigUpstreamCallback);
         }
 
         @Override
@@ -200,6 +208,56 @@ public class MmTelFeatureConnection extends FeatureConnection {
         }
     }
 
+    /**
+     * Create the single capability callback registered with the ImsService by the
+     * {@link CapabilityCallbackManager}, which sends the events to all of its local callbacks.
+     */
+    private static IImsCapabilityCallback createCapabilityUpstreamCallback(
+            ImsCallbackAdapterManager<IImsCapabilityCallback> manager) {
+        return new IImsCapabilityCallback.Stub() {
+            @Override
+            public void onQueryCapabilityConfiguration(int capability, int radioTech,
+                    boolean enabled) {
+                manager.notifyCallbacks(null, c -> c.onQueryCapabilityConfiguration(capability,
+                        radioTech, enabled));
+            }
+
+            @Override
+            public void onChangeCapabilityConfigurationError(int capability, int radioTech,
+                    int reason) {
+                manager.notifyCallbacks(null, c -> c.onChangeCapabilityConfigurationError(
+                        capability, radioTech, reason));
+            }
+
+            @Override
+            public void onCapabilitiesStatusChanged(int config) {
+                manager.notifyCallbacks(CAPABILITIES_STATUS_KEY,
+                        c -> c.onCapabilitiesStatusChanged(config));
+            }
+        };
+    }
+
+    /**
+     * Create the single config callback registered with the ImsService by the
+     * {@link ProvisioningCallbackManager}, which sends the events to all of its local callbacks.
+     */
+    private static IImsConfigCallback createConfigUpstreamCallback(
+            ImsCallbackAdapterManager<IImsConfigCallback> manager) {
+        // The ImsService does not send the current values when a callback is added, so there is
+        // no state to replay.
+        return new IImsConfigCallback.Stub() {
+            @Override
+            public void onIntConfigChanged(int item, int value) {
+                manager.notifyCallbacks(null, c -> c.onIntConfigChanged(item, value));
+            }
+
+            @Override
+            public void onStringConfigChanged(int item, String value) {
+                manager.notifyCallbacks(null, c -> c.onStringConfigChanged(item, value));
+            }
+        };
+    }
+
     private static final class BinderAccessState<T> {
         /**
          * We have not tried to get the interface yet.
@@ -241,12 +299,15 @@ public class MmTelFeatureConnection extends FeatureConnection {
     }
 
     // Updated by IImsServiceFeatureCallback when FEATURE_EMERGENCY_MMTEL is sent.
-    private boolean mSupportsEmergencyCalling = false;
-    private BinderAccessState<ImsEcbm> mEcbm =
+    private volatile boolean mSupportsEmergencyCalling = false;
+    // Written under mLock, read without locking.
+    private volatile BinderAccessState<ImsEcbm> mEcbm =
             new BinderAccessState<>(BinderAccessState.STATE_NOT_SET);
-    private BinderAccessState<ImsMultiEndpoint> mMultiEndpoint =
+    private volatile BinderAccessState<ImsMultiEndpoint> mMultiEndpoint =
             new BinderAccessState<>(BinderAccessState.STATE_NOT_SET);
     private MmTelFeature.Listener mMmTelFeatureListener;
+    private final Object mUtLock = new Object();
+    @GuardedBy("mUtLock")
     private ImsUt mUt;
 
     private final ImsRegistrationCallbackAdapter mRegistrationCallbackManager;
@@ -273,11 +334,13 @@ public class MmTelFeatureConnection extends FeatureConnection {
         // calling. There is still a limitation currently that only one UT listener can be set
         // (through ImsPhoneCallTracker), but this could be relaxed in the future via the ability
         // to register multiple callbacks.
-        synchronized (mLock) {
+        synchronized (mUtLock) {
             if (mUt != null) {
                 mUt.close();
                 mUt = null;
             }
+        }
+        synchronized (mLock) {
             closeConnection();
             super.onRemovedOrDied();
         }
@@ -383,76 +446,51 @@ public class MmTelFeatureConnection extends FeatureConnection {
 
     public void setMediaThreshold(@MediaQualityStatus.MediaSessionType int sessionType,
             MediaThreshold threshold) throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            getServiceInterface(mBinder).setMediaQualityThreshold(sessionType, threshold);
-        }
+        getReadyServiceInterface().setMediaQualityThreshold(sessionType, threshold);
     }
 
     public MediaQualityStatus queryMediaQualityStatus(
             @MediaQualityStatus.MediaSessionType int sessionType) throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            return getServiceInterface(mBinder).queryMediaQualityStatus(sessionType);
-        }
+        return getReadyServiceInterface().queryMediaQualityStatus(sessionType);
     }
 
     public void changeEnabledCapabilities(CapabilityChangeRequest request,
             IImsCapabilityCallback callback) throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            getServiceInterface(mBinder).changeCapabilitiesConfiguration(request, callback);
-        }
+        getReadyServiceInterface().changeCapabilitiesConfiguration(request, callback);
     }
 
     public void queryEnabledCapabilities(int capability, int radioTech,
             IImsCapabilityCallback callback) throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            getServiceInterface(mBinder).queryCapabilityConfiguration(capability, radioTech,
-                    callback);
-        }
+        getReadyServiceInterface().queryCapabilityConfiguration(capability, radioTech, callback);
     }
 
     public MmTelFeature.MmTelCapabilities queryCapabilityStatus() throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            return new MmTelFeature.MmTelCapabilities(
-                    getServiceInterface(mBinder).queryCapabilityStatus());
-        }
+        return new MmTelFeature.MmTelCapabilities(
+                getReadyServiceInterface().queryCapabilityStatus());
     }
 
     public ImsCallProfile createCallProfile(int callServiceType, int callType)
             throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            return getServiceInterface(mBinder).createCallProfile(callServiceType, callType);
-        }
+        return getReadyServiceInterface().createCallProfile(callServiceType, callType);
     }
 
     public void changeOfferedRtpHeaderExtensionTypes(Set<RtpHeaderExtensionType> types)
             throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            getServiceInterface(mBinder).changeOfferedRtpHeaderExtensionTypes(
-                    new ArrayList<>(types));
-        }
+        getReadyServiceInterface().changeOfferedRtpHeaderExtensionTypes(new ArrayList<>(types));
     }
 
     public IImsCallSession createCallSession(ImsCallProfile profile)
             throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            return getServiceInterface(mBinder).createCallSession(profile);
-        }
+        return getReadyServiceInterface().createCallSession(profile);
     }
 
     public ImsUt createOrGetUtInterface() throws RemoteException {
-        synchronized (mLock) {
+        // Use a dedicated lock here, so that a slow UT interface creation does not block the
+        // other MmTelFeature operations, which only need to read the current binder.
+        synchronized (mUtLock) {
             if (mUt != null) return mUt;
 
-            checkServiceIsReady();
-            IImsUt imsUt = getServiceInterface(mBinder).getUtInterface();
+            IImsUt imsUt = getReadyServiceInterface().getUtInterface();
             // This will internally set up a listener on the ImsUtImplBase interface, and there is
             // a limitation that there can only be one. If multiple connections try to create this
             // UT interface, it will throw an IllegalStateException.
@@ -479,22 +517,18 @@ public class MmTelFeatureConnection extends FeatureConnection {
     }
 
     public ImsEcbm getEcbmInterface() {
-        synchronized (mLock) {
-            if (mEcbm.getState() == BinderAccessState.STATE_NOT_SET) {
-                throw new IllegalStateException("ECBM interface has not been opened");
-            }
-
-            return mEcbm.getState() == BinderAccessState.STATE_AVAILABLE ?
-                    mEcbm.getInterface() : null;
+        // BinderAccessState is immutable, so a single volatile read is enough here.
+        BinderAccessState<ImsEcbm> ecbm = mEcbm;
+        if (ecbm.getState() == BinderAccessState.STATE_NOT_SET) {
+            throw new IllegalStateException("ECBM interface has not been opened");
         }
+
+        return ecbm.getState() == BinderAccessState.STATE_AVAILABLE ? ecbm.getInterface() : null;
     }
 
     public void setUiTTYMode(int uiTtyMode, Message onComplete)
             throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            getServiceInterface(mBinder).setUiTtyMode(uiTtyMode, onComplete);
-        }
+        getReadyServiceInterface().setUiTtyMode(uiTtyMode, onComplete);
     }
 
     private void setMultiEndpointInterface(ImsExternalCallStateListener listener)
@@ -518,92 +552,55 @@ public class MmTelFeatureConnection extends FeatureConnection {
 
     public void sendSms(int token, int messageRef, String format, String smsc, boolean isRetry,
             byte[] pdu) throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            getServiceInterface(mBinder).sendSms(token, messageRef, format, smsc, isRetry,
-                    pdu);
-        }
+        getReadyServiceInterface().sendSms(token, messageRef, format, smsc, isRetry, pdu);
     }
 
     public void onMemoryAvailable(int token) throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            getServiceInterface(mBinder).onMemoryAvailable(token);
-        }
+        getReadyServiceInterface().onMemoryAvailable(token);
     }
 
     public void acknowledgeSms(int token, int messageRef,
             @ImsSmsImplBase.SendStatusResult int result) throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            getServiceInterface(mBinder).acknowledgeSms(token, messageRef, result);
-        }
+        getReadyServiceInterface().acknowledgeSms(token, messageRef, result);
     }
 
     public void acknowledgeSms(int token, int messageRef,
             @ImsSmsImplBase.SendStatusResult int result, byte[] pdu) throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            getServiceInterface(mBinder).acknowledgeSmsWithPdu(token, messageRef, result, pdu);
-        }
+        getReadyServiceInterface().acknowledgeSmsWithPdu(token, messageRef, result, pdu);
     }
 
     public void acknowledgeSmsReport(int token, int messageRef,
             @ImsSmsImplBase.StatusReportResult int result) throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            getServiceInterface(mBinder).acknowledgeSmsReport(token, messageRef, result);
-        }
+        getReadyServiceInterface().acknowledgeSmsReport(token, messageRef, result);
     }
 
     public String getSmsFormat() throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            return getServiceInterface(mBinder).getSmsFormat();
-        }
+        return getReadyServiceInterface().getSmsFormat();
     }
 
     public void onSmsReady() throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            getServiceInterface(mBinder).onSmsReady();
-        }
+        getReadyServiceInterface().onSmsReady();
     }
 
     public void setSmsListener(IImsSmsListener listener) throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            getServiceInterface(mBinder).setSmsListener(listener);
-        }
+        getReadyServiceInterface().setSmsListener(listener);
     }
 
     public void notifySrvccStarted(ISrvccStartedCallback cb)
             throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            getServiceInterface(mBinder).notifySrvccStarted(cb);
-        }
+        getReadyServiceInterface().notifySrvccStarted(cb);
     }
 
     public void notifySrvccCompleted() throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            getServiceInterface(mBinder).notifySrvccCompleted();
-        }
+        getReadyServiceInterface().notifySrvccCompleted();
     }
 
     public void notifySrvccFailed() throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            getServiceInterface(mBinder).notifySrvccFailed();
-        }
+        getReadyServiceInterface().notifySrvccFailed();
     }
 
     public void notifySrvccCanceled() throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            getServiceInterface(mBinder).notifySrvccCanceled();
-        }
+        getReadyServiceInterface().notifySrvccCanceled();
     }
 
     public void triggerDeregistration(@ImsRegistrationImplBase.ImsDeregistrationReason int reason)
@@ -624,17 +621,15 @@ public class MmTelFeatureConnection extends FeatureConnection {
                     + " to CS.");
             return MmTelFeature.PROCESS_CALL_CSFB;
         }
-        synchronized (mLock) {
-            checkServiceIsReady();
-            return getServiceInterface(mBinder).shouldProcessCall(numbers);
-        }
+        return getReadyServiceInterface().shouldProcessCall(numbers);
     }
 
     @Override
     protected Integer retrieveFeatureState() {
-        if (mBinder != null) {
+        IBinder binder = mBinder;
+        if (binder != null) {
             try {
-                return getServiceInterface(mBinder).getFeatureState();
+                return getServiceInterface(binder).getFeatureState();
             } catch (RemoteException e) {
                 // Status check failed, don't update cache
             }
@@ -658,10 +653,25 @@ public class MmTelFeatureConnection extends FeatureConnection {
      */
     public void setTerminalBasedCallWaitingStatus(boolean enabled)
             throws RemoteException {
-        synchronized (mLock) {
-            checkServiceIsReady();
-            getServiceInterface(mBinder).setTerminalBasedCallWaitingStatus(enabled);
-        }
+        getReadyServiceInterface().setTerminalBasedCallWaitingStatus(enabled);
+    }
+
+    /**
+     * Checks that the MmTelFeature is ready to accept commands and returns its interface.
+     * <p>
+     * No lock is held when this method returns, so the caller can perform the outbound binder
+     * call without serializing behind other operations on this connection.
+     * @throws RemoteException if the MmTelFeature is not ready.
+     */
+    private IImsMmTelFeature getReadyServiceInterface() throws RemoteException {
+        // Read the binder once so that a concurrent setBinder/onRemovedOrDied can not change it
+        // between the readiness check and the returned interface.
+        IBinder binder = mBinder;
+        checkServiceIsReady();
+        if (binder == null) {
+            throw new RemoteException("ImsServiceProxy is not ready to accept commands.");
+        }
+        return getServiceInterface(binder);
     }
 
     private IImsMmTelFeature getServiceInterface(IBinder b) {
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ims;
+
+import android.util.LongSparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Caches whether provisioning is required for a MMTEL capability/tech pair and whether it is
+ * provisioned, so that {@link ImsManager} does not query ITelephony for every evaluation. The
+ * entries are keyed by the subscription and must be invalidated when the provisioning values or
+ * the carrier config change. RCS provisioning changes are not reported through the MMTEL config
+ * callback, so the RCS values are not cached.
+ */
+public class ProvisioningStatusCache {
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final LongSparseArray<Boolean> mRequired = new LongSparseArray<>();
+    @GuardedBy("mLock")
+    private final LongSparseArray<Boolean> mProvisioned = new LongSparseArray<>();
+    // Only cache when there is a way to know that the cached values have changed.
+    @GuardedBy("mLock")
+    private boolean mEnabled = false;
+    // Incremented when the cache is cleared, so that a result which was being queried at the
+    // same time is not cached.
+    @GuardedBy("mLock")
+    private long mGeneration;
+    @GuardedBy("mLock")
+    private long mHitCount;
+    @GuardedBy("mLock")
+    private long mMissCount;
+    @GuardedBy("mLock")
+    private long mInvalidationCount;
+
+    /**
+     * Enable or disable the cache, clearing the cached values.
+     */
+    public void setEnabled(boolean enabled) {
+        synchronized (mLock) {
+            mEnabled = enabled;
+            clearLocked();
+        }
+    }
+
+    /**
+     * @return Whether provisioning is required for the capability, or null if it is not cached.
+     */
+    public Boolean getProvisioningRequired(int subId, int capability, int tech) {
+        synchronized (mLock) {
+            return getLocked(mRequired, getKey(subId, capability, tech));
+        }
+    }
+
+    /**
+     * @return Whether the capability is provisioned, or null if it is not cached.
+     */
+    public Boolean getProvisioned(int subId, int capability, int tech) {
+        synchronized (mLock) {
+            return getLocked(mProvisioned, getKey(subId, capability, tech));
+        }
+    }
+
+    /**
+     * @return The generation to pass to the put methods after querying the value.
+     */
+    public long getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    public void putProvisioningRequired(long generation, int subId, int capability, int tech,
+            boolean required) {
+        synchronized (mLock) {
+            putLocked(mRequired, generation, getKey(subId, capability, tech), required);
+        }
+    }
+
+    public void putProvisioned(long generation, int subId, int capability, int tech,
+            boolean provisioned) {
+        synchronized (mLock) {
+            putLocked(mProvisioned, generation, getKey(subId, capability, tech),
+                    provisioned);
+        }
+    }
+
+    /**
+     * Clear the cached values because the provisioning status may have changed.
+     */
+    public void invalidate() {
+        synchronized (mLock) {
+            mInvalidationCount++;
+            clearLocked();
+        }
+    }
+
+    @VisibleForTesting
+    public long getHitCount() {
+        synchronized (mLock) {
+            return mHitCount;
+        }
+    }
+
+    @VisibleForTesting
+    public long getMissCount() {
+        synchronized (mLock) {
+            return mMissCount;
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.println(prefix + "ProvisioningStatusCache: enabled=" + mEnabled
+                    + ", size=" + (mRequired.size() + mProvisioned.size())
+                    + ", hits=" + mHitCount
+                    + ", misses=" + mMissCount
+                    + ", invalidations=" + mInvalidationCount);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private Boolean getLocked(LongSparseArray<Boolean> values, long key) {
+        Boolean value = mEnabled ? values.get(key) : null;
+        if (value != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return value;
+    }
+
+    @GuardedBy("mLock")
+    private void putLocked(LongSparseArray<Boolean> values, long generation, long key,
+            boolean value) {
+        if (mEnabled && generation == mGeneration) {
+            values.put(key, value);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void clearLocked() {
+        mGeneration++;
+        mRequired.clear();
+        mProvisioned.clear();
+    }
+
+    private static long getKey(int subId, int capability, int tech) {
+        // The capabilities are bit flags and the techs are small values, so 16 bits are enough.
+        return ((long) subId << 32) | ((capability & 0xFFFFL) << 16) | (tech & 0xFFFFL);
+    }
+}
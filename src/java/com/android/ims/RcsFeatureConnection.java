@@ -77,7 +77,8 @@ public class RcsFeatureConnection extends FeatureConnection {
             ImsCallbackAdapterManager<IImsRegistrationCallback> {
 
         public RegistrationCallbackManager(Context context) {
-            super(context, new Object() /* Lock object */, mSlotId, mSubId);
+            super(context, new Object() /* Lock object */, mSlotId, mSubId,
+                    FeatureConnection::createRegistrationUpstreamCallback);
         }
 
         @Override
@@ -21,7 +21,6 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.telecom.Connection;
 import android.telecom.PhoneAccount;
-import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -328,18 +327,17 @@ public class ConferenceParticipant implements Parcelable {
         // A SIP URI can also specify a phone number in a format similar to:
         // sip:+1-212-555-1212@something.com;user=phone
         // In this case, the phone number is again in user field and the parameters can be ignored.
-        // We can get the user field in these instances by splitting the string on the @, ;, or :
-        // and looking at the first found item.
+        // We can get the user field in these instances by taking everything before the first @,
+        // ;, or :.
         String number = address.getSchemeSpecificPart();
         if (TextUtils.isEmpty(number)) {
             return address;
         }
 
-        String numberParts[] = number.split("[@;:]");
-        if (numberParts.length == 0) {
+        number = PhoneNumberNormalizer.getUserPart(number);
+        if (number == null) {
             return address;
         }
-        number = numberParts[0];
 
         // Attempt to format the number in E.164 format and use that as part of the TEL URI.
         // RFC2806 recommends to format telephone numbers using E.164 since it is independent of
@@ -348,7 +346,7 @@ public class ConferenceParticipant implements Parcelable {
         // number which was in the CEP data.
         String formattedNumber = null;
         if (!TextUtils.isEmpty(countryIso)) {
-            formattedNumber = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+            formattedNumber = PhoneNumberNormalizer.formatNumberToE164(number, countryIso);
         }
 
         return Uri.fromParts(PhoneAccount.SCHEME_TEL,
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ims.internal;
+
+import android.telephony.PhoneNumberUtils;
+import android.util.IndentingPrintWriter;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.i18n.phonenumbers.NumberParseException;
+import com.android.i18n.phonenumbers.PhoneNumberUtil;
+import com.android.i18n.phonenumbers.Phonenumber;
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Normalizes phone numbers to E.164 and caches the results, keyed by the raw number and the
+ * country ISO used to parse it. The same numbers are formatted repeatedly for conference
+ * participants and EAB contacts, and the libphonenumber parse/format is expensive.
+ * @hide
+ */
+public final class PhoneNumberNormalizer {
+    private static final String TAG = "PhoneNumberNormalizer";
+
+    @VisibleForTesting
+    public static final int MAX_CACHE_SIZE = 256;
+
+    // LruCache can not store null values, this marks a number which could not be formatted.
+    private static final String NOT_FORMATTED = "";
+
+    // Results of PhoneNumberUtils#formatNumberToE164, which only formats valid numbers. The
+    // caches are replaced by clearCache to reset their statistics.
+    private static volatile LruCache<String, String> sValidE164Cache =
+            new LruCache<>(MAX_CACHE_SIZE);
+    // Results of formatting any number libphonenumber is able to parse.
+    private static volatile LruCache<String, String> sE164Cache = new LruCache<>(MAX_CACHE_SIZE);
+
+    private PhoneNumberNormalizer() {}
+
+    /**
+     * Get the user part of a URI scheme specific part, which is everything before the first
+     * '@', ';' or ':'. For example, "+16505551212" for "+16505551212;phone-context=ims@host".
+     * <p>
+     * This matches {@code schemeSpecificPart.split("[@;:]")[0]} without the regex.
+     * @return the user part, or null if the scheme specific part only contains delimiters.
+     */
+    public static String getUserPart(String schemeSpecificPart) {
+        int length = schemeSpecificPart.length();
+        for (int i = 0; i < length; i++) {
+            if (isUserPartDelimiter(schemeSpecificPart.charAt(i))) {
+                if (i > 0) {
+                    return schemeSpecificPart.substring(0, i);
+                }
+                // String#split yields no parts if the input only contains delimiters.
+                for (int j = i + 1; j < length; j++) {
+                    if (!isUserPartDelimiter(schemeSpecificPart.charAt(j))) {
+                        return "";
+                    }
+                }
+                return null;
+            }
+        }
+        return schemeSpecificPart;
+    }
+
+    private static boolean isUserPartDelimiter(char c) {
+        return c == '@' || c == ';' || c == ':';
+    }
+
+    /**
+     * Cached version of {@link PhoneNumberUtils#formatNumberToE164(String, String)}.
+     * @return the number in E.164 format, or null if the number is not valid for the country.
+     */
+    public static String formatNumberToE164(String number, String countryIso) {
+        if (number == null || countryIso == null) {
+            return null;
+        }
+        String key = getKey(number, countryIso);
+        LruCache<String, String> cache = sValidE164Cache;
+        String result = cache.get(key);
+        if (result == null) {
+            result = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+            cache.put(key, result != null ? result : NOT_FORMATTED);
+            return result;
+        }
+        return NOT_FORMATTED.equals(result) ? null : result;
+    }
+
+    /**
+     * Format the number in E.164 format using the given country ISO, caching the result.
+     * @return the number in E.164 format, or the original number if it could not be parsed.
+     */
+    public static String formatNumber(String number, String countryIso) {
+        if (number == null || countryIso == null) {
+            return number;
+        }
+        countryIso = countryIso.toUpperCase();
+        String key = getKey(number, countryIso);
+        LruCache<String, String> cache = sE164Cache;
+        String result = cache.get(key);
+        if (result == null) {
+            PhoneNumberUtil util = PhoneNumberUtil.getInstance();
+            try {
+                Phonenumber.PhoneNumber phoneNumber = util.parse(number, countryIso);
+                result = util.format(phoneNumber, PhoneNumberUtil.PhoneNumberFormat.E164);
+            } catch (NumberParseException e) {
+                Log.w(TAG, "formatNumber: could not format " + number + ", error: " + e);
+            }
+            cache.put(key, result != null ? result : NOT_FORMATTED);
+            return result != null ? result : number;
+        }
+        return NOT_FORMATTED.equals(result) ? number : result;
+    }
+
+    private static String getKey(String number, String countryIso) {
+        return countryIso + '|' + number;
+    }
+
+    /**
+     * Clear the cached results and statistics.
+     */
+    @VisibleForTesting
+    public static void clearCache() {
+        // LruCache#evictAll keeps the hit and miss counts, so use new caches.
+        sValidE164Cache = new LruCache<>(MAX_CACHE_SIZE);
+        sE164Cache = new LruCache<>(MAX_CACHE_SIZE);
+    }
+
+    /**
+     * Print the cache hit rate for debugging.
+     */
+    public static void dump(IndentingPrintWriter pw) {
+        pw.println("PhoneNumberNormalizer:");
+        pw.increaseIndent();
+        dumpCache(pw, "validE164", sValidE164Cache);
+        dumpCache(pw, "e164", sE164Cache);
+        pw.decreaseIndent();
+    }
+
+    private static void dumpCache(IndentingPrintWriter pw, String name,
+            LruCache<String, String> cache) {
+        int hits = cache.hitCount();
+        int misses = cache.missCount();
+        int total = hits + misses;
+        pw.println(name + ": size=" + cache.size() + ", hits=" + hits + ", misses=" + misses
+                + ", hitRate=" + (total == 0 ? 0 : (hits * 100 / total)) + "%");
+    }
+}
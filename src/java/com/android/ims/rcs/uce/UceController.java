@@ -38,6 +38,7 @@ import android.util.LocalLog;
 import android.util.Log;
 
 import com.android.ims.RcsFeatureManager;
+import com.android.ims.internal.PhoneNumberNormalizer;
 import com.android.ims.rcs.uce.UceDeviceState.DeviceStateResult;
 import com.android.ims.rcs.uce.eab.EabCapabilityResult;
 import com.android.ims.rcs.uce.eab.EabController;
@@ -49,6 +50,8 @@ import com.android.ims.rcs.uce.presence.publish.PublishControllerImpl;
 import com.android.ims.rcs.uce.presence.subscribe.SubscribeController;
 import com.android.ims.rcs.uce.presence.subscribe.SubscribeControllerImpl;
 import com.android.ims.rcs.uce.request.UceRequestManager;
+import com.android.ims.rcs.uce.util.HandlerLagMonitor;
+import com.android.ims.rcs.uce.util.UceLogger;
 import com.android.ims.rcs.uce.util.UceUtils;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.SomeArgs;
@@ -331,7 +334,14 @@ public class UceController {
     private final Context mContext;
     private final LocalLog mLocalLog = new LocalLog(UceUtils.LOG_SIZE);
 
+    // The looper of the request dispatch handlers.
     private volatile Looper mLooper;
+    // The looper of the publish handler, so that the device capability changes are published
+    // without waiting for the capability requests.
+    private volatile Looper mPublishLooper;
+    // The looper of the EAB database and contact sync work, which may take a long time and
+    // should not delay the capability requests and publish state changes.
+    private volatile Looper mEabLooper;
     private volatile boolean mIsDestroyedFlag;
     private volatile @RcsConnectedState int mRcsConnectedState;
 
@@ -379,13 +389,21 @@ public class UceController {
         HandlerThread handlerThread = new HandlerThread("UceControllerHandlerThread");
         handlerThread.start();
         mLooper = handlerThread.getLooper();
+
+        HandlerThread publishHandlerThread = new HandlerThread("UcePublishHandlerThread");
+        publishHandlerThread.start();
+        mPublishLooper = publishHandlerThread.getLooper();
+
+        HandlerThread eabHandlerThread = new HandlerThread("UceEabHandlerThread");
+        eabHandlerThread.start();
+        mEabLooper = eabHandlerThread.getLooper();
     }
 
     private void initControllers() {
         mEabController = mControllerFactory.createEabController(mContext, mSubId, mCtrlCallback,
-                mLooper);
+                mEabLooper);
         mPublishController = mControllerFactory.createPublishController(mContext, mSubId,
-                mCtrlCallback, mLooper);
+                mCtrlCallback, mPublishLooper);
         mSubscribeController = mControllerFactory.createSubscribeController(mContext, mSubId);
         mOptionsController = mControllerFactory.createOptionsController(mContext, mSubId);
     }
@@ -464,6 +482,10 @@ public class UceController {
 
         // Execute all the existing requests before quitting the looper.
         mLooper.quitSafely();
+        mPublishLooper.quitSafely();
+        mEabLooper.quitSafely();
+        HandlerLagMonitor.clear(mSubId);
+        UceLogger.clear(mSubId);
     }
 
     /**
@@ -474,6 +496,7 @@ public class UceController {
         mPublishController.onCarrierConfigChanged();
         mSubscribeController.onCarrierConfigChanged();
         mOptionsController.onCarrierConfigChanged();
+        mRequestManager.onCarrierConfigChanged();
     }
 
     private void handleCachedCapabilityEvent() {
@@ -868,6 +891,10 @@ public class UceController {
         pw.println("---");
 
         mPublishController.dump(pw);
+        mRequestManager.dump(pw);
+        HandlerLagMonitor.dump(pw, mSubId);
+        UceLogger.dump(pw, mSubId);
+        PhoneNumberNormalizer.dump(pw);
 
         pw.decreaseIndent();
     }
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ims.rcs.uce.eab;
+
+import static com.android.ims.rcs.uce.eab.EabProvider.EAB_DICTIONARY_TABLE_NAME;
+import static com.android.ims.rcs.uce.eab.EabProvider.EAB_OPTIONS_TABLE_NAME;
+import static com.android.ims.rcs.uce.eab.EabProvider.EAB_PRESENCE_TUPLE_TABLE_NAME;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.telephony.ims.RcsContactPresenceTuple;
+import android.telephony.ims.RcsContactPresenceTuple.ServiceCapabilities;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import com.android.ims.rcs.uce.eab.EabProvider.DictionaryColumns;
+import com.android.ims.rcs.uce.eab.EabProvider.OptionsColumns;
+import com.android.ims.rcs.uce.eab.EabProvider.PresenceTupleColumns;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compact format of the EAB capabilities.
+ * <p>
+ * A presence tuple refers to its service ID and version in the dictionary table and stores the
+ * basic status, audio/video capable and duplex modes as bit flags instead of TEXT. All the
+ * feature tags of an options capability are stored in one row as a blob of dictionary IDs
+ * instead of one row per feature tag.
+ */
+public final class EabCompactEncoding {
+    private static final String TAG = "EabCompactEncoding";
+
+    // The bits of PresenceTupleColumns#CAPABILITY_FLAGS. FLAG_COMPACT is always set so that the
+    // flags of a tuple in the compact format are never 0.
+    public static final int FLAG_COMPACT = 1;
+    public static final int FLAG_AUDIO_CAPABLE = 1 << 1;
+    public static final int FLAG_VIDEO_CAPABLE = 1 << 2;
+    public static final int FLAG_STATUS_OPEN = 1 << 3;
+    public static final int FLAG_STATUS_CLOSED = 1 << 4;
+    private static final int SUPPORTED_DUPLEX_MODE_SHIFT = 8;
+    private static final int UNSUPPORTED_DUPLEX_MODE_SHIFT = 12;
+
+    /**
+     * The capability can not be stored in the compact format and is stored as TEXT instead.
+     */
+    public static final int NOT_ENCODABLE = -1;
+
+    // The duplex modes in the order of their bits.
+    private static final String[] DUPLEX_MODES = {
+            ServiceCapabilities.DUPLEX_MODE_FULL,
+            ServiceCapabilities.DUPLEX_MODE_HALF,
+            ServiceCapabilities.DUPLEX_MODE_RECEIVE_ONLY,
+            ServiceCapabilities.DUPLEX_MODE_SEND_ONLY
+    };
+
+    private EabCompactEncoding() {}
+
+    /**
+     * Encode the flags of a presence tuple.
+     * @return The flags, or {@link #NOT_ENCODABLE} if a duplex mode is unknown or the duplex
+     * modes are not in the order of {@link #DUPLEX_MODES}, in which case decoding the flags would
+     * not return the same list.
+     */
+    public static int encodeFlags(String status, boolean audioCapable, boolean videoCapable,
+            List<String> supportedDuplexModes, List<String> unsupportedDuplexModes) {
+        int supported = encodeDuplexModes(supportedDuplexModes);
+        int unsupported = encodeDuplexModes(unsupportedDuplexModes);
+        if (supported == NOT_ENCODABLE || unsupported == NOT_ENCODABLE) {
+            return NOT_ENCODABLE;
+        }
+        int flags = FLAG_COMPACT
+                | (supported << SUPPORTED_DUPLEX_MODE_SHIFT)
+                | (unsupported << UNSUPPORTED_DUPLEX_MODE_SHIFT);
+        if (audioCapable) {
+            flags |= FLAG_AUDIO_CAPABLE;
+        }
+        if (videoCapable) {
+            flags |= FLAG_VIDEO_CAPABLE;
+        }
+        if (RcsContactPresenceTuple.TUPLE_BASIC_STATUS_OPEN.equals(status)) {
+            flags |= FLAG_STATUS_OPEN;
+        } else if (RcsContactPresenceTuple.TUPLE_BASIC_STATUS_CLOSED.equals(status)) {
+            flags |= FLAG_STATUS_CLOSED;
+        }
+        return flags;
+    }
+
+    private static int encodeDuplexModes(List<String> duplexModes) {
+        if (duplexModes == null) {
+            return 0;
+        }
+        int bits = 0;
+        int lastIndex = -1;
+        for (String duplexMode : duplexModes) {
+            int index = Arrays.asList(DUPLEX_MODES).indexOf(duplexMode);
+            if (index <= lastIndex) {
+                return NOT_ENCODABLE;
+            }
+            bits |= 1 << index;
+            lastIndex = index;
+        }
+        return bits;
+    }
+
+    /**
+     * @return true if the basic status is stored in the flags, otherwise it is stored in
+     * {@link PresenceTupleColumns#BASIC_STATUS}.
+     */
+    public static boolean isStatusEncoded(String status) {
+        return RcsContactPresenceTuple.TUPLE_BASIC_STATUS_OPEN.equals(status)
+                || RcsContactPresenceTuple.TUPLE_BASIC_STATUS_CLOSED.equals(status);
+    }
+
+    /**
+     * @return The basic status stored in the flags, or null if it is not stored in the flags.
+     */
+    public static String decodeStatus(int flags) {
+        if ((flags & FLAG_STATUS_OPEN) != 0) {
+            return RcsContactPresenceTuple.TUPLE_BASIC_STATUS_OPEN;
+        } else if ((flags & FLAG_STATUS_CLOSED) != 0) {
+            return RcsContactPresenceTuple.TUPLE_BASIC_STATUS_CLOSED;
+        }
+        return null;
+    }
+
+    public static List<String> decodeSupportedDuplexModes(int flags) {
+        return decodeDuplexModes(flags >> SUPPORTED_DUPLEX_MODE_SHIFT);
+    }
+
+    public static List<String> decodeUnsupportedDuplexModes(int flags) {
+        return decodeDuplexModes(flags >> UNSUPPORTED_DUPLEX_MODE_SHIFT);
+    }
+
+    private static List<String> decodeDuplexModes(int bits) {
+        if ((bits & 0xF) == 0) {
+            return Collections.emptyList();
+        }
+        List<String> duplexModes = new ArrayList<>(DUPLEX_MODES.length);
+        for (int i = 0; i < DUPLEX_MODES.length; i++) {
+            if ((bits & (1 << i)) != 0) {
+                duplexModes.add(DUPLEX_MODES[i]);
+            }
+        }
+        return duplexModes;
+    }
+
+    /**
+     * Pack the dictionary IDs of the feature tags as unsigned LEB128 varints.
+     */
+    public static byte[] packIds(List<Integer> ids) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(ids.size() * 2);
+        for (int id : ids) {
+            while ((id & ~0x7F) != 0) {
+                out.write((id & 0x7F) | 0x80);
+                id >>>= 7;
+            }
+            out.write(id);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Unpack the dictionary IDs packed by {@link #packIds}.
+     */
+    public static List<Integer> unpackIds(byte[] blob) {
+        List<Integer> ids = new ArrayList<>(blob.length);
+        int id = 0;
+        int shift = 0;
+        for (byte b : blob) {
+            id |= (b & 0x7F) << shift;
+            if ((b & 0x80) != 0) {
+                shift += 7;
+            } else {
+                ids.add(id);
+                id = 0;
+                shift = 0;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return The ID of the given value in the dictionary table, inserting it if it is not in
+     * the table yet, or -1 if it could not be inserted.
+     */
+    static long getOrInsertDictionaryId(SQLiteDatabase db, String value) {
+        if (value == null) {
+            return -1;
+        }
+        try (Cursor cursor = db.query(EAB_DICTIONARY_TABLE_NAME,
+                new String[]{DictionaryColumns._ID}, DictionaryColumns.VALUE + "=?",
+                new String[]{value}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        }
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(DictionaryColumns.VALUE, value);
+        return db.insertWithOnConflict(EAB_DICTIONARY_TABLE_NAME, null, contentValues,
+                SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    /**
+     * Convert the capabilities stored as TEXT to the compact format. This runs as part of the
+     * database upgrade.
+     */
+    static void migrateToCompactFormat(SQLiteDatabase db) {
+        Map<String, Long> dictionary = new ArrayMap<>();
+        int presenceCount = migratePresenceTuples(db, dictionary);
+        int optionsCount = migrateOptions(db, dictionary);
+        Log.d(TAG, "Migrated to compact format. presence: " + presenceCount
+                + ", options: " + optionsCount + ", dictionary: " + dictionary.size());
+    }
+
+    private static int migratePresenceTuples(SQLiteDatabase db, Map<String, Long> dictionary) {
+        int count = 0;
+        try (Cursor cursor = db.query(EAB_PRESENCE_TUPLE_TABLE_NAME, null,
+                PresenceTupleColumns.CAPABILITY_FLAGS + " IS NULL", null, null, null, null)) {
+            if (cursor == null) {
+                return 0;
+            }
+            while (cursor.moveToNext()) {
+                String status = getString(cursor, PresenceTupleColumns.BASIC_STATUS);
+                String serviceId = getString(cursor, PresenceTupleColumns.SERVICE_ID);
+                String version = getString(cursor, PresenceTupleColumns.SERVICE_VERSION);
+                // The empty tuple does not have anything to encode.
+                if (TextUtils.isEmpty(status) && TextUtils.isEmpty(serviceId)
+                        && TextUtils.isEmpty(version)) {
+                    continue;
+                }
+                int flags = encodeFlags(status,
+                        getInt(cursor, PresenceTupleColumns.AUDIO_CAPABLE) == 1,
+                        getInt(cursor, PresenceTupleColumns.VIDEO_CAPABLE) == 1,
+                        splitDuplexModes(getString(cursor, PresenceTupleColumns.DUPLEX_MODE)),
+                        splitDuplexModes(getString(cursor,
+                                PresenceTupleColumns.UNSUPPORTED_DUPLEX_MODE)));
+                if (flags == NOT_ENCODABLE) {
+                    continue;
+                }
+                ContentValues values = new ContentValues();
+                values.put(PresenceTupleColumns.CAPABILITY_FLAGS, flags);
+                putDictionaryRef(values, PresenceTupleColumns.SERVICE_ID_REF,
+                        getDictionaryId(db, dictionary, serviceId));
+                putDictionaryRef(values, PresenceTupleColumns.SERVICE_VERSION_REF,
+                        getDictionaryId(db, dictionary, version));
+                if (isStatusEncoded(status)) {
+                    values.putNull(PresenceTupleColumns.BASIC_STATUS);
+                }
+                values.putNull(PresenceTupleColumns.SERVICE_ID);
+                values.putNull(PresenceTupleColumns.SERVICE_VERSION);
+                values.putNull(PresenceTupleColumns.DUPLEX_MODE);
+                values.putNull(PresenceTupleColumns.UNSUPPORTED_DUPLEX_MODE);
+                values.putNull(PresenceTupleColumns.AUDIO_CAPABLE);
+                values.putNull(PresenceTupleColumns.VIDEO_CAPABLE);
+                db.update(EAB_PRESENCE_TUPLE_TABLE_NAME, values,
+                        PresenceTupleColumns._ID + "=?",
+                        new String[]{getString(cursor, PresenceTupleColumns._ID)});
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int migrateOptions(SQLiteDatabase db, Map<String, Long> dictionary) {
+        // The feature tags of each common row, in the order they were inserted.
+        Map<Long, List<Integer>> featureTagIds = new ArrayMap<>();
+        Map<Long, Long> timestamps = new ArrayMap<>();
+        try (Cursor cursor = db.query(EAB_OPTIONS_TABLE_NAME, null,
+                OptionsColumns.FEATURE_TAG + " IS NOT NULL", null, null, null,
+                OptionsColumns._ID)) {
+            if (cursor == null) {
+                return 0;
+            }
+            while (cursor.moveToNext()) {
+                long commonId = cursor.getLong(
+                        cursor.getColumnIndex(OptionsColumns.EAB_COMMON_ID));
+                long timestamp = cursor.getLong(
+                        cursor.getColumnIndex(OptionsColumns.REQUEST_TIMESTAMP));
+                List<Integer> ids = featureTagIds.get(commonId);
+                if (ids == null) {
+                    ids = new ArrayList<>();
+                    featureTagIds.put(commonId, ids);
+                }
+                long featureTagId = getDictionaryId(db, dictionary,
+                        getString(cursor, OptionsColumns.FEATURE_TAG));
+                if (featureTagId > 0) {
+                    ids.add((int) featureTagId);
+                }
+                Long previous = timestamps.get(commonId);
+                timestamps.put(commonId,
+                        (previous == null) ? timestamp : Math.max(previous, timestamp));
+            }
+        }
+
+        for (Map.Entry<Long, List<Integer>> entry : featureTagIds.entrySet()) {
+            long commonId = entry.getKey();
+            db.delete(EAB_OPTIONS_TABLE_NAME, OptionsColumns.EAB_COMMON_ID + "=? AND "
+                    + OptionsColumns.FEATURE_TAG + " IS NOT NULL",
+                    new String[]{String.valueOf(commonId)});
+            ContentValues values = new ContentValues();
+            values.put(OptionsColumns.EAB_COMMON_ID, commonId);
+            values.put(OptionsColumns.REQUEST_TIMESTAMP, timestamps.get(commonId));
+            values.put(OptionsColumns.FEATURE_TAGS_BLOB, packIds(entry.getValue()));
+            db.insert(EAB_OPTIONS_TABLE_NAME, null, values);
+        }
+        return featureTagIds.size();
+    }
+
+    private static long getDictionaryId(SQLiteDatabase db, Map<String, Long> dictionary,
+            String value) {
+        if (value == null) {
+            return -1;
+        }
+        Long id = dictionary.get(value);
+        if (id == null) {
+            id = getOrInsertDictionaryId(db, value);
+            dictionary.put(value, id);
+        }
+        return id;
+    }
+
+    /**
+     * Put the reference to the dictionary, or NULL if the value is null.
+     */
+    static void putDictionaryRef(ContentValues values, String column, long id) {
+        if (id > 0) {
+            values.put(column, id);
+        } else {
+            values.putNull(column);
+        }
+    }
+
+    /**
+     * Split the duplex modes stored as TEXT, the same way as they are read.
+     */
+    static List<String> splitDuplexModes(String duplexModes) {
+        if (TextUtils.isEmpty(duplexModes)) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(duplexModes.split(","));
+    }
+
+    private static String getString(Cursor cursor, String column) {
+        return cursor.getString(cursor.getColumnIndex(column));
+    }
+
+    private static int getInt(Cursor cursor, String column) {
+        return cursor.getInt(cursor.getColumnIndex(column));
+    }
+}
@@ -26,9 +26,7 @@ import android.provider.ContactsContract;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
-import com.android.i18n.phonenumbers.NumberParseException;
-import com.android.i18n.phonenumbers.PhoneNumberUtil;
-import com.android.i18n.phonenumbers.Phonenumber;
+import com.android.ims.internal.PhoneNumberNormalizer;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
@@ -341,17 +339,6 @@ public class EabContactSyncController {
 
     private String formatNumber(Context context, String number) {
         TelephonyManager manager = context.getSystemService(TelephonyManager.class);
-        String simCountryIso = manager.getSimCountryIso();
-        if (simCountryIso != null) {
-            simCountryIso = simCountryIso.toUpperCase();
-            PhoneNumberUtil util = PhoneNumberUtil.getInstance();
-            try {
-                Phonenumber.PhoneNumber phoneNumber = util.parse(number, simCountryIso);
-                return util.format(phoneNumber, PhoneNumberUtil.PhoneNumberFormat.E164);
-            } catch (NumberParseException e) {
-                Log.w(TAG, "formatNumber: could not format " + number + ", error: " + e);
-            }
-        }
-        return number;
+        return PhoneNumberNormalizer.formatNumber(number, manager.getSimCountryIso());
     }
 }
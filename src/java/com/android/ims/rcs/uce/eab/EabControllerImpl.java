@@ -21,17 +21,25 @@ import static android.telephony.ims.RcsContactUceCapability.CAPABILITY_MECHANISM
 import static android.telephony.ims.RcsContactUceCapability.REQUEST_RESULT_NOT_FOUND;
 import static android.telephony.ims.RcsContactUceCapability.SOURCE_TYPE_CACHED;
 
+import static com.android.ims.rcs.uce.eab.EabProvider.EAB_COMMON_TABLE_NAME;
 import static com.android.ims.rcs.uce.eab.EabProvider.EAB_OPTIONS_TABLE_NAME;
 import static com.android.ims.rcs.uce.eab.EabProvider.EAB_PRESENCE_TUPLE_TABLE_NAME;
 
 import android.annotation.NonNull;
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.PersistableBundle;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.telephony.CarrierConfigManager;
 import android.telephony.TelephonyManager;
 import android.telephony.ims.ProvisioningManager;
@@ -41,13 +49,15 @@ import android.telephony.ims.RcsContactUceCapability;
 import android.telephony.ims.RcsContactUceCapability.OptionsBuilder;
 import android.telephony.ims.RcsContactUceCapability.PresenceBuilder;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.Log;
 
-import com.android.i18n.phonenumbers.NumberParseException;
-import com.android.i18n.phonenumbers.PhoneNumberUtil;
-import com.android.i18n.phonenumbers.Phonenumber;
 import com.android.ims.RcsFeatureManager;
+import com.android.ims.internal.PhoneNumberNormalizer;
 import com.android.ims.rcs.uce.UceController.UceControllerCallback;
+import com.android.ims.rcs.uce.util.MonitoredHandler;
+import com.android.ims.rcs.uce.util.UceUtils;
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.time.Instant;
@@ -57,6 +67,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.locks.Lock;
 import java.util.function.Predicate;
 
 /**
@@ -74,20 +85,99 @@ public class EabControllerImpl implements EabController {
     // 1 week
     private static final int CLEAN_UP_LEGACY_CAPABILITY_SEC = 7 * 24 * 60 * 60;
     private static final int CLEAN_UP_LEGACY_CAPABILITY_DELAY_MILLI_SEC = 30 * 1000;
+    // The legacy capabilities are cleaned up at most once per hour.
+    @VisibleForTesting
+    public static final long CLEAN_UP_LEGACY_CAPABILITY_MIN_INTERVAL_MILLI_SEC = 60 * 60 * 1000;
+
+    // Saved capabilities are written to the database in batches, either once this many contacts
+    // are waiting or after the delay since the first pending save, whichever comes first.
+    @VisibleForTesting
+    public static final int MAX_PENDING_WRITES = 50;
+    @VisibleForTesting
+    public static final long WRITE_BEHIND_DELAY_MILLI_SEC = 500;
+    // The delay before writing the capabilities again after a failed write, doubled after each
+    // failure up to the maximum.
+    @VisibleForTesting
+    public static final long WRITE_RETRY_INITIAL_DELAY_MILLI_SEC = 1000;
+    private static final long WRITE_RETRY_MAX_DELAY_MILLI_SEC = 60 * 1000;
+
+    /**
+     * A capability waiting to be written to the database. The timestamps are taken when the
+     * capability is saved so that the expiration does not depend on when it is written.
+     */
+    private static class PendingWrite {
+        final String mKey;
+        final String mPhoneNumber;
+        final RcsContactUceCapability mCapability;
+        final long mPresenceTimestamp;
+        final long mOptionsTimestamp;
+        // The order the capabilities were saved in, across all the contacts and mechanisms.
+        final long mSequence;
+
+        PendingWrite(String phoneNumber, RcsContactUceCapability capability,
+                long presenceTimestamp, long optionsTimestamp, long sequence) {
+            mKey = getPendingWriteKey(phoneNumber, capability.getCapabilityMechanism());
+            mPhoneNumber = phoneNumber;
+            mCapability = capability;
+            mPresenceTimestamp = presenceTimestamp;
+            mOptionsTimestamp = optionsTimestamp;
+            mSequence = sequence;
+        }
+
+        /**
+         * @return The timestamp the capability is written with, which the expiration is
+         * computed from.
+         */
+        long getRequestTimestamp() {
+            return (mCapability.getCapabilityMechanism() == CAPABILITY_MECHANISM_PRESENCE)
+                    ? mPresenceTimestamp : mOptionsTimestamp;
+        }
+    }
 
     private final Context mContext;
     private final int mSubId;
     private final EabBulkCapabilityUpdater mEabBulkCapabilityUpdater;
     private final Handler mHandler;
+    private final HandlerThread mWriteThread;
+    private final Handler mWriteHandler;
+
+    private final Object mPendingWriteLock = new Object();
+    // The latest capability saved for each contact and mechanism which has not been written yet.
+    @GuardedBy("mPendingWriteLock")
+    private final ArrayMap<String, PendingWrite> mPendingWrites = new ArrayMap<>();
+    // The capabilities which are being written by the current flush, until the write commits.
+    @GuardedBy("mPendingWriteLock")
+    private final ArrayMap<String, PendingWrite> mFlushingWrites = new ArrayMap<>();
+    @GuardedBy("mPendingWriteLock")
+    private long mSavedCount;
+    @GuardedBy("mPendingWriteLock")
+    private long mCoalescedCount;
+    @GuardedBy("mPendingWriteLock")
+    private long mWriteRetryDelayMillis = WRITE_RETRY_INITIAL_DELAY_MILLI_SEC;
+    @GuardedBy("mPendingWriteLock")
+    private long mFlushCount;
+    // Held while writing to the database, so that the cleanup does not remove the common row of
+    // a capability which is being written.
+    private final Object mFlushLock = new Object();
+    private final Runnable mFlushRunnable = this::flushPendingWrites;
 
     private UceControllerCallback mUceControllerCallback;
     private volatile boolean mIsSetDestroyedFlag = false;
 
     private ExpirationTimeFactory mExpirationTimeFactory = () -> Instant.now().getEpochSecond();
 
+    private final EabDictionary mDictionary;
+    // Whether the capabilities are written in the compact format, the capabilities are read in
+    // either format. Updated from the carrier config.
+    private volatile boolean mCompactStorageEnabled;
+
+    // The elapsed realtime of the last legacy capability cleanup, or -1 if it has not run yet.
+    private volatile long mLastCleanupTimeMillis = -1;
+
     @VisibleForTesting
     public final Runnable mCapabilityCleanupRunnable = () -> {
         Log.d(TAG, "Cleanup Capabilities");
+        mLastCleanupTimeMillis = SystemClock.elapsedRealtime();
         cleanupExpiredCapabilities();
     };
 
@@ -100,7 +190,12 @@ public class EabControllerImpl implements EabController {
         mContext = context;
         mSubId = subId;
         mUceControllerCallback = c;
-        mHandler = new Handler(looper);
+        mDictionary = new EabDictionary(context);
+        mCompactStorageEnabled = UceUtils.isEabCompactStorageEnabled(context, subId);
+        mHandler = new MonitoredHandler(looper, subId, "EabHandler");
+        mWriteThread = new HandlerThread("EabWriteBehindThread");
+        mWriteThread.start();
+        mWriteHandler = new MonitoredHandler(mWriteThread.getLooper(), subId, "EabWriteHandler");
         mEabBulkCapabilityUpdater = new EabBulkCapabilityUpdater(mContext, mSubId,
                 this,
                 new EabContactSyncController(),
@@ -121,17 +216,25 @@ public class EabControllerImpl implements EabController {
         Log.d(TAG, "onDestroy");
         mIsSetDestroyedFlag = true;
         mEabBulkCapabilityUpdater.onDestroy();
+        // Write the capabilities which are still pending on the write thread, which stops once
+        // they are written, instead of blocking the caller on the database transaction.
+        mWriteHandler.removeCallbacksAndMessages(null);
+        mWriteHandler.post(mFlushRunnable);
+        mWriteThread.quitSafely();
     }
 
     @Override
     public void onCarrierConfigChanged() {
         // Pick up changes to CarrierConfig and run any applicable cleanup tasks associated with
-        // that configuration.
-        mCapabilityCleanupRunnable.run();
-        cleanupOrphanedRows();
-        if (!mIsSetDestroyedFlag) {
-            mEabBulkCapabilityUpdater.onCarrierConfigChanged();
-        }
+        // that configuration. The cleanup and the contact sync access the database, so run them
+        // on the EAB handler instead of the caller's thread.
+        mCompactStorageEnabled = UceUtils.isEabCompactStorageEnabled(mContext, mSubId);
+        mHandler.post(() -> {
+            mCapabilityCleanupRunnable.run();
+            if (!mIsSetDestroyedFlag) {
+                mEabBulkCapabilityUpdater.onCarrierConfigChanged();
+            }
+        });
     }
 
     /**
@@ -163,7 +266,14 @@ public class EabControllerImpl implements EabController {
         List<EabCapabilityResult> capabilityResultList = new ArrayList();
 
         for (Uri uri : uris) {
-            EabCapabilityResult result = generateEabResult(uri, this::isCapabilityExpired);
+            PendingWrite pendingWrite = getPendingWrite(uri);
+            EabCapabilityResult result;
+            if (pendingWrite != null) {
+                result = generatePendingResult(uri, pendingWrite,
+                        isCapabilityExpired(pendingWrite), false /*includeExpired*/);
+            } else {
+                result = generateEabResult(uri, this::isCapabilityExpired);
+            }
             capabilityResultList.add(result);
         }
         return capabilityResultList;
@@ -185,8 +295,14 @@ public class EabControllerImpl implements EabController {
         List<EabCapabilityResult> capabilityResultList = new ArrayList();
 
         for (Uri uri : uris) {
-            EabCapabilityResult result = generateEabResultIncludingExpired(uri,
-                    this::isCapabilityExpired);
+            PendingWrite pendingWrite = getPendingWrite(uri);
+            EabCapabilityResult result;
+            if (pendingWrite != null) {
+                result = generatePendingResult(uri, pendingWrite,
+                        isCapabilityExpired(pendingWrite), true /*includeExpired*/);
+            } else {
+                result = generateEabResultIncludingExpired(uri, this::isCapabilityExpired);
+            }
             capabilityResultList.add(result);
         }
         return capabilityResultList;
@@ -205,6 +321,11 @@ public class EabControllerImpl implements EabController {
                     EabCapabilityResult.EAB_CONTROLLER_DESTROYED_FAILURE,
                     null);
         }
+        PendingWrite pendingWrite = getPendingWrite(contactUri);
+        if (pendingWrite != null) {
+            return generatePendingResult(contactUri, pendingWrite,
+                    isAvailabilityExpired(pendingWrite), false /*includeExpired*/);
+        }
         return generateEabResult(contactUri, this::isAvailabilityExpired);
     }
 
@@ -222,11 +343,20 @@ public class EabControllerImpl implements EabController {
                 EabCapabilityResult.EAB_CONTROLLER_DESTROYED_FAILURE,
                 null);
         }
+        PendingWrite pendingWrite = getPendingWrite(contactUri);
+        if (pendingWrite != null) {
+            return generatePendingResult(contactUri, pendingWrite,
+                    isAvailabilityExpired(pendingWrite), true /*includeExpired*/);
+        }
         return generateEabResultIncludingExpired(contactUri, this::isAvailabilityExpired);
     }
 
     /**
      * Update the availability catch and save the capabilities to the EAB database.
+     * <p>
+     * The capabilities are queued and written to the database in batches on the write thread,
+     * only the latest capability of each contact is written. Reads of a contact which has a
+     * capability waiting to be written are answered from that capability.
      */
     @Override
     public void saveCapabilities(@NonNull List<RcsContactUceCapability> contactCapabilities) {
@@ -238,47 +368,229 @@ public class EabControllerImpl implements EabController {
 
         Log.d(TAG, "Save capabilities: " + contactCapabilities.size());
 
-        // Update the capabilities
-        for (RcsContactUceCapability capability : contactCapabilities) {
-            String phoneNumber = getNumberFromUri(mContext, capability.getContactUri());
-            Cursor c = mContext.getContentResolver().query(
-                    EabProvider.CONTACT_URI, null,
-                    EabProvider.ContactColumns.PHONE_NUMBER + "=?",
-                    new String[]{phoneNumber}, null);
-
-            if (c != null && c.moveToNext()) {
-                int contactId = getIntValue(c, EabProvider.ContactColumns._ID);
-                if (capability.getCapabilityMechanism() == CAPABILITY_MECHANISM_PRESENCE) {
-                    Log.d(TAG, "Insert presence capability");
-                    deleteOldPresenceCapability(contactId);
-                    insertNewPresenceCapability(contactId, capability);
-                } else if (capability.getCapabilityMechanism() == CAPABILITY_MECHANISM_OPTIONS) {
-                    Log.d(TAG, "Insert options capability");
-                    deleteOldOptionCapability(contactId);
-                    insertNewOptionCapability(contactId, capability);
+        long presenceTimestamp = mExpirationTimeFactory.getExpirationTime();
+        long optionsTimestamp = Instant.now().getEpochSecond();
+        boolean flushNow;
+        boolean scheduleFlush;
+        synchronized (mPendingWriteLock) {
+            boolean wasEmpty = mPendingWrites.isEmpty();
+            for (RcsContactUceCapability capability : contactCapabilities) {
+                String phoneNumber = getNumberFromUri(mContext, capability.getContactUri());
+                PendingWrite pendingWrite = new PendingWrite(phoneNumber, capability,
+                        presenceTimestamp, optionsTimestamp, mSavedCount);
+                PendingWrite previous = mPendingWrites.put(pendingWrite.mKey, pendingWrite);
+                mSavedCount++;
+                if (previous != null) {
+                    mCoalescedCount++;
                 }
-            } else {
-                Log.e(TAG, "The phone number can't find in contact table. ");
-                int contactId = insertNewContact(phoneNumber);
-                if (capability.getCapabilityMechanism() == CAPABILITY_MECHANISM_PRESENCE) {
-                    insertNewPresenceCapability(contactId, capability);
-                } else if (capability.getCapabilityMechanism() == CAPABILITY_MECHANISM_OPTIONS) {
-                    insertNewOptionCapability(contactId, capability);
+            }
+            flushNow = mPendingWrites.size() >= MAX_PENDING_WRITES;
+            scheduleFlush = wasEmpty && !mPendingWrites.isEmpty();
+        }
+
+        if (flushNow) {
+            mWriteHandler.removeCallbacks(mFlushRunnable);
+            mWriteHandler.post(mFlushRunnable);
+        } else if (scheduleFlush) {
+            mWriteHandler.postDelayed(mFlushRunnable, WRITE_BEHIND_DELAY_MILLI_SEC);
+        }
+    }
+
+    /**
+     * Write all the pending capabilities to the EAB database. If the write fails, the
+     * capabilities are queued again, unless a newer capability of the same contact has been
+     * saved in the meantime, and written again after a delay.
+     */
+    @VisibleForTesting
+    public void flushPendingWrites() {
+        boolean isWritten = false;
+        synchronized (mFlushLock) {
+            List<PendingWrite> pendingWrites;
+            synchronized (mPendingWriteLock) {
+                if (mPendingWrites.isEmpty()) {
+                    return;
+                }
+                pendingWrites = new ArrayList<>(mPendingWrites.values());
+                // Keep the capabilities visible to the readers until they are written.
+                mFlushingWrites.putAll(mPendingWrites);
+                mPendingWrites.clear();
+                mFlushCount++;
+            }
+            Log.d(TAG, "Write pending capabilities: " + pendingWrites.size());
+            Lock dictionaryReferenceLock = EabDictionary.getReferenceLock();
+            dictionaryReferenceLock.lock();
+            try {
+                isWritten = writeCapabilities(pendingWrites);
+            } finally {
+                dictionaryReferenceLock.unlock();
+                synchronized (mPendingWriteLock) {
+                    mFlushingWrites.clear();
+                    if (!isWritten) {
+                        for (PendingWrite pendingWrite : pendingWrites) {
+                            mPendingWrites.putIfAbsent(pendingWrite.mKey, pendingWrite);
+                        }
+                    }
                 }
             }
+        }
+        if (isWritten) {
+            synchronized (mPendingWriteLock) {
+                mWriteRetryDelayMillis = WRITE_RETRY_INITIAL_DELAY_MILLI_SEC;
+            }
+            mEabBulkCapabilityUpdater.updateExpiredTimeAlert();
+            scheduleCapabilityCleanup();
+        } else {
+            scheduleWriteRetry();
+        }
+    }
 
-            if (c != null) {
-                c.close();
+    private void scheduleWriteRetry() {
+        long delay;
+        synchronized (mPendingWriteLock) {
+            delay = mWriteRetryDelayMillis;
+            mWriteRetryDelayMillis = Math.min(delay * 2, WRITE_RETRY_MAX_DELAY_MILLI_SEC);
+        }
+        mWriteHandler.removeCallbacks(mFlushRunnable);
+        if (mWriteHandler.postDelayed(mFlushRunnable, delay)) {
+            Log.w(TAG, "Write capabilities failed, retry in " + delay + "ms");
+        } else {
+            Log.e(TAG, "Write capabilities failed, the write thread is stopped");
+        }
+    }
+
+    /**
+     * @return The latest capability of the given contact which has been saved but is not in the
+     * database yet, or null if there is none.
+     */
+    private PendingWrite getPendingWrite(Uri contactUri) {
+        synchronized (mPendingWriteLock) {
+            if (mPendingWrites.isEmpty() && mFlushingWrites.isEmpty()) {
+                return null;
             }
         }
-        cleanupOrphanedRows();
-        mEabBulkCapabilityUpdater.updateExpiredTimeAlert();
+        String phoneNumber = getNumberFromUri(mContext, contactUri);
+        String presenceKey = getPendingWriteKey(phoneNumber, CAPABILITY_MECHANISM_PRESENCE);
+        String optionsKey = getPendingWriteKey(phoneNumber, CAPABILITY_MECHANISM_OPTIONS);
+        synchronized (mPendingWriteLock) {
+            // The pending capabilities are newer than the ones being written.
+            PendingWrite latest = getLatest(
+                    mPendingWrites.getOrDefault(presenceKey, mFlushingWrites.get(presenceKey)),
+                    mPendingWrites.getOrDefault(optionsKey, mFlushingWrites.get(optionsKey)));
+            return latest;
+        }
+    }
+
+    private static PendingWrite getLatest(PendingWrite first, PendingWrite second) {
+        if (first == null) {
+            return second;
+        } else if (second == null) {
+            return first;
+        }
+        return (first.mSequence > second.mSequence) ? first : second;
+    }
+
+    private static String getPendingWriteKey(String phoneNumber, int mechanism) {
+        return mechanism + ":" + phoneNumber;
+    }
 
+    @VisibleForTesting
+    public int getPendingWriteCount() {
+        synchronized (mPendingWriteLock) {
+            return mPendingWrites.size();
+        }
+    }
+
+    @VisibleForTesting
+    public long getCoalescedWriteCount() {
+        synchronized (mPendingWriteLock) {
+            return mCoalescedCount;
+        }
+    }
+
+    @VisibleForTesting
+    public long getFlushCount() {
+        synchronized (mPendingWriteLock) {
+            return mFlushCount;
+        }
+    }
+
+    @VisibleForTesting
+    public HandlerThread getWriteThread() {
+        return mWriteThread;
+    }
+
+    /**
+     * Write the given capabilities in a single transaction of the provider, together with the
+     * removal of the common rows which no longer have any capability.
+     * @return true if the capabilities have been written.
+     */
+    private boolean writeCapabilities(List<PendingWrite> pendingWrites) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        // The index of the operation inserting each contact which is not in the contact table.
+        ArrayMap<String, Integer> newContactIndexes = new ArrayMap<>();
+        for (PendingWrite pendingWrite : pendingWrites) {
+            RcsContactUceCapability capability = pendingWrite.mCapability;
+            String phoneNumber = pendingWrite.mPhoneNumber;
+            int contactId = -1;
+            int contactIndex = newContactIndexes.getOrDefault(phoneNumber, -1);
+            if (contactIndex < 0) {
+                contactId = queryContactId(phoneNumber);
+                if (contactId < 0) {
+                    Log.e(TAG, "The phone number can't find in contact table. ");
+                    contactIndex = operations.size();
+                    newContactIndexes.put(phoneNumber, contactIndex);
+                    operations.add(newInsertContactOperation(phoneNumber));
+                }
+            }
+
+            if (capability.getCapabilityMechanism() == CAPABILITY_MECHANISM_PRESENCE) {
+                Log.d(TAG, "Insert presence capability");
+                if (contactId >= 0) {
+                    operations.add(newDeleteOldCapabilityOperation(EabProvider.PRESENCE_URI,
+                            EabProvider.PresenceTupleColumns.EAB_COMMON_ID, contactId));
+                }
+                addNewPresenceCapability(operations, contactId, contactIndex, capability,
+                        pendingWrite.mPresenceTimestamp);
+            } else if (capability.getCapabilityMechanism() == CAPABILITY_MECHANISM_OPTIONS) {
+                Log.d(TAG, "Insert options capability");
+                if (contactId >= 0) {
+                    operations.add(newDeleteOldCapabilityOperation(EabProvider.OPTIONS_URI,
+                            EabProvider.OptionsColumns.EAB_COMMON_ID, contactId));
+                }
+                addNewOptionCapability(operations, contactId, contactIndex, capability,
+                        pendingWrite.mOptionsTimestamp);
+            }
+        }
+        operations.add(ContentProviderOperation.newDelete(EabProvider.COMMON_URI)
+                .withSelection(getOrphanedRowsSelection(), null)
+                .build());
+
+        try {
+            mContext.getContentResolver().applyBatch(EabProvider.AUTHORITY, operations);
+            return true;
+        } catch (RemoteException | OperationApplicationException | SQLException e) {
+            Log.e(TAG, "Failed to write the capabilities: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Schedule the legacy capability cleanup, unless it is already scheduled. It runs at most
+     * once per {@link #CLEAN_UP_LEGACY_CAPABILITY_MIN_INTERVAL_MILLI_SEC}, so frequent saves do
+     * not keep postponing it or run it over and over.
+     */
+    private void scheduleCapabilityCleanup() {
         if (mHandler.hasCallbacks(mCapabilityCleanupRunnable)) {
-            mHandler.removeCallbacks(mCapabilityCleanupRunnable);
+            return;
+        }
+        long delay = CLEAN_UP_LEGACY_CAPABILITY_DELAY_MILLI_SEC;
+        long lastCleanupTime = mLastCleanupTimeMillis;
+        if (lastCleanupTime >= 0) {
+            delay = Math.max(delay, lastCleanupTime
+                    + CLEAN_UP_LEGACY_CAPABILITY_MIN_INTERVAL_MILLI_SEC
+                    - SystemClock.elapsedRealtime());
         }
-        mHandler.postDelayed(mCapabilityCleanupRunnable,
-                CLEAN_UP_LEGACY_CAPABILITY_DELAY_MILLI_SEC);
+        mHandler.postDelayed(mCapabilityCleanupRunnable, delay);
     }
 
     /**
@@ -286,18 +598,26 @@ public class EabControllerImpl implements EabController {
      */
     @VisibleForTesting
     public void cleanupOrphanedRows() {
+        // Do not remove the common row of a capability which is being written.
+        synchronized (mFlushLock) {
+            cleanupOrphanedRowsLocked();
+        }
+    }
+
+    private void cleanupOrphanedRowsLocked() {
+        mContext.getContentResolver().delete(EabProvider.COMMON_URI, getOrphanedRowsSelection(),
+                null);
+    }
+
+    private static String getOrphanedRowsSelection() {
         String presenceSelection =
                 " (SELECT " + EabProvider.PresenceTupleColumns.EAB_COMMON_ID +
                         " FROM " + EAB_PRESENCE_TUPLE_TABLE_NAME + ") ";
         String optionSelection =
                 " (SELECT " + EabProvider.OptionsColumns.EAB_COMMON_ID +
                         " FROM " + EAB_OPTIONS_TABLE_NAME + ") ";
-
-        mContext.getContentResolver().delete(
-                EabProvider.COMMON_URI,
-                EabProvider.EabCommonColumns._ID + " NOT IN " + presenceSelection +
-                        " AND " + EabProvider.EabCommonColumns._ID+ " NOT IN " + optionSelection,
-                null);
+        return EabProvider.EabCommonColumns._ID + " NOT IN " + presenceSelection +
+                " AND " + EabProvider.EabCommonColumns._ID+ " NOT IN " + optionSelection;
     }
 
     private List<EabCapabilityResult> generateDestroyedResult(List<Uri> contactUri) {
@@ -311,6 +631,75 @@ public class EabControllerImpl implements EabController {
         return destroyedResult;
     }
 
+    /**
+     * Generate the result of a capability which has not been written yet, as it will be read
+     * from the database once it is written.
+     */
+    private EabCapabilityResult generatePendingResult(Uri contactUri, PendingWrite pendingWrite,
+            boolean isExpired, boolean includeExpired) {
+        if (isExpired && !includeExpired) {
+            return new EabCapabilityResult(contactUri,
+                    EabCapabilityResult.EAB_CONTACT_EXPIRED_FAILURE, null);
+        }
+        int eabResult = isExpired ? EabCapabilityResult.EAB_CONTACT_EXPIRED_FAILURE
+                : EabCapabilityResult.EAB_QUERY_SUCCESSFUL;
+        return new EabCapabilityResult(contactUri, eabResult,
+                createCachedCapability(contactUri, pendingWrite));
+    }
+
+    private RcsContactUceCapability createCachedCapability(Uri contactUri,
+            PendingWrite pendingWrite) {
+        RcsContactUceCapability capability = pendingWrite.mCapability;
+        if (capability.getCapabilityMechanism() == CAPABILITY_MECHANISM_PRESENCE) {
+            PresenceBuilder builder = new PresenceBuilder(contactUri, SOURCE_TYPE_CACHED,
+                    capability.getRequestResult());
+            for (RcsContactPresenceTuple tuple : capability.getCapabilityTuples()) {
+                RcsContactPresenceTuple cachedTuple = createCachedTuple(contactUri, tuple,
+                        pendingWrite.mPresenceTimestamp);
+                if (cachedTuple != null) {
+                    builder.addCapabilityTuple(cachedTuple);
+                }
+            }
+            if (capability.getEntityUri() != null) {
+                builder.setEntityUri(capability.getEntityUri());
+            }
+            return builder.build();
+        }
+        OptionsBuilder builder = new OptionsBuilder(contactUri, SOURCE_TYPE_CACHED);
+        builder.setRequestResult(capability.getRequestResult());
+        for (String featureTag : capability.getFeatureTags()) {
+            builder.addFeatureTag(featureTag);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return The tuple as read from the database, see {@link #createPresenceTuple}, or null if
+     * the tuple is empty.
+     */
+    private RcsContactPresenceTuple createCachedTuple(Uri contactUri,
+            RcsContactPresenceTuple tuple, long timestamp) {
+        if (TextUtils.isEmpty(tuple.getStatus()) && TextUtils.isEmpty(tuple.getServiceId())
+                && TextUtils.isEmpty(tuple.getServiceVersion())) {
+            return null;
+        }
+        ServiceCapabilities serviceCapabilities = tuple.getServiceCapabilities();
+        if (serviceCapabilities == null) {
+            serviceCapabilities = new ServiceCapabilities.Builder(false, false).build();
+        }
+        RcsContactPresenceTuple.Builder builder = new RcsContactPresenceTuple.Builder(
+                tuple.getStatus(), tuple.getServiceId(), tuple.getServiceVersion());
+        if (tuple.getServiceDescription() != null) {
+            builder.setServiceDescription(tuple.getServiceDescription());
+        }
+        if (contactUri != null) {
+            builder.setContactUri(contactUri);
+        }
+        builder.setServiceCapabilities(serviceCapabilities);
+        builder.setTime(Instant.ofEpochSecond(timestamp));
+        return builder.build();
+    }
+
     private EabCapabilityResult generateEabResult(Uri contactUri,
             Predicate<Cursor> isExpiredMethod) {
         RcsUceCapabilityBuilderWrapper builder = null;
@@ -422,7 +811,7 @@ public class EabControllerImpl implements EabController {
         } else {
             OptionsBuilder builder = builderWrapper.getOptionsBuilder();
             if (builder != null) {
-                builder.addFeatureTag(createOptionTuple(cursor));
+                addFeatureTags(builder, cursor);
             }
         }
     }
@@ -448,12 +837,26 @@ public class EabControllerImpl implements EabController {
         } else {
             OptionsBuilder builder = new OptionsBuilder(contactUri, SOURCE_TYPE_CACHED);
             builder.setRequestResult(result);
-            builder.addFeatureTag(createOptionTuple(cursor));
+            addFeatureTags(builder, cursor);
             builderWrapper.setOptionsBuilder(builder);
         }
         return builderWrapper;
     }
 
+    private void addFeatureTags(OptionsBuilder builder, Cursor cursor) {
+        int blobIndex = cursor.getColumnIndex(EabProvider.OptionsColumns.FEATURE_TAGS_BLOB);
+        if (blobIndex < 0 || cursor.isNull(blobIndex)) {
+            builder.addFeatureTag(createOptionTuple(cursor));
+            return;
+        }
+        for (int id : EabCompactEncoding.unpackIds(cursor.getBlob(blobIndex))) {
+            String featureTag = mDictionary.getValue(id);
+            if (featureTag != null) {
+                builder.addFeatureTag(featureTag);
+            }
+        }
+    }
+
     private String createOptionTuple(Cursor cursor) {
         return getStringValue(cursor, EabProvider.OptionsColumns.FEATURE_TAG);
     }
@@ -461,46 +864,55 @@ public class EabControllerImpl implements EabController {
     private RcsContactPresenceTuple createPresenceTuple(Uri contactUri, Cursor cursor) {
         // RcsContactPresenceTuple fields
         String status = getStringValue(cursor, EabProvider.PresenceTupleColumns.BASIC_STATUS);
-        String serviceId = getStringValue(cursor, EabProvider.PresenceTupleColumns.SERVICE_ID);
-        String version = getStringValue(cursor, EabProvider.PresenceTupleColumns.SERVICE_VERSION);
+        String serviceId;
+        String version;
         String description = getStringValue(cursor, EabProvider.PresenceTupleColumns.DESCRIPTION);
         String timeStamp = getStringValue(cursor,
                 EabProvider.PresenceTupleColumns.REQUEST_TIMESTAMP);
 
         // ServiceCapabilities fields
-        boolean audioCapable = getIntValue(cursor,
-                EabProvider.PresenceTupleColumns.AUDIO_CAPABLE) == 1;
-        boolean videoCapable = getIntValue(cursor,
-                EabProvider.PresenceTupleColumns.VIDEO_CAPABLE) == 1;
-        String duplexModes = getStringValue(cursor,
-                EabProvider.PresenceTupleColumns.DUPLEX_MODE);
-        String unsupportedDuplexModes = getStringValue(cursor,
-                EabProvider.PresenceTupleColumns.UNSUPPORTED_DUPLEX_MODE);
-        String[] duplexModeList, unsupportedDuplexModeList;
-
-        if (!TextUtils.isEmpty(duplexModes)) {
-            duplexModeList = duplexModes.split(",");
-        } else {
-            duplexModeList = new String[0];
-        }
-        if (!TextUtils.isEmpty(unsupportedDuplexModes)) {
-            unsupportedDuplexModeList = unsupportedDuplexModes.split(",");
+        boolean audioCapable;
+        boolean videoCapable;
+        List<String> duplexModeList;
+        List<String> unsupportedDuplexModeList;
+
+        int flagsIndex = cursor.getColumnIndex(EabProvider.PresenceTupleColumns.CAPABILITY_FLAGS);
+        if (flagsIndex >= 0 && !cursor.isNull(flagsIndex)) {
+            // The compact format
+            int flags = cursor.getInt(flagsIndex);
+            if (status == null) {
+                status = EabCompactEncoding.decodeStatus(flags);
+            }
+            serviceId = mDictionary.getValue(getIntValue(cursor,
+                    EabProvider.PresenceTupleColumns.SERVICE_ID_REF));
+            version = mDictionary.getValue(getIntValue(cursor,
+                    EabProvider.PresenceTupleColumns.SERVICE_VERSION_REF));
+            audioCapable = (flags & EabCompactEncoding.FLAG_AUDIO_CAPABLE) != 0;
+            videoCapable = (flags & EabCompactEncoding.FLAG_VIDEO_CAPABLE) != 0;
+            duplexModeList = EabCompactEncoding.decodeSupportedDuplexModes(flags);
+            unsupportedDuplexModeList = EabCompactEncoding.decodeUnsupportedDuplexModes(flags);
         } else {
-            unsupportedDuplexModeList = new String[0];
+            serviceId = getStringValue(cursor, EabProvider.PresenceTupleColumns.SERVICE_ID);
+            version = getStringValue(cursor, EabProvider.PresenceTupleColumns.SERVICE_VERSION);
+            audioCapable = getIntValue(cursor,
+                    EabProvider.PresenceTupleColumns.AUDIO_CAPABLE) == 1;
+            videoCapable = getIntValue(cursor,
+                    EabProvider.PresenceTupleColumns.VIDEO_CAPABLE) == 1;
+            duplexModeList = EabCompactEncoding.splitDuplexModes(getStringValue(cursor,
+                    EabProvider.PresenceTupleColumns.DUPLEX_MODE));
+            unsupportedDuplexModeList = EabCompactEncoding.splitDuplexModes(getStringValue(
+                    cursor, EabProvider.PresenceTupleColumns.UNSUPPORTED_DUPLEX_MODE));
         }
 
         // Create ServiceCapabilities
         ServiceCapabilities serviceCapabilities;
         ServiceCapabilities.Builder serviceCapabilitiesBuilder =
                 new ServiceCapabilities.Builder(audioCapable, videoCapable);
-        if (!TextUtils.isEmpty(duplexModes)
-                || !TextUtils.isEmpty(unsupportedDuplexModes)) {
-            for (String duplexMode : duplexModeList) {
-                serviceCapabilitiesBuilder.addSupportedDuplexMode(duplexMode);
-            }
-            for (String unsupportedDuplex : unsupportedDuplexModeList) {
-                serviceCapabilitiesBuilder.addUnsupportedDuplexMode(unsupportedDuplex);
-            }
+        for (String duplexMode : duplexModeList) {
+            serviceCapabilitiesBuilder.addSupportedDuplexMode(duplexMode);
+        }
+        for (String unsupportedDuplex : unsupportedDuplexModeList) {
+            serviceCapabilitiesBuilder.addUnsupportedDuplexMode(unsupportedDuplex);
         }
         serviceCapabilities = serviceCapabilitiesBuilder.build();
 
@@ -583,6 +995,23 @@ public class EabControllerImpl implements EabController {
         return expired;
     }
 
+    private boolean isCapabilityExpired(PendingWrite pendingWrite) {
+        int capabilityCacheExpiration;
+        if (pendingWrite.mCapability.getRequestResult() == REQUEST_RESULT_NOT_FOUND) {
+            capabilityCacheExpiration = getNonRcsCapabilityCacheExpiration(mSubId);
+        } else {
+            capabilityCacheExpiration = getCapabilityCacheExpiration(mSubId);
+        }
+        return Instant.ofEpochSecond(pendingWrite.getRequestTimestamp())
+                .plus(capabilityCacheExpiration, ChronoUnit.SECONDS).isBefore(Instant.now());
+    }
+
+    private boolean isAvailabilityExpired(PendingWrite pendingWrite) {
+        return Instant.ofEpochSecond(pendingWrite.getRequestTimestamp())
+                .plus(getAvailabilityCacheExpiration(mSubId), ChronoUnit.SECONDS)
+                .isBefore(Instant.now());
+    }
+
     private String getRequestTimestamp(Cursor cursor) {
         String expiredTimestamp = null;
         int mechanism = getIntValue(cursor, EabProvider.EabCommonColumns.MECHANISM);
@@ -646,69 +1075,96 @@ public class EabControllerImpl implements EabController {
         return value;
     }
 
-    private int insertNewContact(String phoneNumber) {
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(EabProvider.ContactColumns.PHONE_NUMBER, phoneNumber);
-        Uri result = mContext.getContentResolver().insert(EabProvider.CONTACT_URI, contentValues);
-        return Integer.parseInt(result.getLastPathSegment());
-    }
-
-    private void deleteOldPresenceCapability(int id) {
+    /**
+     * @return The ID of the given phone number in the contact table, or -1 if it is not found.
+     */
+    private int queryContactId(String phoneNumber) {
         Cursor c = mContext.getContentResolver().query(
-                EabProvider.COMMON_URI,
-                new String[]{EabProvider.EabCommonColumns._ID},
-                EabProvider.EabCommonColumns.EAB_CONTACT_ID + "=?",
-                new String[]{String.valueOf(id)}, null);
-
-        if (c != null && c.getCount() > 0) {
-            while(c.moveToNext()) {
-                int commonId = c.getInt(c.getColumnIndex(EabProvider.EabCommonColumns._ID));
-                mContext.getContentResolver().delete(
-                        EabProvider.PRESENCE_URI,
-                        EabProvider.PresenceTupleColumns.EAB_COMMON_ID + "=?",
-                        new String[]{String.valueOf(commonId)});
-            }
+                EabProvider.CONTACT_URI, null,
+                EabProvider.ContactColumns.PHONE_NUMBER + "=?",
+                new String[]{phoneNumber}, null);
+        int contactId = -1;
+        if (c != null && c.moveToNext()) {
+            contactId = getIntValue(c, EabProvider.ContactColumns._ID);
         }
-
         if (c != null) {
             c.close();
         }
+        return contactId;
     }
 
-    private void insertNewPresenceCapability(int contactId, RcsContactUceCapability capability) {
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(EabProvider.EabCommonColumns.EAB_CONTACT_ID, contactId);
-        contentValues.put(EabProvider.EabCommonColumns.MECHANISM, CAPABILITY_MECHANISM_PRESENCE);
-        contentValues.put(EabProvider.EabCommonColumns.SUBSCRIPTION_ID, mSubId);
-        contentValues.put(EabProvider.EabCommonColumns.REQUEST_RESULT,
-                capability.getRequestResult());
+    private ContentProviderOperation newInsertContactOperation(String phoneNumber) {
+        return ContentProviderOperation.newInsert(EabProvider.CONTACT_URI)
+                .withValue(EabProvider.ContactColumns.PHONE_NUMBER, phoneNumber)
+                .build();
+    }
+
+    /**
+     * Delete the rows of the given capability table which belong to the given contact.
+     */
+    private ContentProviderOperation newDeleteOldCapabilityOperation(Uri capabilityUri,
+            String commonIdColumn, int contactId) {
+        return ContentProviderOperation.newDelete(capabilityUri)
+                .withSelection(commonIdColumn + " IN (SELECT "
+                        + EabProvider.EabCommonColumns._ID + " FROM " + EAB_COMMON_TABLE_NAME
+                        + " WHERE " + EabProvider.EabCommonColumns.EAB_CONTACT_ID + "=?)",
+                        new String[]{String.valueOf(contactId)})
+                .build();
+    }
+
+    /**
+     * Create the insert operation of a common row. The contact is referred to by its ID, or by
+     * the index of the operation inserting it in the same batch when the ID is negative.
+     */
+    private ContentProviderOperation.Builder newInsertCommonOperation(int contactId,
+            int contactIndex, int mechanism, RcsContactUceCapability capability) {
+        ContentProviderOperation.Builder builder =
+                ContentProviderOperation.newInsert(EabProvider.COMMON_URI);
+        if (contactId >= 0) {
+            builder.withValue(EabProvider.EabCommonColumns.EAB_CONTACT_ID, contactId);
+        } else {
+            builder.withValueBackReference(EabProvider.EabCommonColumns.EAB_CONTACT_ID,
+                    contactIndex);
+        }
+        return builder.withValue(EabProvider.EabCommonColumns.MECHANISM, mechanism)
+                .withValue(EabProvider.EabCommonColumns.SUBSCRIPTION_ID, mSubId)
+                .withValue(EabProvider.EabCommonColumns.REQUEST_RESULT,
+                        capability.getRequestResult());
+    }
+
+    private void addNewPresenceCapability(List<ContentProviderOperation> operations,
+            int contactId, int contactIndex, RcsContactUceCapability capability,
+            long timestamp) {
+        ContentProviderOperation.Builder commonBuilder = newInsertCommonOperation(contactId,
+                contactIndex, CAPABILITY_MECHANISM_PRESENCE, capability);
         if (capability.getEntityUri() != null) {
-            contentValues.put(EabProvider.EabCommonColumns.ENTITY_URI,
+            commonBuilder.withValue(EabProvider.EabCommonColumns.ENTITY_URI,
                     capability.getEntityUri().toString());
         }
-        Uri result = mContext.getContentResolver().insert(EabProvider.COMMON_URI, contentValues);
-        int commonId = Integer.parseInt(result.getLastPathSegment());
-        Log.d(TAG, "Insert into common table. Id: " + commonId);
+        int commonIndex = operations.size();
+        operations.add(commonBuilder.build());
 
         if (capability.getCapabilityTuples().size() == 0) {
-            insertEmptyTuple(commonId);
+            addEmptyTuple(operations, commonIndex, timestamp);
         } else {
-            insertAllTuples(commonId, capability);
+            addAllTuples(operations, commonIndex, capability, timestamp);
         }
     }
 
-    private void insertEmptyTuple(int commonId) {
+    private void addEmptyTuple(List<ContentProviderOperation> operations, int commonIndex,
+            long timestamp) {
         Log.d(TAG, "Insert empty tuple into presence table.");
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(EabProvider.PresenceTupleColumns.EAB_COMMON_ID, commonId);
         // Using current timestamp instead of network timestamp since there is not use cases for
         // network timestamp and the network timestamp may cause capability expire immediately.
-        contentValues.put(EabProvider.PresenceTupleColumns.REQUEST_TIMESTAMP,
-                mExpirationTimeFactory.getExpirationTime());
-        mContext.getContentResolver().insert(EabProvider.PRESENCE_URI, contentValues);
+        operations.add(ContentProviderOperation.newInsert(EabProvider.PRESENCE_URI)
+                .withValueBackReference(EabProvider.PresenceTupleColumns.EAB_COMMON_ID,
+                        commonIndex)
+                .withValue(EabProvider.PresenceTupleColumns.REQUEST_TIMESTAMP, timestamp)
+                .build());
     }
 
-    private void insertAllTuples(int commonId, RcsContactUceCapability capability) {
+    private void addAllTuples(List<ContentProviderOperation> operations, int commonIndex,
+            RcsContactUceCapability capability, long timestamp) {
         ContentValues[] presenceContent =
                 new ContentValues[capability.getCapabilityTuples().size()];
 
@@ -733,161 +1189,165 @@ public class EabControllerImpl implements EabController {
             }
 
             ContentValues contentValues = new ContentValues();
-            contentValues.put(EabProvider.PresenceTupleColumns.EAB_COMMON_ID, commonId);
-            contentValues.put(EabProvider.PresenceTupleColumns.BASIC_STATUS, tuple.getStatus());
-            contentValues.put(EabProvider.PresenceTupleColumns.SERVICE_ID, tuple.getServiceId());
-            contentValues.put(EabProvider.PresenceTupleColumns.SERVICE_VERSION,
-                    tuple.getServiceVersion());
             contentValues.put(EabProvider.PresenceTupleColumns.DESCRIPTION,
                     tuple.getServiceDescription());
 
             // Using current timestamp instead of network timestamp since there is not use cases for
             // network timestamp and the network timestamp may cause capability expire immediately.
-            contentValues.put(EabProvider.PresenceTupleColumns.REQUEST_TIMESTAMP,
-                    mExpirationTimeFactory.getExpirationTime());
+            contentValues.put(EabProvider.PresenceTupleColumns.REQUEST_TIMESTAMP, timestamp);
             contentValues.put(EabProvider.PresenceTupleColumns.CONTACT_URI,
                     tuple.getContactUri().toString());
-            if (serviceCapabilities != null) {
-                contentValues.put(EabProvider.PresenceTupleColumns.DUPLEX_MODE, duplexMode);
-                contentValues.put(EabProvider.PresenceTupleColumns.UNSUPPORTED_DUPLEX_MODE,
-                        unsupportedDuplexMode);
-
-                contentValues.put(EabProvider.PresenceTupleColumns.AUDIO_CAPABLE,
-                        serviceCapabilities.isAudioCapable());
-                contentValues.put(EabProvider.PresenceTupleColumns.VIDEO_CAPABLE,
-                        serviceCapabilities.isVideoCapable());
+            if (!putCompactTuple(contentValues, tuple)) {
+                contentValues.put(EabProvider.PresenceTupleColumns.BASIC_STATUS,
+                        tuple.getStatus());
+                contentValues.put(EabProvider.PresenceTupleColumns.SERVICE_ID,
+                        tuple.getServiceId());
+                contentValues.put(EabProvider.PresenceTupleColumns.SERVICE_VERSION,
+                        tuple.getServiceVersion());
+                if (serviceCapabilities != null) {
+                    contentValues.put(EabProvider.PresenceTupleColumns.DUPLEX_MODE, duplexMode);
+                    contentValues.put(EabProvider.PresenceTupleColumns.UNSUPPORTED_DUPLEX_MODE,
+                            unsupportedDuplexMode);
+
+                    contentValues.put(EabProvider.PresenceTupleColumns.AUDIO_CAPABLE,
+                            serviceCapabilities.isAudioCapable());
+                    contentValues.put(EabProvider.PresenceTupleColumns.VIDEO_CAPABLE,
+                            serviceCapabilities.isVideoCapable());
+                }
             }
             presenceContent[i] = contentValues;
         }
         Log.d(TAG, "Insert into presence table. count: " + presenceContent.length);
-        mContext.getContentResolver().bulkInsert(EabProvider.PRESENCE_URI, presenceContent);
+        for (ContentValues contentValues : presenceContent) {
+            operations.add(ContentProviderOperation.newInsert(EabProvider.PRESENCE_URI)
+                    .withValues(contentValues)
+                    .withValueBackReference(EabProvider.PresenceTupleColumns.EAB_COMMON_ID,
+                            commonIndex)
+                    .build());
+        }
     }
 
-    private void deleteOldOptionCapability(int contactId) {
-        Cursor c = mContext.getContentResolver().query(
-                EabProvider.COMMON_URI,
-                new String[]{EabProvider.EabCommonColumns._ID},
-                EabProvider.EabCommonColumns.EAB_CONTACT_ID + "=?",
-                new String[]{String.valueOf(contactId)}, null);
-
-        if (c != null && c.getCount() > 0) {
-            while(c.moveToNext()) {
-                int commonId = c.getInt(c.getColumnIndex(EabProvider.EabCommonColumns._ID));
-                mContext.getContentResolver().delete(
-                        EabProvider.OPTIONS_URI,
-                        EabProvider.OptionsColumns.EAB_COMMON_ID + "=?",
-                        new String[]{String.valueOf(commonId)});
-            }
+    /**
+     * Put the tuple in the compact format if it is enabled and the tuple can be encoded.
+     * @return true if the tuple was put in the compact format.
+     */
+    private boolean putCompactTuple(ContentValues contentValues, RcsContactPresenceTuple tuple) {
+        if (!mCompactStorageEnabled) {
+            return false;
         }
-
-        if (c != null) {
-            c.close();
+        ServiceCapabilities serviceCapabilities = tuple.getServiceCapabilities();
+        int flags;
+        if (serviceCapabilities != null) {
+            flags = EabCompactEncoding.encodeFlags(tuple.getStatus(),
+                    serviceCapabilities.isAudioCapable(), serviceCapabilities.isVideoCapable(),
+                    serviceCapabilities.getSupportedDuplexModes(),
+                    serviceCapabilities.getUnsupportedDuplexModes());
+        } else {
+            flags = EabCompactEncoding.encodeFlags(tuple.getStatus(), false, false, null, null);
+        }
+        if (flags == EabCompactEncoding.NOT_ENCODABLE) {
+            return false;
         }
+        int serviceIdRef = mDictionary.getId(tuple.getServiceId());
+        int versionRef = mDictionary.getId(tuple.getServiceVersion());
+        if ((tuple.getServiceId() != null && serviceIdRef <= 0)
+                || (tuple.getServiceVersion() != null && versionRef <= 0)) {
+            return false;
+        }
+        contentValues.put(EabProvider.PresenceTupleColumns.CAPABILITY_FLAGS, flags);
+        EabCompactEncoding.putDictionaryRef(contentValues,
+                EabProvider.PresenceTupleColumns.SERVICE_ID_REF, serviceIdRef);
+        EabCompactEncoding.putDictionaryRef(contentValues,
+                EabProvider.PresenceTupleColumns.SERVICE_VERSION_REF, versionRef);
+        if (!EabCompactEncoding.isStatusEncoded(tuple.getStatus())) {
+            contentValues.put(EabProvider.PresenceTupleColumns.BASIC_STATUS, tuple.getStatus());
+        }
+        return true;
     }
 
-    private void insertNewOptionCapability(int contactId, RcsContactUceCapability capability) {
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(EabProvider.EabCommonColumns.EAB_CONTACT_ID, contactId);
-        contentValues.put(EabProvider.EabCommonColumns.MECHANISM, CAPABILITY_MECHANISM_OPTIONS);
-        contentValues.put(EabProvider.EabCommonColumns.SUBSCRIPTION_ID, mSubId);
-        contentValues.put(EabProvider.EabCommonColumns.REQUEST_RESULT,
-                capability.getRequestResult());
-        Uri result = mContext.getContentResolver().insert(EabProvider.COMMON_URI, contentValues);
+    private void addNewOptionCapability(List<ContentProviderOperation> operations,
+            int contactId, int contactIndex, RcsContactUceCapability capability,
+            long timestamp) {
+        int commonIndex = operations.size();
+        operations.add(newInsertCommonOperation(contactId, contactIndex,
+                CAPABILITY_MECHANISM_OPTIONS, capability).build());
+
+        byte[] packedFeatureTags = packFeatureTags(capability);
+        if (packedFeatureTags != null) {
+            operations.add(ContentProviderOperation.newInsert(EabProvider.OPTIONS_URI)
+                    .withValueBackReference(EabProvider.OptionsColumns.EAB_COMMON_ID,
+                            commonIndex)
+                    .withValue(EabProvider.OptionsColumns.FEATURE_TAGS_BLOB, packedFeatureTags)
+                    .withValue(EabProvider.OptionsColumns.REQUEST_TIMESTAMP, timestamp)
+                    .build());
+            return;
+        }
 
-        int commonId = Integer.valueOf(result.getLastPathSegment());
-        List<ContentValues> optionContentList = new ArrayList<>();
         for (String feature : capability.getFeatureTags()) {
-            contentValues = new ContentValues();
-            contentValues.put(EabProvider.OptionsColumns.EAB_COMMON_ID, commonId);
-            contentValues.put(EabProvider.OptionsColumns.FEATURE_TAG, feature);
-            contentValues.put(EabProvider.OptionsColumns.REQUEST_TIMESTAMP,
-                    Instant.now().getEpochSecond());
-            optionContentList.add(contentValues);
+            operations.add(ContentProviderOperation.newInsert(EabProvider.OPTIONS_URI)
+                    .withValueBackReference(EabProvider.OptionsColumns.EAB_COMMON_ID,
+                            commonIndex)
+                    .withValue(EabProvider.OptionsColumns.FEATURE_TAG, feature)
+                    .withValue(EabProvider.OptionsColumns.REQUEST_TIMESTAMP, timestamp)
+                    .build());
         }
-
-        ContentValues[] optionContent = new ContentValues[optionContentList.size()];
-        optionContent = optionContentList.toArray(optionContent);
-        mContext.getContentResolver().bulkInsert(EabProvider.OPTIONS_URI, optionContent);
     }
 
-    private void cleanupExpiredCapabilities() {
-        // Cleanup the capabilities that expired more than 1 week
-        long rcsCapabilitiesExpiredTime = Instant.now().getEpochSecond() -
-                getCapabilityCacheExpiration(mSubId) -
-                CLEAN_UP_LEGACY_CAPABILITY_SEC;
-
-        // Cleanup the capabilities that expired more than 1 week
-        long nonRcsCapabilitiesExpiredTime = Instant.now().getEpochSecond() -
-                getNonRcsCapabilityCacheExpiration(mSubId) -
-                CLEAN_UP_LEGACY_CAPABILITY_SEC;
-
-        cleanupCapabilities(rcsCapabilitiesExpiredTime, getRcsCommonIdList());
-        cleanupCapabilities(nonRcsCapabilitiesExpiredTime, getNonRcsCommonIdList());
-    }
-
-    private void cleanupCapabilities(long rcsCapabilitiesExpiredTime, List<Integer> commonIdList) {
-        if (commonIdList.size() > 0) {
-            String presenceClause =
-                    EabProvider.PresenceTupleColumns.EAB_COMMON_ID +
-                            " IN (" + TextUtils.join(",", commonIdList) + ") " + " AND " +
-                            EabProvider.PresenceTupleColumns.REQUEST_TIMESTAMP + "<?";
-
-            String optionClause =
-                    EabProvider.PresenceTupleColumns.EAB_COMMON_ID +
-                            " IN (" + TextUtils.join(",", commonIdList) + ") " + " AND " +
-                            EabProvider.OptionsColumns.REQUEST_TIMESTAMP + "<?";
-
-            int deletePresenceCount = mContext.getContentResolver().delete(
-                    EabProvider.PRESENCE_URI,
-                    presenceClause,
-                    new String[]{String.valueOf(rcsCapabilitiesExpiredTime)});
-
-            int deleteOptionsCount = mContext.getContentResolver().delete(
-                    EabProvider.OPTIONS_URI,
-                    optionClause,
-                    new String[]{String.valueOf(rcsCapabilitiesExpiredTime)});
-
-            Log.d(TAG, "Cleanup capabilities. deletePresenceCount: " + deletePresenceCount +
-                ",deleteOptionsCount: " + deleteOptionsCount);
+    /**
+     * @return The feature tags packed in the compact format, or null if the capability should
+     * be stored as one row per feature tag.
+     */
+    private byte[] packFeatureTags(RcsContactUceCapability capability) {
+        if (!mCompactStorageEnabled || capability.getFeatureTags().isEmpty()) {
+            return null;
         }
-    }
-
-    private List<Integer> getRcsCommonIdList() {
-        ArrayList<Integer> list = new ArrayList<>();
-        Cursor cursor = mContext.getContentResolver().query(
-                EabProvider.COMMON_URI,
-                null,
-                EabProvider.EabCommonColumns.REQUEST_RESULT + "<>?",
-                new String[]{String.valueOf(REQUEST_RESULT_NOT_FOUND)},
-                null);
-
-        if (cursor == null) return list;
-
-        while (cursor.moveToNext()) {
-            list.add(cursor.getInt(cursor.getColumnIndex(EabProvider.EabCommonColumns._ID)));
+        List<Integer> ids = new ArrayList<>(capability.getFeatureTags().size());
+        for (String feature : capability.getFeatureTags()) {
+            int id = mDictionary.getId(feature);
+            if (id <= 0) {
+                return null;
+            }
+            ids.add(id);
         }
-        cursor.close();
-
-        return list;
+        return EabCompactEncoding.packIds(ids);
     }
 
-    private List<Integer> getNonRcsCommonIdList() {
-        ArrayList<Integer> list = new ArrayList<>();
-        Cursor cursor = mContext.getContentResolver().query(
-                EabProvider.COMMON_URI,
-                null,
-                EabProvider.EabCommonColumns.REQUEST_RESULT + "=?",
-                new String[]{String.valueOf(REQUEST_RESULT_NOT_FOUND)},
-                null);
-
-        if (cursor == null) return list;
-
-        while (cursor.moveToNext()) {
-            list.add(cursor.getInt(cursor.getColumnIndex(EabProvider.EabCommonColumns._ID)));
+    /**
+     * Remove the capabilities which expired more than a week ago, the common rows which no
+     * longer have any capability and the dictionary entries which are no longer referenced. The
+     * cleanup runs in a single transaction in the provider.
+     * @return The number of deleted rows of each table, see
+     * {@link EabProvider#METHOD_CLEANUP_EXPIRED_CAPABILITIES}.
+     */
+    @VisibleForTesting
+    public Bundle cleanupExpiredCapabilities() {
+        long now = Instant.now().getEpochSecond();
+        Bundle extras = new Bundle();
+        extras.putLong(EabProvider.KEY_RCS_EXPIRED_TIME,
+                now - getCapabilityCacheExpiration(mSubId) - CLEAN_UP_LEGACY_CAPABILITY_SEC);
+        extras.putLong(EabProvider.KEY_NON_RCS_EXPIRED_TIME,
+                now - getNonRcsCapabilityCacheExpiration(mSubId) - CLEAN_UP_LEGACY_CAPABILITY_SEC);
+
+        // Do not remove the common row of a capability which is being written.
+        Bundle result;
+        // The dictionary entries are shared with the other subscriptions, do not remove the
+        // entries which are being referenced by any of them either.
+        synchronized (mFlushLock) {
+            result = EabDictionary.runRemoval(() -> mContext.getContentResolver().call(
+                    EabProvider.AUTHORITY, EabProvider.METHOD_CLEANUP_EXPIRED_CAPABILITIES, null,
+                    extras));
         }
-        cursor.close();
-
-        return list;
+        if (result != null) {
+            Log.d(TAG, "Cleanup capabilities. deletePresenceCount: "
+                    + result.getInt(EabProvider.KEY_DELETED_PRESENCE_COUNT)
+                    + ", deleteOptionsCount: "
+                    + result.getInt(EabProvider.KEY_DELETED_OPTIONS_COUNT)
+                    + ", deleteCommonCount: "
+                    + result.getInt(EabProvider.KEY_DELETED_COMMON_COUNT)
+                    + ", deleteDictionaryCount: "
+                    + result.getInt(EabProvider.KEY_DELETED_DICTIONARY_COUNT));
+        }
+        return result;
     }
 
     private String getStringValue(Cursor cursor, String column) {
@@ -899,28 +1359,24 @@ public class EabControllerImpl implements EabController {
     }
 
     private static String getNumberFromUri(Context context, Uri uri) {
-        String number = uri.getSchemeSpecificPart();
-        String[] numberParts = number.split("[@;:]");
-        if (numberParts.length == 0) {
+        String number = PhoneNumberNormalizer.getUserPart(uri.getSchemeSpecificPart());
+        if (number == null) {
             return null;
         }
-        return formatNumber(context, numberParts[0]);
+        return formatNumber(context, number);
     }
 
     static String formatNumber(Context context, String number) {
         TelephonyManager manager = context.getSystemService(TelephonyManager.class);
-        String simCountryIso = manager.getSimCountryIso();
-        if (simCountryIso != null) {
-            simCountryIso = simCountryIso.toUpperCase();
-            PhoneNumberUtil util = PhoneNumberUtil.getInstance();
-            try {
-                Phonenumber.PhoneNumber phoneNumber = util.parse(number, simCountryIso);
-                return util.format(phoneNumber, PhoneNumberUtil.PhoneNumberFormat.E164);
-            } catch (NumberParseException e) {
-                Log.w(TAG, "formatNumber: could not format " + number + ", error: " + e);
-            }
-        }
-        return number;
+        return PhoneNumberNormalizer.formatNumber(number, manager.getSimCountryIso());
+    }
+
+    /**
+     * Set whether the capabilities are written in the compact format.
+     */
+    @VisibleForTesting
+    public void setCompactStorageEnabled(boolean enabled) {
+        mCompactStorageEnabled = enabled;
     }
 
     @VisibleForTesting
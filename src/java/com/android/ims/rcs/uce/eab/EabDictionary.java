@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ims.rcs.uce.eab;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.ims.rcs.uce.eab.EabProvider.DictionaryColumns;
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Caches the dictionary table of the EAB compact format. The dictionary only holds the distinct
+ * service IDs, versions and feature tags, so it is small. The entries which are no longer
+ * referenced by any capability are removed by the cleanup of the expired capabilities, see
+ * {@link #runRemoval}.
+ */
+public class EabDictionary {
+    private static final String TAG = "EabDictionary";
+
+    // The dictionary table is shared by all the subscriptions. This lock is held for reading
+    // while the IDs are resolved and written in the capability tables, and for writing while
+    // the unreferenced entries are removed, so that an entry is not removed between getting its
+    // ID and writing the reference.
+    private static final ReadWriteLock sReferenceLock = new ReentrantReadWriteLock();
+    // Incremented after entries are removed, the IDs of the removed entries may be reused.
+    private static volatile int sGeneration = 0;
+
+    private final Context mContext;
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final SparseArray<String> mValues = new SparseArray<>();
+    @GuardedBy("mLock")
+    private final ArrayMap<String, Integer> mIds = new ArrayMap<>();
+    // The generation of the cached entries.
+    @GuardedBy("mLock")
+    private int mGeneration = sGeneration;
+
+    public EabDictionary(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * @return The ID of the given value, adding it to the dictionary if needed, or -1 if the
+     * value is null or could not be added.
+     */
+    public int getId(String value) {
+        if (value == null) {
+            return -1;
+        }
+        synchronized (mLock) {
+            dropCacheIfRemovedLocked();
+            Integer id = mIds.get(value);
+            if (id != null) {
+                return id;
+            }
+        }
+        int generation = sGeneration;
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(DictionaryColumns.VALUE, value);
+        Uri result = mContext.getContentResolver().insert(EabProvider.DICTIONARY_URI,
+                contentValues);
+        int id;
+        try {
+            id = (result == null) ? -1 : Integer.parseInt(result.getLastPathSegment());
+        } catch (NumberFormatException e) {
+            id = -1;
+        }
+        if (id <= 0) {
+            Log.w(TAG, "getId: can't add value to the dictionary");
+            return -1;
+        }
+        put(id, value, generation);
+        return id;
+    }
+
+    /**
+     * @return The value of the given ID, or null if the ID is not in the dictionary.
+     */
+    public String getValue(int id) {
+        if (id <= 0) {
+            return null;
+        }
+        synchronized (mLock) {
+            dropCacheIfRemovedLocked();
+            String value = mValues.get(id);
+            if (value != null) {
+                return value;
+            }
+        }
+        int generation = sGeneration;
+        String value = null;
+        try (Cursor cursor = mContext.getContentResolver().query(EabProvider.DICTIONARY_URI,
+                new String[]{DictionaryColumns.VALUE}, DictionaryColumns._ID + "=?",
+                new String[]{String.valueOf(id)}, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                value = cursor.getString(0);
+            }
+        }
+        if (value != null) {
+            put(id, value, generation);
+        }
+        return value;
+    }
+
+    /**
+     * Cache the given entry read in the given generation, unless entries have been removed
+     * since then.
+     */
+    private void put(int id, String value, int generation) {
+        synchronized (mLock) {
+            dropCacheIfRemovedLocked();
+            if (mGeneration != generation) {
+                return;
+            }
+            mValues.put(id, value);
+            mIds.put(value, id);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void dropCacheIfRemovedLocked() {
+        int generation = sGeneration;
+        if (mGeneration != generation) {
+            mValues.clear();
+            mIds.clear();
+            mGeneration = generation;
+        }
+    }
+
+    /**
+     * @return The lock to hold while the IDs of the dictionary are resolved and written in the
+     * capability tables.
+     */
+    public static Lock getReferenceLock() {
+        return sReferenceLock.readLock();
+    }
+
+    /**
+     * Run the given removal of dictionary entries while no reference is being written, then
+     * drop the entries cached by every dictionary.
+     */
+    public static <T> T runRemoval(Supplier<T> removal) {
+        Lock lock = sReferenceLock.writeLock();
+        lock.lock();
+        try {
+            return removal.get();
+        } finally {
+            sGeneration++;
+            lock.unlock();
+        }
+    }
+}
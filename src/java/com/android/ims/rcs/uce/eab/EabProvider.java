@@ -21,16 +21,22 @@ import static android.content.ContentResolver.NOTIFY_INSERT;
 import static android.content.ContentResolver.NOTIFY_UPDATE;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
 import android.provider.BaseColumns;
+import android.telephony.ims.RcsContactUceCapability;
 import android.text.TextUtils;
+import android.util.ArraySet;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -43,7 +49,7 @@ import java.util.List;
  * both SIP options and UCE presence server data.
  *
  * <p>
- * There are 4 tables in EAB DB:
+ * There are 5 tables in EAB DB:
  * <ul>
  *     <li><em>Contact:</em> It stores the name and phone number of the contact.
  *
@@ -64,6 +70,9 @@ import java.util.List;
  *     ({@link android.telephony.ims.RcsContactUceCapability}) that queried through SIP OPTIONS. It
  *     should be *:1 mapped to the common table and it has a foreign key(eab_common_id) that refers
  *     to the id of common table.
+ *
+ *     <li><em>Dictionary:</em> It stores the service IDs, versions and feature tags once, so that
+ *     the presence and options rows in the compact format can refer to them by ID.
  * </ul>
  * </p>
  */
@@ -73,6 +82,7 @@ public class EabProvider extends ContentProvider {
     public static final Uri COMMON_URI = Uri.parse("content://eab/common");
     public static final Uri PRESENCE_URI = Uri.parse("content://eab/presence");
     public static final Uri OPTIONS_URI = Uri.parse("content://eab/options");
+    public static final Uri DICTIONARY_URI = Uri.parse("content://eab/dictionary");
 
     // The public URI for querying EAB DB. Only support query.
     public static final Uri ALL_DATA_URI = Uri.parse("content://eab/all");
@@ -80,13 +90,30 @@ public class EabProvider extends ContentProvider {
     @VisibleForTesting
     public static final String AUTHORITY = "eab";
 
+    /**
+     * The method of {@link #call} to remove the expired capabilities, the common rows which no
+     * longer have any capability and the dictionary entries which are no longer referenced, in a
+     * single transaction. The expiration time of RCS and non-RCS capabilities are passed in
+     * {@link #KEY_RCS_EXPIRED_TIME} and {@link #KEY_NON_RCS_EXPIRED_TIME}, the number of deleted
+     * rows of each table is returned.
+     */
+    public static final String METHOD_CLEANUP_EXPIRED_CAPABILITIES =
+            "cleanup_expired_capabilities";
+    public static final String KEY_RCS_EXPIRED_TIME = "rcs_expired_time";
+    public static final String KEY_NON_RCS_EXPIRED_TIME = "non_rcs_expired_time";
+    public static final String KEY_DELETED_PRESENCE_COUNT = "deleted_presence_count";
+    public static final String KEY_DELETED_OPTIONS_COUNT = "deleted_options_count";
+    public static final String KEY_DELETED_COMMON_COUNT = "deleted_common_count";
+    public static final String KEY_DELETED_DICTIONARY_COUNT = "deleted_dictionary_count";
+
     private static final String TAG = "EabProvider";
-    private static final int DATABASE_VERSION = 4;
+    private static final int DATABASE_VERSION = 5;
 
     public static final String EAB_CONTACT_TABLE_NAME = "eab_contact";
     public static final String EAB_COMMON_TABLE_NAME = "eab_common";
     public static final String EAB_PRESENCE_TUPLE_TABLE_NAME = "eab_presence";
     public static final String EAB_OPTIONS_TABLE_NAME = "eab_options";
+    public static final String EAB_DICTIONARY_TABLE_NAME = "eab_dictionary";
 
     private static final UriMatcher URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
     private static final int URL_CONTACT = 1;
@@ -95,6 +122,7 @@ public class EabProvider extends ContentProvider {
     private static final int URL_OPTIONS = 4;
     private static final int URL_ALL = 5;
     private static final int URL_ALL_WITH_SUB_ID_AND_PHONE_NUMBER = 6;
+    private static final int URL_DICTIONARY = 7;
 
     static {
         URI_MATCHER.addURI(AUTHORITY, "contact", URL_CONTACT);
@@ -103,6 +131,7 @@ public class EabProvider extends ContentProvider {
         URI_MATCHER.addURI(AUTHORITY, "options", URL_OPTIONS);
         URI_MATCHER.addURI(AUTHORITY, "all", URL_ALL);
         URI_MATCHER.addURI(AUTHORITY, "all/#/*", URL_ALL_WITH_SUB_ID_AND_PHONE_NUMBER);
+        URI_MATCHER.addURI(AUTHORITY, "dictionary", URL_DICTIONARY);
     }
 
     private static final String QUERY_CONTACT_TABLE =
@@ -304,6 +333,28 @@ public class EabProvider extends ContentProvider {
          * <P>Type:  BOOLEAN </P>
          */
         public static final String VIDEO_CAPABLE = "video_capable";
+
+        /**
+         * The compact format of the tuple: a reference to the {@link DictionaryColumns#_ID} of
+         * the service ID. {@link #SERVICE_ID} is NULL when this is used.
+         * <P>Type:  INTEGER</P>
+         */
+        public static final String SERVICE_ID_REF = "service_id_ref";
+
+        /**
+         * The compact format of the tuple: a reference to the {@link DictionaryColumns#_ID} of
+         * the service version. {@link #SERVICE_VERSION} is NULL when this is used.
+         * <P>Type:  INTEGER</P>
+         */
+        public static final String SERVICE_VERSION_REF = "service_version_ref";
+
+        /**
+         * The compact format of the tuple: the basic status, audio/video capable and duplex
+         * modes as bit flags, see {@link EabCompactEncoding}. The tuple is stored in the compact
+         * format if and only if this is not NULL.
+         * <P>Type:  INTEGER</P>
+         */
+        public static final String CAPABILITY_FLAGS = "capability_flags";
     }
 
     /**
@@ -329,6 +380,28 @@ public class EabProvider extends ContentProvider {
          * <P>Type:  LONG</P>
          */
         public static final String REQUEST_TIMESTAMP = "options_request_timestamp";
+
+        /**
+         * The compact format of the options capability: all the feature tags of the capability
+         * packed as references to the {@link DictionaryColumns#_ID}, see
+         * {@link EabCompactEncoding}. A capability stored in the compact format has a single row
+         * and {@link #FEATURE_TAG} is NULL.
+         * <P>Type:  BLOB</P>
+         */
+        public static final String FEATURE_TAGS_BLOB = "feature_tags_blob";
+    }
+
+    /**
+     * The dictionary of the strings which are repeated across the contacts, such as the service
+     * IDs, versions and feature tags, referred to by the compact format.
+     */
+    public static class DictionaryColumns implements BaseColumns {
+
+        /**
+         * The string value.
+         * <P>Type:  TEXT</P>
+         */
+        public static final String VALUE = "value";
     }
 
     @VisibleForTesting
@@ -382,7 +455,12 @@ public class EabProvider extends ContentProvider {
                 + PresenceTupleColumns.DUPLEX_MODE + " TEXT DEFAULT NULL, "
                 + PresenceTupleColumns.UNSUPPORTED_DUPLEX_MODE + " TEXT DEFAULT NULL, "
                 + PresenceTupleColumns.AUDIO_CAPABLE + " BOOLEAN DEFAULT NULL, "
-                + PresenceTupleColumns.VIDEO_CAPABLE + " BOOLEAN DEFAULT NULL"
+                + PresenceTupleColumns.VIDEO_CAPABLE + " BOOLEAN DEFAULT NULL, "
+
+                // For the compact format
+                + PresenceTupleColumns.SERVICE_ID_REF + " INTEGER DEFAULT NULL, "
+                + PresenceTupleColumns.SERVICE_VERSION_REF + " INTEGER DEFAULT NULL, "
+                + PresenceTupleColumns.CAPABILITY_FLAGS + " INTEGER DEFAULT NULL"
                 + ");";
 
         @VisibleForTesting
@@ -392,7 +470,16 @@ public class EabProvider extends ContentProvider {
                 + OptionsColumns._ID + " INTEGER PRIMARY KEY, "
                 + OptionsColumns.EAB_COMMON_ID + " INTEGER DEFAULT -1, "
                 + OptionsColumns.REQUEST_TIMESTAMP + " LONG DEFAULT NULL, "
-                + OptionsColumns.FEATURE_TAG + " TEXT DEFAULT NULL "
+                + OptionsColumns.FEATURE_TAG + " TEXT DEFAULT NULL, "
+                + OptionsColumns.FEATURE_TAGS_BLOB + " BLOB DEFAULT NULL "
+                + ");";
+
+        @VisibleForTesting
+        public static final String SQL_CREATE_DICTIONARY_TABLE = "CREATE TABLE "
+                + EAB_DICTIONARY_TABLE_NAME
+                + " ("
+                + DictionaryColumns._ID + " INTEGER PRIMARY KEY, "
+                + DictionaryColumns.VALUE + " TEXT NOT NULL UNIQUE "
                 + ");";
 
         EabDatabaseHelper(Context context) {
@@ -404,6 +491,7 @@ public class EabProvider extends ContentProvider {
             db.execSQL(SQL_CREATE_COMMON_TABLE);
             db.execSQL(SQL_CREATE_PRESENCE_TUPLE_TABLE);
             db.execSQL(SQL_CREATE_OPTIONS_TABLE);
+            db.execSQL(SQL_CREATE_DICTIONARY_TABLE);
         }
 
         @Override
@@ -461,6 +549,25 @@ public class EabProvider extends ContentProvider {
                         + EabCommonColumns.ENTITY_URI + " Text DEFAULT NULL;");
                 oldVersion = 4;
             }
+
+            if (oldVersion < 5) {
+                // Add the compact format and convert the existing capabilities to it.
+                sqLiteDatabase.execSQL(SQL_CREATE_DICTIONARY_TABLE);
+                sqLiteDatabase.execSQL("ALTER TABLE " + EAB_PRESENCE_TUPLE_TABLE_NAME
+                        + " ADD COLUMN " + PresenceTupleColumns.SERVICE_ID_REF
+                        + " INTEGER DEFAULT NULL;");
+                sqLiteDatabase.execSQL("ALTER TABLE " + EAB_PRESENCE_TUPLE_TABLE_NAME
+                        + " ADD COLUMN " + PresenceTupleColumns.SERVICE_VERSION_REF
+                        + " INTEGER DEFAULT NULL;");
+                sqLiteDatabase.execSQL("ALTER TABLE " + EAB_PRESENCE_TUPLE_TABLE_NAME
+                        + " ADD COLUMN " + PresenceTupleColumns.CAPABILITY_FLAGS
+                        + " INTEGER DEFAULT NULL;");
+                sqLiteDatabase.execSQL("ALTER TABLE " + EAB_OPTIONS_TABLE_NAME
+                        + " ADD COLUMN " + OptionsColumns.FEATURE_TAGS_BLOB
+                        + " BLOB DEFAULT NULL;");
+                EabCompactEncoding.migrateToCompactFormat(sqLiteDatabase);
+                oldVersion = 5;
+            }
         }
     }
 
@@ -473,7 +580,7 @@ public class EabProvider extends ContentProvider {
     }
 
     /**
-     * Support 6 URLs for querying:
+     * Support 7 URLs for querying:
      *
      * <ul>
      * <li>{@link #URL_CONTACT}: query contact table.
@@ -484,6 +591,8 @@ public class EabProvider extends ContentProvider {
      *
      * <li>{@link #URL_OPTIONS}: query options capability table.
      *
+     * <li>{@link #URL_DICTIONARY}: query the dictionary table of the compact format.
+     *
      * <li>{@link #URL_ALL_WITH_SUB_ID_AND_PHONE_NUMBER}: To provide more efficient query way,
      * filter by the {@link ContactColumns#PHONE_NUMBER} first and join with others tables. The
      * format is like content://eab/all/[sub_id]/[phone_number]
@@ -519,6 +628,10 @@ public class EabProvider extends ContentProvider {
                 qb.setTables(EAB_OPTIONS_TABLE_NAME);
                 break;
 
+            case URL_DICTIONARY:
+                qb.setTables(EAB_DICTIONARY_TABLE_NAME);
+                break;
+
             case URL_ALL_WITH_SUB_ID_AND_PHONE_NUMBER:
                 List<String> pathSegment = uri.getPathSegments();
 
@@ -573,6 +686,12 @@ public class EabProvider extends ContentProvider {
             case URL_OPTIONS:
                 tableName = EAB_OPTIONS_TABLE_NAME;
                 break;
+            case URL_DICTIONARY:
+                // Replacing an existing value would change its ID, return the existing ID instead.
+                result = EabCompactEncoding.getOrInsertDictionaryId(db,
+                        contentValues.getAsString(DictionaryColumns.VALUE));
+                Log.d(TAG, "Insert uri: " + match + " ID: " + result);
+                return Uri.withAppendedPath(uri, String.valueOf(result));
         }
         if (!TextUtils.isEmpty(tableName)) {
             result = db.insertWithOnConflict(tableName, null, contentValues,
@@ -701,6 +820,141 @@ public class EabProvider extends ContentProvider {
         return result;
     }
 
+    /**
+     * Apply the operations in a single transaction, so that the capabilities written together
+     * are either all written or not written at all.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (!METHOD_CLEANUP_EXPIRED_CAPABILITIES.equals(method) || extras == null) {
+            Log.d(TAG, "Call. Not support method: " + method);
+            return null;
+        }
+        return cleanupExpiredCapabilities(extras.getLong(KEY_RCS_EXPIRED_TIME),
+                extras.getLong(KEY_NON_RCS_EXPIRED_TIME));
+    }
+
+    private Bundle cleanupExpiredCapabilities(long rcsExpiredTime, long nonRcsExpiredTime) {
+        SQLiteDatabase db = getWritableDatabase();
+        String notFound = String.valueOf(RcsContactUceCapability.REQUEST_RESULT_NOT_FOUND);
+        int presenceCount = 0;
+        int optionsCount = 0;
+        int commonCount;
+        int dictionaryCount;
+        try {
+            db.beginTransaction();
+            presenceCount += deleteExpiredRows(db, EAB_PRESENCE_TUPLE_TABLE_NAME,
+                    PresenceTupleColumns.EAB_COMMON_ID, PresenceTupleColumns.REQUEST_TIMESTAMP,
+                    "<>?", notFound, rcsExpiredTime);
+            presenceCount += deleteExpiredRows(db, EAB_PRESENCE_TUPLE_TABLE_NAME,
+                    PresenceTupleColumns.EAB_COMMON_ID, PresenceTupleColumns.REQUEST_TIMESTAMP,
+                    "=?", notFound, nonRcsExpiredTime);
+            optionsCount += deleteExpiredRows(db, EAB_OPTIONS_TABLE_NAME,
+                    OptionsColumns.EAB_COMMON_ID, OptionsColumns.REQUEST_TIMESTAMP,
+                    "<>?", notFound, rcsExpiredTime);
+            optionsCount += deleteExpiredRows(db, EAB_OPTIONS_TABLE_NAME,
+                    OptionsColumns.EAB_COMMON_ID, OptionsColumns.REQUEST_TIMESTAMP,
+                    "=?", notFound, nonRcsExpiredTime);
+
+            // Remove the common rows which can't map to the presence or options table.
+            commonCount = db.delete(EAB_COMMON_TABLE_NAME,
+                    EabCommonColumns._ID + " NOT IN (SELECT "
+                            + PresenceTupleColumns.EAB_COMMON_ID + " FROM "
+                            + EAB_PRESENCE_TUPLE_TABLE_NAME + ") AND "
+                            + EabCommonColumns._ID + " NOT IN (SELECT "
+                            + OptionsColumns.EAB_COMMON_ID + " FROM "
+                            + EAB_OPTIONS_TABLE_NAME + ")",
+                    null);
+            dictionaryCount = deleteUnreferencedDictionaryEntries(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (presenceCount > 0) {
+            getContext().getContentResolver().notifyChange(PRESENCE_URI, null, NOTIFY_DELETE);
+        }
+        if (optionsCount > 0) {
+            getContext().getContentResolver().notifyChange(OPTIONS_URI, null, NOTIFY_DELETE);
+        }
+        if (commonCount > 0) {
+            getContext().getContentResolver().notifyChange(COMMON_URI, null, NOTIFY_DELETE);
+        }
+        if (dictionaryCount > 0) {
+            getContext().getContentResolver().notifyChange(DICTIONARY_URI, null, NOTIFY_DELETE);
+        }
+        Log.d(TAG, "Cleanup expired capabilities. presence: " + presenceCount
+                + ", options: " + optionsCount + ", common: " + commonCount
+                + ", dictionary: " + dictionaryCount);
+
+        Bundle result = new Bundle();
+        result.putInt(KEY_DELETED_PRESENCE_COUNT, presenceCount);
+        result.putInt(KEY_DELETED_OPTIONS_COUNT, optionsCount);
+        result.putInt(KEY_DELETED_COMMON_COUNT, commonCount);
+        result.putInt(KEY_DELETED_DICTIONARY_COUNT, dictionaryCount);
+        return result;
+    }
+
+    /**
+     * Delete the dictionary entries which are not referenced by the presence tuples or by the
+     * feature tags packed in the options rows.
+     */
+    private int deleteUnreferencedDictionaryEntries(SQLiteDatabase db) {
+        // The feature tags are packed in a blob, so their IDs can't be selected in SQL.
+        ArraySet<Integer> featureTagIds = new ArraySet<>();
+        try (Cursor cursor = db.query(EAB_OPTIONS_TABLE_NAME,
+                new String[]{OptionsColumns.FEATURE_TAGS_BLOB},
+                OptionsColumns.FEATURE_TAGS_BLOB + " IS NOT NULL", null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                featureTagIds.addAll(EabCompactEncoding.unpackIds(cursor.getBlob(0)));
+            }
+        }
+        StringBuilder selection = new StringBuilder();
+        appendNotReferencedByPresence(selection, PresenceTupleColumns.SERVICE_ID_REF);
+        selection.append(" AND ");
+        appendNotReferencedByPresence(selection, PresenceTupleColumns.SERVICE_VERSION_REF);
+        if (!featureTagIds.isEmpty()) {
+            selection.append(" AND ").append(DictionaryColumns._ID).append(" NOT IN (")
+                    .append(TextUtils.join(",", featureTagIds)).append(")");
+        }
+        return db.delete(EAB_DICTIONARY_TABLE_NAME, selection.toString(), null);
+    }
+
+    private static void appendNotReferencedByPresence(StringBuilder selection, String refColumn) {
+        // NOT IN is never true if the sub query returns NULL, so skip the rows without reference.
+        selection.append(DictionaryColumns._ID).append(" NOT IN (SELECT ").append(refColumn)
+                .append(" FROM ").append(EAB_PRESENCE_TUPLE_TABLE_NAME).append(" WHERE ")
+                .append(refColumn).append(" IS NOT NULL)");
+    }
+
+    /**
+     * Delete the rows of the given capability table which are older than the expired time and
+     * whose request result matches the given condition.
+     */
+    private int deleteExpiredRows(SQLiteDatabase db, String tableName, String commonIdColumn,
+            String timestampColumn, String requestResultCondition, String requestResult,
+            long expiredTime) {
+        return db.delete(tableName,
+                commonIdColumn + " IN (SELECT " + EabCommonColumns._ID + " FROM "
+                        + EAB_COMMON_TABLE_NAME + " WHERE " + EabCommonColumns.REQUEST_RESULT
+                        + requestResultCondition + ") AND " + timestampColumn + "<?",
+                new String[]{requestResult, String.valueOf(expiredTime)});
+    }
+
     @Override
     public String getType(Uri uri) {
         return null;
@@ -23,7 +23,7 @@ import android.telephony.ims.RcsContactPresenceTuple.ServiceCapabilities;
 import android.telephony.ims.RcsContactUceCapability;
 import android.text.TextUtils;
 import android.util.Log;
-
+import android.util.LruCache;
 
 import com.android.ims.rcs.uce.presence.pidfparser.capabilities.Audio;
 import com.android.ims.rcs.uce.presence.pidfparser.capabilities.CapsConstant;
@@ -85,10 +85,38 @@ public class PidfParser {
         return (sOverrideTimestampProxy != null) ? sOverrideTimestampProxy : sLocalTimestampProxy;
     }
 
+    // The max number of generated PIDF documents to keep, there is usually one per subscription.
+    private static final int PIDF_CACHE_SIZE = 4;
+
+    // The PIDF documents which have been generated, keyed by the fingerprint of the capabilities
+    // they were generated from. Refresh PUBLISH requests reuse the same document.
+    private static final LruCache<String, String> sPidfCache = new LruCache<>(PIDF_CACHE_SIZE);
+
+    @VisibleForTesting
+    public static void clearPidfCache() {
+        sPidfCache.evictAll();
+    }
+
     /**
      * Convert the RcsContactUceCapability to the string of pidf.
+     * <p>
+     * The generated pidf is cached and returned again as long as the capabilities used to
+     * generate it have not changed.
      */
     public static String convertToPidf(RcsContactUceCapability capabilities) {
+        String fingerprint = PidfParserUtils.getPidfFingerprint(capabilities);
+        String pidf = sPidfCache.get(fingerprint);
+        if (pidf != null) {
+            return pidf;
+        }
+        pidf = generatePidf(capabilities);
+        if (pidf != null) {
+            sPidfCache.put(fingerprint, pidf);
+        }
+        return pidf;
+    }
+
+    private static String generatePidf(RcsContactUceCapability capabilities) {
         StringWriter pidfWriter = new StringWriter();
         try {
             // Init the instance of the XmlSerializer.
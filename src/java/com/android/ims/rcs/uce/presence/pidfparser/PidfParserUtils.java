@@ -73,6 +73,54 @@ public class PidfParserUtils {
         return presence;
     }
 
+    /**
+     * Get a fingerprint of everything in the given capabilities that is used to generate the
+     * PIDF document in {@link #getPresence(RcsContactUceCapability)}. Two capabilities with the
+     * same fingerprint generate the same PIDF document.
+     */
+    static String getPidfFingerprint(RcsContactUceCapability capabilities) {
+        StringBuilder builder = new StringBuilder();
+        appendFingerprintField(builder, String.valueOf(capabilities.getContactUri()));
+        List<RcsContactPresenceTuple> tupleList = capabilities.getCapabilityTuples();
+        if (tupleList == null) {
+            return builder.toString();
+        }
+        for (RcsContactPresenceTuple presenceTuple : tupleList) {
+            if (presenceTuple == null) {
+                continue;
+            }
+            builder.append('|');
+            appendFingerprintField(builder, presenceTuple.getStatus());
+            appendFingerprintField(builder, presenceTuple.getServiceId());
+            appendFingerprintField(builder, presenceTuple.getServiceVersion());
+            appendFingerprintField(builder, presenceTuple.getServiceDescription());
+            Uri contactUri = presenceTuple.getContactUri();
+            appendFingerprintField(builder, (contactUri != null) ? contactUri.toString() : null);
+            ServiceCapabilities serviceCaps = presenceTuple.getServiceCapabilities();
+            if (serviceCaps != null) {
+                builder.append(serviceCaps.isAudioCapable() ? 'A' : 'a');
+                builder.append(serviceCaps.isVideoCapable() ? 'V' : 'v');
+                List<String> supportedDuplexModes = serviceCaps.getSupportedDuplexModes();
+                List<String> unsupportedDuplexModes = serviceCaps.getUnsupportedDuplexModes();
+                appendFingerprintField(builder, (supportedDuplexModes == null
+                        || supportedDuplexModes.isEmpty()) ? null : supportedDuplexModes.get(0));
+                appendFingerprintField(builder, (unsupportedDuplexModes == null
+                        || unsupportedDuplexModes.isEmpty()) ? null
+                        : unsupportedDuplexModes.get(0));
+            }
+        }
+        return builder.toString();
+    }
+
+    // Append the field prefixed with its length so that different fields can not be confused.
+    private static void appendFingerprintField(StringBuilder builder, String field) {
+        if (field == null) {
+            builder.append("-;");
+            return;
+        }
+        builder.append(field.length()).append(':').append(field);
+    }
+
     /**
      * Convert the class from RcsContactPresenceTuple to the class Tuple
      */
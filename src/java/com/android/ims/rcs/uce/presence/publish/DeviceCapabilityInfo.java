@@ -39,6 +39,7 @@ import android.util.Log;
 
 import com.android.ims.rcs.uce.util.FeatureTags;
 import com.android.ims.rcs.uce.util.UceUtils;
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.io.PrintWriter;
@@ -110,7 +111,36 @@ public class DeviceCapabilityInfo {
     // The service description associated with the last publication update.
     private final Set<ServiceDescription> mLastSuccessfulCapabilities = new ArraySet<>();
     // The service description to temporarily store the presence capability being sent.
-    private Set<ServiceDescription> mPendingPublishCapabilities;
+    private volatile Set<ServiceDescription> mPendingPublishCapabilities;
+
+    /**
+     * An immutable device capability built from a given version of the capability state.
+     */
+    private static final class CapabilitySnapshot {
+        // The capability state version this snapshot was built from.
+        public final long version;
+        // The contact URI the capability was built with.
+        public final Uri contactUri;
+        public final RcsContactUceCapability capability;
+        // The registration capabilities used to build a presence capability, null for OPTIONS.
+        public final Set<ServiceDescription> serviceDescriptions;
+
+        CapabilitySnapshot(long version, Uri contactUri, RcsContactUceCapability capability,
+                Set<ServiceDescription> serviceDescriptions) {
+            this.version = version;
+            this.contactUri = contactUri;
+            this.capability = capability;
+            this.serviceDescriptions = serviceDescriptions;
+        }
+    }
+
+    // Incremented every time a mutator changes the state the capability snapshots are built from.
+    @GuardedBy("this")
+    private long mCapabilityVersion;
+
+    // The cached capabilities, cleared when the capability state changes and rebuilt on demand.
+    private volatile CapabilitySnapshot mPresenceSnapshot;
+    private volatile CapabilitySnapshot mOptionsSnapshot;
 
     public DeviceCapabilityInfo(int subId, String[] capToRegistrationMap) {
         mSubId = subId;
@@ -135,6 +165,27 @@ public class DeviceCapabilityInfo {
         mRcsAssociatedUris = Collections.EMPTY_LIST;
         mLastSuccessfulCapabilities.clear();
         mPendingPublishCapabilities = null;
+        PublishUtils.invalidateDeviceContactUri(mSubId);
+        invalidateCapabilitySnapshots();
+    }
+
+    /**
+     * The state used to build the device capabilities has changed, the capability snapshots
+     * must be rebuilt the next time they are requested.
+     */
+    @GuardedBy("this")
+    private void invalidateCapabilitySnapshots() {
+        mCapabilityVersion++;
+        mPresenceSnapshot = null;
+        mOptionsSnapshot = null;
+    }
+
+    /**
+     * @return The version of the state the device capabilities are built from.
+     */
+    @VisibleForTesting
+    public synchronized long getCapabilityVersion() {
+        return mCapabilityVersion;
     }
 
     /**
@@ -146,6 +197,8 @@ public class DeviceCapabilityInfo {
         Set<String> oldTags = mServiceCapRegTracker.copyRegistrationFeatureTags();
         mServiceCapRegTracker = PublishServiceDescTracker.fromCarrierConfig(newMap);
         mServiceCapRegTracker.updateImsRegistration(mLastRegistrationOverrideFeatureTags);
+        // The service descriptions may have changed even if the feature tags did not.
+        invalidateCapabilitySnapshots();
         boolean changed = !oldTags.equals(mServiceCapRegTracker.copyRegistrationFeatureTags());
         if (changed) logi("Carrier Config Change resulted in associated FT list change");
         return changed;
@@ -195,12 +248,17 @@ public class DeviceCapabilityInfo {
      */
     public synchronized void updateMmTelAssociatedUri(Uri[] uris) {
         int originalSize = mMmtelAssociatedUris.size();
+        List<Uri> originalUris = mMmtelAssociatedUris;
         if (uris != null) {
             mMmtelAssociatedUris = Arrays.stream(uris)
                     .filter(Objects::nonNull)
                     .collect(Collectors.toList());
         } else {
-            mMmtelAssociatedUris.clear();
+            mMmtelAssociatedUris = Collections.emptyList();
+        }
+        if (!originalUris.equals(mMmtelAssociatedUris)) {
+            PublishUtils.invalidateDeviceContactUri(mSubId);
+            invalidateCapabilitySnapshots();
         }
         int currentSize = mMmtelAssociatedUris.size();
         logd("updateMmTelAssociatedUri: size from " + originalSize + " to " + currentSize);
@@ -269,12 +327,17 @@ public class DeviceCapabilityInfo {
      */
     public synchronized void updateRcsAssociatedUri(Uri[] uris) {
         int originalSize = mRcsAssociatedUris.size();
+        List<Uri> originalUris = mRcsAssociatedUris;
         if (uris != null) {
             mRcsAssociatedUris = Arrays.stream(uris)
                     .filter(Objects::nonNull)
                     .collect(Collectors.toList());
         } else {
-            mRcsAssociatedUris.clear();
+            mRcsAssociatedUris = Collections.emptyList();
+        }
+        if (!originalUris.equals(mRcsAssociatedUris)) {
+            PublishUtils.invalidateDeviceContactUri(mSubId);
+            invalidateCapabilitySnapshots();
         }
         int currentSize = mRcsAssociatedUris.size();
         logd("updateRcsAssociatedUri: size from " + originalSize + " to " + currentSize);
@@ -332,6 +395,8 @@ public class DeviceCapabilityInfo {
         logd("override - add: " + featureTags);
         mOverrideRemoveFeatureTags.removeAll(featureTags);
         mOverrideAddFeatureTags.addAll(featureTags);
+        // The overrides are also applied to the MMTEL capabilities.
+        invalidateCapabilitySnapshots();
         // Call with the last feature tags so that the new ones will be potentially picked up.
         return updateRegistration(mLastRegistrationFeatureTags);
     };
@@ -340,6 +405,8 @@ public class DeviceCapabilityInfo {
         logd("override - remove: " + featureTags);
         mOverrideAddFeatureTags.removeAll(featureTags);
         mOverrideRemoveFeatureTags.addAll(featureTags);
+        // The overrides are also applied to the MMTEL capabilities.
+        invalidateCapabilitySnapshots();
         // Call with the last feature tags so that the new ones will be potentially picked up.
         return updateRegistration(mLastRegistrationFeatureTags);
     };
@@ -348,6 +415,8 @@ public class DeviceCapabilityInfo {
         logd("override - clear");
         mOverrideAddFeatureTags.clear();
         mOverrideRemoveFeatureTags.clear();
+        // The overrides are also applied to the MMTEL capabilities.
+        invalidateCapabilitySnapshots();
         // Call with the last feature tags so that base tags will be restored
         return updateRegistration(mLastRegistrationFeatureTags);
     };
@@ -356,11 +425,13 @@ public class DeviceCapabilityInfo {
      * Update the IMS registration tracked by the PublishServiceDescTracker if needed.
      * @return true if the registration changed, else otherwise.
      */
+    @GuardedBy("this")
     private boolean updateRegistration(Set<String> baseTags) {
         Set<String> updatedTags = updateImsRegistrationFeatureTags(baseTags);
         if (!mLastRegistrationOverrideFeatureTags.equals(updatedTags)) {
             mLastRegistrationOverrideFeatureTags = updatedTags;
             mServiceCapRegTracker.updateImsRegistration(updatedTags);
+            invalidateCapabilitySnapshots();
             return true;
         }
         return false;
@@ -439,7 +510,11 @@ public class DeviceCapabilityInfo {
         logd("updateMmtelCapabilitiesChanged: from " + mMmTelCapabilities + " to " + capabilities);
 
         // Update to the new mmtel capabilities
+        MmTelCapabilities oldCapabilities = mMmTelCapabilities;
         mMmTelCapabilities = deepCopyCapabilities(capabilities);
+        if (!oldCapabilities.equals(mMmTelCapabilities)) {
+            invalidateCapabilitySnapshots();
+        }
 
         if (oldVolteAvailable != volteAvailable
                 || oldVoWifiAvailable != voWifiAvailable
@@ -452,7 +527,10 @@ public class DeviceCapabilityInfo {
     }
 
     public synchronized void updatePresenceCapable(boolean isCapable) {
-        mPresenceCapable = isCapable;
+        if (mPresenceCapable != isCapable) {
+            mPresenceCapable = isCapable;
+            invalidateCapabilitySnapshots();
+        }
     }
 
     public synchronized boolean isPresenceCapable() {
@@ -464,14 +542,13 @@ public class DeviceCapabilityInfo {
         if (context == null) {
             return null;
         }
-        Set<ServiceDescription> capableFromReg =
-                mServiceCapRegTracker.copyRegistrationCapabilities();
-        if (isPresenceCapabilityChanged(capableFromReg)) {
-            RcsContactUceCapability rcsContactUceCapability = getPresenceCapabilities(context);
-            if (rcsContactUceCapability != null) {
-                mPendingPublishCapabilities = mServiceCapRegTracker.copyRegistrationCapabilities();
-            }
-            return rcsContactUceCapability;
+        CapabilitySnapshot snapshot = getPresenceSnapshot(context);
+        if (snapshot == null) {
+            return null;
+        }
+        if (isPresenceCapabilityChanged(snapshot.serviceDescriptions)) {
+            mPendingPublishCapabilities = snapshot.serviceDescriptions;
+            return snapshot.capability;
         }
         return null;
     }
@@ -547,32 +624,94 @@ public class DeviceCapabilityInfo {
 
     /**
      * Get the device's capabilities.
+     * <p>
+     * The capabilities are served from an immutable snapshot, which is only rebuilt after the
+     * capability state has changed.
      */
-    public synchronized RcsContactUceCapability getDeviceCapabilities(
+    public RcsContactUceCapability getDeviceCapabilities(
             @CapabilityMechanism int mechanism, Context context) {
+        CapabilitySnapshot snapshot;
         switch (mechanism) {
             case RcsContactUceCapability.CAPABILITY_MECHANISM_PRESENCE:
-                RcsContactUceCapability rcsContactUceCapability = getPresenceCapabilities(context);
-                if (rcsContactUceCapability != null) {
-                    mPendingPublishCapabilities =
-                            mServiceCapRegTracker.copyRegistrationCapabilities();
+                snapshot = getPresenceSnapshot(context);
+                if (snapshot == null) {
+                    return null;
                 }
-                return rcsContactUceCapability;
+                mPendingPublishCapabilities = snapshot.serviceDescriptions;
+                return snapshot.capability;
             case RcsContactUceCapability.CAPABILITY_MECHANISM_OPTIONS:
-                return getOptionsCapabilities(context);
+                snapshot = getOptionsSnapshot(context);
+                return (snapshot != null) ? snapshot.capability : null;
             default:
                 logw("getDeviceCapabilities: invalid mechanism " + mechanism);
                 return null;
         }
     }
 
-    // Get the device's capabilities with the PRESENCE mechanism.
-    private RcsContactUceCapability getPresenceCapabilities(Context context) {
+    private CapabilitySnapshot getPresenceSnapshot(Context context) {
         Uri uri = PublishUtils.getDeviceContactUri(context, mSubId, this, true);
         if (uri == null) {
             logw("getPresenceCapabilities: uri is empty");
             return null;
         }
+        CapabilitySnapshot snapshot = mPresenceSnapshot;
+        if (snapshot != null && uri.equals(snapshot.contactUri)) {
+            return snapshot;
+        }
+        synchronized (this) {
+            // Another thread may have rebuilt the snapshot while waiting for the lock.
+            long version = mCapabilityVersion;
+            snapshot = mPresenceSnapshot;
+            if (isSnapshotValidLocked(snapshot, version, uri)) {
+                return snapshot;
+            }
+            Set<ServiceDescription> capableFromReg = Collections.unmodifiableSet(
+                    mServiceCapRegTracker.copyRegistrationCapabilities());
+            snapshot = new CapabilitySnapshot(version, uri, getPresenceCapabilities(uri),
+                    capableFromReg);
+            if (version == mCapabilityVersion) {
+                mPresenceSnapshot = snapshot;
+            }
+        }
+        return snapshot;
+    }
+
+    private CapabilitySnapshot getOptionsSnapshot(Context context) {
+        Uri uri = PublishUtils.getDeviceContactUri(context, mSubId, this, false);
+        if (uri == null) {
+            logw("getOptionsCapabilities: uri is empty");
+            return null;
+        }
+        CapabilitySnapshot snapshot = mOptionsSnapshot;
+        if (snapshot != null && uri.equals(snapshot.contactUri)) {
+            return snapshot;
+        }
+        synchronized (this) {
+            long version = mCapabilityVersion;
+            snapshot = mOptionsSnapshot;
+            if (isSnapshotValidLocked(snapshot, version, uri)) {
+                return snapshot;
+            }
+            snapshot = new CapabilitySnapshot(version, uri, getOptionsCapabilities(uri), null);
+            if (version == mCapabilityVersion) {
+                mOptionsSnapshot = snapshot;
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return true if the snapshot was built from the given version of the capability state and
+     * with the given contact URI.
+     */
+    @GuardedBy("this")
+    private boolean isSnapshotValidLocked(CapabilitySnapshot snapshot, long version, Uri uri) {
+        return snapshot != null && snapshot.version == version && uri.equals(snapshot.contactUri);
+    }
+
+    // Get the device's capabilities with the PRESENCE mechanism.
+    @GuardedBy("this")
+    private RcsContactUceCapability getPresenceCapabilities(Uri uri) {
         Set<ServiceDescription> capableFromReg =
                 mServiceCapRegTracker.copyRegistrationCapabilities();
 
@@ -628,13 +767,8 @@ public class DeviceCapabilityInfo {
     }
 
     // Get the device's capabilities with the OPTIONS mechanism.
-    private RcsContactUceCapability getOptionsCapabilities(Context context) {
-        Uri uri = PublishUtils.getDeviceContactUri(context, mSubId, this, false);
-        if (uri == null) {
-            logw("getOptionsCapabilities: uri is empty");
-            return null;
-        }
-
+    @GuardedBy("this")
+    private RcsContactUceCapability getOptionsCapabilities(Uri uri) {
         Set<String> capableFromReg = mServiceCapRegTracker.copyRegistrationFeatureTags();
 
         OptionsBuilder optionsBuilder = new OptionsBuilder(uri, SOURCE_TYPE_CACHED);
@@ -733,6 +867,14 @@ public class DeviceCapabilityInfo {
 
         mServiceCapRegTracker.dump(pw);
 
+        CapabilitySnapshot presenceSnapshot = mPresenceSnapshot;
+        CapabilitySnapshot optionsSnapshot = mOptionsSnapshot;
+        pw.println("capabilityVersion=" + getCapabilityVersion()
+                + ", presenceSnapshotVersion="
+                + (presenceSnapshot != null ? presenceSnapshot.version : "none")
+                + ", optionsSnapshotVersion="
+                + (optionsSnapshot != null ? optionsSnapshot.version : "none"));
+
         pw.println("Log:");
         pw.increaseIndent();
         mLocalLog.dump(pw);
@@ -32,6 +32,7 @@ import android.provider.Telephony;
 import android.telecom.TelecomManager;
 import android.telephony.AccessNetworkConstants;
 import android.telephony.AccessNetworkConstants.TransportType;
+import android.telephony.TelephonyManager;
 import android.telephony.ims.ImsException;
 import android.telephony.ims.ImsManager;
 import android.telephony.ims.ImsMmTelManager;
@@ -49,6 +50,7 @@ import android.util.Log;
 import com.android.ims.rcs.uce.UceStatsWriter;
 import com.android.ims.rcs.uce.presence.publish.PublishController.PublishControllerCallback;
 import com.android.ims.rcs.uce.presence.publish.PublishController.PublishTriggerType;
+import com.android.ims.rcs.uce.util.MonitoredHandler;
 import com.android.ims.rcs.uce.util.UceUtils;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.util.HandlerExecutor;
@@ -101,7 +103,7 @@ public class DeviceCapabilityListener {
      * Handle registering IMS callback and triggering the publish request because of the
      * capabilities changed.
      */
-    private class DeviceCapabilityHandler extends Handler {
+    private class DeviceCapabilityHandler extends MonitoredHandler {
         private static final long TRIGGER_PUBLISH_REQUEST_DELAY_MS = 500L;
 
         private static final int EVENT_REGISTER_IMS_CONTENT_CHANGE = 1;
@@ -110,7 +112,7 @@ public class DeviceCapabilityListener {
         private static final int EVENT_IMS_UNREGISTERED = 4;
 
         DeviceCapabilityHandler(Looper looper) {
-            super(looper);
+            super(looper, mSubId, "DeviceCapabilityHandler");
         }
 
         @Override
@@ -275,6 +277,8 @@ public class DeviceCapabilityListener {
         logd("registerReceivers");
         IntentFilter filter = new IntentFilter();
         filter.addAction(TelecomManager.ACTION_TTY_PREFERRED_MODE_CHANGED);
+        filter.addAction(TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED);
+        filter.addAction(TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED);
         mContext.registerReceiver(mReceiver, filter, android.Manifest.permission.MODIFY_PHONE_STATE,
                 null, Context.RECEIVER_EXPORTED);
 
@@ -391,6 +395,10 @@ public class DeviceCapabilityListener {
                             TelecomManager.TTY_MODE_OFF);
                     handleTtyPreferredModeChanged(preferredMode);
                     break;
+                case TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED:
+                case TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED:
+                    handleSimStateChanged();
+                    break;
             }
         }
     };
@@ -417,6 +425,7 @@ public class DeviceCapabilityListener {
                 mSimInfoContentObserver = new ContentObserver(new Handler(mHandler.getLooper())) {
                     @Override
                     public void onChange(boolean selfChange) {
+                        handleSimStateChanged();
                         if (mImsMmTelManager == null) {
                             logw("SimInfo change error: MmTelManager is null");
                             return;
@@ -559,6 +568,14 @@ public class DeviceCapabilityListener {
                 }
             };
 
+    /*
+     * The SIM records used to generate the device contact URI may have changed.
+     */
+    private void handleSimStateChanged() {
+        logd("handleSimStateChanged");
+        PublishUtils.invalidateDeviceContactUri(mSubId);
+    }
+
     private void handleTtyPreferredModeChanged(int preferredMode) {
         boolean isChanged = mCapabilityInfo.updateTtyPreferredMode(preferredMode);
         logi("TTY preferred mode changed: " + preferredMode + ", isChanged=" + isChanged);
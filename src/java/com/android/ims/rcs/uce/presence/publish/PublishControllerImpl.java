@@ -22,7 +22,6 @@ import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.content.Context;
 import android.os.Build;
-import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.PersistableBundle;
@@ -51,6 +50,7 @@ import com.android.ims.rcs.uce.UceController.UceControllerCallback;
 import com.android.ims.rcs.uce.UceDeviceState;
 import com.android.ims.rcs.uce.UceDeviceState.DeviceStateResult;
 import com.android.ims.rcs.uce.UceStatsWriter;
+import com.android.ims.rcs.uce.util.MonitoredHandler;
 import com.android.ims.rcs.uce.util.UceUtils;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.SomeArgs;
@@ -457,7 +457,7 @@ public class PublishControllerImpl implements PublishController {
         mPublishHandler.sendPublishMessage(PublishController.PUBLISH_TRIGGER_SERVICE);
     }
 
-    private static class PublishHandler extends Handler {
+    private static class PublishHandler extends MonitoredHandler {
         private static final int MSG_RCS_CONNECTED = 1;
         private static final int MSG_RCS_DISCONNECTED = 2;
         private static final int MSG_DESTROYED = 3;
@@ -478,7 +478,7 @@ public class PublishControllerImpl implements PublishController {
         private final WeakReference<PublishControllerImpl> mPublishControllerRef;
 
         public PublishHandler(PublishControllerImpl publishController, Looper looper) {
-            super(looper);
+            super(looper, publishController.mSubId, "PublishHandler");
             mPublishControllerRef = new WeakReference<>(publishController);
         }
 
@@ -971,6 +971,8 @@ public class PublishControllerImpl implements PublishController {
     private void handleCarrierConfigChangedMessage() {
         if (mIsDestroyedFlag) return;
 
+        // The device contact URI depends on the carrier config.
+        PublishUtils.invalidateDeviceContactUri(mSubId);
         updateCapabilityTypeAndPublishStateIfNeeded();
 
         String[] newMap = getCarrierServiceDescriptionFeatureTagMap();
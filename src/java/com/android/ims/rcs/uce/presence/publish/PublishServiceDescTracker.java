@@ -25,8 +25,10 @@ import android.util.Log;
 import com.android.ims.rcs.uce.util.FeatureTags;
 
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -125,6 +127,19 @@ public class PublishServiceDescTracker {
     // Maps from ServiceDescription to the set of feature tags required to consider the feature
     // capable for PUBLISH.
     private final Map<ServiceDescription, Set<String>> mServiceDescriptionFeatureTagMap;
+    // Maps each sanitized feature tag known to this tracker to its bit index.
+    private final Map<String, Integer> mFeatureTagIds = new ArrayMap<>();
+    // The ServiceDescriptions in mServiceDescriptionFeatureTagMap iteration order, along with
+    // the bitmask of the feature tags they require and the number of those feature tags.
+    private final ServiceDescription[] mServiceDescriptions;
+    private final long[][] mRequiredFeatureTagMasks;
+    private final int[] mRequiredFeatureTagCounts;
+    // The index of the group of similar ServiceDescriptions each entry belongs to, or
+    // NO_SIMILAR_GROUP if there are no other ServiceDescriptions with the same service-id &
+    // version.
+    private final int[] mSimilarGroups;
+    private final int mSimilarGroupCount;
+    private static final int NO_SIMILAR_GROUP = -1;
     // Handles cases where multiple ServiceDescriptions match a subset of the same feature tags.
     // This will be used to only include the feature tags where the
     private final Set<ServiceDescription> mServiceDescriptionPartialMatches = new ArraySet<>();
@@ -188,6 +203,70 @@ public class PublishServiceDescTracker {
                     .filter(s -> !Objects.equals(s, c) && isSimilar(c , s))
                     .collect(Collectors.toList()));
         }
+
+        // Intern the feature tags so that matching against the IMS registration can be done
+        // using bitmasks.
+        for (Set<String> tags : mServiceDescriptionFeatureTagMap.values()) {
+            for (String tag : tags) {
+                if (!mFeatureTagIds.containsKey(tag)) {
+                    mFeatureTagIds.put(tag, mFeatureTagIds.size());
+                }
+            }
+        }
+        int size = mServiceDescriptionFeatureTagMap.size();
+        mServiceDescriptions = new ServiceDescription[size];
+        mRequiredFeatureTagMasks = new long[size][];
+        mRequiredFeatureTagCounts = new int[size];
+        mSimilarGroups = new int[size];
+        List<ServiceDescription> groupHeads = new ArrayList<>();
+        int i = 0;
+        for (Map.Entry<ServiceDescription, Set<String>> desc :
+                mServiceDescriptionFeatureTagMap.entrySet()) {
+            mServiceDescriptions[i] = desc.getKey();
+            mRequiredFeatureTagMasks[i] = createFeatureTagMask(desc.getValue());
+            mRequiredFeatureTagCounts[i] = desc.getValue().size();
+            mSimilarGroups[i] = NO_SIMILAR_GROUP;
+            if (mServiceDescriptionPartialMatches.contains(desc.getKey())) {
+                int group = 0;
+                while (group < groupHeads.size()
+                        && !isSimilar(groupHeads.get(group), desc.getKey())) {
+                    group++;
+                }
+                if (group == groupHeads.size()) {
+                    groupHeads.add(desc.getKey());
+                }
+                mSimilarGroups[i] = group;
+            }
+            i++;
+        }
+        mSimilarGroupCount = groupHeads.size();
+    }
+
+    /**
+     * @return The bitmask of the given sanitized feature tags. Feature tags which are not known
+     * to this tracker are ignored.
+     */
+    private long[] createFeatureTagMask(Set<String> featureTags) {
+        long[] mask = new long[(mFeatureTagIds.size() + 63) / 64];
+        for (String tag : featureTags) {
+            Integer id = mFeatureTagIds.get(tag);
+            if (id != null) {
+                mask[id / 64] |= 1L << (id % 64);
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * @return true if all of the bits in the required mask are set in the registered mask.
+     */
+    private static boolean containsAll(long[] registeredMask, long[] requiredMask) {
+        for (int i = 0; i < requiredMask.length; i++) {
+            if ((requiredMask[i] & ~registeredMask[i]) != 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -196,57 +275,53 @@ public class PublishServiceDescTracker {
      *                        registration.
      */
     public void updateImsRegistration(Set<String> imsRegistration) {
-        Set<String> sanitizedTags = imsRegistration.stream()
-                // Ensure formatting passed in is the same as format stored here.
-                .map(PublishServiceDescTracker::parseFeatureTags)
-                // Each entry should only contain one feature tag.
-                .map(s -> s.iterator().next()).collect(Collectors.toSet());
+        Set<String> sanitizedTags = new ArraySet<>(imsRegistration.size());
+        for (String tag : imsRegistration) {
+            // Ensure formatting passed in is the same as format stored here. Each entry should
+            // only contain one feature tag.
+            String sanitizedTag = sanitizeFirstFeatureTag(tag);
+            if (sanitizedTag != null) {
+                sanitizedTags.add(sanitizedTag);
+            }
+        }
+        long[] registeredMask = createFeatureTagMask(sanitizedTags);
         // For aliased service descriptions (service-id && version is the same, but desc is
         // different), Keep a "score" of the number of feature tags that the service description
         // has associated with it. If another is found with a higher score, replace this one.
-        Map<ServiceDescription, Integer> aliasedServiceDescScore = new ArrayMap<>();
+        int[] aliasedServiceDescIndex = new int[mSimilarGroupCount];
+        Arrays.fill(aliasedServiceDescIndex, -1);
         synchronized (mRegistrationCapabilities) {
             mRegistrationFeatureTags = imsRegistration;
             mRegistrationCapabilities.clear();
-            for (Map.Entry<ServiceDescription, Set<String>> desc :
-                    mServiceDescriptionFeatureTagMap.entrySet()) {
-                boolean found = true;
-                for (String tag : desc.getValue()) {
-                    if (!sanitizedTags.contains(tag)) {
-                        found = false;
-                        break;
-                    }
+            for (int i = 0; i < mServiceDescriptions.length; i++) {
+                if (!containsAll(registeredMask, mRequiredFeatureTagMasks[i])) {
+                    continue;
                 }
-                if (found) {
-                    // There may be ambiguity with multiple entries having the same service-id &&
-                    // version, but not the same description. In this case, we need to find any
-                    // other entries with the same id & version and replace it with the new entry
-                    // if it matches more "completely", i.e. match "mmtel;video" over "mmtel" if the
-                    // registration set includes "mmtel;video". Skip putting that in for now and
-                    // instead track the match with the most feature tags associated with it that
-                    // are all found in the IMS registration.
-                    if (mServiceDescriptionPartialMatches.contains(desc.getKey())) {
-                        ServiceDescription aliasedDesc = aliasedServiceDescScore.keySet().stream()
-                                .filter(s -> isSimilar(s, desc.getKey()))
-                                .findFirst().orElse(null);
-                        if (aliasedDesc != null) {
-                            Integer prevEntrySize = aliasedServiceDescScore.get(aliasedDesc);
-                            if (prevEntrySize != null
-                                    // Overrides are added below the original map, so prefer those.
-                                    && (prevEntrySize <= desc.getValue().size())) {
-                                aliasedServiceDescScore.remove(aliasedDesc);
-                                aliasedServiceDescScore.put(desc.getKey(), desc.getValue().size());
-                            }
-                        } else {
-                            aliasedServiceDescScore.put(desc.getKey(), desc.getValue().size());
-                        }
-                    } else {
-                        mRegistrationCapabilities.add(desc.getKey());
+                // There may be ambiguity with multiple entries having the same service-id &&
+                // version, but not the same description. In this case, we need to find any
+                // other entries with the same id & version and replace it with the new entry
+                // if it matches more "completely", i.e. match "mmtel;video" over "mmtel" if the
+                // registration set includes "mmtel;video". Skip putting that in for now and
+                // instead track the match with the most feature tags associated with it that
+                // are all found in the IMS registration.
+                int group = mSimilarGroups[i];
+                if (group != NO_SIMILAR_GROUP) {
+                    int aliasedIndex = aliasedServiceDescIndex[group];
+                    // Overrides are added below the original map, so prefer those.
+                    if (aliasedIndex == -1 || mRequiredFeatureTagCounts[aliasedIndex]
+                            <= mRequiredFeatureTagCounts[i]) {
+                        aliasedServiceDescIndex[group] = i;
                     }
+                } else {
+                    mRegistrationCapabilities.add(mServiceDescriptions[i]);
+                }
+            }
+            // Collect the highest "scored" ServiceDescriptions and add them to registration caps.
+            for (int index : aliasedServiceDescIndex) {
+                if (index != -1) {
+                    mRegistrationCapabilities.add(mServiceDescriptions[index]);
                 }
             }
-            // Collect the highest "scored" ServiceDescriptions and add themto registration caps.
-            mRegistrationCapabilities.addAll(aliasedServiceDescScore.keySet());
         }
     }
 
@@ -330,8 +405,51 @@ public class PublishServiceDescTracker {
      * Remove any formatting inconsistencies that could make string matching difficult.
      */
     private static String removeInconsistencies(String tag) {
-        tag = tag.toLowerCase();
-        tag = tag.replaceAll("\\s+", "");
-        return tag;
+        return removeInconsistencies(tag, 0, tag.length());
+    }
+
+    /**
+     * Remove any formatting inconsistencies in the given region of the feature tag string.
+     * This lowercases the region and removes all whitespace characters.
+     */
+    private static String removeInconsistencies(String tag, int start, int end) {
+        StringBuilder builder = null;
+        for (int i = start; i < end; i++) {
+            char c = tag.charAt(i);
+            if (isWhitespace(c)) {
+                if (builder == null) {
+                    builder = new StringBuilder(end - start);
+                    builder.append(tag, start, i);
+                }
+            } else if (builder != null) {
+                builder.append(c);
+            }
+        }
+        String result = (builder != null) ? builder.toString() : tag.substring(start, end);
+        return result.toLowerCase();
+    }
+
+    /**
+     * @return The first feature tag in the ";" separated string with any formatting
+     * inconsistencies removed, or null if the string does not contain any feature tags.
+     */
+    private static String sanitizeFirstFeatureTag(String featureTags) {
+        int end = featureTags.indexOf(';');
+        if (end == -1) {
+            return removeInconsistencies(featureTags);
+        }
+        // Match String#split, which does not return any elements if the string only contains
+        // separators.
+        if (end == 0 && featureTags.chars().allMatch(c -> c == ';')) {
+            return null;
+        }
+        return removeInconsistencies(featureTags, 0, end);
+    }
+
+    /**
+     * @return true if the character matches the "\\s" regex character class.
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\013' || c == '\f' || c == '\r';
     }
 }
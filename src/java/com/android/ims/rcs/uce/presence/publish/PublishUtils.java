@@ -25,11 +25,13 @@ import android.telephony.ims.feature.RcsFeature.RcsImsCapabilities;
 import android.telephony.ims.feature.RcsFeature.RcsImsCapabilities.RcsImsCapabilityFlag;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.i18n.phonenumbers.NumberParseException;
 import com.android.i18n.phonenumbers.PhoneNumberUtil;
 import com.android.i18n.phonenumbers.Phonenumber;
 import com.android.ims.rcs.uce.util.UceUtils;
+import com.android.internal.annotations.GuardedBy;
 
 import java.util.Arrays;
 
@@ -43,14 +45,72 @@ public class PublishUtils {
     private static final String SCHEME_TEL = "tel";
     private static final String DOMAIN_SEPARATOR = "@";
 
+    // The indexes of the resolved contact URIs in the cache entry of a subscription.
+    private static final int CONTACT_URI_INDEX_OPTIONS = 0;
+    private static final int CONTACT_URI_INDEX_PRESENCE = 1;
+
+    private static final Object sContactUriLock = new Object();
+
+    // The resolved device contact URIs of each subscription, which only change when the IMS
+    // associated URIs, the SIM or the carrier config change.
+    @GuardedBy("sContactUriLock")
+    private static final SparseArray<Uri[]> sDeviceContactUris = new SparseArray<>();
+
+    // Incremented when the cache is invalidated, so that a contact URI which was being resolved
+    // at the same time is not cached.
+    @GuardedBy("sContactUriLock")
+    private static long sContactUriGeneration;
+
     /**
      * @return the contact URI of this device for either a PRESENCE or OPTIONS capabilities request.
      * We will first try to use the IMS service associated URIs from the p-associated-uri header
      * in the IMS registration response. If this is not available, we will fall back to using the
      * SIM card information to generate the URI.
+     * <p>
+     * The resolved URI is cached until {@link #invalidateDeviceContactUri(int)} is called.
      */
     public static Uri getDeviceContactUri(Context context, int subId,
             DeviceCapabilityInfo deviceCap, boolean isForPresence) {
+        int index = isForPresence ? CONTACT_URI_INDEX_PRESENCE : CONTACT_URI_INDEX_OPTIONS;
+        long generation;
+        synchronized (sContactUriLock) {
+            Uri[] contactUris = sDeviceContactUris.get(subId);
+            if (contactUris != null && contactUris[index] != null) {
+                return contactUris[index];
+            }
+            generation = sContactUriGeneration;
+        }
+
+        Uri contactUri = resolveDeviceContactUri(context, subId, deviceCap, isForPresence);
+        // Do not cache a failure, the SIM records may not have been loaded yet.
+        if (contactUri != null) {
+            synchronized (sContactUriLock) {
+                if (generation == sContactUriGeneration) {
+                    Uri[] contactUris = sDeviceContactUris.get(subId);
+                    if (contactUris == null) {
+                        contactUris = new Uri[2];
+                        sDeviceContactUris.put(subId, contactUris);
+                    }
+                    contactUris[index] = contactUri;
+                }
+            }
+        }
+        return contactUri;
+    }
+
+    /**
+     * Clear the cached device contact URIs of the given subscription. This must be called when
+     * the IMS associated URIs, the SIM state or the carrier config have changed.
+     */
+    public static void invalidateDeviceContactUri(int subId) {
+        synchronized (sContactUriLock) {
+            sContactUriGeneration++;
+            sDeviceContactUris.remove(subId);
+        }
+    }
+
+    private static Uri resolveDeviceContactUri(Context context, int subId,
+            DeviceCapabilityInfo deviceCap, boolean isForPresence) {
         boolean preferTelUri = false;
         if (isForPresence) {
             preferTelUri = UceUtils.isTelUriForPidfXmlEnabled(context, subId);
@@ -24,6 +24,7 @@ import android.telephony.ims.stub.RcsCapabilityExchangeImplBase;
 import android.util.Log;
 
 import com.android.ims.RcsFeatureManager;
+import com.android.ims.rcs.uce.request.SubscriptionTerminatedHelper;
 import com.android.ims.rcs.uce.util.UceUtils;
 
 import java.util.List;
@@ -43,6 +44,7 @@ public class SubscribeControllerImpl implements SubscribeController {
     public SubscribeControllerImpl(Context context, int subId) {
         mSubId = subId;
         mContext = context;
+        updateTerminatedRetryPolicies();
     }
 
     @Override
@@ -58,11 +60,17 @@ public class SubscribeControllerImpl implements SubscribeController {
     @Override
     public void onDestroy() {
         mIsDestroyedFlag = true;
+        SubscriptionTerminatedHelper.setCarrierRetryPolicies(mSubId, null);
     }
 
     @Override
     public void onCarrierConfigChanged() {
-        // Nothing Required Here.
+        updateTerminatedRetryPolicies();
+    }
+
+    private void updateTerminatedRetryPolicies() {
+        SubscriptionTerminatedHelper.setCarrierRetryPolicies(mSubId,
+                UceUtils.getSubscribeTerminatedRetryPolicies(mContext, mSubId));
     }
 
     @Override
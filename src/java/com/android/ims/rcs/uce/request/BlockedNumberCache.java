@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ims.rcs.uce.request;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.BlockedNumberContract;
+import android.util.IndentingPrintWriter;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.ims.rcs.uce.util.UceUtils;
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Caches whether the numbers of incoming capability requests are blocked, so that the blocked
+ * numbers provider is not queried again for every request from the same number. The cache is
+ * cleared when the blocked numbers change.
+ */
+public class BlockedNumberCache {
+    private static final String LOG_TAG = UceUtils.getLogPrefix() + "BlockedNumberCache";
+
+    @VisibleForTesting
+    public static final int MAX_CACHE_SIZE = 100;
+
+    // The block decision may also change without the blocked numbers changing, such as when
+    // blocking is suppressed after an emergency call, so only trust it for a limited time.
+    @VisibleForTesting
+    public static final long CACHE_TTL_MS = 60 * 1000L;
+
+    private static class Entry {
+        final boolean mIsBlocked;
+        final long mExpirationTime;
+
+        Entry(boolean isBlocked, long expirationTime) {
+            mIsBlocked = isBlocked;
+            mExpirationTime = expirationTime;
+        }
+    }
+
+    private final int mSubId;
+    private final Context mContext;
+    private final LongSupplier mClock;
+    private final LruCache<String, Entry> mCache = new LruCache<>(MAX_CACHE_SIZE);
+    private final ContentObserver mBlockedNumberObserver;
+
+    private final Object mLock = new Object();
+    // Incremented when the cache is cleared, so that a result which was being queried at the
+    // same time is not cached.
+    @GuardedBy("mLock")
+    private long mGeneration;
+    @GuardedBy("mLock")
+    private long mHitCount;
+    @GuardedBy("mLock")
+    private long mQueryCount;
+    @GuardedBy("mLock")
+    private long mInvalidationCount;
+
+    public BlockedNumberCache(Context context, int subId, Looper looper) {
+        this(context, subId, looper, SystemClock::elapsedRealtime);
+    }
+
+    @VisibleForTesting
+    public BlockedNumberCache(Context context, int subId, Looper looper, LongSupplier clock) {
+        mSubId = subId;
+        mContext = context;
+        mClock = clock;
+        mBlockedNumberObserver = new ContentObserver(new Handler(looper)) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidate();
+            }
+        };
+        ContentResolver resolver = mContext.getContentResolver();
+        if (resolver != null) {
+            resolver.registerContentObserver(BlockedNumberContract.BlockedNumbers.CONTENT_URI,
+                    true /*notifyForDescendants*/, mBlockedNumberObserver);
+        }
+    }
+
+    /**
+     * Stop listening to the blocked numbers changes and clear the cache.
+     */
+    public void onDestroy() {
+        ContentResolver resolver = mContext.getContentResolver();
+        if (resolver != null) {
+            resolver.unregisterContentObserver(mBlockedNumberObserver);
+        }
+        invalidate();
+    }
+
+    /**
+     * @param number The number to check.
+     * @param blockedNumberQuery Queries the blocked numbers provider if the decision for the
+     *                           number is not cached.
+     * @return true if the given number is blocked.
+     */
+    public boolean isNumberBlocked(String number, Predicate<String> blockedNumberQuery) {
+        long generation;
+        synchronized (mLock) {
+            Entry entry = mCache.get(number);
+            if (entry != null && mClock.getAsLong() < entry.mExpirationTime) {
+                mHitCount++;
+                return entry.mIsBlocked;
+            }
+            mQueryCount++;
+            generation = mGeneration;
+        }
+
+        boolean isBlocked = blockedNumberQuery.test(number);
+
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                mCache.put(number, new Entry(isBlocked, mClock.getAsLong() + CACHE_TTL_MS));
+            }
+        }
+        return isBlocked;
+    }
+
+    /**
+     * Clear the cached decisions because the blocked numbers have changed.
+     */
+    @VisibleForTesting
+    public void invalidate() {
+        synchronized (mLock) {
+            mGeneration++;
+            mInvalidationCount++;
+            mCache.evictAll();
+        }
+        logd("invalidate");
+    }
+
+    @VisibleForTesting
+    public long getHitCount() {
+        synchronized (mLock) {
+            return mHitCount;
+        }
+    }
+
+    @VisibleForTesting
+    public long getQueryCount() {
+        synchronized (mLock) {
+            return mQueryCount;
+        }
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("BlockedNumberCache: size=" + mCache.size()
+                    + ", hits(IPCs avoided)=" + mHitCount
+                    + ", queries=" + mQueryCount
+                    + ", invalidations=" + mInvalidationCount);
+        }
+    }
+
+    private void logd(String log) {
+        Log.d(LOG_TAG, getLogPrefix().append(log).toString());
+    }
+
+    private StringBuilder getLogPrefix() {
+        StringBuilder builder = new StringBuilder("[");
+        builder.append(mSubId);
+        builder.append("] ");
+        return builder;
+    }
+}
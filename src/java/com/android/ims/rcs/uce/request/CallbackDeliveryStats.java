@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ims.rcs.uce.request;
+
+import android.util.ArrayMap;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Records how long the callbacks queued by the {@link UceRequestCoordinator}s took to be
+ * delivered, from the time they were queued until the callback returned, for each callback.
+ */
+public class CallbackDeliveryStats {
+
+    private static class Entry {
+        long mCount;
+        long mTotalLatencyMillis;
+        long mMaxLatencyMillis;
+    }
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final ArrayMap<String, Entry> mEntries = new ArrayMap<>();
+
+    /**
+     * Record that the given callback has been delivered.
+     * @param callbackName The name of the callback, such as "onComplete".
+     * @param latencyMillis The time from queueing the callback until it returned.
+     */
+    public void recordDelivery(String callbackName, long latencyMillis) {
+        synchronized (mLock) {
+            Entry entry = mEntries.get(callbackName);
+            if (entry == null) {
+                entry = new Entry();
+                mEntries.put(callbackName, entry);
+            }
+            entry.mCount++;
+            entry.mTotalLatencyMillis += latencyMillis;
+            entry.mMaxLatencyMillis = Math.max(entry.mMaxLatencyMillis, latencyMillis);
+        }
+    }
+
+    @VisibleForTesting
+    public long getDeliveryCount(String callbackName) {
+        synchronized (mLock) {
+            Entry entry = mEntries.get(callbackName);
+            return (entry != null) ? entry.mCount : 0L;
+        }
+    }
+
+    @VisibleForTesting
+    public long getMaxLatencyMillis(String callbackName) {
+        synchronized (mLock) {
+            Entry entry = mEntries.get(callbackName);
+            return (entry != null) ? entry.mMaxLatencyMillis : 0L;
+        }
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("CallbackDeliveryStats:");
+            pw.increaseIndent();
+            for (int i = 0; i < mEntries.size(); i++) {
+                Entry entry = mEntries.valueAt(i);
+                pw.println(mEntries.keyAt(i) + ": count=" + entry.mCount
+                        + ", avgLatencyMs=" + (entry.mTotalLatencyMillis / entry.mCount)
+                        + ", maxLatencyMs=" + entry.mMaxLatencyMillis);
+            }
+            pw.decreaseIndent();
+        }
+    }
+}
@@ -25,8 +25,12 @@ import android.telephony.ims.aidl.IRcsUceControllerCallback;
 
 import com.android.ims.rcs.uce.request.UceRequestManager.RequestManagerCallback;
 import com.android.ims.rcs.uce.UceStatsWriter;
+import com.android.ims.rcs.uce.util.NetworkSipCode;
+import com.android.ims.rcs.uce.util.UceUtils;
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.List;
@@ -60,6 +64,15 @@ public class OptionsRequestCoordinator extends UceRequestCoordinator {
             return this;
         }
 
+        /**
+         * Set the maximum time the capabilities of the contacts are held to be notified
+         * together. 0 notifies the capabilities of each contact as soon as they are received.
+         */
+        public Builder setAggregationWindowMillis(long windowMillis) {
+            mRequestCoordinator.setAggregationWindowMillis(windowMillis);
+            return this;
+        }
+
         public OptionsRequestCoordinator build() {
             return mRequestCoordinator;
         }
@@ -110,11 +123,28 @@ public class OptionsRequestCoordinator extends UceRequestCoordinator {
             (taskId, response) -> RequestResult.createFailedResult(taskId,
                     RcsUceAdapter.ERROR_REQUEST_TIMEOUT, 0L);
 
+    // Notify the aggregated capabilities right away once there are this many of them.
+    @VisibleForTesting
+    public static final int MAX_AGGREGATED_CAPABILITIES = 100;
+
     // The callback to notify the result of the capabilities request.
     private IRcsUceControllerCallback mCapabilitiesCallback;
 
     private final UceStatsWriter mUceStatsWriter;
 
+    // The maximum time the capabilities received for the contacts are held, so that they are
+    // notified with fewer and larger callbacks.
+    private long mAggregationWindowMillis = UceUtils.getOptionsAggregationWindowMillis();
+    // The capabilities waiting to be notified to the client.
+    @GuardedBy("mCollectionLock")
+    private final List<RcsContactUceCapability> mAggregatedCapabilities = new ArrayList<>();
+    // The capabilities waiting to be saved to the EAB provider.
+    @GuardedBy("mCollectionLock")
+    private final List<RcsContactUceCapability> mAggregatedCapabilitiesToSave =
+            new ArrayList<>();
+    @GuardedBy("mCollectionLock")
+    private boolean mIsAggregationTimerSet;
+
     private OptionsRequestCoordinator(int subId, Collection<UceRequest> requests,
             RequestManagerCallback requestMgrCallback, UceStatsWriter instance) {
         super(subId, requests, requestMgrCallback);
@@ -126,6 +156,10 @@ public class OptionsRequestCoordinator extends UceRequestCoordinator {
         mCapabilitiesCallback = callback;
     }
 
+    private void setAggregationWindowMillis(long windowMillis) {
+        mAggregationWindowMillis = windowMillis;
+    }
+
     @Override
     public void onFinish() {
         logd("OptionsRequestCoordinator: onFinish");
@@ -142,8 +176,7 @@ public class OptionsRequestCoordinator extends UceRequestCoordinator {
             return;
         }
 
-        logd("onRequestUpdated(OptionsRequest): taskId=" + taskId + ", event=" +
-                REQUEST_EVENT_DESC.get(event));
+        logRequestUpdated("onRequestUpdated(OptionsRequest): taskId=", taskId, event);
 
         switch (event) {
             case REQUEST_UPDATE_ERROR:
@@ -171,6 +204,19 @@ public class OptionsRequestCoordinator extends UceRequestCoordinator {
 
         // End this instance if all the UceRequests in the coordinator are finished.
         checkAndFinishRequestCoordinator();
+
+        // Notify the app and UceRequestManager now that mCollectionLock has been released.
+        deliverPendingCallbacks();
+    }
+
+    @Override
+    public void onAggregationWindowExpired() {
+        if (mIsFinished) return;
+        synchronized (mCollectionLock) {
+            mIsAggregationTimerSet = false;
+            flushAggregatedCapabilities();
+        }
+        deliverPendingCallbacks();
     }
 
     /**
@@ -178,7 +224,7 @@ public class OptionsRequestCoordinator extends UceRequestCoordinator {
      */
     private void handleRequestError(OptionsRequest request) {
         CapabilityRequestResponse response = request.getRequestResponse();
-        logd("handleRequestError: " + request.toString());
+        logd("handleRequestError: ", request);
 
         // Finish this request.
         request.onFinish();
@@ -195,7 +241,7 @@ public class OptionsRequestCoordinator extends UceRequestCoordinator {
      */
     private void handleCommandError(OptionsRequest request) {
         CapabilityRequestResponse response = request.getRequestResponse();
-        logd("handleCommandError: " + request.toString());
+        logd("handleCommandError: ", request);
 
         // Finish this request.
         request.onFinish();
@@ -217,18 +263,23 @@ public class OptionsRequestCoordinator extends UceRequestCoordinator {
      */
     private void handleNetworkResponse(OptionsRequest request) {
         CapabilityRequestResponse response = request.getRequestResponse();
-        logd("handleNetworkResponse: " + response.toString());
+        logd("handleNetworkResponse: ", response);
 
         int responseCode = response.getNetworkRespSipCode().orElse(0);
         mUceStatsWriter.setUceEvent(mSubId, UceStatsWriter.OUTGOING_OPTION_EVENT, true,
             0, responseCode);
 
+        // Let the OPTIONS lane back off if the network is congested.
+        mRequestManagerCallback.notifyOptionsResponse(responseCode,
+                response.getRetryAfterMillis());
 
-        List<RcsContactUceCapability> updatedCapList = response.getUpdatedContactCapability();
+
+        List<RcsContactUceCapability> updatedCapList =
+                new ArrayList<>(response.getUpdatedContactCapability());
         if (!updatedCapList.isEmpty()) {
-            // Save the capabilities and trigger the capabilities callback
-            mRequestManagerCallback.saveCapabilities(updatedCapList);
-            triggerCapabilitiesReceivedCallback(updatedCapList);
+            // Save the capabilities and trigger the capabilities callback with the capabilities
+            // of the other contacts.
+            aggregateCapabilities(updatedCapList, true /*save*/);
             response.removeUpdatedCapabilities(updatedCapList);
         }
 
@@ -248,14 +299,14 @@ public class OptionsRequestCoordinator extends UceRequestCoordinator {
         CapabilityRequestResponse response = request.getRequestResponse();
         Long taskId = request.getTaskId();
         List<RcsContactUceCapability> cachedCapList = response.getCachedContactCapability();
-        logd("handleCachedCapabilityUpdated: taskId=" + taskId + ", CapRequestResp=" + response);
+        logd("handleCachedCapabilityUpdated: ", response);
 
         if (cachedCapList.isEmpty()) {
             return;
         }
 
-        // Trigger the capabilities updated callback.
-        triggerCapabilitiesReceivedCallback(cachedCapList);
+        // Trigger the capabilities updated callback with the capabilities of the other contacts.
+        aggregateCapabilities(cachedCapList, false /*save*/);
         response.removeCachedContactCapabilities();
     }
 
@@ -265,7 +316,7 @@ public class OptionsRequestCoordinator extends UceRequestCoordinator {
      */
     private void handleNoNeedRequestFromNetwork(OptionsRequest request) {
         CapabilityRequestResponse response = request.getRequestResponse();
-        logd("handleNoNeedRequestFromNetwork: " + response.toString());
+        logd("handleNoNeedRequestFromNetwork: ", response);
 
         // Finish this request.
         request.onFinish();
@@ -283,7 +334,11 @@ public class OptionsRequestCoordinator extends UceRequestCoordinator {
      */
     private void handleRequestTimeout(OptionsRequest request) {
         CapabilityRequestResponse response = request.getRequestResponse();
-        logd("handleRequestTimeout: " + response.toString());
+        logd("handleRequestTimeout: ", response);
+
+        // The network did not respond, the OPTIONS lane backs off as for a 408 response.
+        mRequestManagerCallback.notifyOptionsResponse(NetworkSipCode.SIP_CODE_REQUEST_TIMEOUT,
+                0L);
 
         // Finish this request.
         request.onFinish();
@@ -295,54 +350,113 @@ public class OptionsRequestCoordinator extends UceRequestCoordinator {
         moveRequestToFinishedCollection(taskId, requestResult);
     }
 
+    /**
+     * Hold the capabilities received for a contact until the aggregation window expires, or
+     * until all the requests are finished, to notify them with the other contacts.
+     * @param save Whether the capabilities also need to be saved to the EAB provider.
+     */
+    private void aggregateCapabilities(List<RcsContactUceCapability> capList, boolean save) {
+        synchronized (mCollectionLock) {
+            mAggregatedCapabilities.addAll(capList);
+            if (save) {
+                mAggregatedCapabilitiesToSave.addAll(capList);
+            }
+            if (mAggregationWindowMillis <= 0L
+                    || mAggregatedCapabilities.size() >= MAX_AGGREGATED_CAPABILITIES) {
+                flushAggregatedCapabilities();
+            } else if (!mIsAggregationTimerSet) {
+                // The window starts with the first capabilities held, so that none of them is
+                // delayed for more than the window.
+                mIsAggregationTimerSet = true;
+                mRequestManagerCallback.setAggregationWindowTimer(mCoordinatorId,
+                        mAggregationWindowMillis);
+            }
+        }
+    }
+
+    /**
+     * Save and notify all the capabilities held with a single EAB write and a single callback.
+     */
+    @GuardedBy("mCollectionLock")
+    private void flushAggregatedCapabilities() {
+        if (!mAggregatedCapabilitiesToSave.isEmpty()) {
+            final List<RcsContactUceCapability> capabilities =
+                    new ArrayList<>(mAggregatedCapabilitiesToSave);
+            mAggregatedCapabilitiesToSave.clear();
+            queueCallback("saveCapabilities", () ->
+                    mRequestManagerCallback.saveCapabilities(capabilities));
+        }
+        if (!mAggregatedCapabilities.isEmpty()) {
+            logd("flushAggregatedCapabilities: size=", mAggregatedCapabilities.size());
+            triggerCapabilitiesReceivedCallback(mAggregatedCapabilities);
+            mAggregatedCapabilities.clear();
+        }
+    }
+
     /**
      * Trigger the capabilities updated callback.
      */
     private void triggerCapabilitiesReceivedCallback(List<RcsContactUceCapability> capList) {
-        try {
-            logd("triggerCapabilitiesCallback: size=" + capList.size());
-            mCapabilitiesCallback.onCapabilitiesReceived(capList);
-        } catch (RemoteException e) {
-            logw("triggerCapabilitiesCallback exception: " + e);
-        } finally {
-            logd("triggerCapabilitiesCallback: done");
-        }
+        final IRcsUceControllerCallback callback = mCapabilitiesCallback;
+        // Copy the list because the response removes the capabilities once they are queued.
+        final List<RcsContactUceCapability> capabilities = new ArrayList<>(capList);
+        queueCallback("onCapabilitiesReceived", () -> {
+            try {
+                logd("triggerCapabilitiesCallback: size=", capabilities.size());
+                callback.onCapabilitiesReceived(capabilities);
+            } catch (RemoteException e) {
+                logw("triggerCapabilitiesCallback exception: " + e);
+            } finally {
+                logd("triggerCapabilitiesCallback: done");
+            }
+        });
     }
 
     /**
      * Trigger the onComplete callback to notify the request is completed.
      */
     private void triggerCompletedCallback() {
-        try {
-            logd("triggerCompletedCallback");
-            mCapabilitiesCallback.onComplete(null);
-        } catch (RemoteException e) {
-            logw("triggerCompletedCallback exception: " + e);
-        } finally {
-            logd("triggerCompletedCallback: done");
-        }
+        final IRcsUceControllerCallback callback = mCapabilitiesCallback;
+        queueCallback("onComplete", () -> {
+            try {
+                logd("triggerCompletedCallback");
+                callback.onComplete(null);
+            } catch (RemoteException e) {
+                logw("triggerCompletedCallback exception: " + e);
+            } finally {
+                logd("triggerCompletedCallback: done");
+            }
+        });
     }
 
     /**
      * Trigger the onError callback to notify the request is failed.
      */
     private void triggerErrorCallback(int errorCode, long retryAfterMillis) {
-        try {
-            logd("triggerErrorCallback: errorCode=" + errorCode + ", retry=" + retryAfterMillis);
-            mCapabilitiesCallback.onError(errorCode, retryAfterMillis, null);
-        } catch (RemoteException e) {
-            logw("triggerErrorCallback exception: " + e);
-        } finally {
-            logd("triggerErrorCallback: done");
-        }
+        final IRcsUceControllerCallback callback = mCapabilitiesCallback;
+        queueCallback("onError", () -> {
+            try {
+                logd("triggerErrorCallback: errorCode=" + errorCode + ", retry="
+                        + retryAfterMillis);
+                callback.onError(errorCode, retryAfterMillis, null);
+            } catch (RemoteException e) {
+                logw("triggerErrorCallback exception: " + e);
+            } finally {
+                logd("triggerErrorCallback: done");
+            }
+        });
     }
 
     private void checkAndFinishRequestCoordinator() {
         synchronized (mCollectionLock) {
-            // Return because there are requests running.
-            if (!mActivatedRequests.isEmpty()) {
+            // Return because there are requests running or the result has already been queued.
+            if (!mActivatedRequests.isEmpty() || mIsCompletionQueued) {
                 return;
             }
+            mIsCompletionQueued = true;
+
+            // Notify the capabilities which are still held before completing the request.
+            flushAggregatedCapabilities();
 
             // All the requests has finished, find the request which has the max retryAfter time.
             // If the result is empty, it means all the request are success.
@@ -363,9 +477,10 @@ public class OptionsRequestCoordinator extends UceRequestCoordinator {
             }
 
             // Notify UceRequestManager to remove this instance from the collection.
-            mRequestManagerCallback.notifyRequestCoordinatorFinished(mCoordinatorId);
+            queueCallback("notifyRequestCoordinatorFinished", () ->
+                    mRequestManagerCallback.notifyRequestCoordinatorFinished(mCoordinatorId));
 
-            logd("checkAndFinishRequestCoordinator(OptionsRequest) done, id=" + mCoordinatorId);
+            logd("checkAndFinishRequestCoordinator(OptionsRequest) done");
         }
     }
 
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ims.rcs.uce.request;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.ims.rcs.uce.request.UceRequestManager.RequestManagerCallback;
+import com.android.ims.rcs.uce.util.NetworkSipCode;
+import com.android.ims.rcs.uce.util.UceUtils;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Dispatches the OPTIONS requests, which have one request per contact, separately from the
+ * SUBSCRIBE requests handled by {@link UceRequestDispatcher}. Several OPTIONS requests are sent
+ * at the same time, paced by a token bucket. The lane backs off when the network responds that
+ * it is congested (408, 503 or a retry-after), and recovers as the requests succeed again.
+ */
+public class OptionsRequestDispatcher {
+
+    private static final String LOG_TAG = UceUtils.getLogPrefix() + "OptionsDispatcher";
+
+    // The default maximum number of OPTIONS requests sent at the same time.
+    @VisibleForTesting
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 8;
+    // The default rate the tokens of the bucket are refilled at.
+    @VisibleForTesting
+    public static final int DEFAULT_REQUESTS_PER_SECOND = 20;
+    // The default number of requests which can be sent at once when the bucket is full.
+    @VisibleForTesting
+    public static final int DEFAULT_BURST_SIZE = 5;
+
+    // The time the lane pauses after the first congestion response, doubled for each following
+    // one up to the maximum.
+    @VisibleForTesting
+    public static final long MIN_BACKOFF_MILLIS = 1000L;
+    @VisibleForTesting
+    public static final long MAX_BACKOFF_MILLIS = 32000L;
+
+    /**
+     * A request waiting to be sent or being sent.
+     */
+    private static class Request {
+        private final long mTaskId;
+        private final long mCoordinatorId;
+
+        public Request(long coordinatorId, long taskId) {
+            mTaskId = taskId;
+            mCoordinatorId = coordinatorId;
+        }
+
+        public long getCoordinatorId() {
+            return mCoordinatorId;
+        }
+
+        public long getTaskId() {
+            return mTaskId;
+        }
+    }
+
+    private final int mSubId;
+    private final LongSupplier mClock;
+
+    private int mMaxConcurrentNum = DEFAULT_MAX_CONCURRENT_REQUESTS;
+    private double mTokensPerMillis = DEFAULT_REQUESTS_PER_SECOND / 1000d;
+    private int mBurstSize = DEFAULT_BURST_SIZE;
+
+    // The number of requests which can be sent at the same time. It is halved on congestion
+    // and increased by one for each successful response, up to mMaxConcurrentNum.
+    private int mConcurrencyLimit = mMaxConcurrentNum;
+    // The tokens available at mTokensUpdateTime. It is negative when requests have been
+    // scheduled with tokens which are not available yet.
+    private double mTokens = mBurstSize;
+    private long mTokensUpdateTime = Long.MIN_VALUE;
+    // No request is sent before this time after a congestion response.
+    private long mPausedUntilTime = Long.MIN_VALUE;
+    private long mBackoffMillis = 0L;
+
+    // The collection of all requests waiting to be executed.
+    private final List<Request> mWaitingRequests = new ArrayList<>();
+
+    // The collection of all executing requests.
+    private final List<Request> mExecutingRequests = new ArrayList<>();
+
+    // The callback to communicate with UceRequestManager
+    private RequestManagerCallback mRequestManagerCallback;
+
+    public OptionsRequestDispatcher(int subId, RequestManagerCallback callback) {
+        this(subId, callback, SystemClock::elapsedRealtime);
+    }
+
+    @VisibleForTesting
+    public OptionsRequestDispatcher(int subId, RequestManagerCallback callback,
+            LongSupplier clock) {
+        mSubId = subId;
+        mRequestManagerCallback = callback;
+        mClock = clock;
+    }
+
+    /**
+     * Set how many requests can be sent at the same time and how fast they can be sent.
+     * @param maxConcurrentNum The maximum number of requests sent at the same time.
+     * @param requestsPerSecond The sustained rate requests can be sent at.
+     * @param burstSize The number of requests which can be sent at once after being idle.
+     */
+    public synchronized void setConfiguration(int maxConcurrentNum, int requestsPerSecond,
+            int burstSize) {
+        mMaxConcurrentNum = Math.max(1, maxConcurrentNum);
+        mTokensPerMillis = Math.max(1, requestsPerSecond) / 1000d;
+        mBurstSize = Math.max(1, burstSize);
+        mConcurrencyLimit = mMaxConcurrentNum;
+        mTokens = Math.min(mTokens, mBurstSize);
+        logd("setConfiguration: maxConcurrent=" + mMaxConcurrentNum + ", rate="
+                + requestsPerSecond + ", burst=" + mBurstSize);
+    }
+
+    /**
+     * Clear all the collections when the instance is destroyed.
+     */
+    public synchronized void onDestroy() {
+        mWaitingRequests.clear();
+        mExecutingRequests.clear();
+        mRequestManagerCallback = null;
+    }
+
+    /**
+     * Add new requests to the waiting collection and trigger sending the requests which the
+     * lane has room for.
+     */
+    public synchronized void addRequest(long coordinatorId, List<Long> taskIds) {
+        taskIds.forEach(taskId -> mWaitingRequests.add(new Request(coordinatorId, taskId)));
+        onRequestUpdated();
+    }
+
+    /**
+     * Notify that the request with the given taskId is finished.
+     */
+    public synchronized void onRequestFinished(Long taskId) {
+        if (mExecutingRequests.removeIf(request -> request.getTaskId() == taskId)) {
+            logd("onRequestFinished: taskId=" + taskId);
+            onRequestUpdated();
+        }
+    }
+
+    /**
+     * Notify the response of an OPTIONS request, to back off when the network is congested.
+     * @param sipCode The SIP code of the response, 408 if the request timed out.
+     * @param retryAfterMillis The retry-after of the response, 0 if there is none.
+     */
+    public synchronized void onResponse(int sipCode, long retryAfterMillis) {
+        if (sipCode == NetworkSipCode.SIP_CODE_REQUEST_TIMEOUT
+                || sipCode == NetworkSipCode.SIP_CODE_SERVICE_UNAVAILABLE
+                || retryAfterMillis > 0L) {
+            mBackoffMillis = (mBackoffMillis == 0L) ? MIN_BACKOFF_MILLIS
+                    : Math.min(mBackoffMillis * 2, MAX_BACKOFF_MILLIS);
+            long pauseMillis = Math.max(mBackoffMillis, retryAfterMillis);
+            mPausedUntilTime = Math.max(mPausedUntilTime, mClock.getAsLong() + pauseMillis);
+            mConcurrencyLimit = Math.max(1, mConcurrencyLimit / 2);
+            logd("onResponse: congested, sipCode=" + sipCode + ", pause=" + pauseMillis
+                    + ", concurrencyLimit=" + mConcurrencyLimit);
+        } else {
+            mBackoffMillis = 0L;
+            mConcurrencyLimit = Math.min(mMaxConcurrentNum, mConcurrencyLimit + 1);
+        }
+    }
+
+    private void onRequestUpdated() {
+        logd("onRequestUpdated: waiting=" + mWaitingRequests.size()
+                + ", executing=" + mExecutingRequests.size());
+
+        RequestManagerCallback callback = mRequestManagerCallback;
+        if (callback == null) {
+            logd("onRequestUpdated: The instance is destroyed");
+            return;
+        }
+
+        long now = mClock.getAsLong();
+        StringBuilder builder = new StringBuilder("onRequestUpdated: sending taskId=");
+        while (!mWaitingRequests.isEmpty() && mExecutingRequests.size() < mConcurrencyLimit) {
+            Request request = mWaitingRequests.remove(0);
+            mExecutingRequests.add(request);
+
+            // Notify RequestManager to execute this task when its token is available.
+            long delayTime = reserveToken(now) - now;
+            callback.notifySendingRequest(request.getCoordinatorId(), request.getTaskId(),
+                    delayTime);
+            builder.append(request.getTaskId()).append("(+").append(delayTime).append("ms), ");
+        }
+        builder.append("ExecutingRequests size=").append(mExecutingRequests.size());
+        logd(builder.toString());
+    }
+
+    /**
+     * Take a token from the bucket.
+     * @return The time the request can be sent at, when the token is available.
+     */
+    private long reserveToken(long now) {
+        long baseTime = Math.max(now, mPausedUntilTime);
+        if (mTokensUpdateTime == Long.MIN_VALUE) {
+            mTokensUpdateTime = baseTime;
+        } else if (baseTime > mTokensUpdateTime) {
+            mTokens = Math.min(mBurstSize,
+                    mTokens + (baseTime - mTokensUpdateTime) * mTokensPerMillis);
+            mTokensUpdateTime = baseTime;
+        }
+        long startTime = mTokensUpdateTime;
+        if (mTokens < 1d) {
+            // Wait for the missing part of the token to be refilled.
+            startTime += (long) Math.ceil((1d - mTokens) / mTokensPerMillis);
+        }
+        mTokens -= 1d;
+        return startTime;
+    }
+
+    private void logd(String log) {
+        Log.d(LOG_TAG, getLogPrefix().append(log).toString());
+    }
+
+    private StringBuilder getLogPrefix() {
+        StringBuilder builder = new StringBuilder("[");
+        builder.append(mSubId);
+        builder.append("] ");
+        return builder;
+    }
+}
@@ -29,6 +29,7 @@ import com.android.ims.rcs.uce.UceStatsWriter;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.Collection;
+import java.util.Collections;
 
 /**
  * Responsible for the manager the remote options request and triggering the callback to notify
@@ -114,7 +115,7 @@ public class RemoteOptionsCoordinator extends UceRequestCoordinator {
             return;
         }
 
-        logd("onRequestUpdated: taskId=" + taskId + ", event=" + REQUEST_EVENT_DESC.get(event));
+        logRequestUpdated("onRequestUpdated: taskId=", taskId, event);
         switch (event) {
             case REQUEST_UPDATE_REMOTE_REQUEST_DONE:
                 handleRemoteRequestDone(request);
@@ -126,6 +127,9 @@ public class RemoteOptionsCoordinator extends UceRequestCoordinator {
 
         // End this instance if all the UceRequests in the coordinator are finished.
         checkAndFinishRequestCoordinator();
+
+        // Notify UceRequestManager now that mCollectionLock has been released.
+        deliverPendingCallbacks();
     }
 
     private void handleRemoteRequestDone(RemoteOptionsRequest request) {
@@ -141,6 +145,13 @@ public class RemoteOptionsCoordinator extends UceRequestCoordinator {
             triggerOptionsReqWithErrorCallback(errorCode, reason);
         }
 
+        // Now that the network has its answer, hand the remote capabilities off to be stored.
+        RcsContactUceCapability remoteCapability = response.getRemoteCapability();
+        if (remoteCapability != null) {
+            mRequestManagerCallback.saveCapabilitiesAsync(
+                    Collections.singletonList(remoteCapability));
+        }
+
         // Finish this request.
         request.onFinish();
 
@@ -181,13 +192,15 @@ public class RemoteOptionsCoordinator extends UceRequestCoordinator {
 
     private void checkAndFinishRequestCoordinator() {
         synchronized (mCollectionLock) {
-            // Return because there are requests running.
-            if (!mActivatedRequests.isEmpty()) {
+            // Return because there are requests running or the result has already been queued.
+            if (!mActivatedRequests.isEmpty() || mIsCompletionQueued) {
                 return;
             }
+            mIsCompletionQueued = true;
             // Notify UceRequestManager to remove this instance from the collection.
-            mRequestManagerCallback.notifyRequestCoordinatorFinished(mCoordinatorId);
-            logd("checkAndFinishRequestCoordinator: id=" + mCoordinatorId);
+            queueCallback("notifyRequestCoordinatorFinished", () ->
+                    mRequestManagerCallback.notifyRequestCoordinatorFinished(mCoordinatorId));
+            logd("checkAndFinishRequestCoordinator: done");
         }
     }
 
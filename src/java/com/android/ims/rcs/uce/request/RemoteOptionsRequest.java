@@ -29,7 +29,6 @@ import com.android.ims.rcs.uce.util.NetworkSipCode;
 import com.android.ims.rcs.uce.util.UceUtils;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 
@@ -46,6 +45,7 @@ public class RemoteOptionsRequest implements UceRequest {
     public static class RemoteOptResponse {
         private boolean mIsNumberBlocked;
         private RcsContactUceCapability mRcsContactCapability;
+        private RcsContactUceCapability mRemoteCapability;
         private Optional<Integer> mErrorSipCode;
         private Optional<String> mErrorReason;
 
@@ -64,6 +64,10 @@ public class RemoteOptionsRequest implements UceRequest {
             mErrorReason = Optional.of(reason);
         }
 
+        void setRemoteCapability(RcsContactUceCapability remoteCapability) {
+            mRemoteCapability = remoteCapability;
+        }
+
         public boolean isNumberBlocked() {
             return mIsNumberBlocked;
         }
@@ -72,6 +76,14 @@ public class RemoteOptionsRequest implements UceRequest {
             return mRcsContactCapability;
         }
 
+        /**
+         * @return The capabilities of the remote party which sent the OPTIONS request. These
+         * should be stored after the response has been sent.
+         */
+        public RcsContactUceCapability getRemoteCapability() {
+            return mRemoteCapability;
+        }
+
         public Optional<Integer> getErrorSipCode() {
             return mErrorSipCode;
         }
@@ -170,11 +182,11 @@ public class RemoteOptionsRequest implements UceRequest {
             return;
         }
 
-        // Store the remote capabilities
+        // The remote capabilities are not stored here, the coordinator stores them after the
+        // response has been sent so that the network is not waiting on the EAB database.
         Uri contactUri = mUriList.get(0);
-        RcsContactUceCapability remoteCaps = FeatureTags.getContactCapability(contactUri,
-                SOURCE_TYPE_NETWORK, mRemoteFeatureTags);
-        mRequestManagerCallback.saveCapabilities(Collections.singletonList(remoteCaps));
+        mRemoteOptResponse.setRemoteCapability(FeatureTags.getContactCapability(contactUri,
+                SOURCE_TYPE_NETWORK, mRemoteFeatureTags));
 
         // Get the device's capabilities and trigger the request callback
         RcsContactUceCapability deviceCaps = mRequestManagerCallback.getDeviceCapabilities(
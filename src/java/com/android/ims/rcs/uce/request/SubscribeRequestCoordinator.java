@@ -133,12 +133,13 @@ public class SubscribeRequestCoordinator extends UceRequestCoordinator {
         return RequestResult.createSuccessResult(taskId, detail);
     };
 
-    // The RequestResult creator of the request terminated.
-    private static final RequestResultCreator sTerminatedCreator = (taskId, response,
+    // The RequestResult creator of the request terminated. It is not static because the
+    // terminated reasons are analyzed with the policies of the carrier of this subscription.
+    private final RequestResultCreator mTerminatedCreator = (taskId, response,
             requestMgrCallback) -> {
         // Check the given terminated reason to determine whether clients should retry or not.
         TerminatedResult terminatedResult = SubscriptionTerminatedHelper.getAnalysisResult(
-                response.getTerminatedReason(), response.getRetryAfterMillis(),
+                mSubId, response.getTerminatedReason(), response.getRetryAfterMillis(),
                 response.haveAllRequestCapsUpdatedBeenReceived());
         SipDetails details = response.getSipDetails().orElse(null);
         if (terminatedResult.getErrorCode().isPresent()) {
@@ -197,8 +198,7 @@ public class SubscribeRequestCoordinator extends UceRequestCoordinator {
             return;
         }
 
-        logd("onRequestUpdated(SubscribeRequest): taskId=" + taskId + ", event=" +
-                REQUEST_EVENT_DESC.get(event));
+        logRequestUpdated("onRequestUpdated(SubscribeRequest): taskId=", taskId, event);
 
         switch (event) {
             case REQUEST_UPDATE_ERROR:
@@ -235,6 +235,9 @@ public class SubscribeRequestCoordinator extends UceRequestCoordinator {
 
         // End this instance if all the UceRequests in the coordinator are finished.
         checkAndFinishRequestCoordinator();
+
+        // Notify the app and UceRequestManager now that mCollectionLock has been released.
+        deliverPendingCallbacks();
     }
 
     /**
@@ -242,7 +245,7 @@ public class SubscribeRequestCoordinator extends UceRequestCoordinator {
      */
     private void handleRequestError(SubscribeRequest request) {
         CapabilityRequestResponse response = request.getRequestResponse();
-        logd("handleRequestError: " + request.toString());
+        logd("handleRequestError: ", request);
 
         // Finish this request.
         request.onFinish();
@@ -260,7 +263,7 @@ public class SubscribeRequestCoordinator extends UceRequestCoordinator {
      */
     private void handleCommandError(SubscribeRequest request) {
         CapabilityRequestResponse response = request.getRequestResponse();
-        logd("handleCommandError: " + request.toString());
+        logd("handleCommandError: ", request);
 
         // Finish this request.
         request.onFinish();
@@ -282,7 +285,7 @@ public class SubscribeRequestCoordinator extends UceRequestCoordinator {
      */
     private void handleNetworkResponse(SubscribeRequest request) {
         CapabilityRequestResponse response = request.getRequestResponse();
-        logd("handleNetworkResponse: " + response.toString());
+        logd("handleNetworkResponse: ", response);
 
         int respCode = response.getNetworkRespSipCode().orElse(0);
         mUceStatsWriter.setSubscribeResponse(mSubId, request.getTaskId(), respCode);
@@ -399,7 +402,7 @@ public class SubscribeRequestCoordinator extends UceRequestCoordinator {
         CapabilityRequestResponse response = request.getRequestResponse();
         Long taskId = request.getTaskId();
         List<RcsContactUceCapability> updatedCapList = response.getUpdatedContactCapability();
-        logd("handleCapabilitiesUpdated: taskId=" + taskId + ", size=" + updatedCapList.size());
+        logd("handleCapabilitiesUpdated: size=", updatedCapList.size());
 
         if (updatedCapList.isEmpty()) {
             return;
@@ -423,7 +426,7 @@ public class SubscribeRequestCoordinator extends UceRequestCoordinator {
         CapabilityRequestResponse response = request.getRequestResponse();
         Long taskId = request.getTaskId();
         List<RcsContactUceCapability> terminatedResources = response.getTerminatedResources();
-        logd("handleResourceTerminated: taskId=" + taskId + ", size=" + terminatedResources.size());
+        logd("handleResourceTerminated: size=", terminatedResources.size());
 
         if (terminatedResources.isEmpty()) {
             return;
@@ -447,7 +450,7 @@ public class SubscribeRequestCoordinator extends UceRequestCoordinator {
         CapabilityRequestResponse response = request.getRequestResponse();
         Long taskId = request.getTaskId();
         List<RcsContactUceCapability> cachedCapList = response.getCachedContactCapability();
-        logd("handleCachedCapabilityUpdated: taskId=" + taskId + ", size=" + cachedCapList.size());
+        logd("handleCachedCapabilityUpdated: size=", cachedCapList.size());
 
         if (cachedCapList.isEmpty()) {
             return;
@@ -464,7 +467,7 @@ public class SubscribeRequestCoordinator extends UceRequestCoordinator {
      */
     private void handleTerminated(SubscribeRequest request) {
         CapabilityRequestResponse response = request.getRequestResponse();
-        logd("handleTerminated: " + response.toString());
+        logd("handleTerminated: ", response);
 
         // Finish this request.
         request.onFinish();
@@ -472,7 +475,7 @@ public class SubscribeRequestCoordinator extends UceRequestCoordinator {
         // Remove this request from the activated collection and notify RequestManager.
         Long taskId = request.getTaskId();
         mUceStatsWriter.setSubscribeTerminated(mSubId, taskId, response.getTerminatedReason());
-        RequestResult requestResult = sTerminatedCreator.createRequestResult(taskId, response,
+        RequestResult requestResult = mTerminatedCreator.createRequestResult(taskId, response,
                 mRequestManagerCallback);
         moveRequestToFinishedCollection(taskId, requestResult);
     }
@@ -483,7 +486,7 @@ public class SubscribeRequestCoordinator extends UceRequestCoordinator {
      */
     private void handleNoNeedRequestFromNetwork(SubscribeRequest request) {
         CapabilityRequestResponse response = request.getRequestResponse();
-        logd("handleNoNeedRequestFromNetwork: " + response.toString());
+        logd("handleNoNeedRequestFromNetwork: ", response);
 
         // Finish this request.
         request.onFinish();
@@ -501,8 +504,8 @@ public class SubscribeRequestCoordinator extends UceRequestCoordinator {
     private void handleRequestTimeout(SubscribeRequest request) {
         CapabilityRequestResponse response = request.getRequestResponse();
         List<Uri> requestUris = response.getNotReceiveCapabilityUpdatedContact();
-        logd("handleRequestTimeout: " + response);
-        logd("handleRequestTimeout: not received updated uri size=" + requestUris.size());
+        logd("handleRequestTimeout: ", response);
+        logd("handleRequestTimeout: not received updated uri size=", requestUris.size());
 
         // Add to the throttling list for the inconclusive result of the contacts.
         mRequestManagerCallback.addToThrottlingList(requestUris,
@@ -534,10 +537,11 @@ public class SubscribeRequestCoordinator extends UceRequestCoordinator {
 
     private void checkAndFinishRequestCoordinator() {
         synchronized (mCollectionLock) {
-            // Return because there are requests running.
-            if (!mActivatedRequests.isEmpty()) {
+            // Return because there are requests running or the result has already been queued.
+            if (!mActivatedRequests.isEmpty() || mIsCompletionQueued) {
                 return;
             }
+            mIsCompletionQueued = true;
 
             // All the requests has finished, find the request which has the max retryAfter time.
             // If the result is empty, it means all the request are success.
@@ -567,9 +571,10 @@ public class SubscribeRequestCoordinator extends UceRequestCoordinator {
             }
 
             // Notify UceRequestManager to remove this instance from the collection.
-            mRequestManagerCallback.notifyRequestCoordinatorFinished(mCoordinatorId);
+            queueCallback("notifyRequestCoordinatorFinished", () ->
+                    mRequestManagerCallback.notifyRequestCoordinatorFinished(mCoordinatorId));
 
-            logd("checkAndFinishRequestCoordinator(SubscribeRequest) done, id=" + mCoordinatorId);
+            logd("checkAndFinishRequestCoordinator(SubscribeRequest) done");
         }
     }
 
@@ -577,28 +582,36 @@ public class SubscribeRequestCoordinator extends UceRequestCoordinator {
      * Trigger the capabilities updated callback.
      */
     private void triggerCapabilitiesReceivedCallback(List<RcsContactUceCapability> capList) {
-        try {
-            logd("triggerCapabilitiesCallback: size=" + capList.size());
-            mCapabilitiesCallback.onCapabilitiesReceived(capList);
-        } catch (RemoteException e) {
-            logw("triggerCapabilitiesCallback exception: " + e);
-        } finally {
-            logd("triggerCapabilitiesCallback: done");
-        }
+        final IRcsUceControllerCallback callback = mCapabilitiesCallback;
+        // Copy the list because the response removes the capabilities once they are queued.
+        final List<RcsContactUceCapability> capabilities = new ArrayList<>(capList);
+        queueCallback("onCapabilitiesReceived", () -> {
+            try {
+                logd("triggerCapabilitiesCallback: size=", capabilities.size());
+                callback.onCapabilitiesReceived(capabilities);
+            } catch (RemoteException e) {
+                logw("triggerCapabilitiesCallback exception: " + e);
+            } finally {
+                logd("triggerCapabilitiesCallback: done");
+            }
+        });
     }
 
     /**
      * Trigger the onComplete callback to notify the request is completed.
      */
     private void triggerCompletedCallback(@Nullable SipDetails details) {
-        try {
-            logd("triggerCompletedCallback");
-            mCapabilitiesCallback.onComplete(details);
-        } catch (RemoteException e) {
-            logw("triggerCompletedCallback exception: " + e);
-        } finally {
-            logd("triggerCompletedCallback: done");
-        }
+        final IRcsUceControllerCallback callback = mCapabilitiesCallback;
+        queueCallback("onComplete", () -> {
+            try {
+                logd("triggerCompletedCallback");
+                callback.onComplete(details);
+            } catch (RemoteException e) {
+                logw("triggerCompletedCallback exception: " + e);
+            } finally {
+                logd("triggerCompletedCallback: done");
+            }
+        });
     }
 
     /**
@@ -606,14 +619,18 @@ public class SubscribeRequestCoordinator extends UceRequestCoordinator {
      */
     private void triggerErrorCallback(int errorCode, long retryAfterMillis,
             @Nullable SipDetails details) {
-        try {
-            logd("triggerErrorCallback: errorCode=" + errorCode + ", retry=" + retryAfterMillis);
-            mCapabilitiesCallback.onError(errorCode, retryAfterMillis, details);
-        } catch (RemoteException e) {
-            logw("triggerErrorCallback exception: " + e);
-        } finally {
-            logd("triggerErrorCallback: done");
-        }
+        final IRcsUceControllerCallback callback = mCapabilitiesCallback;
+        queueCallback("onError", () -> {
+            try {
+                logd("triggerErrorCallback: errorCode=" + errorCode + ", retry="
+                        + retryAfterMillis);
+                callback.onError(errorCode, retryAfterMillis, details);
+            } catch (RemoteException e) {
+                logw("triggerErrorCallback exception: " + e);
+            } finally {
+                logd("triggerErrorCallback: done");
+            }
+        });
     }
 
     @VisibleForTesting
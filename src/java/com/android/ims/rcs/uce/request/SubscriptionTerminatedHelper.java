@@ -20,10 +20,17 @@ import android.telephony.ims.RcsUceAdapter;
 import android.telephony.ims.RcsUceAdapter.ErrorCode;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.ims.rcs.uce.util.UceUtils;
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
 
 /**
  * The helper class to analyze the result of the callback onTerminated to determine whether the
@@ -74,6 +81,190 @@ public class SubscriptionTerminatedHelper {
         }
     }
 
+    /**
+     * How the subscribe request should be retried when it is terminated with a given reason.
+     */
+    @VisibleForTesting
+    public enum RetryMode {
+        // The request is failed and should NOT be retried.
+        NEVER,
+        // The request is failed and should be retried, not sooner than the minimum retry time.
+        ALWAYS,
+        // The request is failed and should be retried only when the network gives a retry-after.
+        // Otherwise it is successful.
+        IF_REQUESTED,
+        // Same as IF_REQUESTED, but the request is also failed without retry when not all the
+        // capabilities have been received.
+        IF_REQUESTED_OR_INCOMPLETE
+    }
+
+    /**
+     * The error code and the retry mode of a terminated reason. The results which do not depend
+     * on the retry-after given by the network are created once, so that analyzing the common
+     * terminated reasons does not allocate.
+     */
+    private static class RetryPolicy {
+        private final int mErrorCode;
+        private final RetryMode mRetryMode;
+        private final TerminatedResult mNoRetryResult;
+        private final TerminatedResult mMinRetryResult;
+
+        RetryPolicy(@ErrorCode int errorCode, RetryMode retryMode) {
+            mErrorCode = errorCode;
+            mRetryMode = retryMode;
+            mNoRetryResult = new TerminatedResult(Optional.of(errorCode), 0L);
+            mMinRetryResult = new TerminatedResult(Optional.of(errorCode), MIN_RETRY_AFTER_MILLIS);
+        }
+
+        TerminatedResult getResult(long retryAfterMillis, boolean allCapsHaveReceived) {
+            switch (mRetryMode) {
+                case NEVER:
+                    return mNoRetryResult;
+                case ALWAYS:
+                    return getRetryResult(retryAfterMillis);
+                case IF_REQUESTED:
+                    return (retryAfterMillis > 0L) ? getRetryResult(retryAfterMillis)
+                            : SUCCESS_RESULT;
+                case IF_REQUESTED_OR_INCOMPLETE:
+                    if (retryAfterMillis > 0L) {
+                        return getRetryResult(retryAfterMillis);
+                    }
+                    return allCapsHaveReceived ? SUCCESS_RESULT : mNoRetryResult;
+                default:
+                    return SUCCESS_RESULT;
+            }
+        }
+
+        /*
+         * Get the result with the appropriated retryAfterMillis for the subscribe request.
+         */
+        private TerminatedResult getRetryResult(long retryAfterMillis) {
+            // Use the minimum retry after millis if the given retryAfterMillis is less than the
+            // minimum value.
+            if (retryAfterMillis <= MIN_RETRY_AFTER_MILLIS) {
+                return mMinRetryResult;
+            }
+            return new TerminatedResult(Optional.of(mErrorCode), retryAfterMillis);
+        }
+
+        @Override
+        public String toString() {
+            return "RetryPolicy{errorCode=" + mErrorCode + ", retryMode=" + mRetryMode + "}";
+        }
+    }
+
+    private static final long MIN_RETRY_AFTER_MILLIS = UceUtils.getMinimumRequestRetryAfterMillis();
+
+    private static final TerminatedResult SUCCESS_RESULT =
+            new TerminatedResult(Optional.empty(), 0L);
+
+    /*
+     * The policy of each terminated reason. The reasons are compared ignoring the case without
+     * creating a lower case copy of the reason given by the network.
+     */
+    private static final Map<String, RetryPolicy> DEFAULT_POLICIES;
+    static {
+        Map<String, RetryPolicy> policies = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        /*
+         * When the reason is "deactivated", clients should retry immediately.
+         */
+        policies.put(REASON_DEACTIVATED,
+                new RetryPolicy(RcsUceAdapter.ERROR_GENERIC_FAILURE, RetryMode.ALWAYS));
+        /*
+         * When the reason is "probation", it means that the subscription has been terminated,
+         * but the client should retry at some later time.
+         */
+        policies.put(REASON_PROBATION,
+                new RetryPolicy(RcsUceAdapter.ERROR_GENERIC_FAILURE, RetryMode.ALWAYS));
+        /*
+         * When the reason is "rejected", it means that the subscription has been terminated
+         * due to chang in authorization policy. Clients should NOT retry.
+         */
+        policies.put(REASON_REJECTED,
+                new RetryPolicy(RcsUceAdapter.ERROR_NOT_AUTHORIZED, RetryMode.NEVER));
+        /*
+         * When the reason is "timeout", clients should retry later when the ImsService gives a
+         * retry-after. Otherwise the request is successful only if all the request capabilities
+         * have been received from the network.
+         */
+        policies.put(REASON_TIMEOUT, new RetryPolicy(RcsUceAdapter.ERROR_REQUEST_TIMEOUT,
+                RetryMode.IF_REQUESTED_OR_INCOMPLETE));
+        /*
+         * The subscription has been terminated because the notifier could no obtain
+         * authorization in a timely fashion. Clients could retry the subscribe request.
+         */
+        policies.put(REASON_GIVEUP,
+                new RetryPolicy(RcsUceAdapter.ERROR_NOT_AUTHORIZED, RetryMode.ALWAYS));
+        /*
+         * The subscription has been terminated because the resource is no longer exists.
+         * Clients should NOT retry.
+         */
+        policies.put(REASON_NORESOURCE,
+                new RetryPolicy(RcsUceAdapter.ERROR_NOT_FOUND, RetryMode.NEVER));
+        DEFAULT_POLICIES = Collections.unmodifiableMap(policies);
+    }
+
+    /*
+     * Even if the reason is not listed above, clients should retry the request as long as the
+     * value of retry is non-zero.
+     */
+    private static final RetryPolicy UNKNOWN_REASON_POLICY =
+            new RetryPolicy(RcsUceAdapter.ERROR_GENERIC_FAILURE, RetryMode.IF_REQUESTED);
+
+    private static final Object sLock = new Object();
+
+    // The policies overridden by the carrier config, keyed by the subscription ID.
+    @GuardedBy("sLock")
+    private static final SparseArray<Map<String, RetryPolicy>> sCarrierPolicies =
+            new SparseArray<>();
+
+    /**
+     * Override the policies of the terminated reasons for the given subscription. The reasons
+     * which are not overridden keep the policies defined in RFC 3265.
+     * <p>
+     * Each entry has the format "reason:errorCode:retryMode", such as "probation:1:never",
+     * where the error code is one of the {@link RcsUceAdapter} error codes and the retry mode is
+     * the name of a {@link RetryMode} in any case. Malformed entries are ignored.
+     *
+     * @param subId The subscription ID.
+     * @param policies The entries of the overridden policies, or null to clear the overrides.
+     */
+    public static void setCarrierRetryPolicies(int subId, String[] policies) {
+        Map<String, RetryPolicy> carrierPolicies = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (policies != null) {
+            for (String entry : policies) {
+                parseRetryPolicy(entry, carrierPolicies);
+            }
+        }
+        Log.d(LOG_TAG, "setCarrierRetryPolicies: subId=" + subId + ", " + carrierPolicies);
+        synchronized (sLock) {
+            if (carrierPolicies.isEmpty()) {
+                sCarrierPolicies.remove(subId);
+            } else {
+                sCarrierPolicies.put(subId, Collections.unmodifiableMap(carrierPolicies));
+            }
+        }
+    }
+
+    private static void parseRetryPolicy(String entry, Map<String, RetryPolicy> policies) {
+        String[] fields = (entry == null) ? new String[0] : entry.split(":");
+        if (fields.length != 3 || TextUtils.isEmpty(fields[0].trim())) {
+            Log.w(LOG_TAG, "parseRetryPolicy: invalid entry " + entry);
+            return;
+        }
+        try {
+            int errorCode = Integer.parseInt(fields[1].trim());
+            RetryMode retryMode = RetryMode.valueOf(fields[2].trim().toUpperCase(Locale.ROOT));
+            if (errorCode <= 0) {
+                Log.w(LOG_TAG, "parseRetryPolicy: invalid error code " + entry);
+                return;
+            }
+            policies.put(fields[0].trim(), new RetryPolicy(errorCode, retryMode));
+        } catch (IllegalArgumentException e) {
+            Log.w(LOG_TAG, "parseRetryPolicy: invalid entry " + entry);
+        }
+    }
+
     /**
      * According to the RFC 3265, Check the given reason to see whether clients should retry the
      * subscribe request.
@@ -87,96 +278,47 @@ public class SubscriptionTerminatedHelper {
      */
     public static TerminatedResult getAnalysisResult(String reason, long retryAfterMillis,
             boolean allCapsHaveReceived) {
-        TerminatedResult result = null;
+        return getAnalysisResult(null, reason, retryAfterMillis, allCapsHaveReceived);
+    }
+
+    /**
+     * Same as {@link #getAnalysisResult(String, long, boolean)}, but the policies overridden by
+     * the carrier config of the given subscription take precedence over RFC 3265.
+     *
+     * @param subId The subscription ID the subscribe request is sent for.
+     */
+    public static TerminatedResult getAnalysisResult(int subId, String reason,
+            long retryAfterMillis, boolean allCapsHaveReceived) {
+        Map<String, RetryPolicy> carrierPolicies;
+        synchronized (sLock) {
+            carrierPolicies = sCarrierPolicies.get(subId);
+        }
+        return getAnalysisResult(carrierPolicies, reason, retryAfterMillis, allCapsHaveReceived);
+    }
+
+    private static TerminatedResult getAnalysisResult(Map<String, RetryPolicy> carrierPolicies,
+            String reason, long retryAfterMillis, boolean allCapsHaveReceived) {
+        TerminatedResult result;
         if (TextUtils.isEmpty(reason)) {
             /*
              * When the value of retryAfterMillis is larger then zero, the client should retry.
              */
-            if (retryAfterMillis > 0L) {
-                result = new TerminatedResult(Optional.of(RcsUceAdapter.ERROR_GENERIC_FAILURE),
-                        retryAfterMillis);
-            }
-        } else if (REASON_DEACTIVATED.equalsIgnoreCase(reason)) {
-            /*
-             * When the reason is "deactivated", clients should retry immediately.
-             */
-            long retry = getRequestRetryAfterMillis(retryAfterMillis);
-            result = new TerminatedResult(Optional.of(RcsUceAdapter.ERROR_GENERIC_FAILURE), retry);
-        } else if (REASON_PROBATION.equalsIgnoreCase(reason)) {
-            /*
-             * When the reason is "probation", it means that the subscription has been terminated,
-             * but the client should retry at some later time.
-             */
-            long retry = getRequestRetryAfterMillis(retryAfterMillis);
-            result = new TerminatedResult(Optional.of(RcsUceAdapter.ERROR_GENERIC_FAILURE), retry);
-        } else if (REASON_REJECTED.equalsIgnoreCase(reason)) {
-            /*
-             * When the reason is "rejected", it means that the subscription has been terminated
-             * due to chang in authorization policy. Clients should NOT retry.
-             */
-            result = new TerminatedResult(Optional.of(RcsUceAdapter.ERROR_NOT_AUTHORIZED), 0L);
-        } else if (REASON_TIMEOUT.equalsIgnoreCase(reason)) {
-            if (retryAfterMillis > 0L) {
-                /*
-                 * When the parameter "retryAfterMillis" is greater than zero, it means that the
-                 * ImsService requires clients should retry later.
-                 */
-                long retry = getRequestRetryAfterMillis(retryAfterMillis);
-                result = new TerminatedResult(Optional.of(RcsUceAdapter.ERROR_REQUEST_TIMEOUT),
-                        retry);
-            } else if (!allCapsHaveReceived) {
-                /*
-                 * The ImsService does not require to retry when the parameter "retryAfterMillis"
-                 * is zero. However, the request is still failed because it has not received all
-                 * the capabilities updated from the network.
-                 */
-                result = new TerminatedResult(Optional.of(RcsUceAdapter.ERROR_REQUEST_TIMEOUT), 0L);
-            } else {
-                /*
-                 * The subscribe request is successfully when the parameter retryAfter is zero and
-                 * all the request capabilities have been received.
-                 */
-                result = new TerminatedResult(Optional.empty(), 0L);
+            result = (retryAfterMillis > 0L)
+                    ? new TerminatedResult(Optional.of(RcsUceAdapter.ERROR_GENERIC_FAILURE),
+                            retryAfterMillis)
+                    : SUCCESS_RESULT;
+        } else {
+            RetryPolicy policy = (carrierPolicies != null) ? carrierPolicies.get(reason) : null;
+            if (policy == null) {
+                policy = DEFAULT_POLICIES.getOrDefault(reason, UNKNOWN_REASON_POLICY);
             }
-        } else if (REASON_GIVEUP.equalsIgnoreCase(reason)) {
-            /*
-             * The subscription has been terminated because the notifier could no obtain
-             * authorization in a timely fashion. Clients could retry the subscribe request.
-             */
-            long retry = getRequestRetryAfterMillis(retryAfterMillis);
-            result = new TerminatedResult(Optional.of(RcsUceAdapter.ERROR_NOT_AUTHORIZED), retry);
-        } else if (REASON_NORESOURCE.equalsIgnoreCase(reason)) {
-            /*
-             * The subscription has been terminated because the resource is no longer exists.
-             * Clients should NOT retry.
-             */
-            result = new TerminatedResult(Optional.of(RcsUceAdapter.ERROR_NOT_FOUND), 0L);
-        } else if (retryAfterMillis > 0L) {
-            /*
-             * Even if the reason is not listed above, clients should retry the request as long as
-             * the value of retry is non-zero.
-             */
-            long retry = getRequestRetryAfterMillis(retryAfterMillis);
-            result = new TerminatedResult(Optional.of(RcsUceAdapter.ERROR_GENERIC_FAILURE), retry);
+            result = policy.getResult(retryAfterMillis, allCapsHaveReceived);
         }
 
-        // The request should be successful. when the terminated is not in the above cases
-        if (result == null) {
-            result = new TerminatedResult(Optional.empty(), 0L);
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG)) {
+            Log.d(LOG_TAG, "getAnalysisResult: reason=" + reason + ", retry=" + retryAfterMillis
+                    + ", allCapsHaveReceived=" + allCapsHaveReceived + ", " + result);
         }
-
-        Log.d(LOG_TAG, "getAnalysisResult: reason=" + reason + ", retry=" + retryAfterMillis +
-                ", allCapsHaveReceived=" + allCapsHaveReceived + ", " + result);
         return result;
     }
-
-    /*
-     * Get the appropriated retryAfterMillis for the subscribe request.
-     */
-    private static long getRequestRetryAfterMillis(long retryAfterMillis) {
-        // Return the minimum retry after millis if the given retryAfterMillis is less than the
-        // minimum value.
-        long minRetryAfterMillis = UceUtils.getMinimumRequestRetryAfterMillis();
-        return (retryAfterMillis < minRetryAfterMillis) ? minRetryAfterMillis : retryAfterMillis;
-    }
 }
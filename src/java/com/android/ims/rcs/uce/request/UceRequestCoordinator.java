@@ -19,15 +19,18 @@ package com.android.ims.rcs.uce.request;
 import android.annotation.IntDef;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
+import android.os.SystemClock;
 import android.telephony.ims.RcsUceAdapter;
 import android.telephony.ims.SipDetails;
-import android.util.Log;
 
 import com.android.ims.rcs.uce.request.UceRequestManager.RequestManagerCallback;
+import com.android.ims.rcs.uce.util.UceLogger;
 import com.android.ims.rcs.uce.util.UceUtils;
+import com.android.internal.annotations.GuardedBy;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -122,6 +125,21 @@ public abstract class UceRequestCoordinator {
         REQUEST_EVENT_DESC.put(REQUEST_UPDATE_TIMEOUT, "REQUEST_TIMEOUT");
     }
 
+    // The suffix of the onRequestUpdated log of each event, built once instead of for every
+    // updated request.
+    private static final Map<Integer, String> REQUEST_EVENT_LOG_SUFFIX = new HashMap<>();
+    static {
+        REQUEST_EVENT_DESC.forEach((event, desc) ->
+                REQUEST_EVENT_LOG_SUFFIX.put(event, ", event=" + desc));
+    }
+
+    /**
+     * Log that the request with the given taskId is updated with the given event.
+     */
+    protected void logRequestUpdated(String log, long taskId, @UceRequestUpdate int event) {
+        logd(log, taskId, REQUEST_EVENT_LOG_SUFFIX.getOrDefault(event, ", event=" + event));
+    }
+
     /**
      * The result of the UceRequest. This is the used by the RequestCoordinator to record the
      * result of each sub-requests.
@@ -237,6 +255,22 @@ public abstract class UceRequestCoordinator {
         }
     }
 
+    /**
+     * A callback to the app or to UceRequestManager, queued while holding mCollectionLock and
+     * delivered once it is released.
+     */
+    private static class PendingCallback {
+        final String mName;
+        final Runnable mCallback;
+        final long mQueuedTime;
+
+        PendingCallback(String name, Runnable callback) {
+            mName = name;
+            mCallback = callback;
+            mQueuedTime = SystemClock.elapsedRealtime();
+        }
+    }
+
     // The default capability error code.
     protected static final int DEFAULT_ERROR_CODE = RcsUceAdapter.ERROR_GENERIC_FAILURE;
 
@@ -250,15 +284,28 @@ public abstract class UceRequestCoordinator {
     protected final Map<Long, RequestResult> mFinishedRequests;
     // The lock of the activated and finished collection.
     protected final Object mCollectionLock = new Object();
+    // Set once the final callback of this coordinator has been queued.
+    @GuardedBy("mCollectionLock")
+    protected boolean mIsCompletionQueued;
+    // The callbacks waiting for mCollectionLock to be released to be delivered.
+    @GuardedBy("mCollectionLock")
+    private final List<PendingCallback> mPendingCallbacks = new ArrayList<>();
+    // Only one thread delivers the callbacks at a time, so that they keep the queued order.
+    @GuardedBy("mCollectionLock")
+    private boolean mIsDelivering;
 
     // The callback to communicate with UceRequestManager
     protected final RequestManagerCallback mRequestManagerCallback;
 
+    private final UceLogger mLogger;
+
     public UceRequestCoordinator(int subId, Collection<UceRequest> requests,
             RequestManagerCallback requestMgrCallback) {
         mSubId = subId;
         mCoordinatorId = UceUtils.generateRequestCoordinatorId();
         mRequestManagerCallback = requestMgrCallback;
+        mLogger = new UceLogger(LOG_TAG, subId,
+                "[" + subId + "][coordId=" + mCoordinatorId + "] ");
 
         // Set the coordinatorId to all the given UceRequests
         requests.forEach(request -> request.setRequestCoordinatorId(mCoordinatorId));
@@ -306,7 +353,58 @@ public abstract class UceRequestCoordinator {
         synchronized (mCollectionLock) {
             mActivatedRequests.remove(taskId);
             mFinishedRequests.put(taskId, requestResult);
-            mRequestManagerCallback.notifyUceRequestFinished(getCoordinatorId(), taskId);
+            queueCallback("notifyUceRequestFinished", () ->
+                    mRequestManagerCallback.notifyUceRequestFinished(getCoordinatorId(), taskId));
+        }
+    }
+
+    /**
+     * Queue a callback to be delivered by {@link #deliverPendingCallbacks()}. The callbacks
+     * must not be called while holding mCollectionLock, because a slow callback would block all
+     * the other updates of this coordinator.
+     * @param name The name of the callback for the delivery latency metric.
+     */
+    protected void queueCallback(String name, Runnable callback) {
+        synchronized (mCollectionLock) {
+            mPendingCallbacks.add(new PendingCallback(name, callback));
+        }
+    }
+
+    /**
+     * Deliver the queued callbacks in order. This must be called without holding
+     * mCollectionLock. If another thread is already delivering, it also delivers the callbacks
+     * queued by this thread.
+     */
+    protected void deliverPendingCallbacks() {
+        synchronized (mCollectionLock) {
+            if (mIsDelivering) return;
+            mIsDelivering = true;
+        }
+        boolean isDone = false;
+        try {
+            while (true) {
+                List<PendingCallback> callbacks;
+                synchronized (mCollectionLock) {
+                    if (mPendingCallbacks.isEmpty()) {
+                        mIsDelivering = false;
+                        isDone = true;
+                        return;
+                    }
+                    callbacks = new ArrayList<>(mPendingCallbacks);
+                    mPendingCallbacks.clear();
+                }
+                for (PendingCallback callback : callbacks) {
+                    callback.mCallback.run();
+                    mRequestManagerCallback.notifyCallbackDelivered(callback.mName,
+                            SystemClock.elapsedRealtime() - callback.mQueuedTime);
+                }
+            }
+        } finally {
+            if (!isDone) {
+                synchronized (mCollectionLock) {
+                    mIsDelivering = false;
+                }
+            }
         }
     }
 
@@ -328,17 +426,34 @@ public abstract class UceRequestCoordinator {
      */
     public abstract void onRequestUpdated(long taskId, @UceRequestUpdate int event);
 
+    /**
+     * Notify that the timer set with
+     * {@link RequestManagerCallback#setAggregationWindowTimer(long, long)} has expired.
+     */
+    public void onAggregationWindowExpired() {
+    }
+
     protected void logd(String log) {
-        Log.d(LOG_TAG, getLogPrefix().append(log).toString());
+        mLogger.d(log);
     }
 
-    protected void logw(String log) {
-        Log.w(LOG_TAG, getLogPrefix().append(log).toString());
+    protected void logd(String log, long value) {
+        mLogger.d(log, value);
+    }
+
+    protected void logd(String log, long value, String suffix) {
+        mLogger.d(log, value, suffix);
     }
 
-    private StringBuilder getLogPrefix() {
-        StringBuilder builder = new StringBuilder("[");
-        builder.append(mSubId).append("][coordId=").append(mCoordinatorId).append("] ");
-        return builder;
+    /**
+     * Log the given message followed by the given argument, which is only converted to a string
+     * when the debug logs are enabled.
+     */
+    protected void logd(String log, Object arg) {
+        mLogger.d(log, arg);
+    }
+
+    protected void logw(String log) {
+        mLogger.w(log);
     }
 }
@@ -18,7 +18,6 @@ package com.android.ims.rcs.uce.request;
 
 import android.content.Context;
 import android.net.Uri;
-import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
@@ -29,6 +28,7 @@ import android.telephony.ims.RcsUceAdapter;
 import android.telephony.ims.aidl.IOptionsRequestCallback;
 import android.telephony.ims.aidl.IRcsUceControllerCallback;
 import android.text.TextUtils;
+import android.util.IndentingPrintWriter;
 import android.util.Log;
 
 import com.android.i18n.phonenumbers.NumberParseException;
@@ -43,6 +43,7 @@ import com.android.ims.rcs.uce.options.OptionsController;
 import com.android.ims.rcs.uce.presence.subscribe.SubscribeController;
 import com.android.ims.rcs.uce.request.UceRequest.UceRequestType;
 import com.android.ims.rcs.uce.request.UceRequestCoordinator.UceRequestUpdate;
+import com.android.ims.rcs.uce.util.MonitoredHandler;
 import com.android.ims.rcs.uce.util.UceUtils;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.SomeArgs;
@@ -180,6 +181,12 @@ public class UceRequestManager {
          */
         void saveCapabilities(List<RcsContactUceCapability> contactCapabilities);
 
+        /**
+         * Store the given capabilities to the cache after the pending request updates have been
+         * handled, so that storing them does not delay a response.
+         */
+        void saveCapabilitiesAsync(List<RcsContactUceCapability> contactCapabilities);
+
         /**
          * Retrieve the device's capabilities.
          */
@@ -254,6 +261,20 @@ public class UceRequestManager {
          */
         void removeRequestTimeoutTimer(long taskId);
 
+        /**
+         * Notify the response of an OPTIONS request, so that the OPTIONS requests are paced
+         * according to the network load.
+         * @param sipCode The SIP code of the response, 408 if the request timed out.
+         * @param retryAfterMillis The retry-after of the response, 0 if there is none.
+         */
+        void notifyOptionsResponse(int sipCode, long retryAfterMillis);
+
+        /**
+         * Set the timer to notify the coordinator that the capabilities it has aggregated must
+         * be notified.
+         */
+        void setAggregationWindowTimer(long requestCoordinatorId, long delayMs);
+
         /**
          * Notify that the UceRequest has finished. This is sent by UceRequestCoordinator.
          */
@@ -265,6 +286,13 @@ public class UceRequestManager {
          */
         void notifyRequestCoordinatorFinished(long requestCoordinatorId);
 
+        /**
+         * Notify that a callback queued by a UceRequestCoordinator has been delivered.
+         * @param callbackName The name of the callback.
+         * @param latencyMillis The time from queueing the callback until it returned.
+         */
+        void notifyCallbackDelivered(String callbackName, long latencyMillis);
+
         /**
          * Check whether the given uris are in the throttling list.
          * @param uriList the uris to check if it is in the throttling list
@@ -310,6 +338,14 @@ public class UceRequestManager {
             mControllerCallback.saveCapabilities(contactCapabilities);
         }
 
+        @Override
+        public void saveCapabilitiesAsync(List<RcsContactUceCapability> contactCapabilities) {
+            mHandler.post(() -> {
+                if (mIsDestroyed) return;
+                mControllerCallback.saveCapabilities(contactCapabilities);
+            });
+        }
+
         @Override
         public RcsContactUceCapability getDeviceCapabilities(@CapabilityMechanism int mechanism) {
             return mControllerCallback.getDeviceCapabilities(mechanism);
@@ -387,6 +423,16 @@ public class UceRequestManager {
             mHandler.removeRequestTimeoutTimer(taskId);
         }
 
+        @Override
+        public void notifyOptionsResponse(int sipCode, long retryAfterMillis) {
+            mRequestRepository.notifyOptionsResponse(sipCode, retryAfterMillis);
+        }
+
+        @Override
+        public void setAggregationWindowTimer(long requestCoordinatorId, long delayMs) {
+            mHandler.sendAggregationWindowMessage(requestCoordinatorId, delayMs);
+        }
+
         @Override
         public void notifyUceRequestFinished(long requestCoordinatorId, long taskId) {
             mHandler.sendRequestFinishedMessage(requestCoordinatorId, taskId);
@@ -397,6 +443,11 @@ public class UceRequestManager {
             mHandler.sendRequestCoordinatorFinishedMessage(requestCoordinatorId);
         }
 
+        @Override
+        public void notifyCallbackDelivered(String callbackName, long latencyMillis) {
+            mCallbackDeliveryStats.recordDelivery(callbackName, latencyMillis);
+        }
+
         @Override
         public List<Uri> getInThrottlingListUris(List<Uri> uriList) {
             return mThrottlingList.getInThrottlingListUris(uriList);
@@ -413,6 +464,8 @@ public class UceRequestManager {
     private final UceRequestHandler mHandler;
     private final UceRequestRepository mRequestRepository;
     private final ContactThrottlingList mThrottlingList;
+    private final BlockedNumberCache mBlockedNumberCache;
+    private final CallbackDeliveryStats mCallbackDeliveryStats = new CallbackDeliveryStats();
     private volatile boolean mIsDestroyed;
 
     private OptionsController mOptionsCtrl;
@@ -425,7 +478,9 @@ public class UceRequestManager {
         mControllerCallback = c;
         mHandler = new UceRequestHandler(this, looper);
         mThrottlingList = new ContactThrottlingList(mSubId);
+        mBlockedNumberCache = new BlockedNumberCache(context, mSubId, looper);
         mRequestRepository = new UceRequestRepository(subId, mRequestMgrCallback);
+        updateOptionsDispatcherConfiguration();
         logi("create");
     }
 
@@ -438,6 +493,7 @@ public class UceRequestManager {
         mHandler = new UceRequestHandler(this, looper);
         mRequestRepository = requestRepository;
         mThrottlingList = new ContactThrottlingList(mSubId);
+        mBlockedNumberCache = new BlockedNumberCache(context, mSubId, looper);
     }
 
     /**
@@ -454,6 +510,20 @@ public class UceRequestManager {
         mSubscribeCtrl = controller;
     }
 
+    /**
+     * Notify that the carrier config has changed.
+     */
+    public void onCarrierConfigChanged() {
+        updateOptionsDispatcherConfiguration();
+    }
+
+    private void updateOptionsDispatcherConfiguration() {
+        mRequestRepository.setOptionsDispatcherConfiguration(
+                UceUtils.getOptionsMaxConcurrentRequests(mContext, mSubId),
+                UceUtils.getOptionsRequestsPerSecond(mContext, mSubId),
+                UceUtils.getOptionsRequestBurstSize(mContext, mSubId));
+    }
+
     /**
      * Notify that the request manager instance is destroyed.
      */
@@ -462,9 +532,21 @@ public class UceRequestManager {
         mIsDestroyed = true;
         mHandler.onDestroy();
         mThrottlingList.reset();
+        mBlockedNumberCache.onDestroy();
         mRequestRepository.onDestroy();
     }
 
+    /**
+     * Dump the state of the request manager.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        pw.println("UceRequestManager:");
+        pw.increaseIndent();
+        mBlockedNumberCache.dump(pw);
+        mCallbackDeliveryStats.dump(pw);
+        pw.decreaseIndent();
+    }
+
     /**
      * Clear the throttling list.
      */
@@ -706,7 +788,8 @@ public class UceRequestManager {
         // If the remote number is blocked, do not send capabilities back.
         String number = getNumberFromUri(contactUri);
         if (!TextUtils.isEmpty(number)) {
-            request.setIsRemoteNumberBlocked(sUceUtilsProxy.isNumberBlocked(mContext, number));
+            request.setIsRemoteNumberBlocked(mBlockedNumberCache.isNumberBlocked(number,
+                    n -> sUceUtilsProxy.isNumberBlocked(mContext, n)));
         }
 
         // Create the RemoteOptionsCoordinator instance
@@ -726,18 +809,19 @@ public class UceRequestManager {
         addRequestCoordinator(requestCoordinator);
     }
 
-    private static class UceRequestHandler extends Handler {
+    private static class UceRequestHandler extends MonitoredHandler {
         private static final int EVENT_EXECUTE_REQUEST = 1;
         private static final int EVENT_REQUEST_UPDATED = 2;
         private static final int EVENT_REQUEST_TIMEOUT = 3;
         private static final int EVENT_REQUEST_FINISHED = 4;
         private static final int EVENT_COORDINATOR_FINISHED = 5;
+        private static final int EVENT_AGGREGATION_WINDOW_EXPIRED = 6;
 
         private final Map<Long, SomeArgs> mRequestTimeoutTimers;
         private final WeakReference<UceRequestManager> mUceRequestMgrRef;
 
         public UceRequestHandler(UceRequestManager requestManager, Looper looper) {
-            super(looper);
+            super(looper, requestManager.mSubId, "UceRequestHandler");
             mRequestTimeoutTimers = new HashMap<>();
             mUceRequestMgrRef = new WeakReference<>(requestManager);
         }
@@ -831,6 +915,20 @@ public class UceRequestManager {
             sendMessage(message);
         }
 
+        /**
+         * Notify the UceRequestCoordinator associated with the given id when its aggregation
+         * window expires.
+         */
+        public void sendAggregationWindowMessage(Long coordinatorId, long delayMs) {
+            SomeArgs args = SomeArgs.obtain();
+            args.arg1 = coordinatorId;
+
+            Message message = obtainMessage();
+            message.what = EVENT_AGGREGATION_WINDOW_EXPIRED;
+            message.obj = args;
+            sendMessageDelayed(message, delayMs);
+        }
+
         /**
          * Remove all the messages from the handler
          */
@@ -910,6 +1008,16 @@ public class UceRequestManager {
                     }
                     break;
                 }
+                case EVENT_AGGREGATION_WINDOW_EXPIRED: {
+                    UceRequestCoordinator requestCoordinator =
+                            requestManager.getRequestCoordinator(coordinatorId);
+                    if (requestCoordinator == null) {
+                        // The coordinator finished before the window expired.
+                        return;
+                    }
+                    requestCoordinator.onAggregationWindowExpired();
+                    break;
+                }
                 default: {
                     break;
                 }
@@ -923,6 +1031,7 @@ public class UceRequestManager {
             EVENT_DESCRIPTION.put(EVENT_REQUEST_TIMEOUT, "REQUEST_TIMEOUT");
             EVENT_DESCRIPTION.put(EVENT_REQUEST_FINISHED, "REQUEST_FINISHED");
             EVENT_DESCRIPTION.put(EVENT_COORDINATOR_FINISHED, "REMOVE_COORDINATOR");
+            EVENT_DESCRIPTION.put(EVENT_AGGREGATION_WINDOW_EXPIRED, "AGGREGATION_WINDOW_EXPIRED");
         }
     }
 
@@ -983,6 +1092,11 @@ public class UceRequestManager {
         return mRequestMgrCallback;
     }
 
+    @VisibleForTesting
+    public CallbackDeliveryStats getCallbackDeliveryStats() {
+        return mCallbackDeliveryStats;
+    }
+
     private void logi(String log) {
         Log.i(LOG_TAG, getLogPrefix().append(log).toString());
     }
@@ -28,6 +28,8 @@ public class UceRequestRepository {
 
     // Dispatch the UceRequest to be executed.
     private final UceRequestDispatcher mDispatcher;
+    // Dispatch the OPTIONS requests, separately from the SUBSCRIBE requests.
+    private final OptionsRequestDispatcher mOptionsDispatcher;
 
     // Store all the capabilities requests
     private final Map<Long, UceRequestCoordinator> mRequestCoordinators;
@@ -37,6 +39,16 @@ public class UceRequestRepository {
     public UceRequestRepository(int subId, RequestManagerCallback callback) {
         mRequestCoordinators = new HashMap<>();
         mDispatcher = new UceRequestDispatcher(subId, callback);
+        mOptionsDispatcher = new OptionsRequestDispatcher(subId, callback);
+    }
+
+    /**
+     * Set how many OPTIONS requests can be sent at the same time and how fast they can be sent.
+     * @see OptionsRequestDispatcher#setConfiguration
+     */
+    public void setOptionsDispatcherConfiguration(int maxConcurrentNum, int requestsPerSecond,
+            int burstSize) {
+        mOptionsDispatcher.setConfiguration(maxConcurrentNum, requestsPerSecond, burstSize);
     }
 
     /**
@@ -45,6 +57,7 @@ public class UceRequestRepository {
     public synchronized void onDestroy() {
         mDestroyed = true;
         mDispatcher.onDestroy();
+        mOptionsDispatcher.onDestroy();
         mRequestCoordinators.forEach((taskId, requestCoord) -> requestCoord.onFinish());
         mRequestCoordinators.clear();
     }
@@ -56,8 +69,13 @@ public class UceRequestRepository {
     public synchronized void addRequestCoordinator(UceRequestCoordinator coordinator) {
         if (mDestroyed) return;
         mRequestCoordinators.put(coordinator.getCoordinatorId(), coordinator);
-        mDispatcher.addRequest(coordinator.getCoordinatorId(),
-                coordinator.getActivatedRequestTaskIds());
+        if (coordinator instanceof OptionsRequestCoordinator) {
+            mOptionsDispatcher.addRequest(coordinator.getCoordinatorId(),
+                    coordinator.getActivatedRequestTaskIds());
+        } else {
+            mDispatcher.addRequest(coordinator.getCoordinatorId(),
+                    coordinator.getActivatedRequestTaskIds());
+        }
     }
 
     /**
@@ -88,5 +106,11 @@ public class UceRequestRepository {
     // Notify that the task is finished.
     public synchronized void notifyRequestFinished(Long taskId) {
         mDispatcher.onRequestFinished(taskId);
+        mOptionsDispatcher.onRequestFinished(taskId);
+    }
+
+    // Notify the response of an OPTIONS request.
+    public synchronized void notifyOptionsResponse(int sipCode, long retryAfterMillis) {
+        mOptionsDispatcher.onResponse(sipCode, retryAfterMillis);
     }
 }
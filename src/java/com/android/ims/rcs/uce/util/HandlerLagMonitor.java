@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ims.rcs.uce.util;
+
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Map;
+
+/**
+ * Records how long the messages of the UCE handlers wait in their looper queue after they are
+ * due, so that a handler which is held up by work queued on the same looper shows up in dump.
+ */
+public class HandlerLagMonitor {
+
+    private static class LagStats {
+        long mMessageCount;
+        long mTotalDelayMs;
+        long mMaxDelayMs;
+    }
+
+    private static final Object sLock = new Object();
+
+    // The lag statistics of each handler, keyed by the subscription ID and the handler name.
+    @GuardedBy("sLock")
+    private static final Map<String, LagStats> sLagStats = new ArrayMap<>();
+
+    private HandlerLagMonitor() {}
+
+    /**
+     * Record the queue delay of the given message which is about to be dispatched.
+     */
+    public static void onDispatch(int subId, String handlerName, Message msg) {
+        long when = msg.getWhen();
+        // Messages sent to the front of the queue do not have a due time.
+        if (when <= 0) {
+            return;
+        }
+        record(subId, handlerName, Math.max(0, SystemClock.uptimeMillis() - when));
+    }
+
+    @VisibleForTesting
+    public static void record(int subId, String handlerName, long delayMs) {
+        synchronized (sLock) {
+            String key = getKey(subId, handlerName);
+            LagStats stats = sLagStats.get(key);
+            if (stats == null) {
+                stats = new LagStats();
+                sLagStats.put(key, stats);
+            }
+            stats.mMessageCount++;
+            stats.mTotalDelayMs += delayMs;
+            stats.mMaxDelayMs = Math.max(stats.mMaxDelayMs, delayMs);
+        }
+    }
+
+    /**
+     * @return The maximum queue delay of the given handler, or -1 if no message was recorded.
+     */
+    @VisibleForTesting
+    public static long getMaxQueueDelayMs(int subId, String handlerName) {
+        synchronized (sLock) {
+            LagStats stats = sLagStats.get(getKey(subId, handlerName));
+            return (stats == null) ? -1L : stats.mMaxDelayMs;
+        }
+    }
+
+    /**
+     * Remove the statistics of the given subscription.
+     */
+    public static void clear(int subId) {
+        String prefix = getKey(subId, "");
+        synchronized (sLock) {
+            sLagStats.keySet().removeIf(key -> key.startsWith(prefix));
+        }
+    }
+
+    private static String getKey(int subId, String handlerName) {
+        return subId + "/" + handlerName;
+    }
+
+    /**
+     * Print the queue delay of the handlers of the given subscription.
+     */
+    public static void dump(IndentingPrintWriter pw, int subId) {
+        String prefix = getKey(subId, "");
+        pw.println("HandlerLagMonitor:");
+        pw.increaseIndent();
+        synchronized (sLock) {
+            for (Map.Entry<String, LagStats> entry : sLagStats.entrySet()) {
+                String key = entry.getKey();
+                if (!key.startsWith(prefix)) {
+                    continue;
+                }
+                LagStats stats = entry.getValue();
+                pw.println(key.substring(prefix.length())
+                        + ": messages=" + stats.mMessageCount
+                        + ", maxQueueDelayMs=" + stats.mMaxDelayMs
+                        + ", avgQueueDelayMs=" + (stats.mTotalDelayMs / stats.mMessageCount));
+            }
+        }
+        pw.decreaseIndent();
+    }
+}
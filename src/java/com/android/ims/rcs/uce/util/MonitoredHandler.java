@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ims.rcs.uce.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+/**
+ * A Handler which reports the queue delay of its messages and runnables to the
+ * {@link HandlerLagMonitor}.
+ */
+public class MonitoredHandler extends Handler {
+    private final int mSubId;
+    private final String mName;
+
+    public MonitoredHandler(Looper looper, int subId, String name) {
+        super(looper);
+        mSubId = subId;
+        mName = name;
+    }
+
+    @Override
+    public void dispatchMessage(Message msg) {
+        HandlerLagMonitor.onDispatch(mSubId, mName, msg);
+        super.dispatchMessage(msg);
+    }
+}
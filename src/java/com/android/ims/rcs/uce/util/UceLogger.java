@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ims.rcs.uce.util;
+
+import android.os.Build;
+import android.util.IndentingPrintWriter;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.time.Instant;
+
+/**
+ * The logger of the UCE request paths, which are called for every contact of a capabilities
+ * request. The log prefix is built once per logger and the messages are split into a constant
+ * part and arguments, which are only formatted when the message is emitted to logcat.
+ * <p>
+ * Every message is also recorded in a bounded event ring of its subscription, without being
+ * formatted, so that {@link com.android.ims.rcs.uce.UceController#dump} can print the latest
+ * events even when the debug logs are disabled. The object arguments are not kept in the ring
+ * because they may be large or change after the event.
+ */
+public class UceLogger {
+
+    // The number of events kept for each subscription.
+    @VisibleForTesting
+    public static final int EVENT_RING_SIZE = 128;
+
+    private static final long NO_VALUE = Long.MIN_VALUE;
+
+    /**
+     * The latest events of a subscription. The entries are preallocated arrays, so that
+     * recording an event does not allocate.
+     */
+    private static class EventRing {
+        private final long[] mTimes = new long[EVENT_RING_SIZE];
+        private final char[] mLevels = new char[EVENT_RING_SIZE];
+        private final String[] mPrefixes = new String[EVENT_RING_SIZE];
+        private final String[] mMessages = new String[EVENT_RING_SIZE];
+        private final long[] mValues = new long[EVENT_RING_SIZE];
+        private final String[] mSuffixes = new String[EVENT_RING_SIZE];
+        // The total number of events recorded, the next index is mCount % EVENT_RING_SIZE.
+        private long mCount;
+
+        void record(char level, String prefix, String msg, long value, String suffix) {
+            int index = (int) (mCount % EVENT_RING_SIZE);
+            mTimes[index] = System.currentTimeMillis();
+            mLevels[index] = level;
+            mPrefixes[index] = prefix;
+            mMessages[index] = msg;
+            mValues[index] = value;
+            mSuffixes[index] = suffix;
+            mCount++;
+        }
+
+        void dump(IndentingPrintWriter pw) {
+            long first = Math.max(0L, mCount - EVENT_RING_SIZE);
+            for (long i = first; i < mCount; i++) {
+                int index = (int) (i % EVENT_RING_SIZE);
+                StringBuilder builder = new StringBuilder();
+                builder.append(Instant.ofEpochMilli(mTimes[index])).append(" [")
+                        .append(mLevels[index]).append("] ").append(mPrefixes[index])
+                        .append(mMessages[index]);
+                if (mValues[index] != NO_VALUE) {
+                    builder.append(mValues[index]);
+                }
+                if (mSuffixes[index] != null) {
+                    builder.append(mSuffixes[index]);
+                }
+                pw.println(builder.toString());
+            }
+        }
+    }
+
+    private static final Object sLock = new Object();
+
+    // The event ring of each subscription.
+    @GuardedBy("sLock")
+    private static final SparseArray<EventRing> sEventRings = new SparseArray<>();
+
+    private final String mTag;
+    private final int mSubId;
+    private final String mPrefix;
+    private final boolean mIsDebugEnabled;
+
+    /**
+     * @param tag The logcat tag.
+     * @param subId The subscription ID, which selects the event ring.
+     * @param prefix The prefix added to every message, such as "[1][coordId=2] ".
+     */
+    public UceLogger(String tag, int subId, String prefix) {
+        this(tag, subId, prefix, Build.IS_DEBUGGABLE || Log.isLoggable(tag, Log.DEBUG));
+    }
+
+    @VisibleForTesting
+    public UceLogger(String tag, int subId, String prefix, boolean isDebugEnabled) {
+        mTag = tag;
+        mSubId = subId;
+        mPrefix = prefix;
+        mIsDebugEnabled = isDebugEnabled;
+    }
+
+    /**
+     * @return Whether the debug messages are emitted to logcat. The callers only need to check
+     * it before building a message which is expensive to format.
+     */
+    public boolean isDebugEnabled() {
+        return mIsDebugEnabled;
+    }
+
+    public void d(String msg) {
+        recordEvent('D', msg, NO_VALUE, null);
+        if (mIsDebugEnabled) {
+            Log.d(mTag, mPrefix + msg);
+        }
+    }
+
+    /**
+     * Log the given message followed by the given value, such as a task ID or a size.
+     */
+    public void d(String msg, long value) {
+        recordEvent('D', msg, value, null);
+        if (mIsDebugEnabled) {
+            Log.d(mTag, mPrefix + msg + value);
+        }
+    }
+
+    /**
+     * Log the given message followed by the given value and the given suffix. The suffix is
+     * expected to be a constant, such as the description of an event.
+     */
+    public void d(String msg, long value, String suffix) {
+        recordEvent('D', msg, value, suffix);
+        if (mIsDebugEnabled) {
+            Log.d(mTag, mPrefix + msg + value + suffix);
+        }
+    }
+
+    /**
+     * Log the given message followed by the given argument, which is only converted to a string
+     * when the message is emitted to logcat.
+     */
+    public void d(String msg, Object arg) {
+        recordEvent('D', msg, NO_VALUE, null);
+        if (mIsDebugEnabled) {
+            Log.d(mTag, mPrefix + msg + arg);
+        }
+    }
+
+    public void w(String msg) {
+        recordEvent('W', msg, NO_VALUE, null);
+        Log.w(mTag, mPrefix + msg);
+    }
+
+    /**
+     * Log the given warning followed by the given argument. Warnings are not frequent, so the
+     * argument is kept formatted in the event ring.
+     */
+    public void w(String msg, Object arg) {
+        String formattedArg = String.valueOf(arg);
+        recordEvent('W', msg, NO_VALUE, formattedArg);
+        Log.w(mTag, mPrefix + msg + formattedArg);
+    }
+
+    private void recordEvent(char level, String msg, long value, String suffix) {
+        synchronized (sLock) {
+            EventRing ring = sEventRings.get(mSubId);
+            if (ring == null) {
+                ring = new EventRing();
+                sEventRings.put(mSubId, ring);
+            }
+            ring.record(level, mPrefix, msg, value, suffix);
+        }
+    }
+
+    /**
+     * Remove the events of the given subscription.
+     */
+    public static void clear(int subId) {
+        synchronized (sLock) {
+            sEventRings.remove(subId);
+        }
+    }
+
+    /**
+     * @return The number of events recorded for the given subscription since it was cleared.
+     */
+    @VisibleForTesting
+    public static long getEventCount(int subId) {
+        synchronized (sLock) {
+            EventRing ring = sEventRings.get(subId);
+            return (ring == null) ? 0L : ring.mCount;
+        }
+    }
+
+    /**
+     * Print the latest events of the given subscription.
+     */
+    public static void dump(IndentingPrintWriter pw, int subId) {
+        pw.println("UceLogger events:");
+        pw.increaseIndent();
+        synchronized (sLock) {
+            EventRing ring = sEventRings.get(subId);
+            if (ring != null) {
+                ring.dump(pw);
+            }
+        }
+        pw.decreaseIndent();
+    }
+}
@@ -31,6 +31,7 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.ims.rcs.uce.UceDeviceState.DeviceStateResult;
+import com.android.ims.rcs.uce.request.OptionsRequestDispatcher;
 
 import java.time.Instant;
 import java.util.Optional;
@@ -55,6 +56,11 @@ public class UceUtils {
     private static final long DEFAULT_CAP_REQUEST_TIMEOUT_AFTER_MS = TimeUnit.MINUTES.toMillis(3);
     private static Optional<Long> OVERRIDE_CAP_REQUEST_TIMEOUT_AFTER_MS = Optional.empty();
 
+    // The default time the capabilities of a multi-contact OPTIONS request are aggregated for
+    // before they are notified.
+    private static final long DEFAULT_OPTIONS_AGGREGATION_WINDOW_MS = 200L;
+    private static Optional<Long> OVERRIDE_OPTIONS_AGGREGATION_WINDOW_MS = Optional.empty();
+
     // The default value of the availability cache expiration.
     private static final long DEFAULT_AVAILABILITY_CACHE_EXPIRATION_SEC = 60L;   // 60 seconds
 
@@ -280,6 +286,94 @@ public class UceUtils {
                 CarrierConfigManager.Ims.KEY_NON_RCS_CAPABILITIES_CACHE_EXPIRATION_SEC_INT);
     }
 
+    /**
+     * The carrier config keys of how many OPTIONS requests can be sent at the same time, the
+     * sustained rate they can be sent at and how many can be sent at once after being idle.
+     */
+    public static final String KEY_OPTIONS_MAX_CONCURRENT_REQUESTS_INT =
+            "imsrcs.options_max_concurrent_requests_int";
+    public static final String KEY_OPTIONS_REQUESTS_PER_SECOND_INT =
+            "imsrcs.options_requests_per_second_int";
+    public static final String KEY_OPTIONS_REQUEST_BURST_SIZE_INT =
+            "imsrcs.options_request_burst_size_int";
+
+    public static int getOptionsMaxConcurrentRequests(Context context, int subId) {
+        return getCarrierConfigInt(context, subId, KEY_OPTIONS_MAX_CONCURRENT_REQUESTS_INT,
+                OptionsRequestDispatcher.DEFAULT_MAX_CONCURRENT_REQUESTS);
+    }
+
+    public static int getOptionsRequestsPerSecond(Context context, int subId) {
+        return getCarrierConfigInt(context, subId, KEY_OPTIONS_REQUESTS_PER_SECOND_INT,
+                OptionsRequestDispatcher.DEFAULT_REQUESTS_PER_SECOND);
+    }
+
+    public static int getOptionsRequestBurstSize(Context context, int subId) {
+        return getCarrierConfigInt(context, subId, KEY_OPTIONS_REQUEST_BURST_SIZE_INT,
+                OptionsRequestDispatcher.DEFAULT_BURST_SIZE);
+    }
+
+    private static int getCarrierConfigInt(Context context, int subId, String key,
+            int defaultValue) {
+        CarrierConfigManager configManager = context.getSystemService(CarrierConfigManager.class);
+        if (configManager == null) {
+            return defaultValue;
+        }
+        PersistableBundle config = configManager.getConfigForSubId(subId);
+        if (config == null) {
+            return defaultValue;
+        }
+        return config.getInt(key, defaultValue);
+    }
+
+    /**
+     * The carrier config key of whether the EAB writes the capabilities in the compact format,
+     * which stores the service IDs, versions and feature tags as references to a dictionary.
+     * The capabilities are read in either format.
+     */
+    public static final String KEY_EAB_COMPACT_STORAGE_BOOL = "imsrcs.eab_compact_storage_bool";
+
+    private static final boolean DEFAULT_EAB_COMPACT_STORAGE = true;
+
+    /**
+     * @return Whether the EAB writes the capabilities in the compact format.
+     */
+    public static boolean isEabCompactStorageEnabled(Context context, int subId) {
+        CarrierConfigManager configManager = context.getSystemService(CarrierConfigManager.class);
+        if (configManager == null) {
+            return DEFAULT_EAB_COMPACT_STORAGE;
+        }
+        PersistableBundle config = configManager.getConfigForSubId(subId);
+        if (config == null) {
+            return DEFAULT_EAB_COMPACT_STORAGE;
+        }
+        return config.getBoolean(KEY_EAB_COMPACT_STORAGE_BOOL, DEFAULT_EAB_COMPACT_STORAGE);
+    }
+
+    /**
+     * The carrier config key of the policies overriding how the subscribe request is retried
+     * for each terminated reason of RFC 3265, such as "probation:1:never". See
+     * {@link com.android.ims.rcs.uce.request.SubscriptionTerminatedHelper#setCarrierRetryPolicies}
+     * for the format of the entries.
+     */
+    public static final String KEY_SUBSCRIBE_TERMINATED_RETRY_POLICIES_STRING_ARRAY =
+            "imsrcs.subscribe_terminated_retry_policies_string_array";
+
+    /**
+     * Get the policies overriding how the subscribe request is retried for each terminated
+     * reason, or null if the carrier does not override them.
+     */
+    public static String[] getSubscribeTerminatedRetryPolicies(Context context, int subId) {
+        CarrierConfigManager configManager = context.getSystemService(CarrierConfigManager.class);
+        if (configManager == null) {
+            return null;
+        }
+        PersistableBundle config = configManager.getConfigForSubId(subId);
+        if (config == null) {
+            return null;
+        }
+        return config.getStringArray(KEY_SUBSCRIBE_TERMINATED_RETRY_POLICIES_STRING_ARRAY);
+    }
+
     public static boolean isRequestForbiddenBySip489(Context context, int subId) {
         CarrierConfigManager configManager = context.getSystemService(CarrierConfigManager.class);
         if (configManager == null) {
@@ -416,6 +510,28 @@ public class UceUtils {
         }
     }
 
+    /**
+     * Override the time the capabilities of a multi-contact OPTIONS request are aggregated for.
+     * Sending a value < 0 will reset the value, 0 disables the aggregation.
+     */
+    public static synchronized void setOptionsAggregationWindowMillis(long windowMs) {
+        if (windowMs < 0L) {
+            OVERRIDE_OPTIONS_AGGREGATION_WINDOW_MS = Optional.empty();
+        } else {
+            OVERRIDE_OPTIONS_AGGREGATION_WINDOW_MS = Optional.of(windowMs);
+        }
+    }
+
+    /**
+     * Get the maximum time the capabilities received for the contacts of a multi-contact OPTIONS
+     * request can be held to be notified together.
+     * @return the aggregation window in milliseconds, 0 if the capabilities are not aggregated.
+     */
+    public static synchronized long getOptionsAggregationWindowMillis() {
+        return OVERRIDE_OPTIONS_AGGREGATION_WINDOW_MS.orElse(
+                DEFAULT_OPTIONS_AGGREGATION_WINDOW_MS);
+    }
+
     /**
      * Get the contact number from the given URI.
      * @param contactUri The contact uri of the capabilities to request for.
@@ -19,15 +19,22 @@ package com.android.ims;
 import junit.framework.AssertionFailedError;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.telephony.ims.ImsRegistrationAttributes;
+import android.telephony.ims.RegistrationManager;
 import android.telephony.ims.aidl.IImsConfig;
 import android.telephony.ims.aidl.IImsRegistration;
+import android.telephony.ims.aidl.IImsRegistrationCallback;
 import android.telephony.ims.aidl.ISipTransport;
 import android.telephony.ims.feature.ImsFeature;
 import android.telephony.ims.stub.ImsRegistrationImplBase;
@@ -39,6 +46,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 
 
@@ -163,6 +171,47 @@ public class FeatureConnectionTest extends ImsTestBase {
 
     }
 
+    /**
+     * Test that the registration tech is mirrored from the registration callback once it has
+     * been received, instead of being queried from the ImsService.
+     */
+    @Test
+    @SmallTest
+    public void testRegistrationTechMirrored() throws Exception {
+        when(mRegistrationBinder.getRegistrationTechnology()).thenReturn(
+                ImsRegistrationImplBase.REGISTRATION_TECH_IWLAN);
+
+        // The first query falls back to the ImsService and registers the callback.
+        assertEquals(ImsRegistrationImplBase.REGISTRATION_TECH_IWLAN,
+                mTestFeatureConnection.getRegistrationTech());
+        ArgumentCaptor<IImsRegistrationCallback> captor =
+                ArgumentCaptor.forClass(IImsRegistrationCallback.class);
+        verify(mRegistrationBinder).addRegistrationCallback(captor.capture());
+        IImsRegistrationCallback callback = captor.getValue();
+
+        ImsRegistrationAttributes attr = new ImsRegistrationAttributes.Builder(
+                ImsRegistrationImplBase.REGISTRATION_TECH_LTE).build();
+        callback.onRegistered(attr);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(ImsRegistrationImplBase.REGISTRATION_TECH_LTE,
+                    mTestFeatureConnection.getRegistrationTech());
+        }
+        assertEquals(RegistrationManager.REGISTRATION_STATE_REGISTERED,
+                mTestFeatureConnection.getRegistrationState());
+        assertEquals(attr, mTestFeatureConnection.getRegistrationAttributes());
+        verify(mRegistrationBinder, times(1)).getRegistrationTechnology();
+        verify(mRegistrationBinder, times(1)).addRegistrationCallback(any());
+
+        // The mirrored state is reset when the feature is removed.
+        mTestFeatureConnection.onRemovedOrDied();
+        verify(mRegistrationBinder).removeRegistrationCallback(callback);
+        callback.onRegistered(attr);
+        assertNull(mTestFeatureConnection.getRegistrationAttributes());
+        assertEquals(ImsRegistrationImplBase.REGISTRATION_TECH_IWLAN,
+                mTestFeatureConnection.getRegistrationTech());
+        verify(mRegistrationBinder, times(2)).getRegistrationTechnology();
+    }
+
     /**
      * Test registration tech callbacks.
      */
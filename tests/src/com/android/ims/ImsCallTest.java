@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ims;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Bundle;
+import android.telephony.ims.ImsCallProfile;
+import android.telephony.ims.ImsConferenceState;
+
+import com.android.ims.internal.ConferenceParticipant;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class ImsCallTest extends ImsTestBase {
+
+    private static final int TEST_TIMEOUT_MS = 5000;
+    // Generous bound for a direct, in-process listener dispatch.
+    private static final long MAX_DELIVERY_LATENCY_MS = 1000;
+
+    private static class TestListener extends ImsCall.Listener {
+        final AtomicInteger mRttMessageCount = new AtomicInteger();
+        final AtomicInteger mAnbrQueryCount = new AtomicInteger();
+        List<ConferenceParticipant> mParticipants = new ArrayList<>();
+        List<ConferenceParticipant> mAdded = new ArrayList<>();
+        List<ConferenceParticipant> mChanged = new ArrayList<>();
+        List<ConferenceParticipant> mRemoved = new ArrayList<>();
+        int mDeltaCount = 0;
+
+        @Override
+        public void onRttMessageReceived(ImsCall imsCall, String message) {
+            mRttMessageCount.incrementAndGet();
+        }
+
+        @Override
+        public void onCallSessionSendAnbrQuery(ImsCall imsCall, int mediaType, int direction,
+                int bitsPerSecond) {
+            mAnbrQueryCount.incrementAndGet();
+        }
+
+        @Override
+        public void onConferenceParticipantsStateChanged(ImsCall call,
+                List<ConferenceParticipant> participants) {
+            mParticipants = participants;
+        }
+
+        @Override
+        public void onConferenceParticipantsDeltaChanged(ImsCall call,
+                List<ConferenceParticipant> added, List<ConferenceParticipant> changed,
+                List<ConferenceParticipant> removed) {
+            mAdded = added;
+            mChanged = changed;
+            mRemoved = removed;
+            mDeltaCount++;
+        }
+    }
+
+    private ImsCall mImsCall;
+    private TestListener mListener;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mImsCall = new ImsCall(mContext, new ImsCallProfile());
+        mListener = new TestListener();
+        mImsCall.setListener(mListener, false /*callbackImmediately*/);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mImsCall = null;
+        super.tearDown();
+    }
+
+    /**
+     * RTT messages and ANBR queries must still be delivered promptly while another thread holds
+     * the ImsCall monitor, such as during merge processing.
+     */
+    @Test
+    @SmallTest
+    public void testRttDeliveryNotBlockedByConcurrentMerge() throws Exception {
+        ImsCall.ImsCallSessionListenerProxy proxy = mImsCall.new ImsCallSessionListenerProxy();
+        CountDownLatch monitorHeld = new CountDownLatch(1);
+        CountDownLatch releaseMonitor = new CountDownLatch(1);
+        Thread mergeThread = new Thread(() -> {
+            synchronized (mImsCall) {
+                monitorHeld.countDown();
+                try {
+                    releaseMonitor.await(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+        });
+        mergeThread.start();
+        assertTrue(monitorHeld.await(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        final int numMessages = 100;
+        long maxLatencyMs = 0;
+        try {
+            for (int i = 0; i < numMessages; i++) {
+                long start = System.nanoTime();
+                proxy.callSessionRttMessageReceived("message " + i);
+                proxy.callSessionSendAnbrQuery(1 /*mediaType*/, 1 /*direction*/, 24000);
+                maxLatencyMs = Math.max(maxLatencyMs,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+            // The "merge" must still be holding the monitor for the test to be meaningful.
+            assertTrue(mergeThread.isAlive());
+        } finally {
+            releaseMonitor.countDown();
+            mergeThread.join(TEST_TIMEOUT_MS);
+        }
+
+        assertEquals(numMessages, mListener.mRttMessageCount.get());
+        assertEquals(numMessages, mListener.mAnbrQueryCount.get());
+        assertTrue("max latency " + maxLatencyMs, maxLatencyMs < MAX_DELIVERY_LATENCY_MS);
+    }
+
+    /**
+     * Conference event packages are diffed against the previous one: only new and changed
+     * participants are re-created, and the delta listener reports added/changed/removed.
+     */
+    @Test
+    @SmallTest
+    public void testConferenceParticipantDelta() {
+        ImsConferenceState state = new ImsConferenceState();
+        state.mParticipants.put("a", createParticipant("tel:+15555550101",
+                ImsConferenceState.STATUS_CONNECTED));
+        state.mParticipants.put("b", createParticipant("tel:+15555550102",
+                ImsConferenceState.STATUS_CONNECTED));
+        mImsCall.conferenceStateUpdated(state);
+
+        assertEquals(2, mListener.mParticipants.size());
+        assertEquals(2, mListener.mAdded.size());
+        assertEquals(0, mListener.mChanged.size());
+        assertEquals(0, mListener.mRemoved.size());
+        ConferenceParticipant participantA = findParticipant(mListener.mParticipants,
+                "tel:+15555550101");
+
+        // "a" is unchanged, "b" goes on hold and "c" joins.
+        state = new ImsConferenceState();
+        state.mParticipants.put("a", createParticipant("tel:+15555550101",
+                ImsConferenceState.STATUS_CONNECTED));
+        state.mParticipants.put("b", createParticipant("tel:+15555550102",
+                ImsConferenceState.STATUS_ON_HOLD));
+        state.mParticipants.put("c", createParticipant("tel:+15555550103",
+                ImsConferenceState.STATUS_CONNECTED));
+        mImsCall.conferenceStateUpdated(state);
+
+        assertEquals(3, mListener.mParticipants.size());
+        assertSame(participantA, findParticipant(mListener.mParticipants, "tel:+15555550101"));
+        assertEquals(1, mListener.mAdded.size());
+        assertEquals("tel:+15555550103", mListener.mAdded.get(0).getHandle().toString());
+        assertEquals(1, mListener.mChanged.size());
+        assertEquals("tel:+15555550102", mListener.mChanged.get(0).getHandle().toString());
+        assertEquals(0, mListener.mRemoved.size());
+        ConferenceParticipant heldParticipantB = mListener.mChanged.get(0);
+        ConferenceParticipant participantC = mListener.mAdded.get(0);
+
+        // "b" disconnects and "c" is no longer reported.
+        state = new ImsConferenceState();
+        state.mParticipants.put("a", createParticipant("tel:+15555550101",
+                ImsConferenceState.STATUS_CONNECTED));
+        state.mParticipants.put("b", createParticipant("tel:+15555550102",
+                ImsConferenceState.STATUS_DISCONNECTED));
+        mImsCall.conferenceStateUpdated(state);
+
+        assertEquals(1, mListener.mParticipants.size());
+        assertSame(participantA, mListener.mParticipants.get(0));
+        assertEquals(0, mListener.mAdded.size());
+        assertEquals(0, mListener.mChanged.size());
+        assertEquals(2, mListener.mRemoved.size());
+        assertTrue(mListener.mRemoved.contains(heldParticipantB));
+        assertTrue(mListener.mRemoved.contains(participantC));
+        assertEquals(3, mListener.mDeltaCount);
+
+        // An identical conference event package does not report a delta.
+        mImsCall.conferenceStateUpdated(state);
+        assertEquals(3, mListener.mDeltaCount);
+        assertSame(participantA, mListener.mParticipants.get(0));
+    }
+
+    private static Bundle createParticipant(String user, String status) {
+        Bundle participant = new Bundle();
+        participant.putString(ImsConferenceState.USER, user);
+        participant.putString(ImsConferenceState.STATUS, status);
+        participant.putString(ImsConferenceState.ENDPOINT, user);
+        return participant;
+    }
+
+    private static ConferenceParticipant findParticipant(List<ConferenceParticipant> participants,
+            String user) {
+        for (ConferenceParticipant participant : participants) {
+            if (user.equals(participant.getHandle().toString())) {
+                return participant;
+            }
+        }
+        return null;
+    }
+}
@@ -22,6 +22,7 @@ import static org.junit.Assert.assertNull;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -44,8 +45,14 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 @RunWith(AndroidJUnit4.class)
 public class ImsFeatureBinderRepositoryTest extends ImsTestBase {
 
@@ -355,6 +362,83 @@ public class ImsFeatureBinderRepositoryTest extends ImsTestBase {
         verify(mConnectionCallback2, never()).imsFeatureRemoved(anyInt());
     }
 
+    @Test
+    @SmallTest
+    public void testSupersededUpdatesCollapsed() throws Exception {
+        ImsFeatureContainer fcA =
+                getFeatureContainer(mMockMmTelFeatureA, TEST_SERVICE_CAPS);
+        ArrayDeque<Runnable> pendingTasks = new ArrayDeque<>();
+        mRepository.registerForConnectionUpdates(TEST_PHONE_ID_1, ImsFeature.FEATURE_MMTEL,
+                mConnectionCallback, pendingTasks::add);
+        mRepository.addConnection(TEST_PHONE_ID_1, TEST_SUB_ID_3, ImsFeature.FEATURE_MMTEL, fcA);
+        mRepository.notifyFeatureStateChanged(TEST_PHONE_ID_1, ImsFeature.FEATURE_MMTEL,
+                ImsFeature.STATE_INITIALIZING);
+        mRepository.notifyFeatureStateChanged(TEST_PHONE_ID_1, ImsFeature.FEATURE_MMTEL,
+                ImsFeature.STATE_UNAVAILABLE);
+        mRepository.notifyFeatureStateChanged(TEST_PHONE_ID_1, ImsFeature.FEATURE_MMTEL,
+                ImsFeature.STATE_READY);
+        mRepository.notifyFeatureCapabilitiesChanged(TEST_PHONE_ID_1, ImsFeature.FEATURE_MMTEL,
+                0);
+        mRepository.notifyFeatureCapabilitiesChanged(TEST_PHONE_ID_1, ImsFeature.FEATURE_MMTEL,
+                TEST_SERVICE_CAPS);
+
+        // Only one dispatch is scheduled on the executor for all of the pending updates.
+        assertEquals(1, pendingTasks.size());
+        pendingTasks.poll().run();
+
+        InOrder inOrder = inOrder(mConnectionCallback);
+        inOrder.verify(mConnectionCallback).imsFeatureCreated(fcA, TEST_SUB_ID_3);
+        inOrder.verify(mConnectionCallback).imsStatusChanged(ImsFeature.STATE_READY,
+                TEST_SUB_ID_3);
+        inOrder.verify(mConnectionCallback).updateCapabilities(TEST_SERVICE_CAPS);
+        verify(mConnectionCallback, never()).imsStatusChanged(eq(ImsFeature.STATE_INITIALIZING),
+                anyInt());
+        verify(mConnectionCallback, never()).imsStatusChanged(eq(ImsFeature.STATE_UNAVAILABLE),
+                anyInt());
+        verify(mConnectionCallback, never()).updateCapabilities(0);
+    }
+
+    @Test
+    @SmallTest
+    public void testListenerRemovedOnBinderDeath() throws Exception {
+        ImsFeatureContainer fcA =
+                getFeatureContainer(mMockMmTelFeatureA, TEST_SERVICE_CAPS);
+        mRepository.registerForConnectionUpdates(TEST_PHONE_ID_1, ImsFeature.FEATURE_MMTEL,
+                mConnectionCallback, Runnable::run);
+        ArgumentCaptor<IBinder.DeathRecipient> recipientCaptor =
+                ArgumentCaptor.forClass(IBinder.DeathRecipient.class);
+        verify(mConnectionCallbackBinder).linkToDeath(recipientCaptor.capture(), anyInt());
+
+        recipientCaptor.getValue().binderDied();
+        mRepository.addConnection(TEST_PHONE_ID_1, TEST_SUB_ID_3, ImsFeature.FEATURE_MMTEL, fcA);
+        verifyFeatureCreatedCalled(0 /*times*/, mConnectionCallback, fcA);
+        verify(mConnectionCallbackBinder).unlinkToDeath(recipientCaptor.getValue(), 0);
+    }
+
+    @Test
+    @SmallTest
+    public void testListenerDispatchedAfterRejectedExecution() throws Exception {
+        ImsFeatureContainer fcA =
+                getFeatureContainer(mMockMmTelFeatureA, TEST_SERVICE_CAPS);
+        ImsFeatureContainer fcB =
+                getFeatureContainer(mMockMmTelFeatureB, TEST_SERVICE_CAPS);
+        AtomicBoolean reject = new AtomicBoolean(false);
+        mRepository.registerForConnectionUpdates(TEST_PHONE_ID_1, ImsFeature.FEATURE_MMTEL,
+                mConnectionCallback, r -> {
+                    if (reject.get()) throw new RejectedExecutionException();
+                    r.run();
+                });
+
+        reject.set(true);
+        mRepository.addConnection(TEST_PHONE_ID_1, TEST_SUB_ID_3, ImsFeature.FEATURE_MMTEL, fcA);
+        verifyFeatureCreatedCalled(0 /*times*/, mConnectionCallback, fcA);
+
+        // The rejected dispatch must not prevent the next notifications from being dispatched.
+        reject.set(false);
+        mRepository.addConnection(TEST_PHONE_ID_1, TEST_SUB_ID_3, ImsFeature.FEATURE_MMTEL, fcB);
+        verifyFeatureCreatedCalled(1 /*times*/, mConnectionCallback, fcB);
+    }
+
     private void verifyFeatureCreatedCalled(int timesCalled, IImsServiceFeatureCallback cb,
             ImsFeatureContainer fc) throws Exception {
         verify(cb, times(timesCalled)).imsFeatureCreated(fc, TEST_SUB_ID_3);
@@ -22,11 +22,16 @@ import static android.telephony.ims.stub.ImsRegistrationImplBase.REGISTRATION_TE
 import static android.telephony.ims.stub.ImsRegistrationImplBase.REGISTRATION_TECH_LTE;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
@@ -44,7 +49,9 @@ import android.telephony.SubscriptionManager;
 import android.telephony.ims.ImsMmTelManager;
 import android.telephony.ims.ImsRcsManager;
 import android.telephony.ims.ProvisioningManager;
+import android.telephony.ims.aidl.IImsCapabilityCallback;
 import android.telephony.ims.aidl.IImsConfig;
+import android.telephony.ims.aidl.IImsConfigCallback;
 import android.telephony.ims.aidl.IImsRegistration;
 import android.telephony.ims.aidl.ISipTransport;
 import android.telephony.ims.feature.MmTelFeature;
@@ -63,9 +70,14 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 
 @RunWith(AndroidJUnit4.class)
@@ -324,6 +336,8 @@ public class ImsManagerTest extends ImsTestBase {
                 eq(ImsRegistrationImplBase.REGISTRATION_TECH_IWLAN));
         clearInvocations(mITelephony);
 
+        // The ImsService reports the provisioning change.
+        notifyProvisioningChanged(ProvisioningManager.KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE);
         mMmTelProvisioningRequired = false;
         assertEquals(true, imsManager.isWfcProvisionedOnDevice());
         verify(mITelephony, times(1)).
@@ -348,6 +362,8 @@ public class ImsManagerTest extends ImsTestBase {
                 eq(ImsRegistrationImplBase.REGISTRATION_TECH_LTE));
         clearInvocations(mITelephony);
 
+        // The ImsService reports the provisioning change.
+        notifyProvisioningChanged(ProvisioningManager.KEY_VT_PROVISIONING_STATUS);
         mMmTelProvisioningRequired = false;
         assertEquals(true, imsManager.isVtProvisionedOnDevice());
         verify(mITelephony, times(1)).isProvisioningRequiredForCapability(anyInt(),
@@ -371,6 +387,8 @@ public class ImsManagerTest extends ImsTestBase {
                 eq(ImsRegistrationImplBase.REGISTRATION_TECH_LTE));
         clearInvocations(mITelephony);
 
+        // The ImsService reports the provisioning change.
+        notifyProvisioningChanged(ProvisioningManager.KEY_VOLTE_PROVISIONING_STATUS);
         mMmTelProvisioningRequired = false;
         assertEquals(true, imsManager.isVolteProvisionedOnDevice());
         verify(mITelephony, times(1)).isProvisioningRequiredForCapability(anyInt(),
@@ -394,6 +412,8 @@ public class ImsManagerTest extends ImsTestBase {
                 eq(ImsRegistrationImplBase.REGISTRATION_TECH_LTE));
         clearInvocations(mITelephony);
 
+        // The ImsService reports the provisioning change.
+        notifyProvisioningChanged(ProvisioningManager.KEY_EAB_PROVISIONING_STATUS);
         mRcsProvisioningRequired = false;
         assertEquals(true, imsManager.isEabProvisionedOnDevice());
         verify(mITelephony, times(1)).isRcsProvisioningRequiredForCapability(anyInt(),
@@ -424,6 +444,7 @@ public class ImsManagerTest extends ImsTestBase {
 
         assertEquals(0, (int) mProvisionedIntVals.get(
                 ImsConfig.ConfigConstants.VOICE_OVER_WIFI_SETTING_ENABLED));
+        notifyProvisioningChanged(ImsConfig.ConfigConstants.VOICE_OVER_WIFI_SETTING_ENABLED);
 
         assertEquals(false, imsManager.isWfcProvisionedOnDevice());
 
@@ -459,6 +480,7 @@ public class ImsManagerTest extends ImsTestBase {
 
         assertEquals(0, (int) mProvisionedIntVals.get(
                 ImsConfig.ConfigConstants.EAB_SETTING_ENABLED));
+        notifyProvisioningChanged(ImsConfig.ConfigConstants.EAB_SETTING_ENABLED);
 
         assertEquals(false, imsManager.isEabProvisionedOnDevice());
 
@@ -472,6 +494,230 @@ public class ImsManagerTest extends ImsTestBase {
                 eq(ImsRegistrationImplBase.REGISTRATION_TECH_LTE));
     }
 
+    @Test
+    public void testProvisioningStatusCached() throws Exception {
+        ImsManager imsManager = getImsManagerAndInitProvisionedValues();
+        mMmTelProvisioningRequired = true;
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(true, imsManager.isVolteProvisionedOnDevice());
+        }
+        verify(mITelephony, times(1)).isProvisioningRequiredForCapability(anyInt(),
+                eq(MmTelFeature.MmTelCapabilities.CAPABILITY_TYPE_VOICE),
+                eq(ImsRegistrationImplBase.REGISTRATION_TECH_LTE));
+        verify(mITelephony, times(1)).getImsProvisioningStatusForCapability(anyInt(),
+                eq(MmTelFeature.MmTelCapabilities.CAPABILITY_TYPE_VOICE),
+                eq(ImsRegistrationImplBase.REGISTRATION_TECH_LTE));
+        assertEquals(8, imsManager.getProvisioningCache().getHitCount());
+        assertEquals(2, imsManager.getProvisioningCache().getMissCount());
+        clearInvocations(mITelephony);
+
+        // A change to the provisioning values invalidates the cache.
+        mProvisionedIntVals.put(ProvisioningManager.KEY_VOLTE_PROVISIONING_STATUS,
+                ImsConfig.FeatureValueConstants.OFF);
+        notifyProvisioningChanged(ProvisioningManager.KEY_VOLTE_PROVISIONING_STATUS);
+        assertEquals(false, imsManager.isVolteProvisionedOnDevice());
+        verify(mITelephony, times(1)).getImsProvisioningStatusForCapability(anyInt(),
+                eq(MmTelFeature.MmTelCapabilities.CAPABILITY_TYPE_VOICE),
+                eq(ImsRegistrationImplBase.REGISTRATION_TECH_LTE));
+        clearInvocations(mITelephony);
+
+        // The cache is cleared when the ImsService is removed.
+        imsManager.invalidate();
+        mMmTelProvisioningRequired = false;
+        assertEquals(true, imsManager.isVolteProvisionedOnDevice());
+        assertEquals(true, imsManager.isVolteProvisionedOnDevice());
+        verify(mITelephony, times(2)).isProvisioningRequiredForCapability(anyInt(),
+                eq(MmTelFeature.MmTelCapabilities.CAPABILITY_TYPE_VOICE),
+                eq(ImsRegistrationImplBase.REGISTRATION_TECH_LTE));
+    }
+
+    @Test
+    public void testRcsProvisioningStatusNotCached() throws Exception {
+        ImsManager imsManager = getImsManagerAndInitProvisionedValues();
+        mRcsProvisioningRequired = true;
+
+        assertEquals(true, imsManager.isEabProvisionedOnDevice());
+        assertEquals(true, imsManager.isEabProvisionedOnDevice());
+
+        // The RCS provisioning changes are not reported through the MMTEL config callback.
+        verify(mITelephony, times(2)).isRcsProvisioningRequiredForCapability(anyInt(),
+                eq(RcsFeature.RcsImsCapabilities.CAPABILITY_TYPE_PRESENCE_UCE),
+                eq(ImsRegistrationImplBase.REGISTRATION_TECH_LTE));
+        verify(mITelephony, times(2)).getRcsProvisioningStatusForCapability(anyInt(),
+                eq(RcsFeature.RcsImsCapabilities.CAPABILITY_TYPE_PRESENCE_UCE),
+                eq(ImsRegistrationImplBase.REGISTRATION_TECH_LTE));
+    }
+
+    @Test
+    public void testQueryMmTelCapabilities() throws Exception {
+        ImsManager imsManager = getImsManagerAndInitProvisionedValues();
+        // Only voice over LTE and IWLAN is enabled.
+        doAnswer(invocation -> {
+            int capability = invocation.getArgument(0);
+            int radioTech = invocation.getArgument(1);
+            IImsCapabilityCallback callback = invocation.getArgument(2);
+            callback.onQueryCapabilityConfiguration(capability, radioTech,
+                    capability == CAPABILITY_TYPE_VOICE && (radioTech == REGISTRATION_TECH_LTE
+                            || radioTech == REGISTRATION_TECH_IWLAN));
+            return null;
+        }).when(mMmTelFeatureConnection).queryEnabledCapabilities(anyInt(), anyInt(), any());
+
+        MmTelCapabilityMatrix matrix = imsManager.queryMmTelCapabilities(
+                MmTelCapabilityMatrix.ALL_CAPABILITIES, MmTelCapabilityMatrix.ALL_RADIO_TECHS);
+
+        assertTrue(matrix.isComplete());
+        for (int capability : MmTelCapabilityMatrix.ALL_CAPABILITIES) {
+            for (int radioTech : MmTelCapabilityMatrix.ALL_RADIO_TECHS) {
+                assertTrue(matrix.hasResult(capability, radioTech));
+                assertEquals(capability == CAPABILITY_TYPE_VOICE
+                                && (radioTech == REGISTRATION_TECH_LTE
+                                || radioTech == REGISTRATION_TECH_IWLAN),
+                        matrix.isEnabled(capability, radioTech));
+            }
+        }
+        // All the queries share one callback.
+        ArgumentCaptor<IImsCapabilityCallback> captor =
+                ArgumentCaptor.forClass(IImsCapabilityCallback.class);
+        verify(mMmTelFeatureConnection, times(MmTelCapabilityMatrix.ALL_CAPABILITIES.length
+                * MmTelCapabilityMatrix.ALL_RADIO_TECHS.length))
+                .queryEnabledCapabilities(anyInt(), anyInt(), captor.capture());
+        for (IImsCapabilityCallback callback : captor.getAllValues()) {
+            assertEquals(captor.getValue(), callback);
+        }
+
+        assertTrue(imsManager.queryMmTelCapability(CAPABILITY_TYPE_VOICE,
+                REGISTRATION_TECH_IWLAN));
+        assertFalse(imsManager.queryMmTelCapability(CAPABILITY_TYPE_VIDEO,
+                REGISTRATION_TECH_LTE));
+    }
+
+    @Test
+    public void testQueryMmTelCapabilitiesAsync() throws Exception {
+        ImsManager imsManager = getImsManagerAndInitProvisionedValues();
+        List<Integer> capabilities = new ArrayList<>();
+        List<IImsCapabilityCallback> callbacks = new ArrayList<>();
+        doAnswer(invocation -> {
+            capabilities.add(invocation.getArgument(0));
+            callbacks.add(invocation.getArgument(2));
+            return null;
+        }).when(mMmTelFeatureConnection).queryEnabledCapabilities(anyInt(), anyInt(), any());
+        int[] queried = {CAPABILITY_TYPE_VOICE, CAPABILITY_TYPE_VIDEO};
+
+        CompletableFuture<MmTelCapabilityMatrix> future = imsManager.queryMmTelCapabilitiesAsync(
+                queried, new int[] {REGISTRATION_TECH_LTE});
+
+        assertEquals(2, callbacks.size());
+        // A response for a pair which was not queried is ignored.
+        callbacks.get(0).onQueryCapabilityConfiguration(CAPABILITY_TYPE_VOICE,
+                REGISTRATION_TECH_IWLAN, true);
+        callbacks.get(0).onQueryCapabilityConfiguration(capabilities.get(0),
+                REGISTRATION_TECH_LTE, true);
+        assertFalse(future.isDone());
+        callbacks.get(1).onQueryCapabilityConfiguration(capabilities.get(1),
+                REGISTRATION_TECH_LTE, false);
+        assertTrue(future.isDone());
+        MmTelCapabilityMatrix matrix = future.get();
+        assertTrue(matrix.isEnabled(capabilities.get(0), REGISTRATION_TECH_LTE));
+        assertFalse(matrix.isEnabled(capabilities.get(1), REGISTRATION_TECH_LTE));
+        assertFalse(matrix.hasResult(CAPABILITY_TYPE_VOICE, REGISTRATION_TECH_IWLAN));
+    }
+
+    @Test
+    public void testQueryMmTelCapabilitiesWithDuplicates() throws Exception {
+        ImsManager imsManager = getImsManagerAndInitProvisionedValues();
+        List<IImsCapabilityCallback> callbacks = new ArrayList<>();
+        doAnswer(invocation -> {
+            callbacks.add(invocation.getArgument(2));
+            return null;
+        }).when(mMmTelFeatureConnection).queryEnabledCapabilities(anyInt(), anyInt(), any());
+
+        CompletableFuture<MmTelCapabilityMatrix> future = imsManager.queryMmTelCapabilitiesAsync(
+                new int[] {CAPABILITY_TYPE_VOICE, CAPABILITY_TYPE_VOICE},
+                new int[] {REGISTRATION_TECH_LTE, REGISTRATION_TECH_LTE});
+
+        // The duplicated pair is only queried once and completes the query once answered.
+        assertEquals(1, callbacks.size());
+        callbacks.get(0).onQueryCapabilityConfiguration(CAPABILITY_TYPE_VOICE,
+                REGISTRATION_TECH_LTE, true);
+        assertTrue(future.isDone());
+        assertTrue(future.get().isComplete());
+        assertTrue(future.get().isEnabled(CAPABILITY_TYPE_VOICE, REGISTRATION_TECH_LTE));
+    }
+
+    @Test @SmallTest
+    public void testSettingsEditorWritesOnceAndReevaluatesOnce() throws Exception {
+        ImsManager imsManager = getImsManagerAndInitProvisionedValues();
+
+        imsManager.edit()
+                .setWfcEnabled(true)
+                .setWfcMode(ImsMmTelManager.WIFI_MODE_WIFI_PREFERRED, false /*roaming*/)
+                .setWfcMode(ImsMmTelManager.WIFI_MODE_WIFI_ONLY, false /*roaming*/)
+                .setWfcRoamingEnabled(false)
+                .setVtEnabled(false)
+                .commit();
+
+        ArgumentCaptor<Map<String, String>> captor = ArgumentCaptor.forClass(Map.class);
+        verify(mSubscriptionManagerProxy, times(1)).setSubscriptionProperties(eq(mSubId[0]),
+                captor.capture());
+        Map<String, String> properties = captor.getValue();
+        assertEquals(4, properties.size());
+        assertEquals("1", properties.get(SubscriptionManager.WFC_IMS_ENABLED));
+        assertEquals(String.valueOf(ImsMmTelManager.WIFI_MODE_WIFI_ONLY),
+                properties.get(SubscriptionManager.WFC_IMS_MODE));
+        assertEquals("0", properties.get(SubscriptionManager.WFC_IMS_ROAMING_ENABLED));
+        assertEquals("0", properties.get(SubscriptionManager.VT_IMS_ENABLED));
+        verify(mSubscriptionManagerProxy, never()).setSubscriptionProperty(anyInt(), anyString(),
+                anyString());
+        // The capabilities are only re-evaluated once for all the changes.
+        verify(mMmTelFeatureConnection, times(1)).changeEnabledCapabilities(any(), any());
+    }
+
+    @Test @SmallTest
+    public void testSettingsEditorChecksProvisioning() throws Exception {
+        ImsManager imsManager = getImsManagerAndInitProvisionedValues();
+        mMmTelProvisioningRequired = true;
+        mProvisionedIntVals.put(ProvisioningManager.KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE,
+                ImsConfig.FeatureValueConstants.OFF);
+
+        imsManager.edit()
+                .setWfcEnabled(true)
+                .setCrossSimCallingEnabled(true)
+                .commit();
+
+        // Neither WFC nor cross SIM calling can be enabled when WFC is not provisioned.
+        verify(mSubscriptionManagerProxy, never()).setSubscriptionProperties(anyInt(), any());
+    }
+
+    @Test @SmallTest
+    public void testFactoryResetWritesOnce() throws Exception {
+        ImsManager imsManager = getImsManagerAndInitProvisionedValues();
+
+        imsManager.factoryReset();
+
+        ArgumentCaptor<Map<String, String>> captor = ArgumentCaptor.forClass(Map.class);
+        verify(mSubscriptionManagerProxy, times(1)).setSubscriptionProperties(eq(mSubId[0]),
+                captor.capture());
+        Map<String, String> properties = captor.getValue();
+        assertEquals(7, properties.size());
+        assertEquals("-1", properties.get(SubscriptionManager.ENHANCED_4G_MODE_ENABLED));
+        assertEquals("-1", properties.get(SubscriptionManager.WFC_IMS_MODE));
+        assertEquals("0", properties.get(SubscriptionManager.IMS_RCS_UCE_ENABLED));
+        verify(mSubscriptionManagerProxy, never()).setSubscriptionProperty(anyInt(), anyString(),
+                anyString());
+        verify(mMmTelFeatureConnection, times(1)).changeEnabledCapabilities(any(), any());
+    }
+
+    @Test @SmallTest
+    public void testSettingsEditorWithoutChanges() throws Exception {
+        ImsManager imsManager = getImsManagerAndInitProvisionedValues();
+
+        imsManager.edit().commit();
+
+        verify(mSubscriptionManagerProxy, never()).setSubscriptionProperties(anyInt(), any());
+        verify(mMmTelFeatureConnection, never()).changeEnabledCapabilities(any(), any());
+    }
+
     /**
      * Tests that when WFC is enabled/disabled for home/roaming, that setting is sent to the
      * ImsService correctly.
@@ -1085,6 +1331,14 @@ public class ImsManagerTest extends ImsTestBase {
         return mgr;
     }
 
+    private void notifyProvisioningChanged(int item) throws RemoteException {
+        ArgumentCaptor<IImsConfigCallback> captor =
+                ArgumentCaptor.forClass(IImsConfigCallback.class);
+        verify(mMmTelFeatureConnection, atLeastOnce()).addProvisioningCallbackForSubscription(
+                captor.capture(), eq(mSubId[0]));
+        captor.getValue().onIntConfigChanged(item, ImsConfig.FeatureValueConstants.OFF);
+    }
+
     private void setWfcEnabledByPlatform(boolean isEnabled) {
         Resources res = mContext.getResources();
         doReturn(isEnabled).when(res).getBoolean(
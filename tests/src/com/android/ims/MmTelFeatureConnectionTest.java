@@ -16,15 +16,30 @@
 
 package com.android.ims;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.content.Context;
 import android.os.Binder;
 import android.os.IBinder;
 import android.os.IInterface;
+import android.os.RemoteException;
+import android.telephony.ims.ImsCallProfile;
+import android.telephony.ims.aidl.IImsConfig;
+import android.telephony.ims.aidl.IImsMmTelFeature;
+import android.telephony.ims.aidl.IImsRegistration;
+import android.telephony.ims.aidl.ISipTransport;
 import android.telephony.ims.feature.ImsFeature;
+import android.telephony.ims.stub.ImsSmsImplBase;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import androidx.test.filters.SmallTest;
@@ -37,11 +52,17 @@ import org.mockito.Mock;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 @RunWith(AndroidJUnit4.class)
 public class MmTelFeatureConnectionTest extends ImsTestBase {
 
     private class TestCallback extends Binder implements IInterface {
+        // The events received when multiplexed.
+        List<String> mEvents = new ArrayList<>();
 
         @Override
         public IBinder asBinder() {
@@ -88,13 +109,48 @@ public class MmTelFeatureConnectionTest extends ImsTestBase {
         }
     }
 
+    private class MultiplexedCallbackManagerTest extends
+            ImsCallbackAdapterManager<TestCallback> {
+
+        List<TestCallback> mUpstreamCallbacks = new ArrayList<>();
+        int mRegisterCount = 0;
+        int mUnregisterCount = 0;
+
+        MultiplexedCallbackManagerTest(Context context, Object lock) {
+            super(context, lock, SLOT_ID, SUB_ID, manager -> new TestCallback());
+        }
+
+        @Override
+        public void registerCallback(TestCallback localCallback) {
+            mRegisterCount++;
+            mUpstreamCallbacks.add(localCallback);
+        }
+
+        @Override
+        public void unregisterCallback(TestCallback localCallback) {
+            mUnregisterCount++;
+            mUpstreamCallbacks.remove(localCallback);
+        }
+
+        // Simulate an event from the ImsService on the upstream callback.
+        void sendEvent(String stateKey, String event) {
+            notifyCallbacks(stateKey, c -> c.mEvents.add(event));
+        }
+    }
+
     private CallbackManagerTest mCallbackManagerUT;
 
     @Mock
     FeatureConnection mFeatureConnection;
+    @Mock IImsMmTelFeature mMmTelFeature;
+    @Mock IBinder mMmTelBinder;
+    @Mock IImsConfig mConfigBinder;
+    @Mock IImsRegistration mRegistrationBinder;
+    @Mock ISipTransport mSipTransportBinder;
 
     public static final int SUB_ID = 1;
     public static final int SLOT_ID = 0;
+    private static final int TEST_TIMEOUT_MS = 5000;
 
     @Before
     public void setUp() throws Exception {
@@ -180,6 +236,57 @@ public class MmTelFeatureConnectionTest extends ImsTestBase {
     }
 
 
+    /**
+     * Ensure that only one callback is registered with the ImsService for all the local callbacks
+     * and that the last state is replayed to the local callbacks added later.
+     */
+    @Test
+    @SmallTest
+    public void testCallbackAdapter_multiplexed() throws Exception {
+        MultiplexedCallbackManagerTest manager = new MultiplexedCallbackManagerTest(mContext,
+                this);
+        TestCallback testCallback1 = new TestCallback();
+        TestCallback testCallback2 = new TestCallback();
+        TestCallback testCallback3 = new TestCallback();
+        manager.addCallback(testCallback1);
+        manager.addCallback(testCallback2);
+        assertEquals(1, manager.mRegisterCount);
+        assertEquals(1, manager.mUpstreamCallbacks.size());
+
+        manager.sendEvent("state", "registering");
+        manager.sendEvent("state", "registered");
+        manager.sendEvent(null, "techChangeFailed");
+        manager.sendEvent("uris", "uris");
+        assertEquals(List.of("registering", "registered", "techChangeFailed", "uris"),
+                testCallback1.mEvents);
+        assertEquals(testCallback1.mEvents, testCallback2.mEvents);
+
+        // Only the last event of each state is replayed.
+        manager.addCallbackForSubscription(testCallback3, SUB_ID);
+        assertEquals(1, manager.mRegisterCount);
+        assertEquals(List.of("registered", "uris"), testCallback3.mEvents);
+
+        manager.removeCallback(testCallback1);
+        manager.removeCallback(testCallback2);
+        assertEquals(0, manager.mUnregisterCount);
+        manager.removeCallback(testCallback3);
+        assertEquals(1, manager.mUnregisterCount);
+        assertTrue(manager.mUpstreamCallbacks.isEmpty());
+
+        // The state is not replayed once the upstream callback has been removed.
+        manager.addCallback(testCallback1);
+        assertEquals(2, manager.mRegisterCount);
+        manager.sendEvent("state", "deregistered");
+        assertEquals(List.of("registering", "registered", "techChangeFailed", "uris",
+                "deregistered"), testCallback1.mEvents);
+
+        manager.close();
+        assertEquals(2, manager.mUnregisterCount);
+        assertTrue(manager.mUpstreamCallbacks.isEmpty());
+        manager.sendEvent("state", "registered");
+        assertEquals(5, testCallback1.mEvents.size());
+    }
+
     /**
      * UnregisterCallback is success After ImsFeatureState changed to STATE_UNAVAILABLE.
      */
@@ -236,4 +343,82 @@ public class MmTelFeatureConnectionTest extends ImsTestBase {
         mCallbackManagerUT.addCallback(testCallback1);
         assertFalse(mCallbackManagerUT.doesCallbackExist(testCallback1));
     }
+
+    /**
+     * While a capability change is blocked in the ImsService, SMS and call setup operations on the
+     * same connection must not be serialized behind it.
+     */
+    @Test
+    @SmallTest
+    public void testSmsAndCallSetupNotBlockedByCapabilityChange() throws Exception {
+        when(mMmTelFeature.asBinder()).thenReturn(mMmTelBinder);
+        when(mMmTelBinder.queryLocalInterface(anyString())).thenReturn(mMmTelFeature);
+        when(mMmTelBinder.isBinderAlive()).thenReturn(true);
+        when(mMmTelFeature.getFeatureState()).thenReturn(ImsFeature.STATE_READY);
+        MmTelFeatureConnection connection = new MmTelFeatureConnection(mContext, SLOT_ID, SUB_ID,
+                mMmTelFeature, mConfigBinder, mRegistrationBinder, mSipTransportBinder);
+
+        CountDownLatch capabilityChangeStarted = new CountDownLatch(1);
+        CountDownLatch releaseCapabilityChange = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            capabilityChangeStarted.countDown();
+            releaseCapabilityChange.await(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            return null;
+        }).when(mMmTelFeature).changeCapabilitiesConfiguration(any(), any());
+        Thread capabilityThread = new Thread(() -> {
+            try {
+                connection.changeEnabledCapabilities(null, null);
+            } catch (RemoteException e) {
+                // ignore
+            }
+        });
+        capabilityThread.start();
+        assertTrue(capabilityChangeStarted.await(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        final int numOperations = 200;
+        CountDownLatch operationsDone = new CountDownLatch(numOperations * 3);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int i = 0; i < numOperations; i++) {
+                final int token = i;
+                executor.execute(() -> {
+                    try {
+                        connection.sendSms(token, token, "3gpp", null, false, new byte[0]);
+                        operationsDone.countDown();
+                    } catch (RemoteException e) {
+                        // ignore, the latch will time out.
+                    }
+                });
+                executor.execute(() -> {
+                    try {
+                        connection.acknowledgeSms(token, token,
+                                ImsSmsImplBase.DELIVER_STATUS_OK);
+                        operationsDone.countDown();
+                    } catch (RemoteException e) {
+                        // ignore, the latch will time out.
+                    }
+                });
+                executor.execute(() -> {
+                    try {
+                        connection.createCallSession(new ImsCallProfile());
+                        operationsDone.countDown();
+                    } catch (RemoteException e) {
+                        // ignore, the latch will time out.
+                    }
+                });
+            }
+            // All operations must complete while the capability change is still outstanding.
+            assertTrue(operationsDone.await(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            assertTrue(capabilityThread.isAlive());
+        } finally {
+            releaseCapabilityChange.countDown();
+            executor.shutdownNow();
+            capabilityThread.join(TEST_TIMEOUT_MS);
+        }
+
+        verify(mMmTelFeature, times(numOperations)).sendSms(anyInt(), anyInt(), anyString(),
+                any(), anyBoolean(), any());
+        verify(mMmTelFeature, times(numOperations)).acknowledgeSms(anyInt(), anyInt(), anyInt());
+        verify(mMmTelFeature, times(numOperations)).createCallSession(any());
+    }
 }
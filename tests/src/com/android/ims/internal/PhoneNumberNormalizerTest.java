@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ims.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.telephony.PhoneNumberUtils;
+import android.util.IndentingPrintWriter;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.StringWriter;
+
+@RunWith(AndroidJUnit4.class)
+public class PhoneNumberNormalizerTest {
+
+    @Before
+    public void setUp() throws Exception {
+        PhoneNumberNormalizer.clearCache();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        PhoneNumberNormalizer.clearCache();
+    }
+
+    @Test
+    @SmallTest
+    public void testGetUserPartMatchesSplit() {
+        String[] inputs = {
+                "+16505551212",
+                "+16505551212@ims.com",
+                "6505551212;phone-context=ims.mnc012.mcc034.3gppnetwork.org",
+                "+1-212-555-1212@something.com;user=phone",
+                "user:password@host:5060",
+                "@host.com",
+                ";@:",
+                "@",
+                "",
+        };
+        for (String input : inputs) {
+            String[] parts = input.split("[@;:]");
+            String expected = parts.length == 0 ? null : parts[0];
+            assertEquals(input, expected, PhoneNumberNormalizer.getUserPart(input));
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testFormatNumberToE164MatchesPhoneNumberUtils() {
+        String[] numbers = {"6505551212", "+16505551212", "650-555-1212", "123", "abc"};
+        // Query twice so that the second pass is served from the cache.
+        for (int i = 0; i < 2; i++) {
+            for (String number : numbers) {
+                assertEquals(number, PhoneNumberUtils.formatNumberToE164(number, "us"),
+                        PhoneNumberNormalizer.formatNumberToE164(number, "us"));
+            }
+        }
+        assertNull(PhoneNumberNormalizer.formatNumberToE164(null, "us"));
+    }
+
+    @Test
+    @SmallTest
+    public void testClearCacheResetsStatistics() {
+        PhoneNumberNormalizer.formatNumberToE164("6505551212", "us");
+        PhoneNumberNormalizer.formatNumberToE164("6505551212", "us");
+        assertTrue(dump().contains("validE164: size=1, hits=1, misses=1"));
+
+        PhoneNumberNormalizer.clearCache();
+
+        assertTrue(dump().contains("validE164: size=0, hits=0, misses=0"));
+    }
+
+    private static String dump() {
+        StringWriter writer = new StringWriter();
+        IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
+        PhoneNumberNormalizer.dump(pw);
+        pw.flush();
+        return writer.toString();
+    }
+
+    @Test
+    @SmallTest
+    public void testFormatNumber() {
+        // Query twice so that the second pass is served from the cache.
+        for (int i = 0; i < 2; i++) {
+            assertEquals("+16505551212", PhoneNumberNormalizer.formatNumber("6505551212", "us"));
+            assertEquals("+16505551212",
+                    PhoneNumberNormalizer.formatNumber("+1 650-555-1212", "US"));
+            // Numbers which can not be parsed are returned as they are.
+            assertEquals("abc", PhoneNumberNormalizer.formatNumber("abc", "US"));
+        }
+        assertEquals("6505551212", PhoneNumberNormalizer.formatNumber("6505551212", null));
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.ims.rcs.uce;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
@@ -27,6 +28,7 @@ import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
 import android.net.Uri;
+import android.os.Looper;
 import android.telephony.ims.RcsUceAdapter;
 import android.telephony.ims.aidl.IOptionsRequestCallback;
 import android.telephony.ims.aidl.IRcsUceControllerCallback;
@@ -51,6 +53,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 
 @RunWith(AndroidJUnit4.class)
@@ -124,6 +127,40 @@ public class UceControllerTest extends ImsTestBase {
         verify(mOptionsController).onRcsDisconnected();
     }
 
+    @Test
+    @SmallTest
+    public void testEabControllerUsesDedicatedLooper() throws Exception {
+        UceController uceController = createUceController();
+
+        ArgumentCaptor<Looper> eabLooper = ArgumentCaptor.forClass(Looper.class);
+        ArgumentCaptor<Looper> requestLooper = ArgumentCaptor.forClass(Looper.class);
+        verify(mControllerFactory).createEabController(any(), eq(mSubId), any(),
+                eabLooper.capture());
+        verify(mTaskManagerFactory).createRequestManager(any(), eq(mSubId),
+                requestLooper.capture(), any());
+        // The EAB database work must not delay the capability requests.
+        assertNotEquals(eabLooper.getValue(), requestLooper.getValue());
+
+        uceController.onDestroy();
+    }
+
+    @Test
+    @SmallTest
+    public void testPublishControllerUsesDedicatedLooper() throws Exception {
+        UceController uceController = createUceController();
+
+        ArgumentCaptor<Looper> publishLooper = ArgumentCaptor.forClass(Looper.class);
+        ArgumentCaptor<Looper> requestLooper = ArgumentCaptor.forClass(Looper.class);
+        verify(mControllerFactory).createPublishController(any(), eq(mSubId), any(),
+                publishLooper.capture());
+        verify(mTaskManagerFactory).createRequestManager(any(), eq(mSubId),
+                requestLooper.capture(), any());
+        // The publish state changes must not wait for the capability requests.
+        assertNotEquals(publishLooper.getValue(), requestLooper.getValue());
+
+        uceController.onDestroy();
+    }
+
     @Test
     @SmallTest
     public void testOnDestroyed() throws Exception {
@@ -24,6 +24,7 @@ import static android.telephony.ims.RcsContactUceCapability.SOURCE_TYPE_NETWORK;
 
 import static com.android.ims.rcs.uce.eab.EabProvider.COMMON_URI;
 import static com.android.ims.rcs.uce.eab.EabProvider.CONTACT_URI;
+import static com.android.ims.rcs.uce.eab.EabProvider.DICTIONARY_URI;
 import static com.android.ims.rcs.uce.eab.EabProvider.OPTIONS_URI;
 import static com.android.ims.rcs.uce.eab.EabProvider.PRESENCE_URI;
 
@@ -32,21 +33,28 @@ import static org.mockito.Mockito.doReturn;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.Looper;
 import android.os.PersistableBundle;
 import android.telephony.ims.RcsContactPresenceTuple;
 import android.telephony.ims.RcsContactUceCapability;
 import android.test.mock.MockContentResolver;
+import android.util.Log;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
 import androidx.test.filters.SmallTest;
 
 import com.android.ims.ImsTestBase;
+import com.android.ims.rcs.uce.util.UceUtils;
 
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
@@ -56,7 +64,9 @@ import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -85,6 +95,14 @@ public class EabControllerTest extends ImsTestBase {
 
     private static final int TIME_OUT_IN_SEC = 5;
     private static final Uri TEST_CONTACT_URI = Uri.parse(TEST_PHONE_NUMBER + "@android.test");
+    private static final String[] TEST_FEATURE_TAGS = {
+            "+g.3gpp.icsi-ref=\"urn%3Aurn-7%3A3gpp-service.ims.icsi.mmtel\"",
+            "+g.3gpp.iari-ref=\"urn%3Aurn-7%3A3gpp-application.ims.iari.rcs.fthttp\"",
+            "+g.3gpp.iari-ref=\"urn%3Aurn-7%3A3gpp-application.ims.iari.rcs.geopush\"",
+            "+g.3gpp.icsi-ref=\"urn%3Aurn-7%3A3gpp-service.ims.icsi.oma.cpm.session\"",
+            "+g.gsma.rcs.botversion=\"#=1,#=2\"",
+            "video"
+    };
 
     @Before
     public void setUp() throws Exception {
@@ -110,6 +128,8 @@ public class EabControllerTest extends ImsTestBase {
 
     @After
     public void tearDown() throws Exception {
+        mEabControllerSub1.onDestroy();
+        mEabControllerSub2.onDestroy();
         super.tearDown();
     }
 
@@ -222,8 +242,7 @@ public class EabControllerTest extends ImsTestBase {
         List<RcsContactUceCapability> contactList = new ArrayList<>();
         contactList.add(createPresenceCapability());
         mEabControllerSub1.saveCapabilities(contactList);
-
-        mExecutor.awaitTermination(TIME_OUT_IN_SEC, TimeUnit.SECONDS);
+        mEabControllerSub1.flushPendingWrites();
 
         // Verify the entry that cannot map to presence/option table has been removed
         Cursor cursor = mContext.getContentResolver().query(COMMON_URI, null, null, null, null);
@@ -400,6 +419,372 @@ public class EabControllerTest extends ImsTestBase {
                 mEabControllerSub1.getCapabilities(contactUriList).get(0).getStatus());
     }
 
+    @Test
+    @SmallTest
+    public void testSaveCapabilitiesCoalescedAndReadYourWrites() {
+        List<RcsContactUceCapability> contactList = new ArrayList<>();
+        contactList.add(createEmptyTuplePresenceCapability());
+        mEabControllerSub1.saveCapabilities(contactList);
+        contactList.clear();
+        contactList.add(createPresenceCapability());
+        mEabControllerSub1.saveCapabilities(contactList);
+
+        // Only the latest capability of the contact is waiting to be written.
+        Assert.assertEquals(1, mEabControllerSub1.getPendingWriteCount());
+        Assert.assertEquals(1, mEabControllerSub1.getCoalescedWriteCount());
+
+        // Reading the contact returns the pending capability without writing it.
+        List<Uri> contactUriList = new ArrayList<>();
+        contactUriList.add(TEST_CONTACT_URI);
+        List<EabCapabilityResult> results = mEabControllerSub1.getCapabilities(contactUriList);
+        Assert.assertEquals(1, mEabControllerSub1.getPendingWriteCount());
+        Assert.assertEquals(0, mEabControllerSub1.getFlushCount());
+        Assert.assertEquals(EabCapabilityResult.EAB_QUERY_SUCCESSFUL, results.get(0).getStatus());
+        Assert.assertEquals(2,
+                results.get(0).getContactCapabilities().getCapabilityTuples().size());
+    }
+
+    @Test
+    @SmallTest
+    public void testPendingWritesFlushedOnDestroy() throws Exception {
+        List<RcsContactUceCapability> contactList = new ArrayList<>();
+        contactList.add(createPresenceCapability());
+        mEabControllerSub1.saveCapabilities(contactList);
+
+        mEabControllerSub1.onDestroy();
+        // The pending capabilities are written on the write thread before it stops.
+        mEabControllerSub1.getWriteThread().join(TimeUnit.SECONDS.toMillis(5));
+
+        Assert.assertEquals(0, mEabControllerSub1.getPendingWriteCount());
+        Cursor cursor = mContext.getContentResolver().query(PRESENCE_URI, null, null, null, null);
+        Assert.assertEquals(2, cursor.getCount());
+        cursor.close();
+    }
+
+    @Test
+    @SmallTest
+    public void testFailedWriteQueuedAgain() {
+        SQLiteDatabase db = mEabProviderTestable.getWritableDatabase();
+        db.execSQL("DROP TABLE " + EabProvider.EAB_PRESENCE_TUPLE_TABLE_NAME);
+        List<RcsContactUceCapability> contactList = new ArrayList<>();
+        contactList.add(createPresenceCapability());
+        mEabControllerSub1.saveCapabilities(contactList);
+
+        mEabControllerSub1.flushPendingWrites();
+
+        // The capability is still waiting to be written and can be read.
+        Assert.assertEquals(1, mEabControllerSub1.getPendingWriteCount());
+        List<Uri> contactUriList = new ArrayList<>();
+        contactUriList.add(TEST_CONTACT_URI);
+        Assert.assertEquals(EabCapabilityResult.EAB_QUERY_SUCCESSFUL,
+                mEabControllerSub1.getCapabilities(contactUriList).get(0).getStatus());
+
+        db.execSQL(EabProvider.EabDatabaseHelper.SQL_CREATE_PRESENCE_TUPLE_TABLE);
+        mEabControllerSub1.flushPendingWrites();
+
+        Assert.assertEquals(0, mEabControllerSub1.getPendingWriteCount());
+        Cursor cursor = mContext.getContentResolver().query(PRESENCE_URI, null, null, null, null);
+        Assert.assertEquals(2, cursor.getCount());
+        cursor.close();
+    }
+
+    @Test
+    @SmallTest
+    public void testCleanupExpiredCapabilitiesReturnsDeletedCounts() {
+        long expiredTime = Instant.now().minus(120, ChronoUnit.DAYS).getEpochSecond();
+        long recentTime = Instant.now().getEpochSecond();
+
+        // An expired RCS presence capability and a recent one.
+        ContentValues data = new ContentValues();
+        data.put(EabProvider.EabCommonColumns.REQUEST_RESULT, REQUEST_RESULT_FOUND);
+        Uri rcsCommonUri = mContext.getContentResolver().insert(COMMON_URI, data);
+        insertPresenceTuple(rcsCommonUri.getLastPathSegment(), expiredTime);
+        data = new ContentValues();
+        data.put(EabProvider.EabCommonColumns.REQUEST_RESULT, REQUEST_RESULT_FOUND);
+        Uri recentCommonUri = mContext.getContentResolver().insert(COMMON_URI, data);
+        insertPresenceTuple(recentCommonUri.getLastPathSegment(), recentTime);
+
+        // An expired non-RCS options capability.
+        data = new ContentValues();
+        data.put(EabProvider.EabCommonColumns.REQUEST_RESULT, REQUEST_RESULT_NOT_FOUND);
+        Uri nonRcsCommonUri = mContext.getContentResolver().insert(COMMON_URI, data);
+        data = new ContentValues();
+        data.put(EabProvider.OptionsColumns.EAB_COMMON_ID, nonRcsCommonUri.getLastPathSegment());
+        data.put(EabProvider.OptionsColumns.FEATURE_TAG, "featureTag");
+        data.put(EabProvider.OptionsColumns.REQUEST_TIMESTAMP, expiredTime);
+        mContext.getContentResolver().insert(OPTIONS_URI, data);
+
+        Bundle result = mEabControllerSub1.cleanupExpiredCapabilities();
+
+        Assert.assertEquals(1, result.getInt(EabProvider.KEY_DELETED_PRESENCE_COUNT));
+        Assert.assertEquals(1, result.getInt(EabProvider.KEY_DELETED_OPTIONS_COUNT));
+        // The common rows of both expired capabilities are removed.
+        Assert.assertEquals(2, result.getInt(EabProvider.KEY_DELETED_COMMON_COUNT));
+        Cursor cursor = mContext.getContentResolver().query(COMMON_URI, null, null, null, null);
+        Assert.assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    @Test
+    @SmallTest
+    public void testCleanupUnreferencedDictionaryEntries() {
+        List<RcsContactUceCapability> contactList = new ArrayList<>();
+        contactList.add(createOptionsCapability(TEST_CONTACT_URI));
+        mEabControllerSub1.saveCapabilities(contactList);
+        mEabControllerSub1.flushPendingWrites();
+        ContentValues data = new ContentValues();
+        data.put(EabProvider.DictionaryColumns.VALUE, "unreferenced");
+        mContext.getContentResolver().insert(DICTIONARY_URI, data);
+
+        Bundle result = mEabControllerSub1.cleanupExpiredCapabilities();
+
+        Assert.assertEquals(1, result.getInt(EabProvider.KEY_DELETED_DICTIONARY_COUNT));
+        Cursor cursor = mContext.getContentResolver().query(DICTIONARY_URI, null, null, null,
+                null);
+        Assert.assertEquals(TEST_FEATURE_TAGS.length, cursor.getCount());
+        cursor.close();
+        List<EabCapabilityResult> results =
+                mEabControllerSub2.getCapabilities(List.of(TEST_CONTACT_URI));
+        Assert.assertEquals(Set.of(TEST_FEATURE_TAGS),
+                results.get(0).getContactCapabilities().getFeatureTags());
+    }
+
+    private void insertPresenceTuple(String commonId, long timestamp) {
+        ContentValues data = new ContentValues();
+        data.put(EabProvider.PresenceTupleColumns.EAB_COMMON_ID, commonId);
+        data.put(EabProvider.PresenceTupleColumns.CONTACT_URI, TEST_CONTACT_URI.toString());
+        data.put(EabProvider.PresenceTupleColumns.REQUEST_TIMESTAMP, timestamp);
+        mContext.getContentResolver().insert(PRESENCE_URI, data);
+    }
+
+    @Test
+    @SmallTest
+    public void testCompactFormatRoundTrip() {
+        List<RcsContactUceCapability> contactList = new ArrayList<>();
+        contactList.add(createOptionsCapability(TEST_CONTACT_URI));
+        mEabControllerSub1.saveCapabilities(contactList);
+        mEabControllerSub1.flushPendingWrites();
+
+        // All the feature tags are packed in one row.
+        Cursor cursor = mContext.getContentResolver().query(OPTIONS_URI, null, null, null, null);
+        Assert.assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        List<EabCapabilityResult> results =
+                mEabControllerSub1.getCapabilities(List.of(TEST_CONTACT_URI));
+        Assert.assertEquals(EabCapabilityResult.EAB_QUERY_SUCCESSFUL, results.get(0).getStatus());
+        Assert.assertEquals(Set.of(TEST_FEATURE_TAGS),
+                results.get(0).getContactCapabilities().getFeatureTags());
+
+        contactList.clear();
+        contactList.add(createDuplexModePresenceCapability(TEST_CONTACT_URI));
+        mEabControllerSub2.saveCapabilities(contactList);
+        results = mEabControllerSub2.getCapabilities(List.of(TEST_CONTACT_URI));
+        assertTupleEquals(createDuplexModePresenceCapability(TEST_CONTACT_URI),
+                results.get(0).getContactCapabilities());
+    }
+
+    @Test
+    @SmallTest
+    public void testCompactStorageDisabledByCarrierConfig() {
+        mBundle.putBoolean(UceUtils.KEY_EAB_COMPACT_STORAGE_BOOL, false);
+        mEabControllerSub1.onCarrierConfigChanged();
+
+        List<RcsContactUceCapability> contactList = new ArrayList<>();
+        contactList.add(createOptionsCapability(TEST_CONTACT_URI));
+        mEabControllerSub1.saveCapabilities(contactList);
+        mEabControllerSub1.flushPendingWrites();
+
+        // One row per feature tag.
+        Cursor cursor = mContext.getContentResolver().query(OPTIONS_URI, null, null, null, null);
+        Assert.assertEquals(TEST_FEATURE_TAGS.length, cursor.getCount());
+        cursor.close();
+    }
+
+    @Test
+    @SmallTest
+    public void testMigrateToCompactFormat() {
+        // Write the capabilities in the format of the database version 4.
+        mEabControllerSub1.setCompactStorageEnabled(false);
+        mEabControllerSub2.setCompactStorageEnabled(false);
+        List<RcsContactUceCapability> contactList = new ArrayList<>();
+        contactList.add(createOptionsCapability(TEST_CONTACT_URI));
+        mEabControllerSub1.saveCapabilities(contactList);
+        mEabControllerSub1.flushPendingWrites();
+        contactList.clear();
+        contactList.add(createDuplexModePresenceCapability(TEST_CONTACT_URI));
+        mEabControllerSub2.saveCapabilities(contactList);
+        mEabControllerSub2.flushPendingWrites();
+        Cursor cursor = mContext.getContentResolver().query(OPTIONS_URI, null, null, null, null);
+        Assert.assertEquals(TEST_FEATURE_TAGS.length, cursor.getCount());
+        cursor.close();
+
+        EabCompactEncoding.migrateToCompactFormat(mEabProviderTestable.getWritableDatabase());
+
+        cursor = mContext.getContentResolver().query(OPTIONS_URI, null, null, null, null);
+        Assert.assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = mContext.getContentResolver().query(PRESENCE_URI, null,
+                EabProvider.PresenceTupleColumns.CAPABILITY_FLAGS + " IS NULL", null, null);
+        Assert.assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        List<EabCapabilityResult> results =
+                mEabControllerSub1.getCapabilities(List.of(TEST_CONTACT_URI));
+        Assert.assertEquals(Set.of(TEST_FEATURE_TAGS),
+                results.get(0).getContactCapabilities().getFeatureTags());
+        results = mEabControllerSub2.getCapabilities(List.of(TEST_CONTACT_URI));
+        assertTupleEquals(createDuplexModePresenceCapability(TEST_CONTACT_URI),
+                results.get(0).getContactCapabilities());
+    }
+
+    @Test
+    @SmallTest
+    public void testCompactFormatSmallerDatabase() {
+        List<Uri> contactUris = createBenchmarkContactUris();
+
+        mEabControllerSub1.setCompactStorageEnabled(false);
+        long textSize = saveCapabilitiesInCleanDatabase(contactUris);
+        assertAllCapabilitiesRead(contactUris);
+        mEabControllerSub1.setCompactStorageEnabled(true);
+        long compactSize = saveCapabilitiesInCleanDatabase(contactUris);
+        assertAllCapabilitiesRead(contactUris);
+
+        Assert.assertTrue(compactSize < textSize);
+    }
+
+    /**
+     * Benchmark of the database size and the decode time of the compact format against the
+     * TEXT format. The result is logged for comparison across changes, so it is not run with the
+     * unit tests.
+     */
+    @Test
+    @LargeTest
+    @Ignore("Benchmark, run manually")
+    public void testCompactFormatBenchmark() {
+        List<Uri> contactUris = createBenchmarkContactUris();
+
+        mEabControllerSub1.setCompactStorageEnabled(false);
+        long textSize = saveCapabilitiesInCleanDatabase(contactUris);
+        long textDecodeTimeUs = getDecodeTimeUs(contactUris);
+        mEabControllerSub1.setCompactStorageEnabled(true);
+        long compactSize = saveCapabilitiesInCleanDatabase(contactUris);
+        long compactDecodeTimeUs = getDecodeTimeUs(contactUris);
+
+        Log.i("EabControllerTest", "EAB size for " + contactUris.size() + " contacts: text="
+                + textSize + " bytes, compact=" + compactSize + " bytes; decode: text="
+                + textDecodeTimeUs + " us, compact=" + compactDecodeTimeUs + " us");
+    }
+
+    private static List<Uri> createBenchmarkContactUris() {
+        List<Uri> contactUris = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            contactUris.add(Uri.parse("tel:+1650555" + String.format("%04d", i)));
+        }
+        return contactUris;
+    }
+
+    /**
+     * Save options and presence capabilities of the contacts in a clean database.
+     * @return The database size of the capabilities in bytes.
+     */
+    private long saveCapabilitiesInCleanDatabase(List<Uri> contactUris) {
+        SQLiteDatabase db = mEabProviderTestable.getWritableDatabase();
+        db.delete(EabProvider.EAB_OPTIONS_TABLE_NAME, null, null);
+        db.delete(EabProvider.EAB_PRESENCE_TUPLE_TABLE_NAME, null, null);
+        db.delete(EabProvider.EAB_COMMON_TABLE_NAME, null, null);
+        db.delete(EabProvider.EAB_DICTIONARY_TABLE_NAME, null, null);
+        db.execSQL("VACUUM");
+        long emptySize = getDatabaseSize(db);
+
+        List<RcsContactUceCapability> contactList = new ArrayList<>();
+        for (int i = 0; i < contactUris.size(); i++) {
+            contactList.add((i % 2 == 0) ? createOptionsCapability(contactUris.get(i))
+                    : createDuplexModePresenceCapability(contactUris.get(i)));
+        }
+        mEabControllerSub1.saveCapabilities(contactList);
+        mEabControllerSub1.flushPendingWrites();
+        db.execSQL("VACUUM");
+        return getDatabaseSize(db) - emptySize;
+    }
+
+    private void assertAllCapabilitiesRead(List<Uri> contactUris) {
+        List<EabCapabilityResult> results = mEabControllerSub1.getCapabilities(contactUris);
+        Assert.assertEquals(contactUris.size(), results.size());
+        for (EabCapabilityResult result : results) {
+            Assert.assertEquals(EabCapabilityResult.EAB_QUERY_SUCCESSFUL, result.getStatus());
+        }
+    }
+
+    private long getDecodeTimeUs(List<Uri> contactUris) {
+        long start = System.nanoTime();
+        mEabControllerSub1.getCapabilities(contactUris);
+        return (System.nanoTime() - start) / 1000;
+    }
+
+    private static long getDatabaseSize(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+
+    private static void assertTupleEquals(RcsContactUceCapability expected,
+            RcsContactUceCapability actual) {
+        Assert.assertEquals(expected.getCapabilityTuples().size(),
+                actual.getCapabilityTuples().size());
+        RcsContactPresenceTuple expectedTuple = expected.getCapabilityTuples().get(0);
+        RcsContactPresenceTuple actualTuple = actual.getCapabilityTuples().get(0);
+        Assert.assertEquals(expectedTuple.getStatus(), actualTuple.getStatus());
+        Assert.assertEquals(expectedTuple.getServiceId(), actualTuple.getServiceId());
+        Assert.assertEquals(expectedTuple.getServiceVersion(), actualTuple.getServiceVersion());
+        Assert.assertEquals(expectedTuple.getServiceDescription(),
+                actualTuple.getServiceDescription());
+        RcsContactPresenceTuple.ServiceCapabilities expectedCapabilities =
+                expectedTuple.getServiceCapabilities();
+        RcsContactPresenceTuple.ServiceCapabilities actualCapabilities =
+                actualTuple.getServiceCapabilities();
+        Assert.assertEquals(expectedCapabilities.isAudioCapable(),
+                actualCapabilities.isAudioCapable());
+        Assert.assertEquals(expectedCapabilities.isVideoCapable(),
+                actualCapabilities.isVideoCapable());
+        Assert.assertEquals(expectedCapabilities.getSupportedDuplexModes(),
+                actualCapabilities.getSupportedDuplexModes());
+        Assert.assertEquals(expectedCapabilities.getUnsupportedDuplexModes(),
+                actualCapabilities.getUnsupportedDuplexModes());
+    }
+
+    private RcsContactUceCapability createOptionsCapability(Uri contactUri) {
+        RcsContactUceCapability.OptionsBuilder builder =
+                new RcsContactUceCapability.OptionsBuilder(contactUri, SOURCE_TYPE_NETWORK);
+        builder.setRequestResult(REQUEST_RESULT_FOUND);
+        builder.addFeatureTags(new HashSet<>(List.of(TEST_FEATURE_TAGS)));
+        return builder.build();
+    }
+
+    private RcsContactUceCapability createDuplexModePresenceCapability(Uri contactUri) {
+        RcsContactPresenceTuple.ServiceCapabilities.Builder serviceCapabilitiesBuilder =
+                new RcsContactPresenceTuple.ServiceCapabilities.Builder(TEST_AUDIO_CAPABLE,
+                        TEST_VIDEO_CAPABLE);
+        serviceCapabilitiesBuilder.addSupportedDuplexMode(
+                RcsContactPresenceTuple.ServiceCapabilities.DUPLEX_MODE_FULL);
+        serviceCapabilitiesBuilder.addUnsupportedDuplexMode(
+                RcsContactPresenceTuple.ServiceCapabilities.DUPLEX_MODE_RECEIVE_ONLY);
+        serviceCapabilitiesBuilder.addUnsupportedDuplexMode(
+                RcsContactPresenceTuple.ServiceCapabilities.DUPLEX_MODE_SEND_ONLY);
+        RcsContactPresenceTuple tuple = new RcsContactPresenceTuple.Builder(
+                RcsContactPresenceTuple.TUPLE_BASIC_STATUS_OPEN, TEST_SERVICE_SERVICE_ID,
+                TEST_SERVICE_VERSION)
+                .setServiceDescription(TEST_SERVICE_DESCRIPTION)
+                .setContactUri(contactUri)
+                .setServiceCapabilities(serviceCapabilitiesBuilder.build())
+                .build();
+
+        RcsContactUceCapability.PresenceBuilder builder =
+                new RcsContactUceCapability.PresenceBuilder(
+                        contactUri, SOURCE_TYPE_NETWORK, REQUEST_RESULT_FOUND);
+        builder.addCapabilityTuple(tuple);
+        return builder.build();
+    }
+
     private RcsContactUceCapability createPresenceCapability() {
         RcsContactPresenceTuple.ServiceCapabilities.Builder serviceCapabilitiesBuilder =
                 new RcsContactPresenceTuple.ServiceCapabilities.Builder(TEST_AUDIO_CAPABLE,
@@ -18,6 +18,7 @@ package com.android.ims.rcs.uce.eab;
 
 import static com.android.ims.rcs.uce.eab.EabProvider.EabDatabaseHelper.SQL_CREATE_COMMON_TABLE;
 import static com.android.ims.rcs.uce.eab.EabProvider.EabDatabaseHelper.SQL_CREATE_CONTACT_TABLE;
+import static com.android.ims.rcs.uce.eab.EabProvider.EabDatabaseHelper.SQL_CREATE_DICTIONARY_TABLE;
 import static com.android.ims.rcs.uce.eab.EabProvider.EabDatabaseHelper.SQL_CREATE_OPTIONS_TABLE;
 import static com.android.ims.rcs.uce.eab.EabProvider.EabDatabaseHelper.SQL_CREATE_PRESENCE_TUPLE_TABLE;
 
@@ -94,6 +95,7 @@ public class EabProviderTestable extends EabProvider {
             db.execSQL(SQL_CREATE_COMMON_TABLE);
             db.execSQL(SQL_CREATE_PRESENCE_TUPLE_TABLE);
             db.execSQL(SQL_CREATE_OPTIONS_TABLE);
+            db.execSQL(SQL_CREATE_DICTIONARY_TABLE);
         }
 
         @Override
@@ -18,8 +18,10 @@ package com.android.ims.rcs.uce.presence.pidfparser;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -486,6 +488,35 @@ public class PidfParserTest extends ImsTestBase {
                 + "</presence>";
     }
 
+    @Test
+    @SmallTest
+    public void testConvertToPidfReusesGeneratedDocument() throws Exception {
+        PidfParser.clearPidfCache();
+        String pidf = PidfParser.convertToPidf(getRcsContactUceCapability());
+
+        // The same capabilities return the document which was already generated.
+        assertSame(pidf, PidfParser.convertToPidf(getRcsContactUceCapability()));
+
+        // Changing a tuple generates a new document.
+        ServiceCapabilities servCaps = new ServiceCapabilities.Builder(true, false)
+                .addSupportedDuplexMode(ServiceCapabilities.DUPLEX_MODE_FULL).build();
+        RcsContactPresenceTuple tuple = new RcsContactPresenceTuple.Builder(
+                RcsContactPresenceTuple.TUPLE_BASIC_STATUS_OPEN,
+                RcsContactPresenceTuple.SERVICE_ID_MMTEL, "1.0")
+                .setContactUri(Uri.fromParts("sip", "test", null))
+                .setServiceDescription("description test")
+                .setServiceCapabilities(servCaps)
+                .build();
+        PresenceBuilder presenceBuilder = new PresenceBuilder(Uri.fromParts("sip", "test", null),
+                RcsContactUceCapability.SOURCE_TYPE_NETWORK,
+                RcsContactUceCapability.REQUEST_RESULT_FOUND);
+        presenceBuilder.addCapabilityTuple(tuple);
+        String changedPidf = PidfParser.convertToPidf(presenceBuilder.build());
+
+        assertNotEquals(pidf, changedPidf);
+        assertTrue(changedPidf.contains("<caps:video>false</caps:video>"));
+    }
+
     private RcsContactUceCapability getRcsContactUceCapability() {
         final Uri contact = Uri.fromParts("sip", "test", null);
         final boolean isAudioCapable = true;
@@ -17,6 +17,8 @@
 package com.android.ims.rcs.uce.presence.publish;
 
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyBoolean;
@@ -27,6 +29,8 @@ import android.content.Context;
 import android.telephony.CarrierConfigManager;
 import android.telephony.TelephonyManager;
 import android.telephony.ims.RcsContactPresenceTuple;
+import android.telephony.ims.RcsContactUceCapability;
+import android.telephony.ims.feature.MmTelFeature.MmTelCapabilities;
 import android.util.ArraySet;
 
 import static org.junit.Assert.assertEquals;
@@ -231,6 +235,52 @@ public class DeviceCapabilityInfoTest extends ImsTestBase {
         }
     }
 
+    @Test
+    @SmallTest
+    public void testDeviceCapabilitySnapshotRebuiltOnlyOnChange() throws Exception {
+        DeviceCapabilityInfo deviceCapInfo = createDeviceCapabilityInfo();
+        doReturn(null).when(mMockContext).getSystemService(CarrierConfigManager.class);
+        Uri[] uris = new Uri[1];
+        uris[0] = Uri.fromParts(PhoneAccount.SCHEME_SIP, sipNumber, null);
+        deviceCapInfo.updateRcsAssociatedUri(uris);
+
+        RcsContactUceCapability presenceCap = deviceCapInfo.getDeviceCapabilities(
+                RcsContactUceCapability.CAPABILITY_MECHANISM_PRESENCE, mMockContext);
+        RcsContactUceCapability optionsCap = deviceCapInfo.getDeviceCapabilities(
+                RcsContactUceCapability.CAPABILITY_MECHANISM_OPTIONS, mMockContext);
+        long version = deviceCapInfo.getCapabilityVersion();
+
+        // Mutators which do not change the capability state keep the same snapshots.
+        deviceCapInfo.updateRcsAssociatedUri(uris);
+        deviceCapInfo.updatePresenceCapable(false);
+        deviceCapInfo.updateMmtelCapabilitiesChanged(new MmTelCapabilities());
+        assertEquals(version, deviceCapInfo.getCapabilityVersion());
+        assertSame(presenceCap, deviceCapInfo.getDeviceCapabilities(
+                RcsContactUceCapability.CAPABILITY_MECHANISM_PRESENCE, mMockContext));
+        assertSame(optionsCap, deviceCapInfo.getDeviceCapabilities(
+                RcsContactUceCapability.CAPABILITY_MECHANISM_OPTIONS, mMockContext));
+
+        // A capability change rebuilds the snapshots.
+        MmTelCapabilities capabilities = new MmTelCapabilities();
+        capabilities.addCapabilities(MmTelCapabilities.CAPABILITY_TYPE_VOICE);
+        deviceCapInfo.updateMmtelCapabilitiesChanged(capabilities);
+        assertTrue(deviceCapInfo.getCapabilityVersion() > version);
+        RcsContactUceCapability newPresenceCap = deviceCapInfo.getDeviceCapabilities(
+                RcsContactUceCapability.CAPABILITY_MECHANISM_PRESENCE, mMockContext);
+        assertNotSame(presenceCap, newPresenceCap);
+        assertTrue(newPresenceCap.getCapabilityTuple(RcsContactPresenceTuple.SERVICE_ID_MMTEL)
+                .getServiceCapabilities().isAudioCapable());
+        assertNotSame(optionsCap, deviceCapInfo.getDeviceCapabilities(
+                RcsContactUceCapability.CAPABILITY_MECHANISM_OPTIONS, mMockContext));
+
+        // A new contact URI also rebuilds the snapshot.
+        uris[0] = Uri.fromParts(PhoneAccount.SCHEME_SIP, telNumber, null);
+        deviceCapInfo.updateRcsAssociatedUri(uris);
+        assertEquals(uris[0], deviceCapInfo.getDeviceCapabilities(
+                RcsContactUceCapability.CAPABILITY_MECHANISM_OPTIONS, mMockContext)
+                .getContactUri());
+    }
+
     private DeviceCapabilityInfo createDeviceCapabilityInfo() {
         DeviceCapabilityInfo deviceCapInfo = new DeviceCapabilityInfo(mSubId, null);
         return deviceCapInfo;
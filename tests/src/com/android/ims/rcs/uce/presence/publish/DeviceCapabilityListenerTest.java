@@ -16,6 +16,7 @@
 
 package com.android.ims.rcs.uce.presence.publish;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyInt;
@@ -29,8 +30,11 @@ import static org.mockito.Mockito.verify;
 
 import android.content.BroadcastReceiver;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Handler;
+import android.telecom.PhoneAccount;
 import android.telecom.TelecomManager;
+import android.telephony.TelephonyManager;
 import android.telephony.ims.ImsMmTelManager;
 import android.telephony.ims.ImsRcsManager;
 import android.telephony.ims.ImsReasonInfo;
@@ -141,6 +145,31 @@ public class DeviceCapabilityListenerTest extends ImsTestBase {
                 PublishController.PUBLISH_TRIGGER_TTY_PREFERRED_CHANGE);
     }
 
+    @Test
+    @SmallTest
+    public void testSimStateChangeInvalidatesContactUri() throws Exception {
+        DeviceCapabilityListener deviceCapListener = createDeviceCapabilityListener();
+        final BroadcastReceiver receiver = deviceCapListener.mReceiver;
+        Uri firstUri = Uri.fromParts(PhoneAccount.SCHEME_SIP, "test1", null);
+        Uri secondUri = Uri.fromParts(PhoneAccount.SCHEME_SIP, "test2", null);
+        PublishUtils.invalidateDeviceContactUri(mSubId);
+
+        doReturn(firstUri).when(mDeviceCapability).getImsAssociatedUri(false);
+        assertEquals(firstUri,
+                PublishUtils.getDeviceContactUri(mContext, mSubId, mDeviceCapability, false));
+
+        // The resolved URI is cached.
+        doReturn(secondUri).when(mDeviceCapability).getImsAssociatedUri(false);
+        assertEquals(firstUri,
+                PublishUtils.getDeviceContactUri(mContext, mSubId, mDeviceCapability, false));
+
+        Intent intent = new Intent(TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED);
+        receiver.onReceive(mContext, intent);
+
+        assertEquals(secondUri,
+                PublishUtils.getDeviceContactUri(mContext, mSubId, mDeviceCapability, false));
+    }
+
     @Test
     @SmallTest
     public void testMmtelRegistration() throws Exception {
@@ -17,16 +17,20 @@
 package com.android.ims.rcs.uce.presence.publish;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import android.telephony.ims.RcsContactPresenceTuple;
 import android.util.ArraySet;
 import android.util.Log;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
 import androidx.test.filters.SmallTest;
 
 import com.android.ims.rcs.uce.util.FeatureTags;
 
+import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
@@ -302,6 +306,73 @@ public class PublishServiceDescTrackerTest {
         assertEquals(expectedSet, t1.copyRegistrationCapabilities());
     }
 
+    @SmallTest
+    @Test
+    public void testMatchFullRegistration() {
+        PublishServiceDescTracker t1 =
+                PublishServiceDescTracker.fromCarrierConfig(TEST_OVERRIDE_CONFIG_FORMAT);
+        t1.updateImsRegistration(createFullImsRegistration());
+
+        Set<ServiceDescription> caps = t1.copyRegistrationCapabilities();
+        assertTrue(caps.contains(ServiceDescription.SERVICE_DESCRIPTION_FT));
+        assertTrue(caps.contains(ServiceDescription.SERVICE_DESCRIPTION_FT_SMS));
+        assertTrue(caps.contains(ServiceDescription.SERVICE_DESCRIPTION_SLM_PAGER_LARGE));
+        assertTrue(caps.contains(TEST_SERVICE_DESC_1));
+        assertTrue(caps.contains(TEST_SERVICE_DESC_2));
+        // Only the most complete match of the aliased MMTEL descriptions is included.
+        assertTrue(caps.contains(TEST_OVERRIDE_MMTEL_DESC));
+        assertFalse(caps.contains(ServiceDescription.SERVICE_DESCRIPTION_MMTEL_VOICE));
+        assertFalse(caps.contains(ServiceDescription.SERVICE_DESCRIPTION_SLM));
+    }
+
+    /**
+     * Benchmark of matching a full IMS registration against the default map plus carrier
+     * overrides. The result is logged for comparison across changes, so it is not run with the
+     * unit tests.
+     */
+    @LargeTest
+    @Ignore("Benchmark, run manually")
+    @Test
+    public void testMatchFullRegistrationBenchmark() {
+        PublishServiceDescTracker t1 =
+                PublishServiceDescTracker.fromCarrierConfig(TEST_OVERRIDE_CONFIG_FORMAT);
+        Set<String> imsReg = createFullImsRegistration();
+
+        final int warmUpIterations = 1000;
+        final int iterations = 10000;
+        for (int i = 0; i < warmUpIterations; i++) {
+            t1.updateImsRegistration(imsReg);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            t1.updateImsRegistration(imsReg);
+        }
+        long elapsedNs = System.nanoTime() - start;
+        Log.i("PublishServiceDescTrackerTest", "updateImsRegistration: "
+                + (elapsedNs / iterations) + " ns/op");
+    }
+
+    private Set<String> createFullImsRegistration() {
+        return createImsRegistration(
+                TEST_FEATURE_TAG_FT_FORMAT,
+                TEST_FEATURE_TAG_FT_SMS_FORMAT,
+                TEST_FEATURE_TAG_CHATBOT_FORMAT,
+                TEST_FEATURE_TAG_BOTVERSION_V2_FORMAT,
+                TEST_FEATURE_TAG_MMTEL_FORMAT,
+                TEST_FEATURE_TAG_VIDEO_FORMAT,
+                FeatureTags.FEATURE_TAG_CHAT_IM,
+                FeatureTags.FEATURE_TAG_CHAT_SESSION,
+                FeatureTags.FEATURE_TAG_PRESENCE,
+                FeatureTags.FEATURE_TAG_GEO_PUSH,
+                FeatureTags.FEATURE_TAG_CALL_COMPOSER_VIA_TELEPHONY,
+                FeatureTags.FEATURE_TAG_PAGER_MODE,
+                FeatureTags.FEATURE_TAG_LARGE_MODE,
+                TEST_FEATURE_TAG_1,
+                TEST_FEATURE_TAG_2A,
+                TEST_FEATURE_TAG_2B,
+                "+g.unknown.tag");
+    }
+
     private Set<String> createImsRegistration(String... imsReg) {
         return new ArraySet<>(imsReg);
     }
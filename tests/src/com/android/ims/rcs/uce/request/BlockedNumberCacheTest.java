@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ims.rcs.uce.request;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Looper;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import com.android.ims.ImsTestBase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+@RunWith(AndroidJUnit4.class)
+public class BlockedNumberCacheTest extends ImsTestBase {
+
+    private static final String BLOCKED_NUMBER = "+16505551212";
+    private static final String NUMBER = "+16505551213";
+
+    private long mCurrentTime = 1000L;
+    private final AtomicInteger mQueryCount = new AtomicInteger();
+    private final Predicate<String> mBlockedNumberQuery = number -> {
+        mQueryCount.incrementAndGet();
+        return BLOCKED_NUMBER.equals(number);
+    };
+
+    private BlockedNumberCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mCache = new BlockedNumberCache(mContext, 1, Looper.getMainLooper(),
+                () -> mCurrentTime);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mCache.onDestroy();
+        super.tearDown();
+    }
+
+    @Test
+    @SmallTest
+    public void testDecisionCached() throws Exception {
+        assertTrue(mCache.isNumberBlocked(BLOCKED_NUMBER, mBlockedNumberQuery));
+        assertFalse(mCache.isNumberBlocked(NUMBER, mBlockedNumberQuery));
+        assertEquals(2, mQueryCount.get());
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(mCache.isNumberBlocked(BLOCKED_NUMBER, mBlockedNumberQuery));
+            assertFalse(mCache.isNumberBlocked(NUMBER, mBlockedNumberQuery));
+        }
+
+        assertEquals(2, mQueryCount.get());
+        assertEquals(2, mCache.getQueryCount());
+        assertEquals(20, mCache.getHitCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testDecisionExpired() throws Exception {
+        assertTrue(mCache.isNumberBlocked(BLOCKED_NUMBER, mBlockedNumberQuery));
+
+        mCurrentTime += BlockedNumberCache.CACHE_TTL_MS - 1;
+        assertTrue(mCache.isNumberBlocked(BLOCKED_NUMBER, mBlockedNumberQuery));
+        assertEquals(1, mQueryCount.get());
+
+        mCurrentTime += 1;
+        assertTrue(mCache.isNumberBlocked(BLOCKED_NUMBER, mBlockedNumberQuery));
+        assertEquals(2, mQueryCount.get());
+    }
+
+    @Test
+    @SmallTest
+    public void testBlockedNumbersChanged() throws Exception {
+        assertFalse(mCache.isNumberBlocked(NUMBER, mBlockedNumberQuery));
+
+        // The number is now blocked.
+        mCache.invalidate();
+        assertTrue(mCache.isNumberBlocked(NUMBER, number -> true));
+        assertTrue(mCache.isNumberBlocked(NUMBER, mBlockedNumberQuery));
+        assertEquals(1, mQueryCount.get());
+    }
+}
@@ -23,9 +23,13 @@ import static com.android.ims.rcs.uce.request.UceRequestCoordinator.REQUEST_UPDA
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
 import android.net.Uri;
@@ -50,6 +54,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 
 @RunWith(AndroidJUnit4.class)
@@ -57,13 +62,17 @@ public class OptionsCoordinatorTest extends ImsTestBase {
 
     @Mock OptionsRequest mRequest;
     @Mock CapabilityRequestResponse mResponse;
+    @Mock OptionsRequest mRequest2;
+    @Mock CapabilityRequestResponse mResponse2;
     @Mock RequestManagerCallback mRequestMgrCallback;
     @Mock IRcsUceControllerCallback mUceCallback;
     @Mock UceStatsWriter mUceStatsWriter;
 
     private int mSubId = 1;
     private long mTaskId = 1L;
+    private long mTaskId2 = 2L;
     private Uri mContact = Uri.fromParts("sip", "test1", null);
+    private Uri mContact2 = Uri.fromParts("sip", "test2", null);
 
     @Before
     public void setUp() throws Exception {
@@ -141,6 +150,104 @@ public class OptionsCoordinatorTest extends ImsTestBase {
         verify(mRequestMgrCallback).notifyUceRequestFinished(anyLong(), eq(mTaskId));
     }
 
+    @Test
+    @SmallTest
+    public void testCallbacksDeliveredWithoutLock() throws Exception {
+        OptionsRequestCoordinator coordinator = getOptionsCoordinator();
+        List<Boolean> holdsLock = new ArrayList<>();
+        doAnswer(invocation -> {
+            holdsLock.add(Thread.holdsLock(coordinator.mCollectionLock));
+            return null;
+        }).when(mUceCallback).onError(anyInt(), anyLong(), any());
+        doAnswer(invocation -> {
+            holdsLock.add(Thread.holdsLock(coordinator.mCollectionLock));
+            return null;
+        }).when(mRequestMgrCallback).notifyRequestCoordinatorFinished(anyLong());
+
+        coordinator.onRequestUpdated(mTaskId, REQUEST_UPDATE_ERROR);
+
+        assertEquals(List.of(false, false), holdsLock);
+        InOrder inOrder = inOrder(mRequestMgrCallback, mUceCallback);
+        inOrder.verify(mRequestMgrCallback).notifyUceRequestFinished(anyLong(), eq(mTaskId));
+        inOrder.verify(mUceCallback).onError(anyInt(), anyLong(), any());
+        inOrder.verify(mRequestMgrCallback).notifyRequestCoordinatorFinished(anyLong());
+        verify(mRequestMgrCallback).notifyCallbackDelivered(eq("onError"), anyLong());
+    }
+
+    @Test
+    @SmallTest
+    public void testCapabilitiesAggregatedUntilRequestsFinished() throws Exception {
+        OptionsRequestCoordinator coordinator = getMultiContactOptionsCoordinator(1000L);
+        RcsContactUceCapability capability = getContactUceCapability();
+        RcsContactUceCapability capability2 = getContactUceCapability(mContact2);
+        setNetworkResponse(mResponse, capability);
+        setNetworkResponse(mResponse2, capability2);
+
+        coordinator.onRequestUpdated(mTaskId, REQUEST_UPDATE_NETWORK_RESPONSE);
+
+        // The capabilities are held until the other contact responds.
+        verify(mRequestMgrCallback).setAggregationWindowTimer(anyLong(), eq(1000L));
+        verify(mRequestMgrCallback, never()).saveCapabilities(any());
+        verify(mUceCallback, never()).onCapabilitiesReceived(any());
+
+        coordinator.onRequestUpdated(mTaskId2, REQUEST_UPDATE_NETWORK_RESPONSE);
+
+        List<RcsContactUceCapability> expectedCaps = List.of(capability, capability2);
+        InOrder inOrder = inOrder(mRequestMgrCallback, mUceCallback);
+        inOrder.verify(mRequestMgrCallback).saveCapabilities(expectedCaps);
+        inOrder.verify(mUceCallback).onCapabilitiesReceived(expectedCaps);
+        inOrder.verify(mUceCallback).onComplete(any());
+        verify(mRequestMgrCallback).setAggregationWindowTimer(anyLong(), anyLong());
+    }
+
+    @Test
+    @SmallTest
+    public void testCapabilitiesFlushedWhenWindowExpires() throws Exception {
+        OptionsRequestCoordinator coordinator = getMultiContactOptionsCoordinator(1000L);
+        RcsContactUceCapability capability = getContactUceCapability();
+        setNetworkResponse(mResponse, capability);
+
+        coordinator.onRequestUpdated(mTaskId, REQUEST_UPDATE_NETWORK_RESPONSE);
+        verify(mUceCallback, never()).onCapabilitiesReceived(any());
+
+        coordinator.onAggregationWindowExpired();
+
+        verify(mRequestMgrCallback).saveCapabilities(List.of(capability));
+        verify(mUceCallback).onCapabilitiesReceived(List.of(capability));
+        verify(mUceCallback, never()).onComplete(any());
+    }
+
+    @Test
+    @SmallTest
+    public void testCapabilitiesNotAggregatedWithoutWindow() throws Exception {
+        OptionsRequestCoordinator coordinator = getMultiContactOptionsCoordinator(0L);
+        RcsContactUceCapability capability = getContactUceCapability();
+        setNetworkResponse(mResponse, capability);
+
+        coordinator.onRequestUpdated(mTaskId, REQUEST_UPDATE_NETWORK_RESPONSE);
+
+        verify(mRequestMgrCallback).saveCapabilities(List.of(capability));
+        verify(mUceCallback).onCapabilitiesReceived(List.of(capability));
+        verify(mRequestMgrCallback, never()).setAggregationWindowTimer(anyLong(), anyLong());
+    }
+
+    private OptionsRequestCoordinator getMultiContactOptionsCoordinator(long windowMillis) {
+        doReturn(mTaskId2).when(mRequest2).getTaskId();
+        doReturn(mResponse2).when(mRequest2).getRequestResponse();
+        OptionsRequestCoordinator.Builder builder = new OptionsRequestCoordinator.Builder(
+                mSubId, List.of(mRequest, mRequest2), mRequestMgrCallback, mUceStatsWriter);
+        builder.setCapabilitiesCallback(mUceCallback);
+        builder.setAggregationWindowMillis(windowMillis);
+        return builder.build();
+    }
+
+    private void setNetworkResponse(CapabilityRequestResponse response,
+            RcsContactUceCapability capability) {
+        doReturn(true).when(response).isNetworkResponseOK();
+        doReturn(Optional.of(200)).when(response).getNetworkRespSipCode();
+        doReturn(List.of(capability)).when(response).getUpdatedContactCapability();
+    }
+
     private OptionsRequestCoordinator getOptionsCoordinator() {
         OptionsRequestCoordinator.Builder builder = new OptionsRequestCoordinator.Builder(
                 mSubId, Collections.singletonList(mRequest), mRequestMgrCallback, mUceStatsWriter);
@@ -150,10 +257,14 @@ public class OptionsCoordinatorTest extends ImsTestBase {
     }
 
     private RcsContactUceCapability getContactUceCapability() {
+        return getContactUceCapability(mContact);
+    }
+
+    private RcsContactUceCapability getContactUceCapability(Uri contact) {
         int requestResult = RcsContactUceCapability.REQUEST_RESULT_FOUND;
         RcsContactUceCapability.PresenceBuilder builder =
                 new RcsContactUceCapability.PresenceBuilder(
-                        mContact, RcsContactUceCapability.SOURCE_TYPE_NETWORK, requestResult);
+                        contact, RcsContactUceCapability.SOURCE_TYPE_NETWORK, requestResult);
         return builder.build();
     }
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ims.rcs.uce.request;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import com.android.ims.ImsTestBase;
+import com.android.ims.rcs.uce.request.UceRequestManager.RequestManagerCallback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.LongUnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+@RunWith(AndroidJUnit4.class)
+public class OptionsRequestDispatcherTest extends ImsTestBase {
+
+    private static final String TAG = "OptionsRequestDispatcherTest";
+
+    private static final long COORDINATOR_ID = 1L;
+    private static final int CONTACT_COUNT = 50;
+    private static final long RESPONSE_LATENCY_MS = 300L;
+
+    @Mock RequestManagerCallback mRequestMgrCallback;
+
+    private int mSubId = 1;
+    // The simulated time, in milliseconds.
+    private long mCurrentTime;
+    // The time each request is sent at, indexed by its task ID - 1.
+    private long[] mSendTimes;
+    // The time each request is responded at with its task ID, sorted by the response time and
+    // then by the task ID.
+    private final PriorityQueue<long[]> mPendingResponses = new PriorityQueue<>(
+            (a, b) -> (a[0] != b[0]) ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mCurrentTime = 0L;
+        doAnswer(invocation -> {
+            long taskId = invocation.getArgument(1);
+            long delayTime = invocation.getArgument(2);
+            long sendTime = mCurrentTime + delayTime;
+            mSendTimes[(int) taskId - 1] = sendTime;
+            mPendingResponses.add(new long[] {sendTime + RESPONSE_LATENCY_MS, taskId});
+            return null;
+        }).when(mRequestMgrCallback).notifySendingRequest(anyLong(), anyLong(), anyLong());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mPendingResponses.clear();
+        super.tearDown();
+    }
+
+    @Test
+    @SmallTest
+    public void testParallelLaneCompletesFaster() throws Exception {
+        OptionsRequestDispatcher serialDispatcher = createDispatcher();
+        serialDispatcher.setConfiguration(1, 10, 1);
+        long serialTime = simulate(serialDispatcher, CONTACT_COUNT, taskId -> 200);
+
+        OptionsRequestDispatcher parallelDispatcher = createDispatcher();
+        long parallelTime = simulate(parallelDispatcher, CONTACT_COUNT, taskId -> 200);
+
+        Log.i(TAG, "testParallelLaneCompletesFaster: contacts=" + CONTACT_COUNT
+                + ", serial=" + serialTime + "ms, parallel=" + parallelTime + "ms");
+        assertEquals(CONTACT_COUNT * RESPONSE_LATENCY_MS, serialTime);
+        assertTrue(parallelTime * 4 < serialTime);
+    }
+
+    @Test
+    @SmallTest
+    public void testRequestsPacedByTokenBucket() throws Exception {
+        OptionsRequestDispatcher dispatcher = createDispatcher();
+        simulate(dispatcher, CONTACT_COUNT, taskId -> 200);
+
+        // No more than the burst size plus the refilled tokens can be sent at any time.
+        for (long sendTime : mSendTimes) {
+            long sentCount = LongStream.of(mSendTimes).filter(time -> time <= sendTime).count();
+            long maxCount = OptionsRequestDispatcher.DEFAULT_BURST_SIZE
+                    + sendTime * OptionsRequestDispatcher.DEFAULT_REQUESTS_PER_SECOND / 1000;
+            assertTrue("sent " + sentCount + " requests at " + sendTime, sentCount <= maxCount);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testBackoffOnServiceUnavailable() throws Exception {
+        OptionsRequestDispatcher dispatcher = createDispatcher();
+        // The first request is rejected because the network is overloaded.
+        simulate(dispatcher, CONTACT_COUNT, taskId -> (taskId == 1L) ? 503 : 200);
+
+        long responseTime = mSendTimes[0] + RESPONSE_LATENCY_MS;
+        List<Long> sentAfterResponse = LongStream.of(mSendTimes)
+                .filter(time -> time >= responseTime).boxed().collect(Collectors.toList());
+        assertFalse(sentAfterResponse.isEmpty());
+        for (long sendTime : sentAfterResponse) {
+            assertTrue(sendTime >= responseTime + OptionsRequestDispatcher.MIN_BACKOFF_MILLIS);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testRetryAfterRespected() throws Exception {
+        final long retryAfterMillis = 5000L;
+        OptionsRequestDispatcher dispatcher = createDispatcher();
+        long completionTime = simulate(dispatcher, CONTACT_COUNT, taskId -> 200,
+                taskId -> (taskId == 1L) ? retryAfterMillis : 0L);
+
+        long responseTime = mSendTimes[0] + RESPONSE_LATENCY_MS;
+        for (long sendTime : mSendTimes) {
+            assertTrue(sendTime < responseTime
+                    || sendTime >= responseTime + retryAfterMillis);
+        }
+        assertTrue(completionTime > retryAfterMillis);
+    }
+
+    private OptionsRequestDispatcher createDispatcher() {
+        return new OptionsRequestDispatcher(mSubId, mRequestMgrCallback, () -> mCurrentTime);
+    }
+
+    private long simulate(OptionsRequestDispatcher dispatcher, int contactCount,
+            LongUnaryOperator sipCodes) {
+        return simulate(dispatcher, contactCount, sipCodes, taskId -> 0L);
+    }
+
+    /**
+     * Run a capabilities request for the given number of contacts, where every request is
+     * responded after RESPONSE_LATENCY_MS.
+     * @return The time all the requests have been responded at.
+     */
+    private long simulate(OptionsRequestDispatcher dispatcher, int contactCount,
+            LongUnaryOperator sipCodes, LongUnaryOperator retryAfters) {
+        mCurrentTime = 0L;
+        mSendTimes = new long[contactCount];
+        List<Long> taskIds = new ArrayList<>();
+        for (long taskId = 1; taskId <= contactCount; taskId++) {
+            taskIds.add(taskId);
+        }
+        dispatcher.addRequest(COORDINATOR_ID, taskIds);
+
+        int responseCount = 0;
+        while (!mPendingResponses.isEmpty()) {
+            long[] response = mPendingResponses.poll();
+            mCurrentTime = response[0];
+            long taskId = response[1];
+            dispatcher.onResponse((int) sipCodes.applyAsLong(taskId),
+                    retryAfters.applyAsLong(taskId));
+            dispatcher.onRequestFinished(taskId);
+            responseCount++;
+        }
+        assertEquals(contactCount, responseCount);
+        return mCurrentTime;
+    }
+}
@@ -24,6 +24,8 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
 import android.net.Uri;
@@ -46,6 +48,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 
 @RunWith(AndroidJUnit4.class)
@@ -80,10 +83,17 @@ public class RemoteOptionsCoordinatorTest extends ImsTestBase {
         RcsContactUceCapability updatedCapability = getContactUceCapability();
         doReturn(updatedCapability).when(mResponse).getRcsContactCapability();
         doReturn(true).when(mResponse).isNumberBlocked();
+        RcsContactUceCapability remoteCapability = getContactUceCapability();
+        doReturn(remoteCapability).when(mResponse).getRemoteCapability();
 
         coordinator.onRequestUpdated(mTaskId, REQUEST_UPDATE_REMOTE_REQUEST_DONE);
 
-        verify(mOptRequestCallback).respondToCapabilityRequest(updatedCapability, true);
+        // Respond to the network first, then store the remote capabilities.
+        InOrder inOrder = inOrder(mOptRequestCallback, mRequestMgrCallback);
+        inOrder.verify(mOptRequestCallback).respondToCapabilityRequest(updatedCapability, true);
+        inOrder.verify(mRequestMgrCallback).saveCapabilitiesAsync(
+                Collections.singletonList(remoteCapability));
+        verify(mRequestMgrCallback, never()).saveCapabilities(any());
 
         verify(mRequest).onFinish();
         verify(mUceStatsWriter).setUceEvent(eq(mSubId), eq(UceStatsWriter.INCOMING_OPTION_EVENT),
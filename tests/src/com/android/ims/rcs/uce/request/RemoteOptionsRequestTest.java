@@ -20,6 +20,8 @@ import static android.telephony.ims.RcsContactUceCapability.SOURCE_TYPE_CACHED;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
@@ -99,11 +101,15 @@ public class RemoteOptionsRequestTest extends ImsTestBase {
 
         request.executeRequest();
 
-        verify(mRequestManagerCallback).saveCapabilities(any());
+        // The remote capabilities are stored by the coordinator after responding.
+        verify(mRequestManagerCallback, never()).saveCapabilities(any());
 
         RemoteOptResponse response = request.getRemoteOptResponse();
         assertEquals(mDeviceCapability, response.getRcsContactCapability());
         assertFalse(response.isNumberBlocked());
+        RcsContactUceCapability remoteCapability = response.getRemoteCapability();
+        assertEquals(mTestContact, remoteCapability.getContactUri());
+        assertEquals(2, remoteCapability.getFeatureTags().size());
 
         verify(mRequestManagerCallback).notifyRemoteRequestDone(eq(mCoordId), anyLong());
     }
@@ -118,7 +124,8 @@ public class RemoteOptionsRequestTest extends ImsTestBase {
 
         request.executeRequest();
 
-        verify(mRequestManagerCallback).saveCapabilities(any());
+        verify(mRequestManagerCallback, never()).saveCapabilities(any());
+        assertNotNull(request.getRemoteOptResponse().getRemoteCapability());
 
         RemoteOptResponse response = request.getRemoteOptResponse();
         assertEquals(mDeviceCapability, response.getRcsContactCapability());
@@ -142,7 +149,7 @@ public class RemoteOptionsRequestTest extends ImsTestBase {
         assertEquals(NetworkSipCode.SIP_SERVICE_UNAVAILABLE, reason);
 
         verify(mRequestManagerCallback).notifyRemoteRequestDone(eq(mCoordId), anyLong());
-        verify(mRequestManagerCallback, never()).saveCapabilities(any());
+        assertNull(response.getRemoteCapability());
     }
 
     private RemoteOptionsRequest getRequest() {
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ims.rcs.uce.request;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import android.telephony.ims.RcsUceAdapter;
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.filters.SmallTest;
+
+import com.android.ims.ImsTestBase;
+import com.android.ims.rcs.uce.request.SubscriptionTerminatedHelper.TerminatedResult;
+import com.android.ims.rcs.uce.util.UceUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Optional;
+
+@RunWith(AndroidJUnit4.class)
+public class SubscriptionTerminatedHelperTest extends ImsTestBase {
+
+    private static final String TAG = "SubscriptionTerminatedHelperTest";
+
+    private static final String[] REASONS = {
+            null, "", "deactivated", "DEACTIVATED", "probation", "Probation", "rejected",
+            "REJECTED", "timeout", "TimeOut", "giveup", "GiveUp", "noresource", "NoResource",
+            "unknown", "timeout2", " timeout"
+    };
+    private static final long[] RETRY_AFTER_MILLIS = {
+            -1L, 0L, 1L, UceUtils.getMinimumRequestRetryAfterMillis() - 1L,
+            UceUtils.getMinimumRequestRetryAfterMillis(),
+            UceUtils.getMinimumRequestRetryAfterMillis() + 1L, 60000L
+    };
+
+    private int mSubId = 1;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        SubscriptionTerminatedHelper.setCarrierRetryPolicies(mSubId, null);
+        super.tearDown();
+    }
+
+    @Test
+    @SmallTest
+    public void testParityWithRfc3265Analysis() throws Exception {
+        for (String reason : REASONS) {
+            for (long retryAfterMillis : RETRY_AFTER_MILLIS) {
+                for (boolean allCapsHaveReceived : new boolean[] {true, false}) {
+                    TerminatedResult expected = getLegacyAnalysisResult(reason, retryAfterMillis,
+                            allCapsHaveReceived);
+                    String message = "reason=" + reason + ", retry=" + retryAfterMillis
+                            + ", allCaps=" + allCapsHaveReceived;
+                    assertResultEquals(message, expected,
+                            SubscriptionTerminatedHelper.getAnalysisResult(reason,
+                                    retryAfterMillis, allCapsHaveReceived));
+                    // No carrier override for this subscription
+                    assertResultEquals(message, expected,
+                            SubscriptionTerminatedHelper.getAnalysisResult(mSubId, reason,
+                                    retryAfterMillis, allCapsHaveReceived));
+                }
+            }
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testNoRetryResultsAreCached() throws Exception {
+        assertSame(SubscriptionTerminatedHelper.getAnalysisResult("rejected", 0L, true),
+                SubscriptionTerminatedHelper.getAnalysisResult("Rejected", 0L, false));
+        assertSame(SubscriptionTerminatedHelper.getAnalysisResult("unknown", 0L, true),
+                SubscriptionTerminatedHelper.getAnalysisResult("timeout", 0L, true));
+        assertSame(SubscriptionTerminatedHelper.getAnalysisResult("deactivated", 0L, true),
+                SubscriptionTerminatedHelper.getAnalysisResult("deactivated", 1L, true));
+    }
+
+    @Test
+    @SmallTest
+    public void testCarrierRetryPolicies() throws Exception {
+        SubscriptionTerminatedHelper.setCarrierRetryPolicies(mSubId, new String[] {
+                "probation:" + RcsUceAdapter.ERROR_SERVER_UNAVAILABLE + ":never",
+                "Rejected:" + RcsUceAdapter.ERROR_NOT_AUTHORIZED + ":ALWAYS",
+                "invalid",
+                "noresource:abc:never",
+                "giveup:1:sometimes"
+        });
+
+        TerminatedResult result = SubscriptionTerminatedHelper.getAnalysisResult(mSubId,
+                "PROBATION", 10000L, true);
+        assertEquals(Optional.of(RcsUceAdapter.ERROR_SERVER_UNAVAILABLE), result.getErrorCode());
+        assertEquals(0L, result.getRetryAfterMillis());
+
+        result = SubscriptionTerminatedHelper.getAnalysisResult(mSubId, "rejected", 0L, true);
+        assertEquals(Optional.of(RcsUceAdapter.ERROR_NOT_AUTHORIZED), result.getErrorCode());
+        assertEquals(UceUtils.getMinimumRequestRetryAfterMillis(), result.getRetryAfterMillis());
+
+        // The reasons which are not overridden or have malformed entries keep the RFC policies.
+        for (String reason : new String[] {"noresource", "giveup", "timeout", "unknown"}) {
+            assertResultEquals(reason, getLegacyAnalysisResult(reason, 5000L, false),
+                    SubscriptionTerminatedHelper.getAnalysisResult(mSubId, reason, 5000L, false));
+        }
+
+        // The other subscriptions are not affected.
+        assertResultEquals("probation", getLegacyAnalysisResult("probation", 10000L, true),
+                SubscriptionTerminatedHelper.getAnalysisResult(mSubId + 1, "probation", 10000L,
+                        true));
+
+        SubscriptionTerminatedHelper.setCarrierRetryPolicies(mSubId, null);
+        assertResultEquals("probation", getLegacyAnalysisResult("probation", 10000L, true),
+                SubscriptionTerminatedHelper.getAnalysisResult(mSubId, "probation", 10000L,
+                        true));
+    }
+
+    /**
+     * Compares the time of the table driven analysis with the legacy one. The results are
+     * checked by the other tests, this only logs the timings, so it is not run with the unit
+     * tests.
+     */
+    @Test
+    @LargeTest
+    @Ignore("Benchmark, run manually")
+    public void testAnalysisBenchmark() throws Exception {
+        final int iterations = 20000;
+        long legacyNanos = 0L;
+        long tableNanos = 0L;
+        // Warm up both implementations before measuring.
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                getLegacyAnalysisResult(REASONS[i % REASONS.length], 0L, true);
+            }
+            legacyNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                SubscriptionTerminatedHelper.getAnalysisResult(REASONS[i % REASONS.length], 0L,
+                        true);
+            }
+            tableNanos = System.nanoTime() - start;
+        }
+        Log.i(TAG, "testAnalysisBenchmark: iterations=" + iterations
+                + ", legacy=" + (legacyNanos / iterations) + "ns/op"
+                + ", table=" + (tableNanos / iterations) + "ns/op");
+    }
+
+    private static void assertResultEquals(String message, TerminatedResult expected,
+            TerminatedResult actual) {
+        assertEquals(message, expected.getErrorCode(), actual.getErrorCode());
+        assertEquals(message, expected.getRetryAfterMillis(), actual.getRetryAfterMillis());
+    }
+
+    /**
+     * The analysis of the terminated reason before it was table driven, to check that the
+     * results have not changed.
+     */
+    private static TerminatedResult getLegacyAnalysisResult(String reason, long retryAfterMillis,
+            boolean allCapsHaveReceived) {
+        long minRetry = UceUtils.getMinimumRequestRetryAfterMillis();
+        long retry = (retryAfterMillis < minRetry) ? minRetry : retryAfterMillis;
+        TerminatedResult result = null;
+        if (TextUtils.isEmpty(reason)) {
+            if (retryAfterMillis > 0L) {
+                result = new TerminatedResult(Optional.of(RcsUceAdapter.ERROR_GENERIC_FAILURE),
+                        retryAfterMillis);
+            }
+        } else if ("deactivated".equalsIgnoreCase(reason)
+                || "probation".equalsIgnoreCase(reason)) {
+            result = new TerminatedResult(Optional.of(RcsUceAdapter.ERROR_GENERIC_FAILURE), retry);
+        } else if ("rejected".equalsIgnoreCase(reason)) {
+            result = new TerminatedResult(Optional.of(RcsUceAdapter.ERROR_NOT_AUTHORIZED), 0L);
+        } else if ("timeout".equalsIgnoreCase(reason)) {
+            if (retryAfterMillis > 0L) {
+                result = new TerminatedResult(Optional.of(RcsUceAdapter.ERROR_REQUEST_TIMEOUT),
+                        retry);
+            } else if (!allCapsHaveReceived) {
+                result = new TerminatedResult(Optional.of(RcsUceAdapter.ERROR_REQUEST_TIMEOUT), 0L);
+            } else {
+                result = new TerminatedResult(Optional.empty(), 0L);
+            }
+        } else if ("giveup".equalsIgnoreCase(reason)) {
+            result = new TerminatedResult(Optional.of(RcsUceAdapter.ERROR_NOT_AUTHORIZED), retry);
+        } else if ("noresource".equalsIgnoreCase(reason)) {
+            result = new TerminatedResult(Optional.of(RcsUceAdapter.ERROR_NOT_FOUND), 0L);
+        } else if (retryAfterMillis > 0L) {
+            result = new TerminatedResult(Optional.of(RcsUceAdapter.ERROR_GENERIC_FAILURE), retry);
+        }
+        if (result == null) {
+            result = new TerminatedResult(Optional.empty(), 0L);
+        }
+        return result;
+    }
+}
@@ -29,6 +29,7 @@ import static com.android.ims.rcs.uce.request.UceRequestCoordinator.REQUEST_UPDA
 import static com.android.ims.rcs.uce.request.UceRequestCoordinator.REQUEST_UPDATE_RESOURCE_TERMINATED;
 import static com.android.ims.rcs.uce.request.UceRequestCoordinator.REQUEST_UPDATE_TERMINATED;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
@@ -40,6 +41,7 @@ import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.PersistableBundle;
 import android.telephony.ims.RcsContactUceCapability;
 import android.telephony.ims.RcsUceAdapter;
 import android.telephony.ims.aidl.IOptionsRequestCallback;
@@ -55,6 +57,7 @@ import com.android.ims.rcs.uce.eab.EabCapabilityResult;
 import com.android.ims.rcs.uce.request.UceRequestManager.RequestManagerCallback;
 import com.android.ims.rcs.uce.request.UceRequestManager.UceUtilsProxy;
 import com.android.ims.rcs.uce.util.FeatureTags;
+import com.android.ims.rcs.uce.util.UceUtils;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -325,6 +328,12 @@ public class UceRequestManagerTest extends ImsTestBase {
         requestMgrCallback.notifyRequestCoordinatorFinished(mCoordId);
         waitForHandlerAction(handler, 400L);
         verify(mCoordinator).onFinish();
+
+        requestMgrCallback.notifyCallbackDelivered("onComplete", 10L);
+        requestMgrCallback.notifyCallbackDelivered("onComplete", 30L);
+        CallbackDeliveryStats stats = requestManager.getCallbackDeliveryStats();
+        assertEquals(2, stats.getDeliveryCount("onComplete"));
+        assertEquals(30L, stats.getMaxLatencyMillis("onComplete"));
     }
 
     @Test
@@ -342,6 +351,21 @@ public class UceRequestManagerTest extends ImsTestBase {
         verify(mRequestRepository).addRequestCoordinator(any());
     }
 
+    @Test
+    @SmallTest
+    public void testOptionsDispatcherConfigurationFromCarrierConfig() throws Exception {
+        PersistableBundle bundle = mContextFixture.getTestCarrierConfigBundle();
+        bundle.putInt(UceUtils.KEY_OPTIONS_MAX_CONCURRENT_REQUESTS_INT, 2);
+        bundle.putInt(UceUtils.KEY_OPTIONS_REQUESTS_PER_SECOND_INT, 4);
+        UceRequestManager requestManager = getUceRequestManager();
+
+        requestManager.onCarrierConfigChanged();
+
+        // The burst size is not set by the carrier, the default is used.
+        verify(mRequestRepository).setOptionsDispatcherConfiguration(2, 4,
+                OptionsRequestDispatcher.DEFAULT_BURST_SIZE);
+    }
+
     private UceRequestManager getUceRequestManager() {
         UceRequestManager manager = new UceRequestManager(mContext, mSubId, Looper.getMainLooper(),
                 mCallback, mRequestRepository);
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ims.rcs.uce.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import com.android.ims.ImsTestBase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+public class HandlerLagMonitorTest extends ImsTestBase {
+
+    private static final int TEST_SUB_ID = 1;
+    private static final String TEST_HANDLER_NAME = "TestHandler";
+    private static final long BLOCKING_TIME_MS = 200;
+
+    private HandlerThread mHandlerThread;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        HandlerLagMonitor.clear(TEST_SUB_ID);
+        mHandlerThread = new HandlerThread("HandlerLagMonitorTest");
+        mHandlerThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mHandlerThread.quit();
+        HandlerLagMonitor.clear(TEST_SUB_ID);
+        super.tearDown();
+    }
+
+    @Test
+    @SmallTest
+    public void testQueueDelayRecorded() throws Exception {
+        MonitoredHandler handler = new MonitoredHandler(mHandlerThread.getLooper(), TEST_SUB_ID,
+                TEST_HANDLER_NAME);
+        CountDownLatch latch = new CountDownLatch(1);
+
+        // The second runnable waits in the queue while the first one is blocking the looper.
+        handler.post(() -> SystemClock.sleep(BLOCKING_TIME_MS));
+        handler.post(latch::countDown);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        long maxDelay = HandlerLagMonitor.getMaxQueueDelayMs(TEST_SUB_ID, TEST_HANDLER_NAME);
+        assertTrue("max delay " + maxDelay, maxDelay >= BLOCKING_TIME_MS / 2);
+    }
+
+    @Test
+    @SmallTest
+    public void testClear() {
+        HandlerLagMonitor.record(TEST_SUB_ID, TEST_HANDLER_NAME, 10);
+        HandlerLagMonitor.record(TEST_SUB_ID, TEST_HANDLER_NAME, 30);
+        HandlerLagMonitor.record(TEST_SUB_ID, TEST_HANDLER_NAME, 20);
+        assertEquals(30, HandlerLagMonitor.getMaxQueueDelayMs(TEST_SUB_ID, TEST_HANDLER_NAME));
+
+        HandlerLagMonitor.clear(TEST_SUB_ID);
+        assertEquals(-1, HandlerLagMonitor.getMaxQueueDelayMs(TEST_SUB_ID, TEST_HANDLER_NAME));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ims.rcs.uce.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.util.IndentingPrintWriter;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import com.android.ims.ImsTestBase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.StringWriter;
+
+@RunWith(AndroidJUnit4.class)
+public class UceLoggerTest extends ImsTestBase {
+
+    private static final int TEST_SUB_ID = 1;
+    private static final String TEST_TAG = "UceLoggerTest";
+
+    /**
+     * An argument which records whether it has been formatted.
+     */
+    private static class TestArg {
+        boolean mIsFormatted;
+
+        @Override
+        public String toString() {
+            mIsFormatted = true;
+            return "TestArg";
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        UceLogger.clear(TEST_SUB_ID);
+        UceLogger.clear(TEST_SUB_ID + 1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        UceLogger.clear(TEST_SUB_ID);
+        UceLogger.clear(TEST_SUB_ID + 1);
+        super.tearDown();
+    }
+
+    @Test
+    @SmallTest
+    public void testArgumentNotFormattedWhenDebugDisabled() throws Exception {
+        UceLogger logger = new UceLogger(TEST_TAG, TEST_SUB_ID, "[1][coordId=2] ", false);
+        TestArg arg = new TestArg();
+
+        logger.d("handleNetworkResponse: ", arg);
+
+        assertFalse(arg.mIsFormatted);
+        // The event is still recorded without its argument.
+        assertEquals(1L, UceLogger.getEventCount(TEST_SUB_ID));
+        String dump = dump(TEST_SUB_ID);
+        assertTrue(dump.contains("[D] [1][coordId=2] handleNetworkResponse: "));
+        assertFalse(dump.contains("TestArg"));
+
+        UceLogger debugLogger = new UceLogger(TEST_TAG, TEST_SUB_ID, "[1][coordId=2] ", true);
+        debugLogger.d("handleNetworkResponse: ", arg);
+        assertTrue(arg.mIsFormatted);
+    }
+
+    @Test
+    @SmallTest
+    public void testEventRing() throws Exception {
+        UceLogger logger = new UceLogger(TEST_TAG, TEST_SUB_ID, "[1] ", false);
+        UceLogger otherLogger = new UceLogger(TEST_TAG, TEST_SUB_ID + 1, "[2] ", false);
+        int eventCount = UceLogger.EVENT_RING_SIZE + 10;
+        for (int i = 0; i < eventCount; i++) {
+            logger.d("onRequestUpdated: taskId=", i, ", event=REQUEST_TIMEOUT");
+        }
+        logger.w("onRequestUpdated: invalid event ", 100);
+        otherLogger.d("onRequestUpdated: taskId=", 1000L);
+
+        assertEquals(eventCount + 1, UceLogger.getEventCount(TEST_SUB_ID));
+        String dump = dump(TEST_SUB_ID);
+        // Only the latest events are kept.
+        assertFalse(dump.contains("taskId=9,"));
+        assertTrue(dump.contains("[D] [1] onRequestUpdated: taskId=11, event=REQUEST_TIMEOUT"));
+        assertTrue(dump.contains("[D] [1] onRequestUpdated: taskId=" + (eventCount - 1)));
+        assertTrue(dump.contains("[W] [1] onRequestUpdated: invalid event 100"));
+        // The events of the other subscriptions are not printed.
+        assertFalse(dump.contains("taskId=1000"));
+
+        UceLogger.clear(TEST_SUB_ID);
+        assertEquals(0L, UceLogger.getEventCount(TEST_SUB_ID));
+        assertEquals(1L, UceLogger.getEventCount(TEST_SUB_ID + 1));
+    }
+
+    private static String dump(int subId) {
+        StringWriter writer = new StringWriter();
+        IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
+        UceLogger.dump(pw, subId);
+        pw.flush();
+        return writer.toString();
+    }
+}